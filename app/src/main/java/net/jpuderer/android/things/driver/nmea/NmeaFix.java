@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.driver.nmea;
+
+import android.location.Location;
+
+/**
+ * One GPS fix, assembled from the sentences of one NMEA epoch.  The parser reuses the same
+ * instance for every fix, so copy out what you need before returning from
+ * {@link NmeaParser.Listener#onFix(NmeaFix)}.  Values that weren't reported are NaN, or -1.
+ */
+public final class NmeaFix {
+    // Rough user equivalent range error, in metres, to turn dilution of precision into an
+    // accuracy estimate.
+    public static final float UERE_M = 5f;
+
+    public long time; // UTC ms since epoch
+    public long timestampNanos; // elapsed realtime when received (see NmeaGps.Clock)
+    public double latitude;
+    public double longitude;
+    public double altitude; // metres above mean sea level
+    public float speed; // m/s
+    public float bearing; // degrees true
+    public int quality; // GGA fix quality: 1 GPS, 2 DGPS, 4 RTK, ...
+    public int satellites; // satellites used
+    public float hdop;
+    public float vdop;
+    public float pdop;
+
+    void reset() {
+        time = -1;
+        timestampNanos = 0;
+        latitude = Double.NaN;
+        longitude = Double.NaN;
+        altitude = Double.NaN;
+        speed = Float.NaN;
+        bearing = Float.NaN;
+        quality = -1;
+        satellites = -1;
+        hdop = Float.NaN;
+        vdop = Float.NaN;
+        pdop = Float.NaN;
+    }
+
+    /**
+     * Fill in a location from this fix, without allocating.  Accuracies are estimated from the
+     * dilution of precision, or left unset if the receiver didn't report it.
+     */
+    public void copyTo(Location location) {
+        location.setTime(time);
+        location.setElapsedRealtimeNanos(timestampNanos);
+        location.setLatitude(latitude);
+        location.setLongitude(longitude);
+        if (Double.isNaN(altitude)) {
+            location.removeAltitude();
+        } else {
+            location.setAltitude(altitude);
+        }
+        if (Float.isNaN(speed)) {
+            location.removeSpeed();
+        } else {
+            location.setSpeed(speed);
+        }
+        if (Float.isNaN(bearing)) {
+            location.removeBearing();
+        } else {
+            location.setBearing(bearing);
+        }
+        if (Float.isNaN(hdop)) {
+            location.removeAccuracy();
+        } else {
+            location.setAccuracy(hdop * UERE_M);
+        }
+        if (Float.isNaN(vdop)) {
+            location.removeVerticalAccuracy();
+        } else {
+            location.setVerticalAccuracyMeters(vdop * UERE_M);
+        }
+    }
+}
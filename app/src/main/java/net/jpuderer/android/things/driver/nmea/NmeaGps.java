@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.driver.nmea;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Driver for an NMEA 0183 GPS receiver, parsing its output in-process.
+ * <p>
+ * {@link #setFixRate(int)} speaks the MediaTek (PMTK) dialect, used by the common MT3339
+ * modules, and trims the output to the sentences the parser uses.  The rate is limited by the
+ * link: at 9600 baud, RMC, GGA and GSA fit about four times a second, so faster rates need the
+ * receiver's baud rate raised first (see {@link #getMaxFixRateHz(int)}).  Receivers on USB
+ * don't have that limit.
+ */
+public class NmeaGps implements AutoCloseable {
+    public static final int MAX_FIX_RATE_HZ = 10;
+
+    // RMC, GGA and GSA with every fix; GLL, VTG, GSV and the rest off
+    private static final String CMD_SET_OUTPUT = "PMTK314,0,1,0,1,1,0,0,0,0,0,0,0,0,0,0,0,0,0,0";
+    private static final String CMD_SET_FIX_INTERVAL = "PMTK220,";
+
+    // Longest RMC, GGA and GSA sentences, with their line endings, as sent with every fix
+    private static final int FIX_OUTPUT_BYTES = 240;
+    // Start bit, 8 data bits and stop bit
+    private static final int UART_BITS_PER_BYTE = 10;
+
+    /**
+     * Stamps received data with the time it arrived, in elapsed realtime nanoseconds.
+     */
+    public interface Clock {
+        long elapsedRealtimeNanos();
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long elapsedRealtimeNanos() {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+    };
+
+    private final Clock mClock;
+    private NmeaTransport mTransport;
+    private NmeaParser mParser;
+
+    public NmeaGps(NmeaTransport transport) {
+        this(transport, SYSTEM_CLOCK);
+    }
+
+    /**
+     * @param clock timestamps fixes, e.g. with the recorded times when replaying a log
+     */
+    public NmeaGps(NmeaTransport transport, Clock clock) {
+        mTransport = transport;
+        mClock = clock;
+    }
+
+    /**
+     * Start parsing the receiver's output, delivering fixes to the listener on the transport's
+     * thread.
+     */
+    public void start(NmeaParser.Listener listener) throws IOException {
+        if (mTransport == null) {
+            throw new IllegalStateException("GPS is closed");
+        }
+        mParser = new NmeaParser(listener);
+        final NmeaParser parser = mParser;
+        final Clock clock = mClock;
+        mTransport.start(new NmeaTransport.Callback() {
+            @Override
+            public void onData(byte[] buffer, int count) {
+                parser.feed(buffer, count, clock.elapsedRealtimeNanos());
+            }
+        });
+    }
+
+    /**
+     * Returns the highest fix rate whose output fits through a UART at the given baud rate.
+     * Asking for more only makes the receiver fall behind, and drop sentences.
+     */
+    public static int getMaxFixRateHz(int baudRate) {
+        final int hz = baudRate / UART_BITS_PER_BYTE / FIX_OUTPUT_BYTES;
+        return Math.max(1, Math.min(MAX_FIX_RATE_HZ, hz));
+    }
+
+    /**
+     * Set how many fixes per second the receiver reports.
+     */
+    public void setFixRate(int hz) throws IOException {
+        if (hz < 1 || hz > MAX_FIX_RATE_HZ) {
+            throw new IllegalArgumentException("Fix rate out of range: " + hz);
+        }
+        if (mTransport == null) {
+            throw new IllegalStateException("GPS is closed");
+        }
+        mTransport.write(command(CMD_SET_OUTPUT));
+        mTransport.write(command(CMD_SET_FIX_INTERVAL + (1000 / hz)));
+    }
+
+    /**
+     * Returns the parser, for its statistics, or null if not started.
+     */
+    public NmeaParser getParser() {
+        return mParser;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mTransport != null) {
+            try {
+                mTransport.close();
+            } finally {
+                mTransport = null;
+            }
+        }
+    }
+
+    // Frame a command as a sentence: $<body>*<checksum>\r\n
+    static byte[] command(String body) {
+        int checksum = 0;
+        for (int i = 0; i < body.length(); i++) {
+            checksum ^= body.charAt(i);
+        }
+        return String.format("$%s*%02X\r\n", body, checksum).getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.driver.nmea;
+
+/**
+ * Parses NMEA 0183 output from a GPS receiver into fixes.
+ * <p>
+ * RMC, GGA and GSA sentences are understood, from any talker (GP, GN, GL, ...).  Each epoch's
+ * RMC and GGA are combined into one {@link NmeaFix}, with the dilution of precision from the
+ * latest GSA, which receivers often send after the fix sentences.  A fix is delivered as soon
+ * as both sentences of its epoch have arrived, or, for receivers which don't send GGA, when
+ * the next epoch starts.  Fixes which the receiver marks invalid are dropped.
+ * <p>
+ * Sentences are assembled in a fixed buffer and parsed in place, so nothing is allocated after
+ * construction.  Not thread safe: feed it from one thread.
+ */
+public class NmeaParser {
+    public interface Listener {
+        /**
+         * Called from {@link #feed(byte[], int, long)} with each new fix.  The fix is reused.
+         */
+        void onFix(NmeaFix fix);
+    }
+
+    // NMEA limits sentences to 82 characters, but some receivers go over
+    private static final int MAX_SENTENCE_LENGTH = 128;
+    private static final int MAX_FIELDS = 32;
+
+    private static final double KNOTS_TO_MPS = 0.514444;
+    private static final long MS_PER_DAY = 86400000L;
+
+    private static final double[] POWERS_OF_TEN = {
+            1, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14,
+            1e15, 1e16, 1e17, 1e18
+    };
+
+    private final Listener mListener;
+
+    // Sentence being assembled, without the leading '$'
+    private final byte[] mSentence = new byte[MAX_SENTENCE_LENGTH];
+    private int mLength;
+    private boolean mInSentence;
+    private long mSentenceTimestamp;
+
+    // Fields of the current sentence: start (inclusive) and end (exclusive) offsets
+    private final int[] mFieldStart = new int[MAX_FIELDS];
+    private final int[] mFieldEnd = new int[MAX_FIELDS];
+    private int mFieldCount;
+
+    // Current epoch
+    private final NmeaFix mFix = new NmeaFix();
+    private long mEpochTimeOfDay = -1; // UTC ms since midnight
+    private long mEpochDate = -1; // UTC ms since epoch, of midnight
+    private boolean mHasRmc;
+    private boolean mHasGga;
+    private boolean mInvalid;
+    private boolean mDelivered;
+
+    // From the latest GSA
+    private float mPdop = Float.NaN;
+    private float mHdop = Float.NaN;
+    private float mVdop = Float.NaN;
+
+    private long mSentences;
+    private long mErrors;
+    private long mFixes;
+
+    public NmeaParser(Listener listener) {
+        mListener = listener;
+        mFix.reset();
+    }
+
+    /**
+     * Parse received data.  Sentences may be split across calls.
+     *
+     * @param timestampNanos SystemClock.elapsedRealtimeNanos() when the data was received
+     */
+    public void feed(byte[] data, int count, long timestampNanos) {
+        for (int i = 0; i < count; i++) {
+            final byte b = data[i];
+            if (b == '$') {
+                mInSentence = true;
+                mLength = 0;
+                mSentenceTimestamp = timestampNanos;
+            } else if (b == '\r' || b == '\n') {
+                if (mInSentence) {
+                    mInSentence = false;
+                    processSentence();
+                }
+            } else if (mInSentence) {
+                if (mLength < MAX_SENTENCE_LENGTH) {
+                    mSentence[mLength++] = b;
+                } else {
+                    // Garbage, or we lost the end of a sentence
+                    mInSentence = false;
+                    mErrors++;
+                }
+            }
+        }
+    }
+
+    public long getSentenceCount() {
+        return mSentences;
+    }
+
+    /**
+     * Returns the number of sentences dropped because they were corrupt.
+     */
+    public long getErrorCount() {
+        return mErrors;
+    }
+
+    public long getFixCount() {
+        return mFixes;
+    }
+
+    private void processSentence() {
+        if (!verifyChecksum() || !splitFields() || fieldLength(0) < 3) {
+            mErrors++;
+            return;
+        }
+        mSentences++;
+        // Proprietary sentences, e.g. command acknowledgements, start with P
+        if (mSentence[mFieldStart[0]] == 'P') {
+            return;
+        }
+        final int type = mFieldEnd[0] - 3;
+        if (matches(type, 'R', 'M', 'C')) {
+            processRmc();
+        } else if (matches(type, 'G', 'G', 'A')) {
+            processGga();
+        } else if (matches(type, 'G', 'S', 'A')) {
+            processGsa();
+        }
+    }
+
+    // Strips the checksum from the sentence, once it has been checked
+    private boolean verifyChecksum() {
+        if (mLength < 3 || mSentence[mLength - 3] != '*') {
+            return false;
+        }
+        final int expected = (hexValue(mSentence[mLength - 2]) << 4) |
+                hexValue(mSentence[mLength - 1]);
+        mLength -= 3;
+        int checksum = 0;
+        for (int i = 0; i < mLength; i++) {
+            checksum ^= mSentence[i];
+        }
+        return expected >= 0 && checksum == expected;
+    }
+
+    private boolean splitFields() {
+        mFieldCount = 0;
+        int start = 0;
+        for (int i = 0; i <= mLength; i++) {
+            if (i == mLength || mSentence[i] == ',') {
+                if (mFieldCount == MAX_FIELDS) {
+                    return false;
+                }
+                mFieldStart[mFieldCount] = start;
+                mFieldEnd[mFieldCount] = i;
+                mFieldCount++;
+                start = i + 1;
+            }
+        }
+        return true;
+    }
+
+    private void processRmc() {
+        if (mFieldCount < 10 || !startEpoch(1)) {
+            return;
+        }
+        if (fieldChar(2) != 'A') {
+            mInvalid = true;
+        }
+        final double latitude = parseCoordinate(3, 4, 'S');
+        final double longitude = parseCoordinate(5, 6, 'W');
+        if (!Double.isNaN(latitude) && !Double.isNaN(longitude)) {
+            mFix.latitude = latitude;
+            mFix.longitude = longitude;
+        }
+        final double knots = parseDouble(7);
+        mFix.speed = (float) (knots * KNOTS_TO_MPS);
+        mFix.bearing = (float) parseDouble(8);
+        mEpochDate = parseDate(9);
+        mHasRmc = true;
+        deliverIfComplete();
+    }
+
+    private void processGga() {
+        if (mFieldCount < 10 || !startEpoch(1)) {
+            return;
+        }
+        final double latitude = parseCoordinate(2, 3, 'S');
+        final double longitude = parseCoordinate(4, 5, 'W');
+        if (!Double.isNaN(latitude) && !Double.isNaN(longitude)) {
+            mFix.latitude = latitude;
+            mFix.longitude = longitude;
+        }
+        mFix.quality = parseInt(6);
+        if (mFix.quality == 0) {
+            mInvalid = true;
+        }
+        mFix.satellites = parseInt(7);
+        mFix.hdop = (float) parseDouble(8);
+        mFix.altitude = parseDouble(9);
+        mHasGga = true;
+        deliverIfComplete();
+    }
+
+    private void processGsa() {
+        if (mFieldCount < 18) {
+            return;
+        }
+        mPdop = (float) parseDouble(15);
+        mHdop = (float) parseDouble(16);
+        mVdop = (float) parseDouble(17);
+    }
+
+    /**
+     * Start a new epoch, if the time in the given field is not the current epoch's, delivering
+     * the current one if it hasn't been already.
+     *
+     * @return false if the time is missing
+     */
+    private boolean startEpoch(int timeField) {
+        final long timeOfDay = parseTimeOfDay(timeField);
+        if (timeOfDay < 0) {
+            return false;
+        }
+        if (timeOfDay != mEpochTimeOfDay) {
+            deliver();
+            mFix.reset();
+            mEpochTimeOfDay = timeOfDay;
+            mHasRmc = false;
+            mHasGga = false;
+            mInvalid = false;
+            mDelivered = false;
+            mFix.timestampNanos = mSentenceTimestamp;
+        }
+        return true;
+    }
+
+    private void deliverIfComplete() {
+        if (mHasRmc && mHasGga) {
+            deliver();
+        }
+    }
+
+    private void deliver() {
+        if (mDelivered || !mHasRmc || mInvalid || mEpochDate < 0 ||
+                Double.isNaN(mFix.latitude)) {
+            return;
+        }
+        mDelivered = true;
+        mFix.time = mEpochDate + mEpochTimeOfDay;
+        if (Float.isNaN(mFix.hdop)) {
+            mFix.hdop = mHdop;
+        }
+        mFix.vdop = mVdop;
+        mFix.pdop = mPdop;
+        mFixes++;
+        mListener.onFix(mFix);
+    }
+
+    private boolean matches(int offset, char a, char b, char c) {
+        return mSentence[offset] == a && mSentence[offset + 1] == b && mSentence[offset + 2] == c;
+    }
+
+    private int fieldLength(int field) {
+        return mFieldEnd[field] - mFieldStart[field];
+    }
+
+    private byte fieldChar(int field) {
+        return fieldLength(field) > 0 ? mSentence[mFieldStart[field]] : 0;
+    }
+
+    /**
+     * Parse a field like "-123.456", without going through a String.  Returns NaN if the
+     * field is empty or malformed.
+     */
+    private double parseDouble(int field) {
+        int i = mFieldStart[field];
+        final int end = mFieldEnd[field];
+        if (i == end) {
+            return Double.NaN;
+        }
+        boolean negative = false;
+        if (mSentence[i] == '-') {
+            negative = true;
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = -1;
+        for (; i < end; i++) {
+            final byte b = mSentence[i];
+            if (b == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else if (b >= '0' && b <= '9' && digits < POWERS_OF_TEN.length - 1) {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (fractionDigits >= 0) {
+                    fractionDigits++;
+                }
+            } else {
+                return Double.NaN;
+            }
+        }
+        if (digits == 0) {
+            return Double.NaN;
+        }
+        final double value = fractionDigits > 0 ?
+                mantissa / POWERS_OF_TEN[fractionDigits] : mantissa;
+        return negative ? -value : value;
+    }
+
+    private int parseInt(int field) {
+        final double value = parseDouble(field);
+        return Double.isNaN(value) ? -1 : (int) value;
+    }
+
+    // ddmm.mmmm (or dddmm.mmmm), and a hemisphere field
+    private double parseCoordinate(int field, int hemisphereField, char negativeHemisphere) {
+        final double value = parseDouble(field);
+        if (Double.isNaN(value)) {
+            return Double.NaN;
+        }
+        final double degrees = Math.floor(value / 100);
+        final double coordinate = degrees + (value - degrees * 100) / 60;
+        return fieldChar(hemisphereField) == negativeHemisphere ? -coordinate : coordinate;
+    }
+
+    // hhmmss.sss, as ms since midnight, or -1
+    private long parseTimeOfDay(int field) {
+        if (fieldLength(field) < 6) {
+            return -1;
+        }
+        final int start = mFieldStart[field];
+        final int hours = digits(start, 2);
+        final int minutes = digits(start + 2, 2);
+        final int seconds = digits(start + 4, 2);
+        if (hours < 0 || minutes < 0 || seconds < 0) {
+            return -1;
+        }
+        long ms = ((hours * 60L + minutes) * 60 + seconds) * 1000;
+        if (fieldLength(field) > 7 && mSentence[start + 6] == '.') {
+            // Milliseconds, from however many fraction digits there are
+            int scale = 100;
+            for (int i = start + 7; i < mFieldEnd[field] && scale > 0; i++, scale /= 10) {
+                final int digit = mSentence[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    return -1;
+                }
+                ms += digit * scale;
+            }
+        }
+        return ms;
+    }
+
+    // ddmmyy, as ms since epoch of that midnight (UTC), or -1
+    private long parseDate(int field) {
+        if (fieldLength(field) != 6) {
+            return -1;
+        }
+        final int start = mFieldStart[field];
+        final int day = digits(start, 2);
+        final int month = digits(start + 2, 2);
+        final int year = digits(start + 4, 2);
+        if (day < 1 || month < 1 || month > 12 || year < 0) {
+            return -1;
+        }
+        return daysFromCivil(2000 + year, month, day) * MS_PER_DAY;
+    }
+
+    // Value of count decimal digits at offset, or -1
+    private int digits(int offset, int count) {
+        int value = 0;
+        for (int i = offset; i < offset + count; i++) {
+            final int digit = mSentence[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static int hexValue(byte b) {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        } else if (b >= 'A' && b <= 'F') {
+            return b - 'A' + 10;
+        } else if (b >= 'a' && b <= 'f') {
+            return b - 'a' + 10;
+        }
+        return -1;
+    }
+
+    // Days since 1970-01-01 of a date in the proleptic Gregorian calendar, without a Calendar
+    // (see http://howardhinnant.github.io/date_algorithms.html).
+    private static long daysFromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        final int era = year / 400;
+        final int yearOfEra = year - era * 400;
+        final int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        final int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+}
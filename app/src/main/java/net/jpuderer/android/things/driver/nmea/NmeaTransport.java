@@ -0,0 +1,44 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.driver.nmea;
+
+import java.io.IOException;
+
+/**
+ * Byte stream to and from a GPS receiver, e.g. a UART, or a recorded log being replayed.
+ */
+public interface NmeaTransport extends AutoCloseable {
+    interface Callback {
+        /**
+         * Called with data received from the receiver.  The buffer is reused once this
+         * returns.
+         */
+        void onData(byte[] buffer, int count);
+    }
+
+    /**
+     * Begin delivering data to the callback.
+     */
+    void start(Callback callback) throws IOException;
+
+    /**
+     * Send a command to the receiver.
+     */
+    void write(byte[] data) throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.driver.nmea;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Replays a recorded NMEA log, as fast as it can be parsed, for testing and benchmarking the
+ * parser and everything downstream of it.  Commands sent to the receiver are counted, and
+ * otherwise ignored.
+ * <p>
+ * Nothing is delivered until {@link #replay()} is called, which delivers the whole log on the
+ * calling thread.
+ */
+public class ReplayNmeaTransport implements NmeaTransport {
+    private static final int READ_BUFFER_BYTES = 4096;
+
+    private final InputStream mIn;
+    private final byte[] mBuffer = new byte[READ_BUFFER_BYTES];
+    private Callback mCallback;
+    private int mCommandCount;
+
+    public ReplayNmeaTransport(InputStream in) {
+        mIn = in;
+    }
+
+    @Override
+    public void start(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Deliver the rest of the log to the callback.
+     *
+     * @return the number of bytes delivered
+     */
+    public long replay() throws IOException {
+        if (mCallback == null) {
+            throw new IllegalStateException("Not started");
+        }
+        long total = 0;
+        int count;
+        while ((count = mIn.read(mBuffer)) > 0) {
+            mCallback.onData(mBuffer, count);
+            total += count;
+        }
+        return total;
+    }
+
+    @Override
+    public void write(byte[] data) {
+        mCommandCount++;
+    }
+
+    public int getCommandCount() {
+        return mCommandCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.driver.nmea;
+
+import android.os.Handler;
+import android.util.Log;
+
+import com.google.android.things.pio.PeripheralManager;
+import com.google.android.things.pio.UartDevice;
+import com.google.android.things.pio.UartDeviceCallback;
+
+import java.io.IOException;
+
+/**
+ * Receives NMEA from a GPS connected to a UART (or a USB serial adapter).
+ */
+public class UartNmeaTransport implements NmeaTransport {
+    private static final String TAG = UartNmeaTransport.class.getSimpleName();
+
+    // Several sentences' worth, so a burst is drained in a few reads
+    private static final int READ_BUFFER_BYTES = 512;
+
+    private final UartDevice mDevice;
+    private final Handler mHandler;
+    private final byte[] mBuffer = new byte[READ_BUFFER_BYTES];
+    private Callback mCallback;
+
+    private final UartDeviceCallback mUartCallback = new UartDeviceCallback() {
+        @Override
+        public boolean onUartDeviceDataAvailable(UartDevice uart) {
+            try {
+                int count;
+                while ((count = uart.read(mBuffer, mBuffer.length)) > 0) {
+                    mCallback.onData(mBuffer, count);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to access UART device", e);
+            }
+            // Continue listening for more interrupts
+            return true;
+        }
+
+        @Override
+        public void onUartDeviceError(UartDevice uart, int error) {
+            Log.w(TAG, uart + ": Error event " + error);
+        }
+    };
+
+    /**
+     * @param handler handler for the thread data is delivered on
+     */
+    public UartNmeaTransport(String uartName, int baudRate, Handler handler) throws IOException {
+        mHandler = handler;
+        mDevice = PeripheralManager.getInstance().openUartDevice(uartName);
+        try {
+            mDevice.setBaudrate(baudRate);
+            mDevice.setDataSize(8);
+            mDevice.setParity(UartDevice.PARITY_NONE);
+            mDevice.setStopBits(1);
+        } catch (IOException e) {
+            mDevice.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void start(Callback callback) throws IOException {
+        mCallback = callback;
+        mDevice.registerUartDeviceCallback(mHandler, mUartCallback);
+    }
+
+    @Override
+    public void write(byte[] data) throws IOException {
+        mDevice.write(data, data.length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mDevice.unregisterUartDeviceCallback(mUartCallback);
+        mDevice.close();
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger;
+
+import net.jpuderer.android.things.taxidatalogger.cloud.TuningConfig;
+
+import java.util.Arrays;
+
+/**
+ * Streaming filter for one sensor channel, e.g. temperature.
+ * <p>
+ * Outliers are rejected with a Hampel filter: a reading further than the outlier threshold
+ * times the (scaled) median absolute deviation from the median of the last few readings is
+ * replaced by that median.  This removes single frame spikes, like the ones the HPM sensor
+ * produces, while a real step change gets through once it makes up most of the window.
+ * <p>
+ * The filtered value is then passed through a deadband: the reported value only changes when
+ * the filtered value moves further than the deadband from it.  {@link #update(float)} returns
+ * true when that happens, so callers can log a row on significant changes, rather than on
+ * every reading.
+ * <p>
+ * Memory use is constant.  Not thread safe.
+ */
+class ChannelFilter {
+    // Readings considered by the outlier filter
+    static final int WINDOW_SIZE = 5;
+
+    // Scales the median absolute deviation to estimate the standard deviation, for normally
+    // distributed noise.
+    private static final float MAD_SCALE = 1.4826f;
+
+    private final String mName;
+    private final float mDefaultDeadband;
+    // Floor on the spread estimate, so a window of identical readings doesn't turn every
+    // small change into an outlier.
+    private final float mMinSpread;
+
+    private float mDeadband;
+    private float mOutlierThreshold;
+
+    private final float[] mWindow = new float[WINDOW_SIZE];
+    private final float[] mScratch = new float[WINDOW_SIZE];
+    private int mCount;
+    private int mNext;
+
+    private boolean mHasValue;
+    private float mValue;
+    private long mOutliers;
+
+    /**
+     * The deadband is the channel's, unless the tuning document's "deadbands" has one for the
+     * channel's name.
+     */
+    ChannelFilter(SensorChannel channel) {
+        mName = channel.getName();
+        mDefaultDeadband = channel.getDeadband();
+        mMinSpread = channel.getMinSpread();
+        configure(TuningConfig.getCurrent());
+    }
+
+    void configure(TuningConfig tuning) {
+        mDeadband = (float) tuning.getDeadband(mName, mDefaultDeadband);
+        mOutlierThreshold = (float) tuning.getOutlierThreshold();
+    }
+
+    /**
+     * Filter a new reading.
+     *
+     * @return true if the reported value changed
+     */
+    boolean update(float reading) {
+        mWindow[mNext] = reading;
+        mNext = (mNext + 1) % WINDOW_SIZE;
+        if (mCount < WINDOW_SIZE) {
+            mCount++;
+        }
+
+        float filtered = reading;
+        if (mCount >= 3) {
+            System.arraycopy(mWindow, 0, mScratch, 0, mCount);
+            final float median = median(mScratch, mCount);
+            for (int i = 0; i < mCount; i++) {
+                mScratch[i] = Math.abs(mWindow[i] - median);
+            }
+            final float spread = Math.max(MAD_SCALE * median(mScratch, mCount), mMinSpread);
+            if (Math.abs(reading - median) > mOutlierThreshold * spread) {
+                mOutliers++;
+                filtered = median;
+            }
+        }
+
+        if (mHasValue && Math.abs(filtered - mValue) <= mDeadband) {
+            return false;
+        }
+        mHasValue = true;
+        mValue = filtered;
+        return true;
+    }
+
+    float getValue() {
+        return mValue;
+    }
+
+    boolean hasValue() {
+        return mHasValue;
+    }
+
+    long getOutlierCount() {
+        return mOutliers;
+    }
+
+    // Sorts the first count values in place
+    private static float median(float[] values, int count) {
+        Arrays.sort(values, 0, count);
+        return (count % 2 == 1) ? values[count / 2] :
+                (values[count / 2 - 1] + values[count / 2]) / 2;
+    }
+}
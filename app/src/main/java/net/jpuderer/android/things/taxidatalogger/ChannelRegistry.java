@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger;
+
+import android.hardware.Sensor;
+
+import net.jpuderer.android.things.driver.hpm.HpmSensorDriver;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Every sensor channel we log, and the sensors they come from.
+ * <p>
+ * Entries store their channel values as a packed block, with a bitmask of the channels present
+ * (see {@link #pack(long, double[])}), so adding a channel doesn't change the database schema.
+ * To add one, append it to {@link #CHANNELS}, with the next index, and bind it to a sensor in
+ * {@link #BINDINGS}.  Never remove or reorder channels: a channel's index is its bit in the
+ * stored entries.  The BigQuery table also needs a (nullable) column of the same name.
+ */
+public final class ChannelRegistry {
+    public static final SensorChannel TEMPERATURE =
+            new SensorChannel(0, "temperature", SensorChannel.TYPE_FLOAT, 0.2f, 0.1f, 0.5f);
+    public static final SensorChannel HUMIDITY =
+            new SensorChannel(1, "humidity", SensorChannel.TYPE_FLOAT, 1f, 0.5f, 2f);
+    public static final SensorChannel PRESSURE =
+            new SensorChannel(2, "pressure", SensorChannel.TYPE_FLOAT, 0.2f, 0.1f, 0.5f);
+    public static final SensorChannel PM25 =
+            new SensorChannel(3, "pm25", SensorChannel.TYPE_INT, 2f, 1f, 5f);
+    public static final SensorChannel PM10 =
+            new SensorChannel(4, "pm10", SensorChannel.TYPE_INT, 2f, 1f, 5f);
+
+    private static final SensorChannel[] CHANNELS = { TEMPERATURE, HUMIDITY, PRESSURE, PM25, PM10 };
+
+    // Sensors, and the channels they fill, in the order of their event values
+    private static final Binding[] BINDINGS = {
+            new Binding(Sensor.TYPE_AMBIENT_TEMPERATURE, null, TEMPERATURE),
+            new Binding(Sensor.TYPE_RELATIVE_HUMIDITY, null, HUMIDITY),
+            new Binding(Sensor.TYPE_PRESSURE, null, PRESSURE),
+            new Binding(Sensor.TYPE_DEVICE_PRIVATE_BASE, HpmSensorDriver.SENSOR_STRING_TYPE,
+                    PM25, PM10),
+    };
+
+    private static final class Binding {
+        final int sensorType;
+        final String stringType;
+        final SensorChannel[] channels;
+
+        Binding(int sensorType, String stringType, SensorChannel... channels) {
+            this.sensorType = sensorType;
+            this.stringType = stringType;
+            this.channels = channels;
+        }
+    }
+
+    private ChannelRegistry() {
+    }
+
+    public static int size() {
+        return CHANNELS.length;
+    }
+
+    public static SensorChannel get(int index) {
+        return CHANNELS[index];
+    }
+
+    /**
+     * Returns the channels a sensor fills, in the order of its event values, or null if we
+     * don't use the sensor.
+     */
+    static SensorChannel[] getChannels(Sensor sensor) {
+        for (Binding binding : BINDINGS) {
+            if (binding.sensorType == sensor.getType() && (binding.stringType == null ||
+                    binding.stringType.equals(sensor.getStringType()))) {
+                return binding.channels;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Pack the values of the channels present in mask, in index order, four bytes each.
+     *
+     * @param values indexed by channel index
+     */
+    public static byte[] pack(long mask, double[] values) {
+        final ByteBuffer buffer = ByteBuffer.allocate(Long.bitCount(mask) * 4)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < CHANNELS.length; i++) {
+            if ((mask & (1L << i)) == 0) {
+                continue;
+            }
+            if (CHANNELS[i].isInteger()) {
+                buffer.putInt((int) Math.round(values[i]));
+            } else {
+                buffer.putFloat((float) values[i]);
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Unpack values packed by {@link #pack(long, double[])}.
+     *
+     * @param values filled in for each channel present, by channel index
+     * @return the channels present, ignoring any this version doesn't know about
+     */
+    public static long unpack(long mask, byte[] packed, double[] values) {
+        final ByteBuffer buffer = ByteBuffer.wrap(packed).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < CHANNELS.length; i++) {
+            if ((mask & (1L << i)) == 0) {
+                continue;
+            }
+            values[i] = CHANNELS[i].isInteger() ? buffer.getInt() : buffer.getFloat();
+        }
+        return mask & ((1L << CHANNELS.length) - 1);
+    }
+}
@@ -25,51 +25,70 @@ import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.location.Location;
-import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.util.Log;
 import android.view.WindowManager;
 
 import com.google.android.things.contrib.driver.bmx280.Bmx280SensorDriver;
-import com.google.android.things.contrib.driver.gps.NmeaGpsDriver;
 import com.google.android.things.pio.PeripheralManager;
 
 import net.jpuderer.android.things.driver.hpm.HpmSensorDriver;
+import net.jpuderer.android.things.driver.nmea.NmeaFix;
+import net.jpuderer.android.things.driver.nmea.NmeaGps;
+import net.jpuderer.android.things.driver.nmea.NmeaParser;
+import net.jpuderer.android.things.driver.nmea.UartNmeaTransport;
 import net.jpuderer.android.things.taxidatalogger.cloud.CloudPublisherService;
+import net.jpuderer.android.things.taxidatalogger.cloud.TuningConfig;
 
 import java.io.IOException;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-// TODO: Use a more flexible logging format (JSON).  I thought I would do some
-// querying on the device, but it turns out not.  I should probably just store
-// encoded JSON, since that makes it easier to add and remove sensors.
 public class DataLoggerActivity extends Activity {
     private static final String TAG = DataLoggerActivity.class.getSimpleName();
 
-    private static final HashSet<Integer> SUPPORTED_SENSORS = new HashSet<Integer>();
+    // We stop logging if we haven't had a GPS fix for 10 seconds.  Fixes normally arrive at the
+    // tuned fix rate (see TuningConfig), and each row's position is interpolated between them,
+    // to the time of its readings (see FixHistory), so an older fix is never attached to fresh
+    // readings as is.
+    private static final long GPS_FIX_VALIDITY_MS = 10000;
 
-    private static final int SAMPLE_INTERVAL_MS = 10000;
+    // Other sensor readings older than this are logged as not available.  Rows can be logged
+    // a minute or more apart, so this is independent of how often we log, but it has to allow
+    // for readings being batched (see below).
+    private static final long SENSOR_DATA_VALIDITY_MS = 10000;
 
-    // GPS fixes are considered valid for 10 seconds.  This should be fine, since we should be
-    // receiving constant updates, and 10 seconds can be a long time, since we may be moving
-    // quickly.
-    private static final long GPS_FIX_VALIDITY_MS = 10000;
+    // Sensors report at about the minimum sample interval, which is as often as we can use their
+    // readings, and may hold readings in their FIFO for up to this long, delivering them in
+    // batches.  Event delivery (and the wakeups that come with it) then scales with the logging
+    // rate, rather than the sensor's own rate.  Sensors without a FIFO ignore the latency.
+    private static final long SENSOR_BATCH_LATENCY_MS = 4000;
+
+    // Sensors report at least this often while raw capture is on (see RawCaptureLog).  The HPM
+    // sensor reports at 1 Hz, and the GPS at its tuned fix rate.
+    private static final long RAW_CAPTURE_INTERVAL_MS = 1000;
 
     private static final String BMX280_I2C_BUS_NAME = "I2C1";
     private static final String HPM_SENSOR_UART_NAME = "UART1";
     private static final String NMEA_GPS_UART_NAME = "USB1-1.4:1.0";
+    private static final int NMEA_GPS_BAUD_RATE = 9600;
+    // Fix rates beyond what the UART can carry are capped
+    private static final int MAX_GPS_FIX_RATE_HZ = NmeaGps.getMaxFixRateHz(NMEA_GPS_BAUD_RATE);
 
-    static {
-        SUPPORTED_SENSORS.add(Sensor.TYPE_AMBIENT_TEMPERATURE);
-        SUPPORTED_SENSORS.add(Sensor.TYPE_RELATIVE_HUMIDITY);
-        SUPPORTED_SENSORS.add(Sensor.TYPE_PRESSURE);
-        SUPPORTED_SENSORS.add(Sensor.TYPE_DEVICE_PRIVATE_BASE);
-    }
+    // Drivers are opened in parallel, one thread each
+    private static final int DRIVER_INIT_THREADS = 3;
+    // Time to wait for drivers which are still being opened, when shutting down
+    private static final long DRIVER_INIT_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
 
     // BMX280 temperature, humidity, and pressure sensor driver
     Bmx280SensorDriver mBmx280SensorDriver;
@@ -77,10 +96,14 @@ public class DataLoggerActivity extends Activity {
     // Honeywell HPM Partical Sensor
     private HpmSensorDriver mHpmDriver;
 
-    // GPS Driver
-    NmeaGpsDriver mGpsDriver;
+    // GPS receiver, parsed in-process.  Fixes are delivered on the main thread.
+    private volatile NmeaGps mGps;
+
+    // Opens the drivers, off the main thread
+    private ExecutorService mDriverExecutor;
 
-    // Handler for posting runnables to
+    // Thread which opens the database and logs samples, and a handler for posting runnables to it
+    private HandlerThread mLoggerThread;
     Handler mHandler;
     // Token for finding our delayed runnable to perform a sampling
     Object mDoSampleToken = new Object();
@@ -92,55 +115,75 @@ public class DataLoggerActivity extends Activity {
     // Instance of sensor manager
     private SensorManager mSensorManager;
 
-    // Instance of location manager;
-    private LocationManager mLocationManager;
-
-    // Record recent sensor values and timestamps for these values
-    // If the values are too old when we record data, we return a null
+    // Record recent sensor values and timestamps for these values, by channel index (see
+    // ChannelRegistry).  If the values are too old when we record data, we return a null
     // value (which is interpreted as data not available).
-    private class SensorData {
-        Location location;
-
-        float temperature;
-        long temperature_timestamp;
-
-        float humidity;
-        long humidity_timestamp;
-
-        float pressure;
-        long pressure_timestamp;
-
-        public int pm25;
-        public int pm10;
-        long particle_timestamp;
-    };
-    public SensorData mSensorData = new SensorData();
+    private final LatestValueStore mLatestValues =
+            new LatestValueStore(ChannelRegistry.size());
+
+    // Recent GPS fixes
+    private final FixHistory mFixes = new FixHistory();
+
+    // Filters for each sensor channel, by channel index, only accessed from the main thread.
+    // mLatestValues holds their filtered values.
+    private final ChannelFilter[] mFilters = createFilters();
+    private TuningConfig mFilterTuning = TuningConfig.getCurrent();
+
+    // Sensors we're listening to, with the channels each one fills (see ChannelRegistry), and
+    // the rate they were registered at.  Only accessed from the main thread.
+    private final Map<Sensor, SensorChannel[]> mSensorChannels = new HashMap<>();
+    private long mSensorIntervalMs = mFilterTuning.getSampleIntervalMs();
+    // Fix rate for the GPS, set on the main thread and read when it's opened
+    private volatile int mGpsFixRateHz = mFilterTuning.getGpsFixRateHz();
+
+    // Every event is also written here while raw capture is on.  mRawCaptureEnabled and
+    // mFixValues are only accessed from the main thread.
+    private RawCaptureLog mRawCapture;
+    private boolean mRawCaptureEnabled;
+    private final double[] mFixValues = new double[RawCaptureLog.FIX_VALUES.length];
+
+    // Set when a filtered sensor value changes by more than its deadband, until a sample has
+    // been taken.
+    private final AtomicBoolean mSensorsChanged = new AtomicBoolean();
 
     private SensorEventListener mSensorEventListener = new SensorEventListener() {
         @Override
         public void onSensorChanged(SensorEvent sensorEvent) {
-            switch (sensorEvent.sensor.getType()) {
-                case Sensor.TYPE_AMBIENT_TEMPERATURE:
-                    mSensorData.temperature = sensorEvent.values[0];
-                    mSensorData.temperature_timestamp = sensorEvent.timestamp;
-                    break;
-                case Sensor.TYPE_RELATIVE_HUMIDITY:
-                    mSensorData.humidity = sensorEvent.values[0];
-                    mSensorData.humidity_timestamp = sensorEvent.timestamp;
-                    break;
-                case Sensor.TYPE_PRESSURE:
-                    mSensorData.pressure = sensorEvent.values[0];
-                    mSensorData.pressure_timestamp = sensorEvent.timestamp;
-                    break;
-                case Sensor.TYPE_DEVICE_PRIVATE_BASE:
-                     if (HpmSensorDriver.SENSOR_STRING_TYPE.equals(sensorEvent.sensor.getStringType())) {
-                        mSensorData.pm25 = (int) sensorEvent.values[0];
-                        mSensorData.pm10 = (int) sensorEvent.values[1];
-                        mSensorData.particle_timestamp = sensorEvent.timestamp;
-                        break;
+            final SensorChannel[] channels = mSensorChannels.get(sensorEvent.sensor);
+            if (channels == null) {
+                Log.w(TAG, "Unexpected sensor type: " + sensorEvent.sensor.getType());
+                return;
+            }
+            if (mRawCaptureEnabled) {
+                for (int i = 0; i < channels.length; i++) {
+                    mRawCapture.append(channels[i].getIndex(), sensorEvent.timestamp,
+                            sensorEvent.values[i]);
+                }
+            }
+            boolean changed = false;
+            for (int i = 0; i < channels.length; i++) {
+                changed |= mFilters[channels[i].getIndex()].update(sensorEvent.values[i]);
+            }
+            // A sensor's channels are always seen together
+            mLatestValues.beginWrite();
+            for (SensorChannel channel : channels) {
+                final float value = mFilters[channel.getIndex()].getValue();
+                mLatestValues.put(channel.getIndex(),
+                        channel.isInteger() ? Math.round(value) : value, sensorEvent.timestamp);
+            }
+            mLatestValues.endWrite();
+            if (changed && mSensorsChanged.compareAndSet(false, true)) {
+                // Log the change, rather than waiting until we've moved far enough
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mDataCollection != null) {
+                            stopDataCollection();
+                            mHandler.postAtTime(mDataCollection, mDoSampleToken,
+                                    SystemClock.uptimeMillis());
+                        }
                     }
-                default:
-                    Log.w(TAG, "Unexpected sensor type: " + sensorEvent.sensor.getType());
+                });
             }
         }
 
@@ -150,106 +193,373 @@ public class DataLoggerActivity extends Activity {
         }
     };
 
-    // Define a listener that responds to location updates
-    LocationListener mLocationListener = new LocationListener() {
-        public void onLocationChanged(Location location) {
-            mSensorData.location = location;
+    // Changes to the tuning and to raw capture are made on other threads, and picked up on the
+    // main thread by checkTuning()
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mCheckTuningRunnable = new Runnable() {
+        @Override
+        public void run() {
+            checkTuning();
+        }
+    };
+    private final TuningConfig.Listener mTuningListener = new TuningConfig.Listener() {
+        @Override
+        public void onTuningChanged() {
+            mMainHandler.post(mCheckTuningRunnable);
+        }
+    };
+    private final RawCaptureLog.Listener mRawCaptureListener = new RawCaptureLog.Listener() {
+        @Override
+        public void onEnabledChanged() {
+            mMainHandler.post(mCheckTuningRunnable);
+        }
+    };
+
+    /**
+     * Pick up a change to the tuning, or to raw capture, on the main thread.
+     */
+    private void checkTuning() {
+        final TuningConfig tuning = TuningConfig.getCurrent();
+        final boolean rawCapture = RawCaptureLog.isEnabled(this);
+        if (tuning == mFilterTuning && rawCapture == mRawCaptureEnabled) {
+            return;
+        }
+        if (tuning != mFilterTuning) {
+            mFilterTuning = tuning;
+            for (ChannelFilter filter : mFilters) {
+                filter.configure(tuning);
+            }
+            if (tuning.getGpsFixRateHz() != mGpsFixRateHz) {
+                mGpsFixRateHz = tuning.getGpsFixRateHz();
+                Log.i(TAG, "GPS fix rate changed to " + mGpsFixRateHz + " Hz");
+                setGpsFixRate();
+            }
+        }
+        if (rawCapture != mRawCaptureEnabled) {
+            mRawCaptureEnabled = rawCapture;
+            if (rawCapture) {
+                mRawCapture.resume();
+            }
+        }
+
+        final long interval = rawCapture ?
+                Math.min(tuning.getSampleIntervalMs(), RAW_CAPTURE_INTERVAL_MS) :
+                tuning.getSampleIntervalMs();
+        if (interval != mSensorIntervalMs) {
+            mSensorIntervalMs = interval;
+            Log.i(TAG, "Sensor interval changed to " + mSensorIntervalMs + " ms");
+            mSensorManager.unregisterListener(mSensorEventListener);
+            for (Sensor sensor : mSensorChannels.keySet()) {
+                registerSensorListener(sensor);
+            }
+        }
+    }
+
+    private static ChannelFilter[] createFilters() {
+        final ChannelFilter[] filters = new ChannelFilter[ChannelRegistry.size()];
+        for (int i = 0; i < filters.length; i++) {
+            filters[i] = new ChannelFilter(ChannelRegistry.get(i));
+        }
+        return filters;
+    }
+
+    private void registerSensorListener(Sensor sensor) {
+        mSensorManager.registerListener(mSensorEventListener, sensor,
+                (int) TimeUnit.MILLISECONDS.toMicros(mSensorIntervalMs),
+                (int) TimeUnit.MILLISECONDS.toMicros(SENSOR_BATCH_LATENCY_MS));
+    }
+
+    // Called from the main thread when the rate changes, and from the driver thread once the
+    // GPS is open, so whichever runs last sends the latest rate.
+    private void setGpsFixRate() {
+        final NmeaGps gps = mGps;
+        if (gps == null) {
+            return;
+        }
+        final int hz = Math.min(mGpsFixRateHz, MAX_GPS_FIX_RATE_HZ);
+        if (hz < mGpsFixRateHz) {
+            Log.w(TAG, "GPS fix rate capped at " + hz + " Hz, at " + NMEA_GPS_BAUD_RATE +
+                    " baud");
+        }
+        try {
+            gps.setFixRate(hz);
+        } catch (IOException e) {
+            Log.e(TAG, "Error setting GPS fix rate", e);
+        }
+    }
+
+    // Decides when to log a row.  Only accessed from the logger thread.
+    private SamplingPolicy mSamplingPolicy;
+    private Runnable mDataCollection;
+
+    // Drops samples which can be reconstructed from the ones we log.  Only accessed from the
+    // logger thread.
+    private TrajectorySimplifier mSimplifier;
+
+    // True once the first sample has been logged.  Only accessed from the logger thread.
+    private boolean mLoggedFirstSample;
+
+    // Logs the samples kept by mSimplifier
+    private final TrajectorySimplifier.Sink mLogSink = new TrajectorySimplifier.Sink() {
+        @Override
+        public void onRecord(DatalogRecord record) {
+            long count = record.log(mDb);
+            if (!mLoggedFirstSample) {
+                mLoggedFirstSample = true;
+                StartupTrace.mark("First sample logged");
+            }
+            Log.d(TAG, String.format("Logged\n" +
+                            "\tTimestamp: %.6f\n" +
+                            "\tLatitude, Longitude, Accuracy: %.7f, %.7f, %.2fm\n" +
+                            "\tAlititude, Accuracy: %.1fm, %.1fm\n" +
+                            "\tChannels:%s\n" +
+                            "\tRecord Count: %d, Kept %d of %d samples",
+                    record.time,
+                    record.latitude,
+                    record.longitude,
+                    record.accuracy,
+                    record.altitude,
+                    record.verticalAccuracy,
+                    formatChannels(record),
+                    count,
+                    mSimplifier.getKeptCount(),
+                    mSimplifier.getReceivedCount()));
+        }
+    };
+
+    private static String formatChannels(DatalogRecord record) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < ChannelRegistry.size(); i++) {
+            builder.append(' ').append(ChannelRegistry.get(i).getName()).append('=');
+            if (!record.has(i)) {
+                builder.append("null");
+            } else if (ChannelRegistry.get(i).isInteger()) {
+                builder.append((long) record.channelValues[i]);
+            } else {
+                builder.append(String.format("%.1f", record.channelValues[i]));
+            }
         }
+        return builder.toString();
+    }
+
+    // True once we've had a GPS fix.  Only accessed from the main thread.
+    private boolean mHadFix;
 
-        public void onStatusChanged(String provider, int status, Bundle extras) {}
+    // Sampler's copy of mLatestValues, the position of its readings, and the time of the last
+    // row it logged (elapsed realtime, ns).  Only accessed from the logger thread.
+    private final LatestValueStore.Snapshot mSnapshot =
+            new LatestValueStore.Snapshot(ChannelRegistry.size());
+    private final Location mSampleLocation = new Location(LocationManager.GPS_PROVIDER);
+    private long mLastSampleTimestamp;
 
-        public void onProviderEnabled(String provider) {}
+    // Location each fix is copied into, only accessed from the main thread
+    private final Location mFixLocation = new Location(LocationManager.GPS_PROVIDER);
 
-        public void onProviderDisabled(String provider) {}
+    // Responds to fixes from the GPS, on the main thread
+    private final NmeaParser.Listener mFixListener = new NmeaParser.Listener() {
+        @Override
+        public void onFix(NmeaFix fix) {
+            fix.copyTo(mFixLocation);
+            mFixes.add(mFixLocation);
+
+            if (mRawCaptureEnabled) {
+                mFixValues[0] = fix.time;
+                mFixValues[1] = fix.latitude;
+                mFixValues[2] = fix.longitude;
+                mFixValues[3] = mFixLocation.hasAccuracy() ?
+                        mFixLocation.getAccuracy() : Double.NaN;
+                mFixValues[4] = fix.altitude;
+                mFixValues[5] = mFixLocation.hasVerticalAccuracy() ?
+                        mFixLocation.getVerticalAccuracyMeters() : Double.NaN;
+                mFixValues[6] = fix.speed;
+                mFixValues[7] = fix.satellites >= 0 ? fix.satellites : Double.NaN;
+                mFixValues[8] = fix.hdop;
+                mFixValues[9] = fix.quality >= 0 ? fix.quality : Double.NaN;
+                mRawCapture.append(RawCaptureLog.SOURCE_FIX, fix.timestampNanos, mFixValues,
+                        mFixValues.length);
+            }
+
+            final boolean firstFix = !mHadFix;
+            mHadFix = true;
+            if (firstFix) {
+                StartupTrace.mark("First GPS fix");
+                // Don't wait out the rest of the sample interval for the first sample
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mLoggedFirstSample) {
+                            stopDataCollection();
+                            startDataCollection();
+                        }
+                    }
+                });
+            }
+        }
     };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupTrace.mark("Activity created");
         setContentView(R.layout.activity_main);
 
         // Devices with a display should not go to sleep
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
 
+        // Start the publisher first, so that it initializes (on its own thread) alongside us.
+        // Sampling doesn't wait for it.
+        Log.d(TAG, "Start Google Cloud Iot Publisher...");
+        Intent intent = new Intent(this, CloudPublisherService.class);
+        startService(intent);
+
         // Create handler
-        mHandler = new Handler();
+        mLoggerThread = new HandlerThread("DataLogger");
+        mLoggerThread.start();
+        mHandler = new Handler(mLoggerThread.getLooper());
 
-        // Get DB and DB helper
-        mDbHelper = new DatalogDbHelper(this);
-        mDb = mDbHelper.getWritableDatabase();
+        mRawCapture = new RawCaptureLog(this);
 
-        // Acquire a reference to the system Location Manager
-        mLocationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
+        // Get DB and DB helper.  Posted ahead of any sampling, so it's open by the time we log.
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final long start = SystemClock.elapsedRealtime();
+                mDbHelper = new DatalogDbHelper(DataLoggerActivity.this);
+                mDb = mDbHelper.getWritableDatabase();
+                StartupTrace.mark("Logger database opened", start);
+            }
+        });
 
         // Register sensors and start requesting data from them
         registerSensors();
 
-        Log.d(TAG, "Starting data collection...");
-        startDataCollection();
+        // Apply whatever changed while we weren't listening, and follow changes from now on
+        TuningConfig.setListener(mTuningListener);
+        RawCaptureLog.setListener(mRawCaptureListener);
+        checkTuning();
 
-        Log.d(TAG, "Start Google Cloud Iot Publisher...");
-        Intent intent = new Intent(this, CloudPublisherService.class);
-        startService(intent);
+        Log.d(TAG, "Starting data collection...");
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                startDataCollection();
+            }
+        });
 
-        PeripheralManager manager = PeripheralManager.getInstance();
-        List<String> deviceList = manager.getUartDeviceList();
-        if (deviceList.isEmpty()) {
-            Log.i(TAG, "No UART port available on this device.");
-        } else {
-            Log.i(TAG, "List of available devices: " + deviceList);
-        }
+        mDriverExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                PeripheralManager manager = PeripheralManager.getInstance();
+                List<String> deviceList = manager.getUartDeviceList();
+                if (deviceList.isEmpty()) {
+                    Log.i(TAG, "No UART port available on this device.");
+                } else {
+                    Log.i(TAG, "List of available devices: " + deviceList);
+                }
+            }
+        });
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        TuningConfig.setListener(null);
+        RawCaptureLog.setListener(null);
+        mMainHandler.removeCallbacks(mCheckTuningRunnable);
         stopDataCollection();
+        // Let drivers which are still being opened finish, so that they can be closed
+        mDriverExecutor.shutdown();
+        try {
+            if (!mDriverExecutor.awaitTermination(DRIVER_INIT_TIMEOUT_MS,
+                    TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Timed out waiting for drivers to open");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         unregisterSensors();
+        flushDataCollection();
+        mLoggerThread.quitSafely();
+        mRawCapture.close();
     }
 
+    /**
+     * Open the drivers in parallel, on background threads.  Opening a UART or I2C device, and
+     * waiting for it to respond, can take a while, and each driver is independent of the others.
+     */
     private void registerSensors() {
         mSensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
 
         mSensorManager.registerDynamicSensorCallback(new SensorManager.DynamicSensorCallback() {
             @Override
             public void onDynamicSensorConnected(Sensor sensor) {
-                if (SUPPORTED_SENSORS.contains(sensor.getType())) {
-                    mSensorManager.registerListener(mSensorEventListener, sensor,
-                            SensorManager.SENSOR_DELAY_NORMAL);
+                final SensorChannel[] channels = ChannelRegistry.getChannels(sensor);
+                if (channels != null) {
+                    mSensorChannels.put(sensor, channels);
+                    registerSensorListener(sensor);
                 }
             }
         });
 
+        mDriverExecutor = Executors.newFixedThreadPool(DRIVER_INIT_THREADS);
+
         // Register Temperature, Humidity, and Pressure sensor
-        try {
-            mBmx280SensorDriver = new Bmx280SensorDriver(BMX280_I2C_BUS_NAME);
-            mBmx280SensorDriver.registerTemperatureSensor();
-            mBmx280SensorDriver.registerHumiditySensor();
-            mBmx280SensorDriver.registerPressureSensor();
-        } catch (IOException e) {
-            Log.e(TAG, "Error registering BMX280 sensor");
-        }
+        mDriverExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final long start = SystemClock.elapsedRealtime();
+                try {
+                    mBmx280SensorDriver = new Bmx280SensorDriver(BMX280_I2C_BUS_NAME);
+                    mBmx280SensorDriver.registerTemperatureSensor();
+                    mBmx280SensorDriver.registerHumiditySensor();
+                    mBmx280SensorDriver.registerPressureSensor();
+                    StartupTrace.mark("BMX280 registered", start);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error registering BMX280 sensor");
+                }
+            }
+        });
 
         // Register HPM particle sensor driver
-        try {
-            mHpmDriver = new HpmSensorDriver(HPM_SENSOR_UART_NAME);
-            mHpmDriver.registerParticleSensor();
-        } catch (IOException e) {
-            Log.e(TAG, "Error registering HPM sensor driver");
-        }
+        mDriverExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final long start = SystemClock.elapsedRealtime();
+                try {
+                    mHpmDriver = new HpmSensorDriver(HPM_SENSOR_UART_NAME);
+                    mHpmDriver.registerParticleSensor();
+                    StartupTrace.mark("HPM registered", start);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error registering HPM sensor driver");
+                }
+            }
+        });
 
         // Register GPS driver
-        try {
-            mGpsDriver = new NmeaGpsDriver(this, NMEA_GPS_UART_NAME,
-                9600, 5);
-            mGpsDriver.register();
-
-            // Register the listener with the Location Manager to receive location updates
-            mLocationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER,
-                    0, 0, mLocationListener);
-        } catch (IOException e) {
-            Log.e(TAG, "Error registering GPS driver");
-        }
+        mDriverExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final long start = SystemClock.elapsedRealtime();
+                NmeaGps gps = null;
+                try {
+                    // Fixes are delivered on the main thread, like the other sensors
+                    gps = new NmeaGps(new UartNmeaTransport(NMEA_GPS_UART_NAME,
+                            NMEA_GPS_BAUD_RATE, new Handler(Looper.getMainLooper())));
+                    gps.start(mFixListener);
+                    mGps = gps;
+                    setGpsFixRate();
+                    StartupTrace.mark("GPS registered", start);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error registering GPS driver");
+                    if (gps != null) {
+                        try {
+                            gps.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+            }
+        });
     }
 
     private void unregisterSensors() {
@@ -264,13 +574,13 @@ public class DataLoggerActivity extends Activity {
                 Log.e(TAG, "Error closing BMX280 sensor");
             }
         }
-        if (mGpsDriver != null) {
-            mGpsDriver.unregister();
+        if (mGps != null) {
             try {
-                mGpsDriver.close();
+                mGps.close();
             } catch (IOException e) {
                 Log.e(TAG, "Error closing GPS driver");
             }
+            mGps = null;
         }
         if (mHpmDriver != null) {
             mHpmDriver.unregisterParticleSensor();
@@ -280,40 +590,81 @@ public class DataLoggerActivity extends Activity {
                 Log.e(TAG, "Error closing GPS driver");
             }
         }
-        if (mLocationManager != null)
-            mLocationManager.removeUpdates(mLocationListener);
     }
 
-    // Regularly (every SAMPLE_INTERVAL_MS) record sensor values to the database
+    // Record sensor values to the database as we move (see SamplingPolicy and TuningConfig).
+    // Sampling starts right away.  Called on the logger thread, which owns the sampling state.
     private void startDataCollection() {
+        final TuningConfig initialTuning = TuningConfig.getCurrent();
+        mSamplingPolicy = new SamplingPolicy(initialTuning.getSampleIntervalMs(),
+                initialTuning.getMaxSampleIntervalMs(),
+                (float) initialTuning.getSampleDistanceM());
+        if (mSimplifier == null) {
+            mSimplifier = new TrajectorySimplifier(mLogSink,
+                    initialTuning.getSimplifyToleranceM(), initialTuning.getSimplifyMaxWindowMs());
+        }
         final Runnable doDataCollection = new Runnable() {
-            private boolean toOld(long timestamp) {
-                final long timestamp_ms = TimeUnit.NANOSECONDS.toMillis(timestamp);
-                return (SystemClock.uptimeMillis() - timestamp_ms > SAMPLE_INTERVAL_MS);
+            private boolean toOld(int channel) {
+                if (!mSnapshot.has(channel)) {
+                    return true;
+                }
+                final long timestamp_ms =
+                        TimeUnit.NANOSECONDS.toMillis(mSnapshot.timestamps[channel]);
+                // Allow for a reading that was batched, and for a slow sensor interval
+                final long validity = Math.max(SENSOR_DATA_VALIDITY_MS, SENSOR_BATCH_LATENCY_MS +
+                        2 * TuningConfig.getCurrent().getSampleIntervalMs());
+                return (SystemClock.elapsedRealtime() - timestamp_ms > validity);
             }
 
             @Override
             public void run() {
+                final TuningConfig tuning = TuningConfig.getCurrent();
+                mSamplingPolicy.setLimits(tuning.getSampleIntervalMs(),
+                        tuning.getMaxSampleIntervalMs(), (float) tuning.getSampleDistanceM());
+                mSimplifier.setLimits(tuning.getSimplifyToleranceM(),
+                        tuning.getSimplifyMaxWindowMs());
+                final long now = SystemClock.elapsedRealtime();
+
                 // Don't record anything if we don't have a recent GPS fix
-                boolean hasGpsFix = false;
-                if (mSensorData.location != null) {
-                    long delta_ms =
-                            TimeUnit.NANOSECONDS.toMillis((SystemClock.elapsedRealtimeNanos() -
-                                    mSensorData.location.getElapsedRealtimeNanos()));
-                    hasGpsFix = delta_ms < GPS_FIX_VALIDITY_MS;
+                mLatestValues.snapshot(mSnapshot);
+                final Location location = mSampleLocation;
+                final long newestFix = mFixes.getNewestTimestamp();
+                final boolean hasGpsFix = newestFix >= 0 &&
+                        TimeUnit.NANOSECONDS.toMillis(SystemClock.elapsedRealtimeNanos() -
+                                newestFix) < GPS_FIX_VALIDITY_MS;
+                if (hasGpsFix) {
+                    // Place the row where its newest reading was taken, or at the newest fix if
+                    // there are no readings.  Never before the last row, to keep rows in order.
+                    long timestamp = -1;
+                    for (int c = 0; c < ChannelRegistry.size(); c++) {
+                        if (!toOld(c)) {
+                            timestamp = Math.max(timestamp, mSnapshot.timestamps[c]);
+                        }
+                    }
+                    if (timestamp < 0) {
+                        timestamp = newestFix;
+                    }
+                    mFixes.locate(Math.max(timestamp, mLastSampleTimestamp), location);
+                    // Don't hold back the last sample for long if no new one comes to replace it
+                    mSimplifier.expire(location.getTime() / 1000d);
                 }
 
-                // Record a null reading if the sensor data is too old.
-                Float temperature = toOld(mSensorData.temperature_timestamp) ?
-                        null : mSensorData.temperature;
-                Float humidity = toOld(mSensorData.humidity_timestamp) ?
-                        null : mSensorData.humidity;
-                Float pressure = toOld(mSensorData.pressure_timestamp) ?
-                        null : mSensorData.pressure;
-                Integer pm25 = toOld(mSensorData.particle_timestamp) ?
-                        null : mSensorData.pm25;
-                Integer pm10 = toOld(mSensorData.particle_timestamp) ?
-                        null : mSensorData.pm10;
+                // Nor if we haven't moved far enough since the last row, and nothing changed
+                if (hasGpsFix &&
+                        !mSamplingPolicy.shouldLog(location, now, mSensorsChanged.get())) {
+                    scheduleNext(location, now);
+                    return;
+                }
+
+                // Leave out sensor channels whose data is too old
+                long channelMask = 0;
+                final double[] channelValues = new double[ChannelRegistry.size()];
+                for (int c = 0; c < channelValues.length; c++) {
+                    if (!toOld(c)) {
+                        channelValues[c] = mSnapshot.values[c];
+                        channelMask |= 1L << c;
+                    }
+                }
 
                 // TODO: Fix time issue in next developer preview.
                 //
@@ -336,50 +687,50 @@ public class DataLoggerActivity extends Activity {
                 //     https://stackoverflow.com/questions/7017069/gps-time-in-android;
 
                 if (hasGpsFix) {
-                    long count = DatalogDbHelper.log(mDb,
+                    mSimplifier.add(new DatalogRecord(
                             // Bigtable uses seconds since epoch as a float
-                            mSensorData.location.getTime() / 1000d,
-                            mSensorData.location.getLatitude(),
-                            mSensorData.location.getLongitude(),
-                            mSensorData.location.getAccuracy(),
-                            mSensorData.location.getAltitude(),
-                            mSensorData.location.getVerticalAccuracyMeters(),
-                            temperature,
-                            humidity,
-                            pressure,
-                            pm25,
-                            pm10);
-                    Log.d(TAG, String.format("Logged\n" +
-                                    "\tTimestamp: %.6f\n" +
-                                    "\tLatitude, Longitude, Accuracy: %.7f, %.7f, %.2fm\n" +
-                                    "\tAlititude, Accuracy: %.1fm, %.1fm\n" +
-                                    "\tTemperature: %.1f, Humidity: %.1f%%, Pressure: %.1fhPa\n" +
-                                    "\tPM2.5, PM10: %d, %d\n" +
-                                    "\tRecord Count: %d",
-                            mSensorData.location.getTime() / 1000d,
-                            mSensorData.location.getLatitude(),
-                            mSensorData.location.getLongitude(),
-                            mSensorData.location.getAccuracy(),
-                            mSensorData.location.getAltitude(),
-                            mSensorData.location.getVerticalAccuracyMeters(),
-                            temperature,
-                            humidity,
-                            pressure,
-                            pm25,
-                            pm10,
-                            count));
+                            location.getTime() / 1000d,
+                            location.getLatitude(),
+                            location.getLongitude(),
+                            location.getAccuracy(),
+                            location.getAltitude(),
+                            location.getVerticalAccuracyMeters(),
+                            channelMask,
+                            channelValues));
+                    mSamplingPolicy.onSampled(location, now);
+                    mLastSampleTimestamp = location.getElapsedRealtimeNanos();
+                    mSensorsChanged.set(false);
                 } else {
+                    // Don't interpolate across the gap
+                    mSimplifier.reset();
                     Log.d(TAG, "No GPS fix: Not logging data.");
                 }
-                mHandler.postAtTime(this, mDoSampleToken,
-                        SystemClock.uptimeMillis() + SAMPLE_INTERVAL_MS);
+                scheduleNext(hasGpsFix ? location : null, now);
+            }
+
+            private void scheduleNext(Location location, long now) {
+                mHandler.postAtTime(this, mDoSampleToken, SystemClock.uptimeMillis() +
+                        mSamplingPolicy.getNextCheckDelayMs(location, now,
+                                mSensorsChanged.get()));
             }
         };
-        mHandler.postAtTime(doDataCollection, mDoSampleToken,
-                SystemClock.uptimeMillis() + SAMPLE_INTERVAL_MS);
+        mDataCollection = doDataCollection;
+        mHandler.postAtTime(doDataCollection, mDoSampleToken, SystemClock.uptimeMillis());
     }
 
     private void stopDataCollection() {
         mHandler.removeCallbacksAndMessages(mDoSampleToken);
     }
+
+    // Log whatever the simplifier is holding back, before the logger thread quits
+    private void flushDataCollection() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mSimplifier != null) {
+                    mSimplifier.flush();
+                }
+            }
+        });
+    }
 }
@@ -19,6 +19,8 @@ package net.jpuderer.android.things.taxidatalogger;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.provider.BaseColumns;
@@ -26,13 +28,27 @@ import android.provider.BaseColumns;
 import static android.content.Context.MODE_PRIVATE;
 
 public class DatalogDbHelper extends SQLiteOpenHelper {
-    public static final int DATABASE_VERSION = 6;
+    public static final int DATABASE_VERSION = 8;
     public static final String DATABASE_NAME = "Datalog.db";
 
     public static final String TABLE_NAME = "datalog";
 
     private static final String SYNC_SHARED_PREFERENCES_KEY = "sync_status" ;
     private static final String PREF_LAST_SYNCED_ID = "last_synced_id";
+    // Range of entries sent on the live lane, ahead of the backfill lane.  See
+    // CloudPublisherService.processCollectedSensorData().
+    private static final String PREF_LIVE_START_ID = "live_start_id";
+    private static final String PREF_LIVE_SYNCED_ID = "live_synced_id";
+    // Range of entries being sent again on the replay lane.  See
+    // CloudPublisherService.requestReplay().
+    private static final String PREF_REPLAY_SYNCED_ID = "replay_synced_id";
+    private static final String PREF_REPLAY_END_ID = "replay_end_id";
+    // Last entry included in a published cell aggregate.  See
+    // CloudPublisherService.publishAggregates().
+    private static final String PREF_AGGREGATE_SYNCED_ID = "aggregate_synced_id";
+    // Last entry sent to each extra sink, as PREF_SINK_PREFIX + <sink name>.  See
+    // CompositePublisher.
+    private static final String PREF_SINK_PREFIX = "sink_synced_id_";
 
     public static class DatalogEntry implements BaseColumns {
         static final String TABLE_NAME = "datalog";
@@ -42,6 +58,11 @@ public class DatalogDbHelper extends SQLiteOpenHelper {
         public static final String COLUMN_NAME_ACCURACY = "accuracy";
         public static final String COLUMN_NAME_ALTITUDE = "altitude";
         public static final String COLUMN_NAME_VERTICAL_ACCURACY = "verticalAccuracy";
+        // Channels present in the entry, as a bitmask of their indexes in ChannelRegistry
+        public static final String COLUMN_NAME_CHANNELS = "channels";
+        // Values of the channels present.  See ChannelRegistry.pack().
+        public static final String COLUMN_NAME_DATA = "data";
+        // Sensor values in entries logged before version 8, which have no packed data
         public static final String COLUMN_NAME_TEMPERATURE = "temperature";
         public static final String COLUMN_NAME_HUMIDITY = "humidity";
         public static final String COLUMN_NAME_PRESSURE = "pressure";
@@ -49,6 +70,17 @@ public class DatalogDbHelper extends SQLiteOpenHelper {
         public static final String  COLUMN_NAME_PM10 = "pm10";
     }
 
+    // The columns readChannels() reads
+    public static final String[] CHANNEL_COLUMNS = {
+            DatalogEntry.COLUMN_NAME_CHANNELS,
+            DatalogEntry.COLUMN_NAME_DATA,
+            DatalogEntry.COLUMN_NAME_TEMPERATURE,
+            DatalogEntry.COLUMN_NAME_HUMIDITY,
+            DatalogEntry.COLUMN_NAME_PRESSURE,
+            DatalogEntry.COLUMN_NAME_PM25,
+            DatalogEntry.COLUMN_NAME_PM10
+    };
+
     private static final String SQL_CREATE_ENTRIES =
             "CREATE TABLE " + DatalogEntry.TABLE_NAME + " (" +
                     DatalogEntry._ID + " INTEGER PRIMARY KEY," +
@@ -62,7 +94,14 @@ public class DatalogDbHelper extends SQLiteOpenHelper {
                     DatalogEntry.COLUMN_NAME_HUMIDITY + " REAL, " +
                     DatalogEntry.COLUMN_NAME_PRESSURE + " REAL, " +
                     DatalogEntry.COLUMN_NAME_PM25 + " INTEGER, " +
-                    DatalogEntry.COLUMN_NAME_PM10 + " INTEGER)";
+                    DatalogEntry.COLUMN_NAME_PM10 + " INTEGER, " +
+                    DatalogEntry.COLUMN_NAME_CHANNELS + " INTEGER, " +
+                    DatalogEntry.COLUMN_NAME_DATA + " BLOB)";
+
+    // Used to find the entries to replay for a time range
+    private static final String SQL_CREATE_TIME_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + DatalogEntry.TABLE_NAME + "_time_idx ON " +
+                    DatalogEntry.TABLE_NAME + " (" + DatalogEntry.COLUMN_NAME_TIME + ")";
 
     private static final String SQL_DELETE_ENTRIES =
             "DROP TABLE IF EXISTS " + DatalogEntry.TABLE_NAME;
@@ -77,15 +116,29 @@ public class DatalogDbHelper extends SQLiteOpenHelper {
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_ENTRIES);
+        db.execSQL(SQL_CREATE_TIME_INDEX);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // For now, we don't care about older DB versions.  Just throw the data
-        // away and start again.
-        db.execSQL(SQL_DELETE_ENTRIES);
-        setLastSyncId(mContext, -1);
-        onCreate(db);
+        if (oldVersion < 6) {
+            // We don't care about versions this old.  Just throw the data away and start
+            // again.
+            db.execSQL(SQL_DELETE_ENTRIES);
+            resetSyncState(mContext);
+            onCreate(db);
+            return;
+        }
+        // From version 6 on, keep the data.
+        if (oldVersion < 7) {
+            db.execSQL(SQL_CREATE_TIME_INDEX);
+        }
+        if (oldVersion < 8) {
+            db.execSQL("ALTER TABLE " + DatalogEntry.TABLE_NAME + " ADD COLUMN " +
+                    DatalogEntry.COLUMN_NAME_CHANNELS + " INTEGER");
+            db.execSQL("ALTER TABLE " + DatalogEntry.TABLE_NAME + " ADD COLUMN " +
+                    DatalogEntry.COLUMN_NAME_DATA + " BLOB");
+        }
     }
 
     public static long getLastSyncId(Context context) {
@@ -100,9 +153,184 @@ public class DatalogDbHelper extends SQLiteOpenHelper {
         prefs.edit().putLong(PREF_LAST_SYNCED_ID, id).apply();
     }
 
+    /**
+     * Returns the ID of the first entry sent on the live lane, or -1 if the live lane isn't
+     * in use.
+     */
+    public static long getLiveStartId(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(SYNC_SHARED_PREFERENCES_KEY,
+                MODE_PRIVATE);
+        return prefs.getLong(PREF_LIVE_START_ID, -1);
+    }
+
+    /**
+     * Returns the ID of the last entry sent on the live lane.
+     */
+    public static long getLiveSyncedId(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(SYNC_SHARED_PREFERENCES_KEY,
+                MODE_PRIVATE);
+        return prefs.getLong(PREF_LIVE_SYNCED_ID, -1);
+    }
+
+    public static void setLiveSyncedId(Context context, long id) {
+        SharedPreferences prefs = context.getSharedPreferences(SYNC_SHARED_PREFERENCES_KEY,
+                MODE_PRIVATE);
+        prefs.edit().putLong(PREF_LIVE_SYNCED_ID, id).apply();
+    }
+
+    public static void setLiveRange(Context context, long startId, long syncedId) {
+        SharedPreferences prefs = context.getSharedPreferences(SYNC_SHARED_PREFERENCES_KEY,
+                MODE_PRIVATE);
+        prefs.edit()
+                .putLong(PREF_LIVE_START_ID, startId)
+                .putLong(PREF_LIVE_SYNCED_ID, syncedId)
+                .apply();
+    }
+
+    public static void clearLiveRange(Context context) {
+        setLiveRange(context, -1, -1);
+    }
+
+    /**
+     * Returns the ID of the last entry sent on the replay lane.
+     */
+    public static long getReplaySyncedId(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(SYNC_SHARED_PREFERENCES_KEY,
+                MODE_PRIVATE);
+        return prefs.getLong(PREF_REPLAY_SYNCED_ID, -1);
+    }
+
+    public static void setReplaySyncedId(Context context, long id) {
+        SharedPreferences prefs = context.getSharedPreferences(SYNC_SHARED_PREFERENCES_KEY,
+                MODE_PRIVATE);
+        prefs.edit().putLong(PREF_REPLAY_SYNCED_ID, id).apply();
+    }
+
+    /**
+     * Returns the ID of the last entry to replay (inclusive), or -1 if there is no replay in
+     * progress.
+     */
+    public static long getReplayEndId(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(SYNC_SHARED_PREFERENCES_KEY,
+                MODE_PRIVATE);
+        return prefs.getLong(PREF_REPLAY_END_ID, -1);
+    }
+
+    public static void setReplayRange(Context context, long syncedId, long endId) {
+        SharedPreferences prefs = context.getSharedPreferences(SYNC_SHARED_PREFERENCES_KEY,
+                MODE_PRIVATE);
+        prefs.edit()
+                .putLong(PREF_REPLAY_SYNCED_ID, syncedId)
+                .putLong(PREF_REPLAY_END_ID, endId)
+                .apply();
+    }
+
+    public static void clearReplayRange(Context context) {
+        setReplayRange(context, -1, -1);
+    }
+
+    /**
+     * Returns the ID of the last entry included in a published cell aggregate, or -1 if none
+     * have been published.
+     */
+    public static long getAggregateSyncedId(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(SYNC_SHARED_PREFERENCES_KEY,
+                MODE_PRIVATE);
+        return prefs.getLong(PREF_AGGREGATE_SYNCED_ID, -1);
+    }
+
+    public static void setAggregateSyncedId(Context context, long id) {
+        SharedPreferences prefs = context.getSharedPreferences(SYNC_SHARED_PREFERENCES_KEY,
+                MODE_PRIVATE);
+        prefs.edit().putLong(PREF_AGGREGATE_SYNCED_ID, id).apply();
+    }
+
+    /**
+     * Returns the ID of the last entry sent to the named extra sink, or -1 if none have been.
+     * A sink that has never been started starts where the primary sink is.
+     */
+    public static synchronized long getSinkSyncedId(Context context, String sink) {
+        SharedPreferences prefs = context.getSharedPreferences(SYNC_SHARED_PREFERENCES_KEY,
+                MODE_PRIVATE);
+        final String key = PREF_SINK_PREFIX + sink;
+        if (!prefs.contains(key)) {
+            prefs.edit().putLong(key, prefs.getLong(PREF_LAST_SYNCED_ID, -1)).apply();
+        }
+        return prefs.getLong(key, -1);
+    }
+
+    /**
+     * Move the cursor of the named extra sink from one entry to another, unless it has been
+     * moved (i.e. reset) since the sink read it.
+     *
+     * @return false if the cursor was no longer at fromId
+     */
+    public static synchronized boolean advanceSinkSyncedId(Context context, String sink,
+            long fromId, long toId) {
+        SharedPreferences prefs = context.getSharedPreferences(SYNC_SHARED_PREFERENCES_KEY,
+                MODE_PRIVATE);
+        final String key = PREF_SINK_PREFIX + sink;
+        if (prefs.getLong(key, -1) != fromId) {
+            return false;
+        }
+        prefs.edit().putLong(key, toId).apply();
+        return true;
+    }
+
+    /**
+     * Forget what has been sent, so that everything is sent again.
+     */
+    public static synchronized void resetSyncState(Context context) {
+        setLastSyncId(context, -1);
+        setAggregateSyncedId(context, -1);
+        clearLiveRange(context);
+        clearReplayRange(context);
+        SharedPreferences prefs = context.getSharedPreferences(SYNC_SHARED_PREFERENCES_KEY,
+                MODE_PRIVATE);
+        SharedPreferences.Editor editor = prefs.edit();
+        for (String key : prefs.getAll().keySet()) {
+            if (key.startsWith(PREF_SINK_PREFIX)) {
+                editor.putLong(key, -1);
+            }
+        }
+        editor.apply();
+    }
+
+    /**
+     * Returns the IDs of the first and last entries logged in the given time range, or null if
+     * there are none.  Entries are logged in time order, so every entry between the two is in
+     * the range too.
+     *
+     * @param startTime start of the range, inclusive, in UTC seconds since epoch
+     * @param endTime end of the range, exclusive, in UTC seconds since epoch
+     */
+    public static long[] getIdRange(SQLiteDatabase db, double startTime, double endTime) {
+        Cursor cursor = db.rawQuery("SELECT MIN(" + DatalogEntry._ID + "), MAX(" +
+                DatalogEntry._ID + ") FROM " + DatalogEntry.TABLE_NAME + " WHERE " +
+                DatalogEntry.COLUMN_NAME_TIME + " >= ? AND " +
+                DatalogEntry.COLUMN_NAME_TIME + " < ?",
+                new String[] { Double.toString(startTime), Double.toString(endTime) });
+        try {
+            if (!cursor.moveToFirst() || cursor.isNull(0)) {
+                return null;
+            }
+            return new long[] { cursor.getLong(0), cursor.getLong(1) };
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the ID of the most recent entry, or -1 if there are none.
+     */
+    public static long getNewestId(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" + DatalogEntry._ID +
+                "), -1) FROM " + DatalogEntry.TABLE_NAME, null);
+    }
+
     public static long log(SQLiteDatabase db, double time, double latitude, double longitude,
-            float accuracy, double altitude, float verticalAccuracy, Float temperature,
-                           Float humidity, Float pressure, Integer pm25, Integer pm10) {
+            float accuracy, double altitude, float verticalAccuracy, long channelMask,
+            byte[] channelData) {
         ContentValues values = new ContentValues();
         values.put(DatalogEntry.COLUMN_NAME_TIME, time);
         values.put(DatalogEntry.COLUMN_NAME_LATITUDE, latitude);
@@ -110,16 +338,45 @@ public class DatalogDbHelper extends SQLiteOpenHelper {
         values.put(DatalogEntry.COLUMN_NAME_ACCURACY, accuracy);
         values.put(DatalogEntry.COLUMN_NAME_ALTITUDE, altitude);
         values.put(DatalogEntry.COLUMN_NAME_VERTICAL_ACCURACY, verticalAccuracy);
-        values.put(DatalogEntry.COLUMN_NAME_TEMPERATURE, temperature);
-        values.put(DatalogEntry.COLUMN_NAME_HUMIDITY, humidity);
-        values.put(DatalogEntry.COLUMN_NAME_PRESSURE, pressure);
-        values.put(DatalogEntry.COLUMN_NAME_PM25, pm25);
-        values.put(DatalogEntry.COLUMN_NAME_PM10, pm10);
-        return db.insert(DatalogEntry.TABLE_NAME, null, values);
+        values.put(DatalogEntry.COLUMN_NAME_CHANNELS, channelMask);
+        values.put(DatalogEntry.COLUMN_NAME_DATA, channelData);
+        final long id = db.insert(DatalogEntry.TABLE_NAME, null, values);
+        if (id >= 0) {
+            NewEntryNotifier.notifyNewEntry();
+        }
+        return id;
+    }
+
+    /**
+     * Read the sensor values of the entry at the cursor's position, from either the packed
+     * data, or the separate columns of entries logged before version 8.  Only the columns
+     * queried are read.
+     *
+     * @param values filled in for each channel present, by channel index
+     * @return the channels present, as a bitmask of their indexes
+     */
+    public static long readChannels(Cursor cursor, double[] values) {
+        final int maskColumn = cursor.getColumnIndex(DatalogEntry.COLUMN_NAME_CHANNELS);
+        final int dataColumn = cursor.getColumnIndex(DatalogEntry.COLUMN_NAME_DATA);
+        if (maskColumn >= 0 && dataColumn >= 0 && !cursor.isNull(maskColumn)) {
+            return ChannelRegistry.unpack(cursor.getLong(maskColumn), cursor.getBlob(dataColumn),
+                    values);
+        }
+        // The legacy columns are named after the channels
+        long mask = 0;
+        for (int i = 0; i < ChannelRegistry.size(); i++) {
+            final int column = cursor.getColumnIndex(ChannelRegistry.get(i).getName());
+            if (column >= 0 && !cursor.isNull(column)) {
+                values[i] = cursor.getDouble(column);
+                mask |= 1L << i;
+            }
+        }
+        return mask;
     }
 
     public static void clearEntries(SQLiteDatabase db) {
         db.execSQL(SQL_DELETE_ENTRIES);
         db.execSQL(SQL_CREATE_ENTRIES);
+        db.execSQL(SQL_CREATE_TIME_INDEX);
     }
  }
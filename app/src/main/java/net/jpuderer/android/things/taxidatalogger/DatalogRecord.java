@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * One sample, as it will be stored in the log.  Sensor values are held by channel index (see
+ * {@link ChannelRegistry}), and are only meaningful for the channels in the mask: a channel
+ * missing from the mask wasn't available.
+ */
+final class DatalogRecord {
+    final double time; // UTC seconds since epoch
+    final double latitude;
+    final double longitude;
+    final float accuracy;
+    final double altitude;
+    final float verticalAccuracy;
+    final long channelMask;
+    final double[] channelValues;
+
+    /**
+     * @param channelValues indexed by channel index.  Not copied, so don't reuse it.
+     */
+    DatalogRecord(double time, double latitude, double longitude, float accuracy,
+            double altitude, float verticalAccuracy, long channelMask, double[] channelValues) {
+        this.time = time;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.accuracy = accuracy;
+        this.altitude = altitude;
+        this.verticalAccuracy = verticalAccuracy;
+        this.channelMask = channelMask;
+        this.channelValues = channelValues;
+    }
+
+    boolean has(int channel) {
+        return (channelMask & (1L << channel)) != 0;
+    }
+
+    /**
+     * Insert this record into the log.
+     *
+     * @return the row ID of the new entry, or -1 if it couldn't be inserted
+     */
+    long log(SQLiteDatabase db) {
+        return DatalogDbHelper.log(db, time, latitude, longitude, accuracy, altitude,
+                verticalAccuracy, channelMask, ChannelRegistry.pack(channelMask, channelValues));
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger;
+
+import android.location.Location;
+
+/**
+ * Recent GPS fixes, for placing a sensor reading where it was taken, rather than where the
+ * latest fix happens to be.
+ * <p>
+ * Fixes are kept in a ring buffer of HISTORY_SIZE.  {@link #locate(long, Location)} interpolates
+ * position, altitude and accuracy linearly between the two fixes either side of a time.  Past
+ * the newest fix, the position is extrapolated from the last two fixes, for at most
+ * MAX_EXTRAPOLATION_NANOS, and the accuracy grows by the distance extrapolated.  Before the
+ * oldest fix, the oldest fix is used as it is.
+ * <p>
+ * Nothing is allocated after construction.  Thread safe.
+ */
+final class FixHistory {
+    // At 1 Hz, half a minute of fixes, which covers the oldest readings we log
+    static final int HISTORY_SIZE = 32;
+
+    // Fixes arrive about once a second, so a reading is seldom more than this past the newest
+    static final long MAX_EXTRAPOLATION_NANOS = 2000000000L;
+
+    // Fixes further apart than this are a gap in coverage, which isn't interpolated across
+    static final long MAX_GAP_NANOS = 5000000000L;
+
+    // Mean radius of the earth, in metres
+    private static final double EARTH_RADIUS_M = 6371008.8;
+
+    // Ring buffer of fixes, oldest first, starting at mFirst.  Guarded by this.
+    private final long[] mTimestamps = new long[HISTORY_SIZE]; // elapsed realtime, ns
+    private final long[] mTimes = new long[HISTORY_SIZE]; // UTC ms since epoch
+    private final double[] mLatitudes = new double[HISTORY_SIZE];
+    private final double[] mLongitudes = new double[HISTORY_SIZE];
+    private final float[] mAccuracies = new float[HISTORY_SIZE];
+    private final double[] mAltitudes = new double[HISTORY_SIZE];
+    private final float[] mVerticalAccuracies = new float[HISTORY_SIZE];
+    private final float[] mSpeeds = new float[HISTORY_SIZE]; // NaN if unknown
+    private int mFirst;
+    private int mCount;
+
+    synchronized void add(Location location) {
+        final long timestamp = location.getElapsedRealtimeNanos();
+        if (mCount > 0 && timestamp <= mTimestamps[index(mCount - 1)]) {
+            // Out of order, or a repeat
+            return;
+        }
+        final int i;
+        if (mCount < HISTORY_SIZE) {
+            i = index(mCount++);
+        } else {
+            i = mFirst;
+            mFirst = index(1);
+        }
+        mTimestamps[i] = timestamp;
+        mTimes[i] = location.getTime();
+        mLatitudes[i] = location.getLatitude();
+        mLongitudes[i] = location.getLongitude();
+        mAccuracies[i] = location.getAccuracy();
+        mAltitudes[i] = location.getAltitude();
+        mVerticalAccuracies[i] = location.getVerticalAccuracyMeters();
+        mSpeeds[i] = location.hasSpeed() ? location.getSpeed() : Float.NaN;
+    }
+
+    /**
+     * Returns the time of the newest fix, in elapsed realtime nanoseconds, or -1 if there are
+     * none.
+     */
+    synchronized long getNewestTimestamp() {
+        return mCount == 0 ? -1 : mTimestamps[index(mCount - 1)];
+    }
+
+    /**
+     * Fill in location with the estimated position at the given time.  The location's time is
+     * moved to match, and its elapsed realtime is set to the time its position refers to, which
+     * is the given time, unless it's too far past the newest fix.
+     *
+     * @param timestamp elapsed realtime, in nanoseconds
+     * @return false if there are no fixes
+     */
+    synchronized boolean locate(long timestamp, Location location) {
+        if (mCount == 0) {
+            return false;
+        }
+        // Newest fix at or before the time
+        int after = mCount;
+        while (after > 0 && mTimestamps[index(after - 1)] > timestamp) {
+            after--;
+        }
+        if (after == 0) {
+            set(location, index(0));
+            return true;
+        }
+        final int a = index(after - 1);
+        if (after < mCount) {
+            final int b = index(after);
+            final long gap = mTimestamps[b] - mTimestamps[a];
+            if (gap > MAX_GAP_NANOS) {
+                // Use whichever fix is closer
+                set(location, timestamp - mTimestamps[a] <= gap / 2 ? a : b);
+                return true;
+            }
+            interpolate(location, a, b, (double) (timestamp - mTimestamps[a]) / gap, timestamp);
+            return true;
+        }
+        // Past the newest fix
+        final long ahead = Math.min(timestamp - mTimestamps[a], MAX_EXTRAPOLATION_NANOS);
+        if (ahead == 0 || mCount < 2 ||
+                mTimestamps[a] - mTimestamps[index(after - 2)] > MAX_GAP_NANOS) {
+            set(location, a);
+            return true;
+        }
+        final int previous = index(after - 2);
+        final double f = 1 + (double) ahead / (mTimestamps[a] - mTimestamps[previous]);
+        interpolate(location, previous, a, f, mTimestamps[a] + ahead);
+        // We don't know where the vehicle went since, so allow for the distance covered
+        location.setAccuracy(mAccuracies[a] + (float) distance(mLatitudes[a], mLongitudes[a],
+                location.getLatitude(), location.getLongitude()));
+        location.setVerticalAccuracyMeters(mVerticalAccuracies[a]);
+        return true;
+    }
+
+    private int index(int i) {
+        return (mFirst + i) % HISTORY_SIZE;
+    }
+
+    private void set(Location location, int i) {
+        location.setTime(mTimes[i]);
+        location.setElapsedRealtimeNanos(mTimestamps[i]);
+        location.setLatitude(mLatitudes[i]);
+        location.setLongitude(mLongitudes[i]);
+        location.setAccuracy(mAccuracies[i]);
+        location.setAltitude(mAltitudes[i]);
+        location.setVerticalAccuracyMeters(mVerticalAccuracies[i]);
+        setSpeed(location, mSpeeds[i]);
+    }
+
+    // f is the fraction of the way from a to b, and may be more than 1
+    private void interpolate(Location location, int a, int b, double f, long timestamp) {
+        location.setTime(mTimes[a] + (timestamp - mTimestamps[a]) / 1000000);
+        location.setElapsedRealtimeNanos(timestamp);
+        location.setLatitude(lerp(mLatitudes[a], mLatitudes[b], f));
+        location.setLongitude(lerp(mLongitudes[a], mLongitudes[b], f));
+        location.setAltitude(lerp(mAltitudes[a], mAltitudes[b], f));
+        location.setAccuracy((float) lerp(mAccuracies[a], mAccuracies[b], f));
+        location.setVerticalAccuracyMeters(
+                (float) lerp(mVerticalAccuracies[a], mVerticalAccuracies[b], f));
+        setSpeed(location, (float) lerp(mSpeeds[a], mSpeeds[b], Math.min(f, 1)));
+    }
+
+    private static void setSpeed(Location location, float speed) {
+        if (Float.isNaN(speed)) {
+            location.removeSpeed();
+        } else {
+            location.setSpeed(speed);
+        }
+    }
+
+    private static double lerp(double start, double end, double f) {
+        return start + (end - start) * f;
+    }
+
+    // Equirectangular approximation.  Plenty accurate over the distance between fixes.
+    private static double distance(double lat1, double lon1, double lat2, double lon2) {
+        final double dy = Math.toRadians(lat2 - lat1);
+        final double dx = Math.toRadians(lon2 - lon1) * Math.cos(Math.toRadians(lat1));
+        return Math.sqrt(dx * dx + dy * dy) * EARTH_RADIUS_M;
+    }
+}
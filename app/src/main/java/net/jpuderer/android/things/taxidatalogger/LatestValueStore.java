@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Holds the latest value of each channel (e.g. temperature), with its timestamp, for the
+ * sampler to read.
+ * <p>
+ * Writes are grouped, so that channels which belong together, like the PM2.5 and PM10
+ * readings of a particle sensor, are always seen together.  Readers
+ * take a consistent snapshot of every channel without locking, using a sequence lock: a write
+ * makes the sequence odd while it's in progress, and a reader that sees the sequence odd, or
+ * changed by the time it's done, simply reads again.  Writers (usually there is only one)
+ * briefly wait for each other.
+ * <p>
+ * Neither reading nor writing allocates.  Any thread may write or read.
+ */
+final class LatestValueStore {
+    /**
+     * A copy of every channel, at one point in time.  Reuse it from one read to the next.
+     */
+    static final class Snapshot {
+        final double[] values;
+        // Timestamps, in SystemClock.elapsedRealtimeNanos()
+        final long[] timestamps;
+        // Value of the store's sequence when each channel was last written, or 0 if never
+        final long[] sequences;
+
+        Snapshot(int channelCount) {
+            values = new double[channelCount];
+            timestamps = new long[channelCount];
+            sequences = new long[channelCount];
+        }
+
+        boolean has(int channel) {
+            return sequences[channel] != 0;
+        }
+    }
+
+    private final int mChannelCount;
+    private final AtomicLong mSequence = new AtomicLong();
+    private final AtomicLongArray mValues;
+    private final AtomicLongArray mTimestamps;
+    private final AtomicLongArray mSequences;
+
+    LatestValueStore(int channelCount) {
+        mChannelCount = channelCount;
+        mValues = new AtomicLongArray(channelCount);
+        mTimestamps = new AtomicLongArray(channelCount);
+        mSequences = new AtomicLongArray(channelCount);
+    }
+
+    int getChannelCount() {
+        return mChannelCount;
+    }
+
+    /**
+     * Start a group of writes.  Must be followed by {@link #endWrite()}, on the same thread.
+     */
+    void beginWrite() {
+        while (true) {
+            final long sequence = mSequence.get();
+            if ((sequence & 1) == 0 && mSequence.compareAndSet(sequence, sequence + 1)) {
+                return;
+            }
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Set the value of a channel.  Only between {@link #beginWrite()} and {@link #endWrite()}.
+     */
+    void put(int channel, double value, long timestampNanos) {
+        mValues.set(channel, Double.doubleToRawLongBits(value));
+        mTimestamps.set(channel, timestampNanos);
+        // The sequence is odd here.  Store the even value it will have once we're done.
+        mSequences.set(channel, mSequence.get() + 1);
+    }
+
+    void endWrite() {
+        mSequence.incrementAndGet();
+    }
+
+    /**
+     * Copy every channel into out, consistently.
+     */
+    void snapshot(Snapshot out) {
+        while (true) {
+            final long before = mSequence.get();
+            if ((before & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            for (int i = 0; i < mChannelCount; i++) {
+                out.values[i] = Double.longBitsToDouble(mValues.get(i));
+                out.timestamps[i] = mTimestamps.get(i);
+                out.sequences[i] = mSequences.get(i);
+            }
+            if (mSequence.get() == before) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger;
+
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tells the publisher, within the same process, that new entries have been logged, so it
+ * doesn't need to poll the database to find out.
+ * <p>
+ * Notifications are coalesced: after the first one, the listener isn't called again until the
+ * consumer has called {@link #consume()}, which it does right before reading the new entries.
+ * An entry logged after that triggers another notification, so nothing is missed.
+ */
+public final class NewEntryNotifier {
+    public interface Listener {
+        /**
+         * Called on the thread that logged the entry.  Must not block.
+         */
+        void onNewEntries();
+    }
+
+    private static final AtomicBoolean sPending = new AtomicBoolean();
+    private static volatile Listener sListener;
+
+    private NewEntryNotifier() {
+    }
+
+    public static void setListener(@Nullable Listener listener) {
+        sListener = listener;
+        sPending.set(false);
+    }
+
+    /**
+     * Report that an entry has been logged.
+     */
+    public static void notifyNewEntry() {
+        final Listener listener = sListener;
+        if (listener != null && sPending.compareAndSet(false, true)) {
+            listener.onNewEntries();
+        }
+    }
+
+    /**
+     * Re-arm notifications, before reading the entries logged so far.
+     */
+    public static void consume() {
+        sPending.set(false);
+    }
+}
@@ -0,0 +1,446 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import static android.content.Context.MODE_PRIVATE;
+
+/**
+ * Append only log of every sensor event and GPS fix, for research drives which need more than
+ * the sampled entries in the database.
+ * <p>
+ * Events are appended to an in-memory buffer by the thread that receives them, and written out
+ * in batches, about once a second, on our own thread.  Nothing is allocated per event.  The log
+ * is split into gzipped files of at most MAX_FILE_BYTES (uncompressed), or MAX_FILE_AGE_MS,
+ * whichever comes first.  Each file is written under a temporary name, and renamed once it's
+ * complete, after which the publisher ships it, and deletes it.  Files are named by a sequence
+ * number, rather than the time, since the clock may not be set yet, or may be set back, so
+ * they sort in the order they were written.  See scripts/decode_raw_capture.py for reading the
+ * files.
+ * <p>
+ * File format (little endian), after the gzip framing:
+ * <pre>
+ *   "TDRC", u8 version, u8 channel count,
+ *   for each channel (see ChannelRegistry): u8 type, u8 name length, UTF-8 name,
+ *   i64 elapsed realtime (ns) and i64 wall clock time (ms) when the file was started,
+ *   then one record per event: u8 source, u8 value count, i64 event time (elapsed realtime,
+ *   ns), f64 values[value count]
+ * </pre>
+ * The source is a channel index, or SOURCE_FIX for a GPS fix, whose values are those of
+ * {@link #FIX_VALUES}.  The wall clock may not be set, so use the fixes' own time to place
+ * events in UTC.
+ * <p>
+ * Capture is turned on and off with {@link #setEnabled(Context, boolean)}, and stays that way
+ * across restarts.
+ */
+public class RawCaptureLog {
+    private static final String TAG = RawCaptureLog.class.getSimpleName();
+
+    private static final String SHARED_PREFERENCES_KEY = "raw_capture";
+    private static final String PREF_ENABLED = "enabled";
+    private static final String PREF_NEXT_SEQUENCE = "next_sequence";
+
+    private static final String DIRECTORY = "raw";
+    private static final String FILE_PREFIX = "raw-";
+    // Zero padded to the width of a long, so names sort in order
+    private static final String FILE_NAME_FORMAT = FILE_PREFIX + "%019d";
+    private static final String TEMP_SUFFIX = ".part";
+    // Files left incomplete when we were stopped, which have no gzip trailer
+    private static final String RECOVERED_SUFFIX = "-recovered";
+    public static final String FILE_SUFFIX = ".bin.gz";
+
+    private static final byte[] MAGIC = "TDRC".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+
+    // Source of GPS fix records
+    static final int SOURCE_FIX = 255;
+    // Values of a GPS fix record, in order.  Any of them but the position may be NaN if
+    // unknown.  Values are only ever added, as readers use the record's value count.
+    static final String[] FIX_VALUES = { "time", "latitude", "longitude", "accuracy",
+            "altitude", "verticalAccuracy", "speed", "satellites", "hdop", "fixQuality" };
+
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static final long FLUSH_INTERVAL_MS = TimeUnit.SECONDS.toMillis(1);
+    // Keeps each file comfortably within a single MQTT message, once compressed
+    private static final int MAX_FILE_BYTES = 256 * 1024;
+    private static final long MAX_FILE_AGE_MS = TimeUnit.MINUTES.toMillis(10);
+
+    private static final int RECORD_HEADER_BYTES = 2 + 8;
+
+    private static volatile Boolean sEnabled;
+    private static volatile Listener sListener;
+
+    /**
+     * Told when capture is turned on or off.
+     */
+    public interface Listener {
+        /**
+         * Called on the thread that turned capture on or off.  Must not block.
+         */
+        void onEnabledChanged();
+    }
+
+    private final Context mContext;
+    private final File mDirectory;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    // Events are appended to mActive, and written out from mSpare, which are swapped by the
+    // writer thread.  Guarded by this.
+    private ByteBuffer mActive = newBuffer();
+    private ByteBuffer mSpare = newBuffer();
+    private boolean mFlushPending;
+    private long mDropped;
+    private long mTotalDropped;
+
+    // Current file.  Only accessed from the writer thread.
+    private long mNextSequence;
+    private File mTempFile;
+    private FileOutputStream mFile;
+    private GZIPOutputStream mOut;
+    private int mFileBytes;
+    private long mFileStart;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+            if (isEnabled(mContext)) {
+                mHandler.postDelayed(this, FLUSH_INTERVAL_MS);
+            } else {
+                closeFile();
+            }
+        }
+    };
+
+    private final Runnable mHalfFullRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    RawCaptureLog(Context context) {
+        mContext = context.getApplicationContext();
+        mDirectory = getDirectory(context);
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                recoverFiles();
+            }
+        });
+        mHandler.post(mFlushRunnable);
+    }
+
+    public static File getDirectory(Context context) {
+        return new File(context.getFilesDir(), DIRECTORY);
+    }
+
+    public static boolean isEnabled(Context context) {
+        Boolean enabled = sEnabled;
+        if (enabled == null) {
+            enabled = context.getSharedPreferences(SHARED_PREFERENCES_KEY, MODE_PRIVATE)
+                    .getBoolean(PREF_ENABLED, false);
+            sEnabled = enabled;
+        }
+        return enabled;
+    }
+
+    public static void setEnabled(Context context, boolean enabled) {
+        Log.i(TAG, "Raw capture " + (enabled ? "enabled" : "disabled"));
+        sEnabled = enabled;
+        context.getSharedPreferences(SHARED_PREFERENCES_KEY, MODE_PRIVATE).edit()
+                .putBoolean(PREF_ENABLED, enabled).apply();
+        final Listener listener = sListener;
+        if (listener != null) {
+            listener.onEnabledChanged();
+        }
+    }
+
+    public static void setListener(@Nullable Listener listener) {
+        sListener = listener;
+    }
+
+    /**
+     * Returns true if the file was left incomplete when we were last stopped, and then
+     * recovered.  Such a file has no gzip trailer, so its uncompressed length isn't known.
+     */
+    public static boolean isRecovered(File file) {
+        return file.getName().endsWith(RECOVERED_SUFFIX + FILE_SUFFIX);
+    }
+
+    /**
+     * Start writing again after capture is re-enabled.  Harmless if already running.
+     */
+    void resume() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        mHandler.post(mFlushRunnable);
+    }
+
+    /**
+     * Append one event, with a single value.
+     */
+    void append(int source, long timestampNanos, double value) {
+        synchronized (this) {
+            if (!reserve(1)) {
+                return;
+            }
+            mActive.put((byte) source).put((byte) 1).putLong(timestampNanos).putDouble(value);
+        }
+    }
+
+    /**
+     * Append one event, with the first count values.
+     */
+    void append(int source, long timestampNanos, double[] values, int count) {
+        synchronized (this) {
+            if (!reserve(count)) {
+                return;
+            }
+            mActive.put((byte) source).put((byte) count).putLong(timestampNanos);
+            for (int i = 0; i < count; i++) {
+                mActive.putDouble(values[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of events dropped so far, because the writer fell behind.
+     */
+    synchronized long getDroppedCount() {
+        return mTotalDropped;
+    }
+
+    /**
+     * Write out what has been captured, complete the current file, and stop.
+     */
+    void close() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+                closeFile();
+            }
+        });
+        mThread.quitSafely();
+    }
+
+    /**
+     * Wait for the writer thread to stop, after {@link #close()}.
+     */
+    @VisibleForTesting
+    void join() throws InterruptedException {
+        mThread.join();
+    }
+
+    // Called with the lock held
+    private boolean reserve(int count) {
+        if (mActive.remaining() < RECORD_HEADER_BYTES + count * 8) {
+            // The writer has fallen more than a buffer behind
+            mDropped++;
+            mTotalDropped++;
+            return false;
+        }
+        if (!mFlushPending && mActive.position() > BUFFER_BYTES / 2) {
+            mFlushPending = true;
+            mHandler.post(mHalfFullRunnable);
+        }
+        return true;
+    }
+
+    @WorkerThread
+    private void flush() {
+        final ByteBuffer buffer;
+        final long dropped;
+        synchronized (this) {
+            mFlushPending = false;
+            if (mActive.position() == 0) {
+                return;
+            }
+            buffer = mActive;
+            mActive = mSpare;
+            mSpare = null;
+            dropped = mDropped;
+            mDropped = 0;
+        }
+        if (dropped > 0) {
+            Log.w(TAG, "Dropped " + dropped + " events");
+        }
+        try {
+            if (mOut == null) {
+                openFile();
+            }
+            mOut.write(buffer.array(), 0, buffer.position());
+            mFileBytes += buffer.position();
+            if (mFileBytes >= MAX_FILE_BYTES ||
+                    SystemClock.elapsedRealtime() - mFileStart >= MAX_FILE_AGE_MS) {
+                closeFile();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write raw capture", e);
+            abandonFile();
+        } finally {
+            buffer.clear();
+            synchronized (this) {
+                mSpare = buffer;
+            }
+        }
+    }
+
+    @WorkerThread
+    private void openFile() throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + mDirectory);
+        }
+        mFileStart = SystemClock.elapsedRealtime();
+        mTempFile = new File(mDirectory,
+                String.format(Locale.US, FILE_NAME_FORMAT, mNextSequence) + TEMP_SUFFIX);
+        mNextSequence++;
+        getPreferences().edit().putLong(PREF_NEXT_SEQUENCE, mNextSequence).apply();
+        mFile = new FileOutputStream(mTempFile);
+        mOut = new GZIPOutputStream(mFile, BUFFER_BYTES);
+
+        final ByteBuffer header = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC).put((byte) VERSION).put((byte) ChannelRegistry.size());
+        for (int i = 0; i < ChannelRegistry.size(); i++) {
+            final SensorChannel channel = ChannelRegistry.get(i);
+            final byte[] name = channel.getName().getBytes(StandardCharsets.UTF_8);
+            header.put((byte) channel.getType()).put((byte) name.length).put(name);
+        }
+        header.putLong(SystemClock.elapsedRealtimeNanos()).putLong(System.currentTimeMillis());
+        mOut.write(header.array(), 0, header.position());
+        mFileBytes = header.position();
+    }
+
+    /**
+     * Complete the current file, and give it its final name, so it can be published.
+     */
+    @WorkerThread
+    private void closeFile() {
+        if (mOut == null) {
+            return;
+        }
+        try {
+            mOut.finish();
+            mFile.getFD().sync();
+            mFile.close();
+            final String name = mTempFile.getName();
+            final File complete = new File(mDirectory,
+                    name.substring(0, name.length() - TEMP_SUFFIX.length()) + FILE_SUFFIX);
+            if (!mTempFile.renameTo(complete)) {
+                throw new IOException("Unable to rename " + mTempFile + " to " + complete);
+            }
+            Log.i(TAG, "Captured " + mFileBytes + " bytes to " + complete + " (" +
+                    complete.length() + " bytes)");
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to complete raw capture", e);
+            abandonFile();
+        }
+        mOut = null;
+        mFile = null;
+        mTempFile = null;
+    }
+
+    /**
+     * Files left incomplete when we were last stopped are published as they are, marked as
+     * recovered.  The decoder reads as much of a truncated file as it can.
+     * <p>
+     * Also picks the sequence number to carry on from, after any file still waiting to be
+     * published, in case the saved one was lost.
+     */
+    @WorkerThread
+    private void recoverFiles() {
+        mNextSequence = getPreferences().getLong(PREF_NEXT_SEQUENCE, 0);
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            final String name = file.getName();
+            mNextSequence = Math.max(mNextSequence, parseSequence(name) + 1);
+            if (name.endsWith(TEMP_SUFFIX)) {
+                Log.w(TAG, "Recovering incomplete capture " + file);
+                file.renameTo(new File(mDirectory,
+                        name.substring(0, name.length() - TEMP_SUFFIX.length()) +
+                                RECOVERED_SUFFIX + FILE_SUFFIX));
+            }
+        }
+    }
+
+    /**
+     * Returns the sequence number a file is named for, or -1 if it isn't one of ours.
+     */
+    private static long parseSequence(String name) {
+        if (!name.startsWith(FILE_PREFIX)) {
+            return -1;
+        }
+        int end = FILE_PREFIX.length();
+        while (end < name.length() && Character.isDigit(name.charAt(end))) {
+            end++;
+        }
+        try {
+            return Long.parseLong(name.substring(FILE_PREFIX.length(), end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private SharedPreferences getPreferences() {
+        return mContext.getSharedPreferences(SHARED_PREFERENCES_KEY, MODE_PRIVATE);
+    }
+
+    @WorkerThread
+    private void abandonFile() {
+        if (mFile != null) {
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                // Nothing more we can do
+            }
+            mTempFile.delete();
+        }
+        mOut = null;
+        mFile = null;
+        mTempFile = null;
+    }
+
+    private static ByteBuffer newBuffer() {
+        return ByteBuffer.allocate(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
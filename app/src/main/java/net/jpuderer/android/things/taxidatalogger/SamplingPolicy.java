@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger;
+
+import android.location.Location;
+
+/**
+ * Decides when to log a row, based on how far we've moved since the last one, so that rows are
+ * spaced roughly evenly along the route, whatever our speed.
+ * <p>
+ * A row is logged once we've travelled the target distance from the last one, but never sooner
+ * than the minimum interval (bounding the rate on the highway), and never later than the maximum
+ * interval (so a parked taxi still logs the occasional row).  A significant change in the
+ * sensor readings is logged after the minimum interval, whether we've moved or not.  Movement
+ * within the accuracy of the fix is treated as GPS noise, so a stationary receiver wandering
+ * around doesn't count as travelling.
+ * <p>
+ * Times are SystemClock.elapsedRealtime() milliseconds.  Not thread safe.
+ */
+class SamplingPolicy {
+    // Below this speed (m/s), we're considered stopped, and don't bother predicting when we'll
+    // reach the target distance.
+    private static final float MIN_MOVING_SPEED = 0.5f;
+
+    // While stopped, check this often whether we've started moving again
+    private static final long STOPPED_CHECK_INTERVAL_MS = 5000;
+
+    private long mMinIntervalMs;
+    private long mMaxIntervalMs;
+    private float mDistanceM;
+
+    // Copy of the last fix sampled, since callers may reuse their Location
+    private final Location mLastLocation = new Location("");
+    private boolean mHasLast;
+    private long mLastTime;
+
+    SamplingPolicy(long minIntervalMs, long maxIntervalMs, float distanceM) {
+        setLimits(minIntervalMs, maxIntervalMs, distanceM);
+    }
+
+    void setLimits(long minIntervalMs, long maxIntervalMs, float distanceM) {
+        mMinIntervalMs = minIntervalMs;
+        mMaxIntervalMs = Math.max(minIntervalMs, maxIntervalMs);
+        mDistanceM = distanceM;
+    }
+
+    long getMinIntervalMs() {
+        return mMinIntervalMs;
+    }
+
+    /**
+     * Returns true if a sample should be taken for this fix.
+     *
+     * @param sensorsChanged true if a sensor reading has changed significantly since the last
+     *         sample
+     */
+    boolean shouldLog(Location location, long now, boolean sensorsChanged) {
+        if (!mHasLast) {
+            return true;
+        }
+        final long elapsed = now - mLastTime;
+        if (elapsed < mMinIntervalMs) {
+            return false;
+        }
+        return sensorsChanged || elapsed >= mMaxIntervalMs ||
+                distanceTravelled(location) >= mDistanceM;
+    }
+
+    /**
+     * Record that a sample was taken for this fix.
+     */
+    void onSampled(Location location, long now) {
+        mLastLocation.set(location);
+        mHasLast = true;
+        mLastTime = now;
+    }
+
+    /**
+     * Returns how long to wait before checking again.  At our current speed, this is about when
+     * we'll have travelled the target distance, within the minimum and maximum intervals.
+     */
+    long getNextCheckDelayMs(Location location, long now, boolean sensorsChanged) {
+        if (!mHasLast || location == null) {
+            return mMinIntervalMs;
+        }
+        final long untilMin = mLastTime + mMinIntervalMs - now;
+        if (sensorsChanged) {
+            return Math.max(untilMin, 0);
+        }
+        final long untilMax = mLastTime + mMaxIntervalMs - now;
+        long delay;
+        if (location.hasSpeed() && location.getSpeed() >= MIN_MOVING_SPEED) {
+            final float remaining = Math.max(0, mDistanceM - distanceTravelled(location));
+            delay = Math.min(untilMax, (long) (remaining * 1000 / location.getSpeed()));
+        } else {
+            delay = Math.min(untilMax, STOPPED_CHECK_INTERVAL_MS);
+        }
+        return Math.max(Math.max(delay, untilMin), 0);
+    }
+
+    private float distanceTravelled(Location location) {
+        final float distance = location.distanceTo(mLastLocation);
+        return distance > location.getAccuracy() ? distance : 0;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger;
+
+/**
+ * One value logged with each entry, e.g. temperature.  See {@link ChannelRegistry}.
+ */
+public final class SensorChannel {
+    public static final int TYPE_FLOAT = 0;
+    public static final int TYPE_INT = 1;
+
+    private final int mIndex;
+    private final String mName;
+    private final int mType;
+    private final float mDeadband;
+    private final float mMinSpread;
+    private final float mTolerance;
+
+    /**
+     * @param index position in the registry, and bit in the presence mask of stored entries
+     * @param name name of the value in published entries, and of the BigQuery column
+     * @param deadband default deadband (see ChannelFilter), in the channel's units
+     * @param minSpread smallest spread assumed by the outlier filter (see ChannelFilter)
+     * @param tolerance error allowed when interpolating the channel (see
+     *         TrajectorySimplifier).  Around the sensor's accuracy.
+     */
+    SensorChannel(int index, String name, int type, float deadband, float minSpread,
+            float tolerance) {
+        mIndex = index;
+        mName = name;
+        mType = type;
+        mDeadband = deadband;
+        mMinSpread = minSpread;
+        mTolerance = tolerance;
+    }
+
+    public int getIndex() {
+        return mIndex;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public boolean isInteger() {
+        return mType == TYPE_INT;
+    }
+
+    float getDeadband() {
+        return mDeadband;
+    }
+
+    float getMinSpread() {
+        return mMinSpread;
+    }
+
+    float getTolerance() {
+        return mTolerance;
+    }
+}
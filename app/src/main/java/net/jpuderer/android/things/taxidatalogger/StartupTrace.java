@@ -0,0 +1,70 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Logs how long it takes to reach each startup milestone, e.g. the first sample being logged,
+ * measured both from boot and from the start of our process.  Each milestone is only logged the
+ * first time it is reached, so it's safe to call {@link #mark(String)} on every pass through a
+ * loop.
+ * <p>
+ * To see the timings: {@code adb logcat -s StartupTrace}
+ */
+public final class StartupTrace {
+    private static final String TAG = StartupTrace.class.getSimpleName();
+
+    private static final Set<String> sReached =
+            Collections.synchronizedSet(new HashSet<String>());
+
+    private StartupTrace() {
+    }
+
+    /**
+     * Record that a milestone has been reached, unless it already has been.  May be called from
+     * any thread.
+     */
+    public static void mark(String milestone) {
+        if (!sReached.add(milestone)) {
+            return;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        Log.i(TAG, String.format("%s: %d ms since boot, %d ms since process start",
+                milestone, now, now - Process.getStartElapsedRealtime()));
+    }
+
+    /**
+     * Time a step, logging its duration if it's a milestone that hasn't been reached yet.
+     *
+     * @param milestone logged when the step completes
+     * @param startMillis SystemClock.elapsedRealtime() when the step began
+     */
+    public static void mark(String milestone, long startMillis) {
+        if (!sReached.add(milestone)) {
+            return;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        Log.i(TAG, String.format("%s: took %d ms, %d ms since boot, %d ms since process start",
+                milestone, now - startMillis, now, now - Process.getStartElapsedRealtime()));
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger;
+
+import java.util.ArrayDeque;
+
+/**
+ * Drops records which can be reconstructed from their neighbours, before they are logged.
+ * <p>
+ * This is an opening window simplifier, using the synchronized euclidean distance: the window
+ * grows from the last record kept (the anchor) for as long as every record in it lies within
+ * the tolerance of the straight line, in both space and time, from the anchor to the newest
+ * record.  Interpolating between the records we keep then gives back every dropped record,
+ * within the tolerance.  Sensor values are interpolated the same way, with their channel's
+ * tolerance, so a change in air quality part way along a straight road is still kept.
+ * <p>
+ * When a record doesn't fit, the one before it is kept, and becomes the new anchor.  The window
+ * is also closed once it holds {@link #MAX_WINDOW_RECORDS} records, or spans the maximum
+ * window time, which bounds both memory and how long a record can be held back before it's
+ * logged.  Since records only reach the live lane once they are logged, the maximum window
+ * time is kept short, and {@link #expire(double)} closes the window on time even when no new
+ * record arrives to close it.
+ * <p>
+ * Not thread safe.
+ */
+class TrajectorySimplifier {
+    interface Sink {
+        void onRecord(DatalogRecord record);
+    }
+
+    // Bounds the work per record, and the memory used
+    static final int MAX_WINDOW_RECORDS = 32;
+
+    // Mean radius of the earth, in metres
+    private static final double EARTH_RADIUS_M = 6371008.8;
+
+    private final Sink mSink;
+    private final ArrayDeque<DatalogRecord> mWindow = new ArrayDeque<>(MAX_WINDOW_RECORDS);
+    private DatalogRecord mAnchor;
+
+    private double mToleranceM;
+    private double mMaxWindowSeconds;
+
+    private long mReceived;
+    private long mKept;
+
+    /**
+     * @param toleranceM furthest a dropped record may be from its reconstructed position.  Zero
+     *         keeps every record.
+     * @param maxWindowMs longest time a record may be held back
+     */
+    TrajectorySimplifier(Sink sink, double toleranceM, long maxWindowMs) {
+        mSink = sink;
+        setLimits(toleranceM, maxWindowMs);
+    }
+
+    void setLimits(double toleranceM, long maxWindowMs) {
+        if (toleranceM <= 0 && mToleranceM > 0) {
+            flush();
+        }
+        mToleranceM = toleranceM;
+        mMaxWindowSeconds = maxWindowMs / 1000d;
+    }
+
+    void add(DatalogRecord record) {
+        mReceived++;
+        if (mAnchor == null || mToleranceM <= 0) {
+            keep(record);
+            return;
+        }
+        if (record.time - mAnchor.time > mMaxWindowSeconds ||
+                mWindow.size() >= MAX_WINDOW_RECORDS || !fits(record)) {
+            if (mWindow.isEmpty()) {
+                keep(record);
+                return;
+            }
+            keep(mWindow.peekLast());
+        }
+        mWindow.addLast(record);
+    }
+
+    /**
+     * Keep the newest record held back in the window, if the window has spanned the maximum
+     * window time by now.  Call regularly, so that a record isn't held back longer than that
+     * while no new records are added, e.g. while stopped at a light.
+     *
+     * @param time the current time, in the same seconds as {@link DatalogRecord#time}
+     */
+    void expire(double time) {
+        if (!mWindow.isEmpty() && time - mAnchor.time > mMaxWindowSeconds) {
+            keep(mWindow.peekLast());
+        }
+    }
+
+    /**
+     * Keep the record held back in the window, if any.  Call when the trajectory is interrupted,
+     * e.g. when we lose the GPS fix, or stop logging.
+     */
+    void flush() {
+        if (!mWindow.isEmpty()) {
+            keep(mWindow.peekLast());
+        }
+    }
+
+    /**
+     * Forget the anchor, so that the next record is kept, whatever it is.
+     */
+    void reset() {
+        flush();
+        mAnchor = null;
+    }
+
+    long getReceivedCount() {
+        return mReceived;
+    }
+
+    long getKeptCount() {
+        return mKept;
+    }
+
+    private void keep(DatalogRecord record) {
+        mWindow.clear();
+        mAnchor = record;
+        mKept++;
+        mSink.onRecord(record);
+    }
+
+    /**
+     * Returns true if every record in the window can be reconstructed from the anchor and the
+     * given record.
+     */
+    private boolean fits(DatalogRecord end) {
+        final double span = end.time - mAnchor.time;
+        if (span <= 0) {
+            return false;
+        }
+        // Equirectangular projection around the anchor.  Plenty accurate over a window.
+        final double metresPerDegLat = Math.toRadians(1) * EARTH_RADIUS_M;
+        final double metresPerDegLon = metresPerDegLat * Math.cos(Math.toRadians(mAnchor.latitude));
+        final double toleranceSq = mToleranceM * mToleranceM;
+        for (DatalogRecord record : mWindow) {
+            final double f = (record.time - mAnchor.time) / span;
+            final double dy = (record.latitude - lerp(mAnchor.latitude, end.latitude, f)) *
+                    metresPerDegLat;
+            final double dx = (record.longitude - lerp(mAnchor.longitude, end.longitude, f)) *
+                    metresPerDegLon;
+            if (dx * dx + dy * dy > toleranceSq) {
+                return false;
+            }
+            // A missing value can only be reconstructed if it's missing at both ends
+            if (record.channelMask != mAnchor.channelMask ||
+                    record.channelMask != end.channelMask) {
+                return false;
+            }
+            for (int i = 0; i < ChannelRegistry.size(); i++) {
+                if (!record.has(i)) {
+                    continue;
+                }
+                final double predicted = lerp(mAnchor.channelValues[i], end.channelValues[i], f);
+                if (Math.abs(record.channelValues[i] - predicted) >
+                        ChannelRegistry.get(i).getTolerance()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static double lerp(double start, double end, double f) {
+        return start + (end - start) * f;
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.provider.BaseColumns;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import net.jpuderer.android.things.taxidatalogger.DatalogDbHelper;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Drains a large backlog of log entries as fast as the publisher will take them.
+ * <p>
+ * In steady state, entries are read, encoded and published one message at a time, on the
+ * service thread.  Here, a worker thread reads the backlog in large pages, and builds and
+ * compresses the next few messages while the service thread is waiting on the previous one to
+ * be acknowledged.
+ * <p>
+ * A pipeline is created when the service enters catch-up mode, and closed when it leaves.
+ * Progress is logged over the whole of that time.
+ */
+class CatchUpPipeline implements AutoCloseable {
+    private static final String TAG = CatchUpPipeline.class.getSimpleName();
+
+    // Entries read from the database per query
+    private static final int PAGE_SIZE = 5000;
+
+    // Encoded messages waiting to be published.  Enough to cover a slow round trip, without
+    // holding much of the backlog in memory.
+    private static final int QUEUE_DEPTH = 4;
+
+    private static final long PROGRESS_LOG_INTERVAL_MS = TimeUnit.SECONDS.toMillis(30);
+
+    // How often to check on the worker, and the deadline, while waiting for the next message
+    private static final long POLL_INTERVAL_MS = 100;
+
+    private final Context mContext;
+    private final SQLiteDatabase mDatabase;
+    private final String mDeviceId;
+    private final PayloadEncoder mEncoder;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    private final long mStartTime = SystemClock.elapsedRealtime();
+    private long mLastProgressTime = mStartTime;
+    private long mEntriesSent;
+
+    /**
+     * An encoded message, and the ID of the last entry in it.  The end of the backlog, or a
+     * failure on the worker thread, is marked by a batch without a payload.
+     */
+    private static class Batch {
+        final Payload payload;
+        final long lastId;
+        final int count;
+        final Throwable error;
+
+        Batch(Payload payload, long lastId, int count, Throwable error) {
+            this.payload = payload;
+            this.lastId = lastId;
+            this.count = count;
+            this.error = error;
+        }
+    }
+
+    CatchUpPipeline(Context context, SQLiteDatabase database, String deviceId,
+            PayloadEncoder encoder) {
+        mContext = context;
+        mDatabase = database;
+        mDeviceId = deviceId;
+        mEncoder = encoder;
+    }
+
+    /**
+     * Publish entries with IDs between afterId and beforeId (exclusive), oldest first, on the
+     * backfill lane.  The backfill cursor is advanced after each message.
+     *
+     * @param maxMillis stop after this long, so the live lane gets a turn
+     * @return the number of entries sent
+     */
+    @WorkerThread
+    int drain(long afterId, long beforeId, int entriesPerMessage, long maxMillis,
+            CloudPublisher publisher) throws Exception {
+        final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        final Future<?> producer = mExecutor.submit(
+                new Producer(afterId, beforeId, entriesPerMessage, queue, cancelled));
+
+        final long deadline = SystemClock.elapsedRealtime() + maxMillis;
+        int sent = 0;
+        try {
+            while (SystemClock.elapsedRealtime() < deadline) {
+                Batch batch = queue.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (batch == null) {
+                    if (!producer.isDone()) {
+                        continue;
+                    }
+                    // It may have finished just after we stopped waiting
+                    batch = queue.poll();
+                    if (batch == null) {
+                        throw new IllegalStateException("Catch-up worker stopped early");
+                    }
+                }
+                if (batch.error instanceof Exception) {
+                    throw (Exception) batch.error;
+                } else if (batch.error != null) {
+                    throw new ExecutionException("Catch-up worker failed", batch.error);
+                }
+                if (batch.payload == null) {
+                    break;
+                }
+                publisher.publish(batch.payload, CloudPublisher.LANE_BACKFILL);
+                DatalogDbHelper.setLastSyncId(mContext, batch.lastId);
+                sent += batch.count;
+                mEntriesSent += batch.count;
+                maybeLogProgress(beforeId - batch.lastId - 1);
+            }
+        } finally {
+            // Stop the worker, and wait for it, so it's done with the encoder before the next
+            // pass (or close()) touches it.
+            cancelled.set(true);
+            queue.clear();
+            try {
+                producer.get();
+            } catch (ExecutionException e) {
+                // Already reported through the queue
+            }
+        }
+        return sent;
+    }
+
+    private void maybeLogProgress(long remaining) {
+        final long now = SystemClock.elapsedRealtime();
+        if (now - mLastProgressTime < PROGRESS_LOG_INTERVAL_MS) {
+            return;
+        }
+        mLastProgressTime = now;
+        final double rate = mEntriesSent * 1000d / Math.max(1, now - mStartTime);
+        Log.i(TAG, String.format(Locale.US,
+                "Catching up: %d entries sent, %.1f entries/s, %d remaining, ETA %d min",
+                mEntriesSent, rate, remaining,
+                rate > 0 ? (long) (remaining / rate / 60) : -1));
+    }
+
+    @Override
+    public void close() {
+        mExecutor.shutdownNow();
+        try {
+            mExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mEncoder.close();
+        final long elapsed = SystemClock.elapsedRealtime() - mStartTime;
+        Log.i(TAG, String.format(Locale.US, "Caught up %d entries in %d s (%.1f entries/s)",
+                mEntriesSent, TimeUnit.MILLISECONDS.toSeconds(elapsed),
+                mEntriesSent * 1000d / Math.max(1, elapsed)));
+    }
+
+    /**
+     * Reads and encodes the backlog on the worker thread.
+     */
+    private class Producer implements Runnable {
+        private final long mAfterId;
+        private final long mBeforeId;
+        private final int mEntriesPerMessage;
+        private final BlockingQueue<Batch> mQueue;
+        private final AtomicBoolean mCancelled;
+
+        Producer(long afterId, long beforeId, int entriesPerMessage, BlockingQueue<Batch> queue,
+                AtomicBoolean cancelled) {
+            mAfterId = afterId;
+            mBeforeId = beforeId;
+            mEntriesPerMessage = entriesPerMessage;
+            mQueue = queue;
+            mCancelled = cancelled;
+        }
+
+        @Override
+        public void run() {
+            try {
+                long afterId = mAfterId;
+                boolean more = true;
+                while (more && !mCancelled.get()) {
+                    Cursor cursor = mDatabase.query(DatalogDbHelper.TABLE_NAME,
+                            null,
+                            BaseColumns._ID + " > " + afterId + " AND " +
+                                    BaseColumns._ID + " < " + mBeforeId,
+                            null,
+                            null,
+                            null,
+                            BaseColumns._ID + " ASC",
+                            Integer.toString(PAGE_SIZE));
+                    try {
+                        more = cursor.getCount() == PAGE_SIZE;
+                        afterId = encodePage(cursor);
+                    } finally {
+                        cursor.close();
+                    }
+                }
+                enqueue(new Batch(null, 0, 0, null));
+            } catch (InterruptedException e) {
+                // Closed
+            } catch (Throwable t) {
+                // Anything at all, so the service thread doesn't wait for a batch that will
+                // never come
+                try {
+                    enqueue(new Batch(null, 0, 0, t));
+                } catch (InterruptedException ie) {
+                    // Closed
+                }
+            }
+        }
+
+        /**
+         * @return the ID of the last entry in the page
+         */
+        private long encodePage(Cursor cursor) throws JSONException, InterruptedException {
+            final int idColumn = cursor.getColumnIndexOrThrow(BaseColumns._ID);
+            JSONArray batch = new JSONArray();
+            long firstId = 0;
+            long id = 0;
+            for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                id = cursor.getLong(idColumn);
+                if (batch.length() == 0) {
+                    firstId = id;
+                }
+                batch.put(CloudPublisherService.toJson(cursor, mDeviceId));
+                if (batch.length() >= mEntriesPerMessage || cursor.isLast()) {
+                    Payload payload =
+                            mEncoder.encode(batch.toString()).withIdRange(firstId, id);
+                    if (!enqueue(new Batch(payload, id, batch.length(), null))) {
+                        break;
+                    }
+                    batch = new JSONArray();
+                }
+            }
+            return id;
+        }
+
+        /**
+         * @return false if the pipeline was cancelled while waiting for space in the queue
+         */
+        private boolean enqueue(Batch batch) throws InterruptedException {
+            while (!mQueue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+                if (mCancelled.get()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
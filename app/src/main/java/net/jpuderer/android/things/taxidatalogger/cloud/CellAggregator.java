@@ -0,0 +1,232 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud;
+
+import net.jpuderer.android.things.taxidatalogger.ChannelRegistry;
+import net.jpuderer.android.things.taxidatalogger.SensorChannel;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * Running count, mean, min and max of each sensor channel, per geohash cell, for one time
+ * bucket.
+ * <p>
+ * Cells are kept in an open addressing hash map, keyed by the geohash bits, with the
+ * statistics in flat primitive arrays, so adding a sample doesn't allocate.  A busy downtown
+ * bucket only touches a few dozen cells, so the map rarely grows past its initial size, and
+ * is reused from one bucket to the next.
+ * <p>
+ * Not thread safe.
+ */
+class CellAggregator {
+    private static final int CHANNEL_COUNT = ChannelRegistry.size();
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // Mean radius of the earth, in metres
+    private static final double EARTH_RADIUS_M = 6371008.8;
+
+    private final int mPrecision;
+
+    // Keys are the cell's geohash bits + 1, so that 0 can mean an empty slot
+    private long[] mKeys;
+    private int[] mSamples;
+    // Per channel statistics, indexed by channel * capacity + slot
+    private int[] mCounts;
+    private double[] mSums;
+    private float[] mMins;
+    private float[] mMaxs;
+    private int mSize;
+
+    /**
+     * @param precision geohash precision, in characters.  7 gives cells of about 150 m.
+     */
+    CellAggregator(int precision) {
+        if (precision < 1 || precision > Geohash.MAX_PRECISION) {
+            throw new IllegalArgumentException("Bad geohash precision: " + precision);
+        }
+        mPrecision = precision;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    int getPrecision() {
+        return mPrecision;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Add a sample.
+     *
+     * @param channelMask channels present in the sample (see ChannelRegistry)
+     * @param values indexed by channel index
+     */
+    void add(double latitude, double longitude, long channelMask, double[] values) {
+        final long key = Geohash.encode(latitude, longitude, mPrecision) + 1;
+        int slot = find(key);
+        if (mKeys[slot] == 0) {
+            if ((mSize + 1) * 2 > mKeys.length) {
+                grow();
+                slot = find(key);
+            }
+            mKeys[slot] = key;
+            mSize++;
+        }
+        mSamples[slot]++;
+        final int capacity = mKeys.length;
+        for (int c = 0; c < CHANNEL_COUNT; c++) {
+            if ((channelMask & (1L << c)) == 0) {
+                continue;
+            }
+            final float value = (float) values[c];
+            final int i = c * capacity + slot;
+            if (mCounts[i] == 0 || value < mMins[i]) {
+                mMins[i] = value;
+            }
+            if (mCounts[i] == 0 || value > mMaxs[i]) {
+                mMaxs[i] = value;
+            }
+            mCounts[i]++;
+            mSums[i] += value;
+        }
+    }
+
+    /**
+     * Append one record per cell to out, in the same shape as a log entry, plus the cell and
+     * the per channel statistics (see scripts/entries_schema.json).  The channel columns
+     * themselves hold the mean.
+     *
+     * @param time start of the bucket, in UTC seconds since epoch
+     * @param bucketSeconds length of the bucket
+     */
+    void appendTo(JSONArray out, String deviceId, double time, int bucketSeconds)
+            throws JSONException {
+        final int capacity = mKeys.length;
+        for (int slot = 0; slot < capacity; slot++) {
+            if (mKeys[slot] == 0) {
+                continue;
+            }
+            final long cell = mKeys[slot] - 1;
+            final double[] bounds = Geohash.decodeBounds(cell, mPrecision);
+            final double latitude = (bounds[0] + bounds[2]) / 2;
+            final double longitude = (bounds[1] + bounds[3]) / 2;
+            // Report half the cell's diagonal as the accuracy of its centre
+            final double dy = Math.toRadians(bounds[2] - bounds[0]) * EARTH_RADIUS_M;
+            final double dx = Math.toRadians(bounds[3] - bounds[1]) * EARTH_RADIUS_M *
+                    Math.cos(Math.toRadians(latitude));
+
+            JSONObject record = new JSONObject();
+            record.put("deviceId", deviceId);
+            record.put("time", time);
+            record.put("latitude", latitude);
+            record.put("longitude", longitude);
+            record.put("accuracy", Math.sqrt(dx * dx + dy * dy) / 2);
+            record.put("cell", Geohash.toString(cell, mPrecision));
+            record.put("bucketSeconds", bucketSeconds);
+            record.put("sampleCount", mSamples[slot]);
+            for (int c = 0; c < CHANNEL_COUNT; c++) {
+                final int i = c * capacity + slot;
+                if (mCounts[i] == 0) {
+                    continue;
+                }
+                final double mean = mSums[i] / mCounts[i];
+                final SensorChannel channel = ChannelRegistry.get(c);
+                final String name = channel.getName();
+                if (channel.isInteger()) {
+                    record.put(name, Math.round(mean));
+                    record.put(name + "Min", (int) mMins[i]);
+                    record.put(name + "Max", (int) mMaxs[i]);
+                } else {
+                    record.put(name, mean);
+                    record.put(name + "Min", mMins[i]);
+                    record.put(name + "Max", mMaxs[i]);
+                }
+            }
+            out.put(record);
+        }
+    }
+
+    /**
+     * Forget every cell, ready for the next bucket.
+     */
+    void clear() {
+        Arrays.fill(mKeys, 0);
+        Arrays.fill(mSamples, 0);
+        Arrays.fill(mCounts, 0);
+        Arrays.fill(mSums, 0);
+        mSize = 0;
+    }
+
+    private int find(long key) {
+        final int mask = mKeys.length - 1;
+        int slot = (int) mix(key) & mask;
+        while (mKeys[slot] != 0 && mKeys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    // Neighbouring cells share their high bits, so spread them over the table
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mSamples = new int[capacity];
+        mCounts = new int[CHANNEL_COUNT * capacity];
+        mSums = new double[CHANNEL_COUNT * capacity];
+        mMins = new float[CHANNEL_COUNT * capacity];
+        mMaxs = new float[CHANNEL_COUNT * capacity];
+        mSize = 0;
+    }
+
+    private void grow() {
+        final long[] keys = mKeys;
+        final int[] samples = mSamples;
+        final int[] counts = mCounts;
+        final double[] sums = mSums;
+        final float[] mins = mMins;
+        final float[] maxs = mMaxs;
+        final int oldCapacity = keys.length;
+        allocate(oldCapacity * 2);
+        final int capacity = mKeys.length;
+        for (int old = 0; old < oldCapacity; old++) {
+            if (keys[old] == 0) {
+                continue;
+            }
+            final int slot = find(keys[old]);
+            mKeys[slot] = keys[old];
+            mSamples[slot] = samples[old];
+            for (int c = 0; c < CHANNEL_COUNT; c++) {
+                mCounts[c * capacity + slot] = counts[c * oldCapacity + old];
+                mSums[c * capacity + slot] = sums[c * oldCapacity + old];
+                mMins[c * capacity + slot] = mins[c * oldCapacity + old];
+                mMaxs[c * capacity + slot] = maxs[c * oldCapacity + old];
+            }
+            mSize++;
+        }
+    }
+}
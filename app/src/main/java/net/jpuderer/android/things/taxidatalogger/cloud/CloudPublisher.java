@@ -21,9 +21,38 @@ import net.jpuderer.android.things.taxidatalogger.cloud.cloudiot.CloudIotOptions
 
 public interface CloudPublisher extends AutoCloseable {
 
+    // Latency sensitive messages, such as the most recent entries after a long time offline.
+    int LANE_LIVE = 0;
+    // Historical entries, sent in order, in large volumes.
+    int LANE_BACKFILL = 1;
+    // Entries that were already sent, and are being sent again on request.
+    int LANE_REPLAY = 2;
+
+    /**
+     * Receives commands and configuration sent to the device from the cloud.
+     */
+    interface CommandListener {
+        /**
+         * Called on a background thread, with the raw command payload.
+         */
+        void onCommand(byte[] payload);
+
+        /**
+         * Called on a background thread, with the raw device configuration, when we subscribe
+         * and whenever it changes.
+         */
+        void onConfig(byte[] payload);
+    }
+
     boolean isReady();
 
-    void publish(String message);
+    /**
+     * Publish a message that has already been encoded, e.g. by a {@link PayloadEncoder} on
+     * another thread.
+     */
+    void publish(Payload payload, int lane);
 
     void reconfigure(CloudIotOptions options);
+
+    void setCommandListener(CommandListener listener);
 }
\ No newline at end of file
@@ -20,25 +20,43 @@ import android.app.Service;
 import android.content.Intent;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.os.Environment;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
+import android.support.annotation.AnyThread;
 import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 import android.support.annotation.WorkerThread;
 import android.util.Log;
 
+import net.jpuderer.android.things.taxidatalogger.ChannelRegistry;
 import net.jpuderer.android.things.taxidatalogger.DatalogDbHelper;
+import net.jpuderer.android.things.taxidatalogger.NewEntryNotifier;
+import net.jpuderer.android.things.taxidatalogger.RawCaptureLog;
+import net.jpuderer.android.things.taxidatalogger.SensorChannel;
+import net.jpuderer.android.things.taxidatalogger.StartupTrace;
 import net.jpuderer.android.things.taxidatalogger.cloud.cloudiot.CloudIotOptions;
 import net.jpuderer.android.things.taxidatalogger.cloud.cloudiot.MQTTPublisher;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Locale;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Handle asynchronous cloud sensor logging requests via a Binder interface. Sensor events are
@@ -54,15 +72,62 @@ public class CloudPublisherService extends Service {
             "net.jpuderer.android.things.taxidatalogger.CLEAR_DATA";
     private static final String INTENT_RESEND_DATA_ACTION =
             "net.jpuderer.android.things.taxidatalogger.RESEND_DATA";
+    private static final String INTENT_REPLAY_DATA_ACTION =
+            "net.jpuderer.android.things.taxidatalogger.REPLAY_DATA";
+    private static final String INTENT_EXPORT_DATA_ACTION =
+            "net.jpuderer.android.things.taxidatalogger.EXPORT_DATA";
+    private static final String INTENT_RAW_CAPTURE_ACTION =
+            "net.jpuderer.android.things.taxidatalogger.RAW_CAPTURE";
+
+    // Extras for INTENT_REPLAY_DATA_ACTION.  Either a time range (UTC seconds since epoch, end
+    // exclusive) or an ID range (inclusive).
+    private static final String EXTRA_START_TIME = "start_time";
+    private static final String EXTRA_END_TIME = "end_time";
+    private static final String EXTRA_START_ID = "start_id";
+    private static final String EXTRA_END_ID = "end_id";
+
+    // Extra for INTENT_EXPORT_DATA_ACTION: directory to export to, instead of EXPORT_DIRECTORY
+    // on external storage.  Must be on external storage, or a removable volume.
+    private static final String EXTRA_PATH = "path";
+    private static final String EXPORT_DIRECTORY = "taxidatalogger-export";
+    // Removable volumes are mounted under here
+    private static final File STORAGE_DIRECTORY = new File("/storage");
+
+    // Extra for INTENT_RAW_CAPTURE_ACTION: false to turn raw capture off.  Defaults to true.
+    private static final String EXTRA_ENABLED = "enabled";
 
     private static final String CONFIG_SHARED_PREFERENCES_KEY = "cloud_iot_config";
 
-    private static final long PUBLISH_INTERVAL_MS = TimeUnit.SECONDS.toMillis(20);
+    // Publish intervals and batch sizes are set through TuningConfig.
+
+    // Initial guess at the size of a JSON encoded entry, until we've measured some
+    private static final int INITIAL_ENTRY_BYTES = 300;
+
+    // Once more than this many entries are waiting, new entries are sent first, on the live
+    // lane, while the backlog is drained on the backfill lane.
+    private static final int LIVE_LANE_BACKLOG_THRESHOLD = 500;
+
+    // Entries drained from the backlog in one pass, before the live lane gets another turn.
+    private static final int BACKFILL_ENTRIES_PER_PASS = 1000;
 
-    // After this amount of tentatives, the publish interval will change from PUBLISH_INTERVAL_MS
-    // to BACKOFF_INTERVAL_MS until a successful connection has been established.
-    private static final long ERRORS_TO_INITIATE_BACKOFF = 20;
-    private static final long BACKOFF_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+    // Once the backlog is bigger than this (about a day of logging), it is drained in catch-up
+    // mode, by a CatchUpPipeline, until it drops back under the threshold.
+    private static final int CATCH_UP_BACKLOG_THRESHOLD = 10000;
+
+    // Time spent draining the backlog in one catch-up pass, before the live lane gets a turn.
+    private static final long CATCH_UP_PASS_MS = TimeUnit.MINUTES.toMillis(1);
+
+    // Entries replayed per pass, and the most time between passes while a replay is in
+    // progress.  Together, these limit how much of the link the replay lane takes.
+    private static final int REPLAY_ENTRIES_PER_PASS = 500;
+    private static final long REPLAY_PASS_INTERVAL_MS = TimeUnit.SECONDS.toMillis(10);
+
+    // Entries read per pass, when publishing cell aggregates.  Only whole time buckets are
+    // published, so the entries of a bucket which is still filling up are read again next time.
+    private static final int AGGREGATE_ENTRIES_PER_PASS = 5000;
+
+    // Raw capture files published per pass.  Each is a single message.
+    private static final int RAW_CAPTURE_FILES_PER_PASS = 4;
 
     // Database of logging entries
     DatalogDbHelper mDbHelper;
@@ -70,86 +135,667 @@ public class CloudPublisherService extends Service {
 
     private Looper mServiceLooper;
     private Handler mServiceHandler;
-    private CloudPublisher mPublisher;
+    private CompositePublisher mPublisher;
+    // The Cloud IoT sink, within mPublisher.  Batches are sized to suit its rate limits.
+    private RateLimitedPublisher mRateLimiter;
+    private MQTTPublisher mMqttPublisher;
+    // Encodes each batch once, for all of the sinks
+    private PayloadEncoder mEncoder;
+    private PublishScheduler mScheduler;
+    private TuningManager mTuning;
+
+    // Non-null while in catch-up mode
+    private CatchUpPipeline mCatchUp;
 
-    private AtomicInteger mUnsuccessfulTentatives = new AtomicInteger(0);
+    // Reused from one pass to the next, while publishing cell aggregates
+    private CellAggregator mAggregator;
+
+    // Running average of the size of a JSON encoded entry, used to size batches
+    private int mEntryBytes = INITIAL_ENTRY_BYTES;
+
+    // True if the last pass left part of the backlog for the next one
+    private boolean mBacklogPending;
 
     private String mDeviceId;
 
-    // Runnable to periodically attempt to publish data to the cloud.
+    // Runnable to attempt to publish data to the cloud, as new entries are logged.
     private final Runnable mSensorConsumerRunnable = new Runnable() {
         @Override
         public void run() {
-            long delayForNextTentative = PUBLISH_INTERVAL_MS;
             try {
                 initializeIfNeeded();
-                processCollectedSensorData();
-                mUnsuccessfulTentatives.set(0);
-            } catch (Throwable t) {
-                if (mUnsuccessfulTentatives.get() >= ERRORS_TO_INITIATE_BACKOFF) {
-                    delayForNextTentative = BACKOFF_INTERVAL_MS;
-                } else {
-                    mUnsuccessfulTentatives.incrementAndGet();
+                final int sent = processCollectedSensorData();
+                if (sent > 0) {
+                    StartupTrace.mark("First entries published");
+                }
+                mTuning.onPublishSucceeded(sent);
+                mScheduler.onSuccess(mBacklogPending);
+                if (DatalogDbHelper.getReplayEndId(CloudPublisherService.this) >= 0) {
+                    mScheduler.runWithin(REPLAY_PASS_INTERVAL_MS);
                 }
+            } catch (Throwable t) {
+                long delayForNextTentative = mScheduler.onFailure();
                 Log.e(TAG, String.format(Locale.getDefault(),
                         "Cannot publish. %d unsuccessful tentatives, will try again in %d ms",
-                        mUnsuccessfulTentatives.get(), delayForNextTentative), t);
-            } finally {
-                mServiceHandler.postDelayed(this, delayForNextTentative);
+                        mScheduler.getFailureCount(), delayForNextTentative), t);
+                // Losing the network or the connection isn't the tuning's fault
+                TuningConfig rollback = mTuning.onPublishFailed(mScheduler.isNetworkAvailable() &&
+                        mMqttPublisher != null && mMqttPublisher.isReady());
+                if (rollback != null) {
+                    applyTuning(rollback);
+                }
+            }
+        }
+    };
+
+    // Called on the service thread, when the network comes back
+    private final PublishScheduler.NetworkListener mNetworkListener =
+            new PublishScheduler.NetworkListener() {
+        @Override
+        public void onNetworkAvailable() {
+            if (mMqttPublisher != null) {
+                mMqttPublisher.onNetworkAvailable();
+            }
+        }
+    };
+
+    // Called on an MQTT thread, whenever we (re-)connect to the bridge
+    private final MQTTPublisher.ConnectionListener mConnectionListener =
+            new MQTTPublisher.ConnectionListener() {
+        @Override
+        public void onConnected() {
+            mServiceHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mScheduler.onConnected();
+                }
+            });
+        }
+    };
+
+    // Called on the logging thread, when new entries are logged
+    private final NewEntryNotifier.Listener mNewEntryListener = new NewEntryNotifier.Listener() {
+        @Override
+        public void onNewEntries() {
+            mServiceHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mPublisher != null) {
+                        mPublisher.onNewEntries();
+                    }
+                    mScheduler.onNewData();
+                }
+            });
+        }
+    };
+
+    // Handles commands sent to the device through Cloud IoT, e.g.
+    //   {"command": "replay", "startTime": 1500000000, "endTime": 1500003600}
+    private final CloudPublisher.CommandListener mCommandListener =
+            new CloudPublisher.CommandListener() {
+        @Override
+        public void onCommand(byte[] payload) {
+            try {
+                JSONObject command = new JSONObject(new String(payload, StandardCharsets.UTF_8));
+                if ("replay".equals(command.optString("command"))) {
+                    requestReplay(command.optLong("startId", -1), command.optLong("endId", -1),
+                            command.optLong("startTime", -1), command.optLong("endTime", -1));
+                } else {
+                    Log.w(TAG, "Ignoring unknown command: " + command);
+                }
+            } catch (JSONException e) {
+                Log.w(TAG, "Ignoring malformed command", e);
+            }
+        }
+
+        @Override
+        public void onConfig(byte[] payload) {
+            if (payload.length == 0) {
+                // No configuration has been set for this device
+                return;
             }
+            final String json = new String(payload, StandardCharsets.UTF_8);
+            mServiceHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    TuningConfig tuning = mTuning.offer(json);
+                    if (tuning != null) {
+                        applyTuning(tuning);
+                    }
+                }
+            });
         }
     };
 
+    /**
+     * Put a tuning, which is already current, into effect.
+     */
+    @WorkerThread
+    private void applyTuning(TuningConfig tuning) {
+        mScheduler.setIntervals(tuning.getPublishDelayMs(), tuning.getIdlePublishIntervalMs());
+        reconfigurePublisher(applyTuning(readOptions(null)));
+    }
+
+    @WorkerThread
+    private void reconfigurePublisher(CloudIotOptions options) {
+        if (mPublisher != null) {
+            mPublisher.reconfigure(options);
+            mEncoder.close();
+            mEncoder = new PayloadEncoder(options.isCompressionEnabled(),
+                    options.getCompressionLevel());
+        }
+        // Pick up any change to the encoding on the next catch-up pass
+        stopCatchUp();
+    }
+
+    /**
+     * Override the configured options with the tuning currently in effect.
+     */
+    private static CloudIotOptions applyTuning(CloudIotOptions options) {
+        return CloudIotOptions.reconfigure(options,
+                TuningConfig.getCurrent().toOptionsBundle());
+    }
+
+    /**
+     * Publish new log entries, or their cell aggregates, or both, depending on the tuning, and
+     * the next part of any replay in progress.
+     *
+     * @return the number of entries sent
+     */
     @WorkerThread
-    void processCollectedSensorData() throws JSONException {
+    int processCollectedSensorData() throws Exception {
         if (mPublisher == null || !mPublisher.isReady()) {
+            throw new IllegalStateException("Publisher is not ready");
+        }
+        // Entries logged from here on will trigger another pass
+        NewEntryNotifier.consume();
+        final String aggregation = TuningConfig.getCurrent().getAggregation();
+        int sent = 0;
+        if (!TuningConfig.AGGREGATION_CELLS.equals(aggregation)) {
+            sent += publishNewEntries();
+        }
+        if (TuningConfig.AGGREGATION_RAW.equals(aggregation)) {
+            // If aggregation is turned back on, it starts where the entries are by then
+            DatalogDbHelper.setAggregateSyncedId(this, -1);
+        } else {
+            sent += publishAggregates(TuningConfig.AGGREGATION_CELLS.equals(aggregation));
+        }
+        publishRawCapture();
+        return sent + publishReplay();
+    }
+
+    /**
+     * Publish completed raw capture files (see RawCaptureLog), oldest first, one per message,
+     * and delete them once sent.  They are already compressed, and go to their own subfolder,
+     * so the ingest side can keep them apart from the entries.
+     */
+    @WorkerThread
+    private void publishRawCapture() throws IOException {
+        final File[] files = RawCaptureLog.getDirectory(this).listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(RawCaptureLog.FILE_SUFFIX);
+            }
+        });
+        if (files == null || files.length == 0) {
             return;
         }
+        // Names sort in the order the files were written
+        Arrays.sort(files);
+        final int count = Math.min(files.length, RAW_CAPTURE_FILES_PER_PASS);
+        for (int i = 0; i < count; i++) {
+            final byte[] data = readFile(files[i]);
+            // The gzip trailer ends with the uncompressed length.  A recovered file was cut
+            // short, and has no trailer.
+            final int decodedLength = RawCaptureLog.isRecovered(files[i]) || data.length < 4 ?
+                    -1 : ByteBuffer.wrap(data, data.length - 4, 4)
+                            .order(ByteOrder.LITTLE_ENDIAN).getInt();
+            mPublisher.publish(new Payload(data, Payload.ENCODING_RAW_CAPTURE, decodedLength),
+                    CloudPublisher.LANE_BACKFILL);
+            Log.i(TAG, "Published raw capture " + files[i].getName() + " (" + data.length +
+                    " bytes)");
+            if (!files[i].delete()) {
+                Log.w(TAG, "Unable to delete " + files[i]);
+            }
+        }
+        mBacklogPending |= files.length > count;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        final byte[] data = new byte[(int) file.length()];
+        try (FileInputStream in = new FileInputStream(file)) {
+            int read = 0;
+            while (read < data.length) {
+                final int n = in.read(data, read, data.length - read);
+                if (n < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                read += n;
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Publish any log entries which haven't been sent yet.
+     * <p>
+     * Normally, entries are sent oldest first, on the backfill lane.  When we're far behind
+     * (e.g. after a long time offline), entries logged from then on are sent first on the live
+     * lane, so the dashboard shows where the taxi is right now, while the backlog is drained
+     * in chunks on the backfill lane.  Once the backfill lane catches up with the start of the
+     * live lane, the two are merged back into a single cursor.
+     *
+     * @return the number of entries sent
+     */
+    @WorkerThread
+    private int publishNewEntries() throws Exception {
+        final long lastSyncId = DatalogDbHelper.getLastSyncId(this);
+        long liveStartId = DatalogDbHelper.getLiveStartId(this);
+        if (liveStartId < 0) {
+            final long newestId = DatalogDbHelper.getNewestId(mDatabase);
+            if (newestId - lastSyncId <= LIVE_LANE_BACKLOG_THRESHOLD) {
+                mBacklogPending = false;
+                return publishEntries(lastSyncId, Long.MAX_VALUE, 0,
+                        CloudPublisher.LANE_BACKFILL);
+            }
+            // Start the live lane at the newest entry, and leave everything before it to the
+            // backfill lane.
+            liveStartId = newestId;
+            DatalogDbHelper.setLiveRange(this, liveStartId, liveStartId - 1);
+            Log.i(TAG, "Backlog of " + (newestId - lastSyncId) + " entries, " +
+                    "sending live entries from " + liveStartId + " first");
+        }
+
+        int sent = publishEntries(DatalogDbHelper.getLiveSyncedId(this), Long.MAX_VALUE, 0,
+                CloudPublisher.LANE_LIVE);
+        if (liveStartId - lastSyncId > CATCH_UP_BACKLOG_THRESHOLD) {
+            return sent + catchUp(lastSyncId, liveStartId);
+        }
+        stopCatchUp();
+        int backfilled = publishEntries(lastSyncId, liveStartId, BACKFILL_ENTRIES_PER_PASS,
+                CloudPublisher.LANE_BACKFILL);
+        mBacklogPending = backfilled >= BACKFILL_ENTRIES_PER_PASS;
+        if (!mBacklogPending) {
+            Log.i(TAG, "Backfill caught up with the live lane" + getThrottlingStatus());
+            DatalogDbHelper.setLastSyncId(this, DatalogDbHelper.getLiveSyncedId(this));
+            DatalogDbHelper.clearLiveRange(this);
+        }
+        return sent + backfilled;
+    }
+
+    /**
+     * Drain part of a large backlog, in catch-up mode.  We stay in catch-up mode, and come
+     * straight back for more, until the backlog is under CATCH_UP_BACKLOG_THRESHOLD.
+     *
+     * @return the number of entries sent
+     */
+    @WorkerThread
+    private int catchUp(long lastSyncId, long liveStartId) throws Exception {
+        if (mCatchUp == null) {
+            Log.i(TAG, "Backlog of " + (liveStartId - lastSyncId) + " entries, " +
+                    "entering catch-up mode");
+            final CloudIotOptions options = applyTuning(readOptions(null));
+            mCatchUp = new CatchUpPipeline(this, mDatabase, mDeviceId,
+                    new PayloadEncoder(options.isCompressionEnabled(),
+                            options.getCompressionLevel()));
+        }
+        mBacklogPending = true;
+        return mCatchUp.drain(lastSyncId, liveStartId,
+                mRateLimiter.getEntriesPerMessage(mEntryBytes,
+                        TuningConfig.getCurrent().getMaxEntriesPerMessage()),
+                CATCH_UP_PASS_MS, mPublisher);
+    }
+
+    /**
+     * Publish per cell statistics for each time bucket which has closed since the last pass.
+     * A bucket is closed once an entry has been logged in a later one.  The records go to the
+     * same table as the entries themselves (see scripts/entries_schema.json).
+     *
+     * @param cellsOnly true if the entries themselves aren't being published.  Their cursor
+     *         then follows this one, so switching back to raw doesn't send the history.
+     * @return the number of records sent
+     */
+    @WorkerThread
+    private int publishAggregates(boolean cellsOnly) throws JSONException {
+        final long lastSyncId = DatalogDbHelper.getLastSyncId(this);
+        long afterId = DatalogDbHelper.getAggregateSyncedId(this);
+        if (afterId < 0) {
+            // Aggregation was just turned on.  Start where the entries left off.
+            afterId = lastSyncId;
+        } else if (cellsOnly) {
+            // Entries already sent some other way (on their own, or exported) aren't sent again
+            afterId = Math.max(afterId, lastSyncId);
+        }
+        final TuningConfig tuning = TuningConfig.getCurrent();
+        if (mAggregator == null || mAggregator.getPrecision() != tuning.getGeohashPrecision()) {
+            mAggregator = new CellAggregator(tuning.getGeohashPrecision());
+        }
+        final long bucketMs = tuning.getAggregationBucketMs();
+        final int bucketSeconds = (int) TimeUnit.MILLISECONDS.toSeconds(bucketMs);
 
+        // ID, time and position, followed by the channels
+        final String[] columns = new String[4 + DatalogDbHelper.CHANNEL_COLUMNS.length];
+        columns[0] = BaseColumns._ID;
+        columns[1] = DatalogDbHelper.DatalogEntry.COLUMN_NAME_TIME;
+        columns[2] = DatalogDbHelper.DatalogEntry.COLUMN_NAME_LATITUDE;
+        columns[3] = DatalogDbHelper.DatalogEntry.COLUMN_NAME_LONGITUDE;
+        System.arraycopy(DatalogDbHelper.CHANNEL_COLUMNS, 0, columns, 4,
+                DatalogDbHelper.CHANNEL_COLUMNS.length);
+        Cursor cursor = mDatabase.query(DatalogDbHelper.TABLE_NAME,
+                columns,
+                BaseColumns._ID + " > " + afterId,
+                null,
+                null,
+                null,
+                BaseColumns._ID + " ASC",
+                Integer.toString(AGGREGATE_ENTRIES_PER_PASS));
+        final int count = cursor.getCount();
+        final double[] values = new double[ChannelRegistry.size()];
+        final JSONArray records = new JSONArray();
+        mAggregator.clear();
+        long bucket = 0;
+        long closedId = afterId;
+        long previousId = afterId;
+        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+            final long rowBucket = (long) Math.floor(cursor.getDouble(1) * 1000 / bucketMs);
+            if (mAggregator.size() > 0 && rowBucket != bucket) {
+                mAggregator.appendTo(records, mDeviceId, bucket * bucketMs / 1000d,
+                        bucketSeconds);
+                mAggregator.clear();
+                closedId = previousId;
+            }
+            bucket = rowBucket;
+            final long channelMask = DatalogDbHelper.readChannels(cursor, values);
+            mAggregator.add(cursor.getDouble(2), cursor.getDouble(3), channelMask, values);
+            previousId = cursor.getLong(0);
+        }
+        cursor.close();
+        if (count >= AGGREGATE_ENTRIES_PER_PASS && closedId == afterId) {
+            // A single bucket filled the whole page.  Don't get stuck on it.
+            mAggregator.appendTo(records, mDeviceId, bucket * bucketMs / 1000d, bucketSeconds);
+            closedId = previousId;
+        }
+        mAggregator.clear();
+
+        final int recordsPerMessage = mRateLimiter.getEntriesPerMessage(mEntryBytes,
+                tuning.getMaxEntriesPerMessage());
+        for (int first = 0; first < records.length(); first += recordsPerMessage) {
+            final JSONArray batch = new JSONArray();
+            for (int i = first; i < Math.min(first + recordsPerMessage, records.length()); i++) {
+                batch.put(records.get(i));
+            }
+            mPublisher.publish(mEncoder.encode(batch.toString()), CloudPublisher.LANE_BACKFILL);
+        }
+        if (records.length() > 0) {
+            Log.i(TAG, "Published " + records.length() + " cell aggregates of " +
+                    (closedId - afterId) + " entries");
+        }
+        DatalogDbHelper.setAggregateSyncedId(this, closedId);
+
+        final boolean morePending = count >= AGGREGATE_ENTRIES_PER_PASS;
+        if (cellsOnly) {
+            stopCatchUp();
+            // Never back, over entries which were already sent
+            DatalogDbHelper.setLastSyncId(this, Math.max(lastSyncId, closedId));
+            DatalogDbHelper.clearLiveRange(this);
+            mBacklogPending = morePending;
+        } else {
+            mBacklogPending |= morePending;
+        }
+        return records.length();
+    }
+
+    /**
+     * Send the next part of the replay in progress, if any.
+     *
+     * @return the number of entries sent
+     */
+    @WorkerThread
+    private int publishReplay() throws JSONException {
+        final long endId = DatalogDbHelper.getReplayEndId(this);
+        if (endId < 0) {
+            return 0;
+        }
+        int sent = publishEntries(DatalogDbHelper.getReplaySyncedId(this), endId + 1,
+                REPLAY_ENTRIES_PER_PASS, CloudPublisher.LANE_REPLAY);
+        if (sent < REPLAY_ENTRIES_PER_PASS) {
+            Log.i(TAG, "Replay finished");
+            DatalogDbHelper.clearReplayRange(this);
+        }
+        return sent;
+    }
+
+    /**
+     * Send a range of entries again, on the replay lane.  A time range takes precedence over an
+     * ID range.  Replaces any replay already in progress.
+     *
+     * @param startId first ID to send, or -1
+     * @param endId last ID to send (inclusive), or -1
+     * @param startTime start of the time range, in UTC seconds since epoch, or -1
+     * @param endTime end of the time range (exclusive), in UTC seconds since epoch, or -1
+     */
+    @AnyThread
+    private void requestReplay(final long startId, final long endId, final long startTime,
+            final long endTime) {
+        mServiceHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                long first = startId;
+                long last = endId;
+                if (startTime >= 0 && endTime >= 0) {
+                    long[] range = DatalogDbHelper.getIdRange(mDatabase, startTime, endTime);
+                    if (range == null) {
+                        Log.w(TAG, "No entries to replay between " + startTime + " and " +
+                                endTime);
+                        return;
+                    }
+                    first = range[0];
+                    last = range[1];
+                }
+                if (first < 0 || last < first) {
+                    Log.w(TAG, "Ignoring replay of invalid range " + first + "-" + last);
+                    return;
+                }
+                Log.i(TAG, "Replaying entries " + first + "-" + last);
+                DatalogDbHelper.setReplayRange(CloudPublisherService.this, first - 1, last);
+                mScheduler.runNow();
+            }
+        });
+    }
+
+    /**
+     * Export every entry that hasn't been sent yet, and mark them as sent.  Runs on the service
+     * thread, so publishing is paused while the export runs.
+     *
+     * @param path directory to export to, or null for the default on external storage.  Paths
+     *        outside of external storage are refused, since any app can send the intent.
+     */
+    @AnyThread
+    private void exportData(@Nullable final String path) {
+        mServiceHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final File directory;
+                if (path != null) {
+                    directory = new File(path);
+                    if (!DatalogExporter.isInside(directory, Arrays.asList(
+                            Environment.getExternalStorageDirectory(), STORAGE_DIRECTORY))) {
+                        Log.e(TAG, "Refusing to export outside of external storage: " + path);
+                        return;
+                    }
+                } else if (Environment.MEDIA_MOUNTED.equals(
+                        Environment.getExternalStorageState())) {
+                    directory = new File(Environment.getExternalStorageDirectory(),
+                            EXPORT_DIRECTORY);
+                } else {
+                    Log.e(TAG, "External storage is not mounted, can't export");
+                    return;
+                }
+                // The catch-up pipeline moves the same cursor
+                stopCatchUp();
+                DatalogExporter exporter = new DatalogExporter(CloudPublisherService.this,
+                        mDatabase, readOptions(null).getDeviceId(), directory);
+                try {
+                    final long liveStartId = DatalogDbHelper.getLiveStartId(
+                            CloudPublisherService.this);
+                    if (liveStartId >= 0) {
+                        // Export the backlog behind the live lane, then merge the lanes, since
+                        // the live lane has already sent everything up to its cursor.
+                        exporter.export(DatalogDbHelper.getLastSyncId(
+                                CloudPublisherService.this), liveStartId);
+                        DatalogDbHelper.setLastSyncId(CloudPublisherService.this,
+                                DatalogDbHelper.getLiveSyncedId(CloudPublisherService.this));
+                        DatalogDbHelper.clearLiveRange(CloudPublisherService.this);
+                    }
+                    exporter.export(DatalogDbHelper.getLastSyncId(CloudPublisherService.this),
+                            Long.MAX_VALUE);
+                } catch (IOException | JSONException e) {
+                    Log.e(TAG, "Export failed", e);
+                }
+            }
+        });
+    }
+
+    private void stopCatchUp() {
+        if (mCatchUp != null) {
+            Log.i(TAG, "Leaving catch-up mode" + getThrottlingStatus());
+            mCatchUp.close();
+            mCatchUp = null;
+        }
+    }
+
+    /**
+     * Returns how much the rate limiter has held publishing back so far, for the status log.
+     */
+    private String getThrottlingStatus() {
+        if (mRateLimiter == null) {
+            return "";
+        }
+        return " (throttled " + mRateLimiter.getThrottledCount() + " messages, for " +
+                mRateLimiter.getThrottledMillis() + " ms in total)";
+    }
+
+    /**
+     * Publish log entries with IDs between afterId and beforeId (exclusive), oldest first.
+     * The cursor for the given lane is advanced after each message.
+     *
+     * @param limit maximum number of entries to send, or 0 for no limit
+     * @return the number of entries sent
+     */
+    @WorkerThread
+    private int publishEntries(long afterId, long beforeId, int limit, int lane)
+            throws JSONException {
         // Query the data we wish to push to the cloud
-        long lastSyndId = DatalogDbHelper.getLastSyncId(this);
         Cursor cursor = mDatabase.query(DatalogDbHelper.TABLE_NAME,
                 null,
-                DatalogDbHelper.DatalogEntry._ID + " > " + lastSyndId,
+                DatalogDbHelper.DatalogEntry._ID + " > " + afterId + " AND " +
+                        DatalogDbHelper.DatalogEntry._ID + " < " + beforeId,
                 null,
                 null,
                 null,
-                BaseColumns._ID + " ASC");
-        Log.i(TAG, "publishing " + cursor.getCount() + " log entries");
+                BaseColumns._ID + " ASC",
+                limit > 0 ? Integer.toString(limit) : null);
+        final int count = cursor.getCount();
+        if (count > 0) {
+            Log.i(TAG, "publishing " + count + " log entries on the " + getLaneName(lane) +
+                    " lane");
+        }
 
-        final int columnCount = cursor.getColumnCount();
+        final int entriesPerMessage = mRateLimiter.getEntriesPerMessage(mEntryBytes,
+                TuningConfig.getCurrent().getMaxEntriesPerMessage());
+        final int idColumn = cursor.getColumnIndexOrThrow(BaseColumns._ID);
+        JSONArray batch = new JSONArray();
+        long firstId = -1;
         for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-            JSONObject entryObject = new JSONObject();
-            // Add the device ID to the JSON record.
-            //
-            // FIXME: There should be a way to get Google Cloud IOT to do this on its
-            // end, so I don't need to trust the IDs.
-            entryObject.put("deviceId", mDeviceId);
-            long id = 0;
-            for (int i = 0; i < columnCount; i++) {
-                String columnName = cursor.getColumnName(i);
-                if (columnName != null) {
-                    // Note the most recent ID we've transmitted, but don't include
-                    // the ID column in the JSON message
-                    if (columnName.equals(BaseColumns._ID)) {
-                        id = cursor.getLong(i);
-                        continue;
-                    }
-                    if (cursor.getType(i) == Cursor.FIELD_TYPE_FLOAT) {
-                        entryObject.put(columnName, cursor.getDouble(i));
-                    } else {
-                        entryObject.put(columnName, cursor.getString(i));
-                    }
+            // Note the most recent ID we've transmitted
+            final long id = cursor.getLong(idColumn);
+            if (batch.length() == 0) {
+                firstId = id;
+            }
+            batch.put(toJson(cursor, mDeviceId));
+
+            // Push a batch of entries to the cloud as a single message, once it is full or
+            // we run out of entries.
+            if (batch.length() >= entriesPerMessage || cursor.isLast()) {
+                final String message = batch.toString();
+                mPublisher.publish(mEncoder.encode(message).withIdRange(firstId, id), lane);
+                mEntryBytes = (mEntryBytes + message.length() / batch.length()) / 2;
+                Log.d(TAG, "Sent entries: " + (cursor.getPosition()+1) + "/" +
+                        cursor.getCount());
+                if (lane == CloudPublisher.LANE_LIVE) {
+                    DatalogDbHelper.setLiveSyncedId(this, id);
+                } else if (lane == CloudPublisher.LANE_REPLAY) {
+                    DatalogDbHelper.setReplaySyncedId(this, id);
+                } else {
+                    DatalogDbHelper.setLastSyncId(this, id);
                 }
+                batch = new JSONArray();
             }
-            // Push message to the cloud
-            mPublisher.publish(entryObject.toString());
-            Log.d(TAG, "Sent entry: " + (cursor.getPosition()+1) + "/" +
-                    cursor.getCount());
-            if (id > lastSyndId)
-                DatalogDbHelper.setLastSyncId(this, id);
         }
         cursor.close();
+        return count;
+    }
+
+    private static String getLaneName(int lane) {
+        switch (lane) {
+            case CloudPublisher.LANE_LIVE:
+                return "live";
+            case CloudPublisher.LANE_REPLAY:
+                return "replay";
+            default:
+                return "backfill";
+        }
+    }
+
+    /**
+     * Convert the log entry at the cursor's current position to JSON.  Sensor values go in a
+     * field per channel, after the other columns, whether the entry has packed data or not.
+     */
+    static JSONObject toJson(Cursor cursor, String deviceId) throws JSONException {
+        JSONObject entryObject = new JSONObject();
+        // Add the device ID to the JSON record.
+        //
+        // FIXME: There should be a way to get Google Cloud IOT to do this on its
+        // end, so I don't need to trust the IDs.
+        entryObject.put("deviceId", deviceId);
+        final int columnCount = cursor.getColumnCount();
+        for (int i = 0; i < columnCount; i++) {
+            String columnName = cursor.getColumnName(i);
+            // Don't include the ID column in the JSON message
+            if (columnName == null || columnName.equals(BaseColumns._ID) ||
+                    isChannelColumn(columnName)) {
+                continue;
+            }
+            if (cursor.getType(i) == Cursor.FIELD_TYPE_FLOAT) {
+                entryObject.put(columnName, cursor.getDouble(i));
+            } else {
+                entryObject.put(columnName, cursor.getString(i));
+            }
+        }
+        final double[] values = new double[ChannelRegistry.size()];
+        final long channelMask = DatalogDbHelper.readChannels(cursor, values);
+        for (int c = 0; c < values.length; c++) {
+            if ((channelMask & (1L << c)) == 0) {
+                continue;
+            }
+            final SensorChannel channel = ChannelRegistry.get(c);
+            if (channel.isInteger()) {
+                // As a string, like the integer columns the entries used to have
+                entryObject.put(channel.getName(), Long.toString(Math.round(values[c])));
+            } else {
+                entryObject.put(channel.getName(), values[c]);
+            }
+        }
+        return entryObject;
+    }
+
+    private static boolean isChannelColumn(String columnName) {
+        for (String column : DatalogDbHelper.CHANNEL_COLUMNS) {
+            if (column.equals(columnName)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private CloudIotOptions readOptions(Intent intent) {
@@ -169,30 +815,110 @@ public class CloudPublisherService extends Service {
     @Override
     public void onCreate() {
         super.onCreate();
-        // Get DB and DB helper
-        mDbHelper = new DatalogDbHelper(this);
-        mDatabase = mDbHelper.getWritableDatabase();
+        StartupTrace.mark("Publisher service created");
+        mTuning = new TuningManager(this);
+        final TuningConfig tuning = mTuning.load();
 
-        initializeIfNeeded();
+        // Opening the database and connecting can take seconds (loading, or even generating,
+        // keys), so do it all on the service thread, rather than holding up the main thread,
+        // which the data logger needs to start sampling.
         HandlerThread thread = new HandlerThread("CloudPublisherService");
         thread.start();
         mServiceLooper = thread.getLooper();
         mServiceHandler = new Handler(mServiceLooper);
-        mServiceHandler.postDelayed(mSensorConsumerRunnable, PUBLISH_INTERVAL_MS);
+        mServiceHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final long start = SystemClock.elapsedRealtime();
+                mDbHelper = new DatalogDbHelper(CloudPublisherService.this);
+                mDatabase = mDbHelper.getWritableDatabase();
+                StartupTrace.mark("Publisher database opened", start);
+                initializeIfNeeded();
+            }
+        });
+        // Anything the scheduler runs is posted after the initialization above
+        mScheduler = new PublishScheduler(this, mServiceHandler, mSensorConsumerRunnable,
+                tuning.getPublishDelayMs(), tuning.getIdlePublishIntervalMs());
+        mScheduler.setNetworkListener(mNetworkListener);
+        mScheduler.start();
+        NewEntryNotifier.setListener(mNewEntryListener);
+    }
+
+    /**
+     * Set the service up without onCreate(), to run on the given handler's thread, and publish
+     * to the given sink instead of Cloud IoT.
+     */
+    @VisibleForTesting
+    void initializeForTesting(SQLiteDatabase database, CloudPublisher primary,
+            CloudIotOptions options, Handler handler) {
+        mTuning = new TuningManager(this);
+        final TuningConfig tuning = mTuning.load();
+        mServiceLooper = handler.getLooper();
+        mServiceHandler = handler;
+        mDatabase = database;
+        mRateLimiter = new RateLimitedPublisher(primary, options);
+        mEncoder = new PayloadEncoder(options.isCompressionEnabled(),
+                options.getCompressionLevel());
+        mPublisher = new CompositePublisher(this, database, mRateLimiter, options,
+                Collections.<String, CloudPublisher>emptyMap());
+        mPublisher.setCommandListener(mCommandListener);
+        mDeviceId = options.getDeviceId();
+        mScheduler = new PublishScheduler(this, handler, mSensorConsumerRunnable,
+                tuning.getPublishDelayMs(), tuning.getIdlePublishIntervalMs());
     }
 
+    @WorkerThread
     private void initializeIfNeeded() {
         if (mPublisher == null) {
+            final long start = SystemClock.elapsedRealtime();
             try {
-                final CloudIotOptions options = readOptions(null);
-                mPublisher = new MQTTPublisher(options);
+                final CloudIotOptions options = applyTuning(readOptions(null));
+                // Keep MQTT's in-flight messages alongside the log database
+                mMqttPublisher = new MQTTPublisher(options,
+                        getDatabasePath(DatalogDbHelper.DATABASE_NAME).getParentFile());
+                mMqttPublisher.setConnectionListener(mConnectionListener);
+                mRateLimiter = new RateLimitedPublisher(mMqttPublisher, options);
+                mEncoder = new PayloadEncoder(options.isCompressionEnabled(),
+                        options.getCompressionLevel());
+                mPublisher = new CompositePublisher(this, mDatabase, mRateLimiter, options);
+                mPublisher.setCommandListener(mCommandListener);
                 mDeviceId = options.getDeviceId();
+                StartupTrace.mark("Publisher created", start);
             } catch (Throwable t) {
                 Log.e(TAG, "Could not create MQTTPublisher. Will try again later", t);
+                // Otherwise every retry would leave another client running, under the same ID
+                closePublisher();
             }
         }
     }
 
+    /**
+     * Closes the publisher chain and the encoder, whichever of them were created, so the next
+     * {@link #initializeIfNeeded()} starts over.
+     */
+    @WorkerThread
+    private void closePublisher() {
+        closeQuietly(mPublisher != null ? mPublisher : mMqttPublisher);
+        if (mEncoder != null) {
+            mEncoder.close();
+        }
+        mPublisher = null;
+        mRateLimiter = null;
+        mMqttPublisher = null;
+        mEncoder = null;
+    }
+
+    private static void closeQuietly(@Nullable AutoCloseable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            Log.w(TAG, "Error closing publisher", e);
+        }
+    }
+
     @Override
     @Nullable
     public IBinder onBind(Intent intent) {
@@ -206,24 +932,68 @@ public class CloudPublisherService extends Service {
         final String action = intent.getAction();
         if (INTENT_CONFIGURE_ACTION.equals(action)) {
             Log.i(TAG, "Configuring publisher with intent.");
-            CloudIotOptions options = readOptions(intent);
-            saveOptions(options);
-            if (mPublisher != null) {
-                mPublisher.reconfigure(options);
+            final CloudIotOptions options;
+            try {
+                options = readOptions(intent);
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "Ignoring invalid configuration", e);
+                return START_STICKY;
             }
+            saveOptions(options);
+            mServiceHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    reconfigurePublisher(applyTuning(options));
+                }
+            });
         } else if (INTENT_CLEAR_DATA_ACTION.equals(action)) {
-            // Clear all log entries from the table
-            DatalogDbHelper.clearEntries(mDatabase);
+            mServiceHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // The pipeline would carry on from its own cursor
+                    stopCatchUp();
+                    // Clear all log entries from the table
+                    DatalogDbHelper.clearEntries(mDatabase);
+                    DatalogDbHelper.resetSyncState(CloudPublisherService.this);
+                }
+            });
         } else if (INTENT_RESEND_DATA_ACTION.equals(action)) {
-            // Reset the lastSyncId to resend all of the data
-            DatalogDbHelper.setLastSyncId(this, -1);
+            mServiceHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    stopCatchUp();
+                    // Reset the lastSyncId to resend all of the data
+                    DatalogDbHelper.resetSyncState(CloudPublisherService.this);
+                    mScheduler.runNow();
+                }
+            });
+        } else if (INTENT_REPLAY_DATA_ACTION.equals(action)) {
+            requestReplay(intent.getLongExtra(EXTRA_START_ID, -1),
+                    intent.getLongExtra(EXTRA_END_ID, -1),
+                    intent.getLongExtra(EXTRA_START_TIME, -1),
+                    intent.getLongExtra(EXTRA_END_TIME, -1));
+        } else if (INTENT_EXPORT_DATA_ACTION.equals(action)) {
+            exportData(intent.getStringExtra(EXTRA_PATH));
+        } else if (INTENT_RAW_CAPTURE_ACTION.equals(action)) {
+            RawCaptureLog.setEnabled(this, intent.getBooleanExtra(EXTRA_ENABLED, true));
         }
         return START_STICKY;
     }
 
     @Override
     public void onDestroy() {
-        mServiceLooper.quit();
+        NewEntryNotifier.setListener(null);
+        mScheduler.stop();
+        // The pipeline and the publisher are only touched from the service thread.  Closing the
+        // publisher disconnects the client, and stops the sinks' threads.
+        mServiceHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                stopCatchUp();
+                closePublisher();
+            }
+        });
+        mServiceLooper.quitSafely();
         mServiceLooper = null;
     }
 }
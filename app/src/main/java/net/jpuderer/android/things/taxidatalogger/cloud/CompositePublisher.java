@@ -0,0 +1,320 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.BaseColumns;
+import android.support.annotation.VisibleForTesting;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import net.jpuderer.android.things.taxidatalogger.DatalogDbHelper;
+import net.jpuderer.android.things.taxidatalogger.cloud.cloudiot.CloudIotOptions;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the log to several {@link CloudPublisher} sinks.
+ * <p>
+ * Everything published through this class goes to the primary sink (Cloud IoT), which is what
+ * the sync cursors in {@link CloudPublisherService} follow.  Every other sink reads the log
+ * entries itself, from the database, on its own thread, from its own cursor (see
+ * {@link DatalogDbHelper#getSinkSyncedId(Context, String)}).  A cursor is only advanced once
+ * the sink has taken the batch, so nothing is lost across restarts, or while a sink is
+ * unreachable, and a slow or broken sink (the primary included) can't hold up the others.
+ * Failed sends are retried, in order, with backoff.  A sink that has never run starts where
+ * the primary is, rather than with the whole log.
+ * <p>
+ * Extra sinks only get the entries themselves, on the backfill lane, and not cell aggregates
+ * or raw captures.  They are chosen with the "extra_sinks" option: "http"
+ * ({@link HttpBulkPublisher}), "file" ({@link FileSinkPublisher}) and "log"
+ * ({@link LogSinkPublisher}).
+ */
+public class CompositePublisher implements CloudPublisher {
+    private static final String TAG = CompositePublisher.class.getSimpleName();
+
+    // Entries per message to an extra sink
+    private static final int SINK_BATCH_ENTRIES = 200;
+
+    // How often an extra sink checks for new entries, when it isn't told about them
+    private static final long SINK_POLL_INTERVAL_MS = TimeUnit.SECONDS.toMillis(30);
+
+    // Retry interval for failed sends to an extra sink.  Doubles after each failure.
+    private static final long MIN_RETRY_DELAY_MS = TimeUnit.SECONDS.toMillis(1);
+    private static final long MAX_RETRY_DELAY_MS = TimeUnit.MINUTES.toMillis(5);
+
+    private final Context mContext;
+    private final SQLiteDatabase mDatabase;
+    private final CloudPublisher mPrimary;
+    private final List<Sink> mSinks = new ArrayList<>();
+    private CloudIotOptions mOptions;
+
+    public CompositePublisher(Context context, SQLiteDatabase database, CloudPublisher primary,
+            CloudIotOptions options) {
+        mContext = context;
+        mDatabase = database;
+        mPrimary = primary;
+        mOptions = options;
+        startSinks(createSinks(options), options);
+    }
+
+    @VisibleForTesting
+    CompositePublisher(Context context, SQLiteDatabase database, CloudPublisher primary,
+            CloudIotOptions options, Map<String, CloudPublisher> sinks) {
+        mContext = context;
+        mDatabase = database;
+        mPrimary = primary;
+        mOptions = options;
+        startSinks(sinks, options);
+    }
+
+    @Override
+    public boolean isReady() {
+        return mPrimary.isReady();
+    }
+
+    @Override
+    public void publish(Payload payload, int lane) {
+        mPrimary.publish(payload, lane);
+    }
+
+    /**
+     * Tell the extra sinks that new entries have been logged, so they don't wait for their
+     * next poll.
+     */
+    public void onNewEntries() {
+        for (Sink sink : mSinks) {
+            sink.wake();
+        }
+    }
+
+    @Override
+    public void reconfigure(CloudIotOptions options) {
+        mPrimary.reconfigure(options);
+        if (!Arrays.equals(options.getExtraSinks(), mOptions.getExtraSinks()) ||
+                options.isCompressionEnabled() != mOptions.isCompressionEnabled() ||
+                options.getCompressionLevel() != mOptions.getCompressionLevel()) {
+            // Each sink encodes on its own thread, so start over with new encoders
+            stopSinks();
+            startSinks(createSinks(options), options);
+        } else {
+            for (Sink sink : mSinks) {
+                sink.mPublisher.reconfigure(options);
+            }
+        }
+        mOptions = options;
+    }
+
+    @Override
+    public void setCommandListener(CommandListener listener) {
+        mPrimary.setCommandListener(listener);
+    }
+
+    @Override
+    public void close() throws Exception {
+        stopSinks();
+        mPrimary.close();
+    }
+
+    private Map<String, CloudPublisher> createSinks(CloudIotOptions options) {
+        final Map<String, CloudPublisher> sinks = new LinkedHashMap<>();
+        for (String name : options.getExtraSinks()) {
+            if ("http".equals(name)) {
+                sinks.put(name, new HttpBulkPublisher(options));
+            } else if ("file".equals(name)) {
+                sinks.put(name,
+                        new FileSinkPublisher(new File(mContext.getFilesDir(), "sink.bin")));
+            } else if ("log".equals(name)) {
+                sinks.put(name, new LogSinkPublisher());
+            } else {
+                Log.w(TAG, "Ignoring unknown sink: " + name);
+            }
+        }
+        return sinks;
+    }
+
+    private void startSinks(Map<String, CloudPublisher> sinks, CloudIotOptions options) {
+        for (Map.Entry<String, CloudPublisher> entry : sinks.entrySet()) {
+            Log.i(TAG, "Starting sink: " + entry.getKey());
+            Sink sink = new Sink(entry.getKey(), entry.getValue(), options);
+            sink.start();
+            mSinks.add(sink);
+        }
+    }
+
+    private void stopSinks() {
+        for (Sink sink : mSinks) {
+            sink.close();
+        }
+        mSinks.clear();
+    }
+
+    /**
+     * An extra sink, with its own thread, encoder and cursor.
+     */
+    private class Sink extends Thread {
+        private final String mName;
+        private final CloudPublisher mPublisher;
+        private final String mDeviceId;
+        private final PayloadEncoder mEncoder;
+        private final Object mLock = new Object();
+        private boolean mWoken;
+        private boolean mClosed;
+
+        Sink(String name, CloudPublisher publisher, CloudIotOptions options) {
+            super(TAG + "-" + name);
+            mName = name;
+            mPublisher = publisher;
+            mDeviceId = options.getDeviceId();
+            mEncoder = new PayloadEncoder(options.isCompressionEnabled(),
+                    options.getCompressionLevel());
+        }
+
+        void wake() {
+            synchronized (mLock) {
+                mWoken = true;
+                mLock.notifyAll();
+            }
+        }
+
+        /**
+         * Wait for the given time, or until closed, or if wakeable, until woken.
+         *
+         * @return false if closed
+         */
+        private boolean await(long millis, boolean wakeable) throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + millis;
+            synchronized (mLock) {
+                long remaining = millis;
+                while (!(wakeable && mWoken) && !mClosed && remaining > 0) {
+                    mLock.wait(remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+                mWoken = false;
+                return !mClosed;
+            }
+        }
+
+        private boolean isClosed() {
+            synchronized (mLock) {
+                return mClosed;
+            }
+        }
+
+        @Override
+        public void run() {
+            long retryDelayMs = MIN_RETRY_DELAY_MS;
+            try {
+                while (!isClosed()) {
+                    final boolean more;
+                    try {
+                        more = sendNextBatch();
+                        retryDelayMs = MIN_RETRY_DELAY_MS;
+                    } catch (RuntimeException | JSONException e) {
+                        Log.w(TAG, "Sink " + mName + " failed, retrying in " +
+                                retryDelayMs + " ms", e);
+                        await(retryDelayMs, false);
+                        retryDelayMs = Math.min(retryDelayMs * 2, MAX_RETRY_DELAY_MS);
+                        continue;
+                    }
+                    if (!more) {
+                        await(SINK_POLL_INTERVAL_MS, true);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Closed
+            } finally {
+                mEncoder.close();
+            }
+        }
+
+        /**
+         * Send the next batch of entries after this sink's cursor, and advance the cursor.
+         *
+         * @return true if there might be more entries to send
+         */
+        @WorkerThread
+        private boolean sendNextBatch() throws JSONException {
+            final long afterId = DatalogDbHelper.getSinkSyncedId(mContext, mName);
+            Cursor cursor = mDatabase.query(DatalogDbHelper.TABLE_NAME,
+                    null,
+                    BaseColumns._ID + " > " + afterId,
+                    null,
+                    null,
+                    null,
+                    BaseColumns._ID + " ASC",
+                    Integer.toString(SINK_BATCH_ENTRIES));
+            final long firstId;
+            final long lastId;
+            final JSONArray batch = new JSONArray();
+            try {
+                if (!cursor.moveToFirst()) {
+                    return false;
+                }
+                final int idColumn = cursor.getColumnIndexOrThrow(BaseColumns._ID);
+                firstId = cursor.getLong(idColumn);
+                long id = firstId;
+                for (; !cursor.isAfterLast(); cursor.moveToNext()) {
+                    id = cursor.getLong(idColumn);
+                    batch.put(CloudPublisherService.toJson(cursor, mDeviceId));
+                }
+                lastId = id;
+            } finally {
+                cursor.close();
+            }
+            if (!mPublisher.isReady()) {
+                throw new IllegalStateException("Sink is not ready");
+            }
+            mPublisher.publish(mEncoder.encode(batch.toString()).withIdRange(firstId, lastId),
+                    CloudPublisher.LANE_BACKFILL);
+            if (!DatalogDbHelper.advanceSinkSyncedId(mContext, mName, afterId, lastId)) {
+                Log.i(TAG, "Sink " + mName + " was reset while sending");
+            }
+            return true;
+        }
+
+        void close() {
+            synchronized (mLock) {
+                mClosed = true;
+                mLock.notifyAll();
+            }
+            try {
+                join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (isAlive()) {
+                Log.w(TAG, "Sink " + mName + " is still sending after close");
+            }
+            try {
+                mPublisher.close();
+            } catch (Exception e) {
+                Log.e(TAG, "Error closing sink " + mName, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.provider.BaseColumns;
+import android.support.annotation.VisibleForTesting;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import net.jpuderer.android.things.taxidatalogger.DatalogDbHelper;
+
+import org.json.JSONException;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports log entries to gzipped, newline delimited JSON files, for carrying a backlog off the
+ * device on removable storage, rather than uploading it.
+ * <p>
+ * Each line is one entry, exactly as it would have been published, so the files can be loaded
+ * straight into BigQuery (see scripts/import_export.py).  Entries are streamed from the database
+ * a page at a time, so memory use doesn't depend on the size of the backlog.  The backlog is
+ * split into chunks of CHUNK_ENTRIES.  Each chunk is written to a temporary file, which is
+ * fsynced and renamed into place, and the directory fsynced, before the sync cursor is moved
+ * past its entries, so an entry is never marked as sent unless it is safely on disk.
+ */
+class DatalogExporter {
+    private static final String TAG = DatalogExporter.class.getSimpleName();
+
+    private static final int PAGE_SIZE = 5000;
+    private static final int CHUNK_ENTRIES = 100000;
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    private final Context mContext;
+    private final SQLiteDatabase mDatabase;
+    private final String mDeviceId;
+    private final File mDirectory;
+    private final int mChunkEntries;
+
+    DatalogExporter(Context context, SQLiteDatabase database, String deviceId, File directory) {
+        this(context, database, deviceId, directory, CHUNK_ENTRIES);
+    }
+
+    @VisibleForTesting
+    DatalogExporter(Context context, SQLiteDatabase database, String deviceId, File directory,
+            int chunkEntries) {
+        mContext = context;
+        mDatabase = database;
+        mDeviceId = deviceId;
+        mDirectory = directory;
+        mChunkEntries = chunkEntries;
+    }
+
+    /**
+     * Returns true if the directory is one of the roots, or inside one, once symbolic links and
+     * ".." are resolved.
+     */
+    static boolean isInside(File directory, List<File> roots) {
+        final String path;
+        try {
+            path = directory.getCanonicalPath();
+        } catch (IOException e) {
+            return false;
+        }
+        for (File root : roots) {
+            final String rootPath;
+            try {
+                rootPath = root.getCanonicalPath();
+            } catch (IOException e) {
+                continue;
+            }
+            if (path.equals(rootPath) || path.startsWith(rootPath + File.separator)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Export entries with IDs between afterId and beforeId (exclusive), and move the backfill
+     * sync cursor past them.
+     *
+     * @return the number of entries exported
+     */
+    @WorkerThread
+    int export(long afterId, long beforeId) throws IOException, JSONException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + mDirectory);
+        }
+        final long start = SystemClock.elapsedRealtime();
+        int exported = 0;
+        int count;
+        while ((count = exportChunk(afterId, beforeId)) > 0) {
+            exported += count;
+            afterId = DatalogDbHelper.getLastSyncId(mContext);
+        }
+        Log.i(TAG, String.format(Locale.US, "Exported %d entries in %d ms",
+                exported, SystemClock.elapsedRealtime() - start));
+        return exported;
+    }
+
+    /**
+     * Export up to a chunk of entries to a new file.
+     *
+     * @return the number of entries exported
+     */
+    private int exportChunk(long afterId, long beforeId) throws IOException, JSONException {
+        final File temp = new File(mDirectory, "export.tmp");
+        long firstId = -1;
+        long lastId = -1;
+        int count = 0;
+        FileOutputStream file = new FileOutputStream(temp);
+        try {
+            GZIPOutputStream gzip = new GZIPOutputStream(file, BUFFER_BYTES);
+            Writer writer = new BufferedWriter(
+                    new OutputStreamWriter(gzip, StandardCharsets.UTF_8), BUFFER_BYTES);
+            while (count < mChunkEntries) {
+                Cursor cursor = mDatabase.query(DatalogDbHelper.TABLE_NAME,
+                        null,
+                        BaseColumns._ID + " > " + (lastId < 0 ? afterId : lastId) + " AND " +
+                                BaseColumns._ID + " < " + beforeId,
+                        null,
+                        null,
+                        null,
+                        BaseColumns._ID + " ASC",
+                        Integer.toString(Math.min(PAGE_SIZE, mChunkEntries - count)));
+                try {
+                    if (cursor.getCount() == 0) {
+                        break;
+                    }
+                    final int idColumn = cursor.getColumnIndexOrThrow(BaseColumns._ID);
+                    for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                        lastId = cursor.getLong(idColumn);
+                        if (firstId < 0) {
+                            firstId = lastId;
+                        }
+                        writer.write(CloudPublisherService.toJson(cursor, mDeviceId).toString());
+                        writer.write('\n');
+                        count++;
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            writer.flush();
+            gzip.finish();
+            file.flush();
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+
+        if (count == 0) {
+            temp.delete();
+            return 0;
+        }
+        final File chunk = new File(mDirectory, String.format(Locale.US,
+                "datalog-%s-%010d-%010d.jsonl.gz", mDeviceId, firstId, lastId));
+        if (!temp.renameTo(chunk)) {
+            throw new IOException("Unable to rename " + temp + " to " + chunk);
+        }
+        // Otherwise the rename itself may not survive a power failure
+        syncDirectory();
+        DatalogDbHelper.setLastSyncId(mContext, lastId);
+        Log.i(TAG, "Exported " + count + " entries to " + chunk + " (" + chunk.length() +
+                " bytes)");
+        return count;
+    }
+
+    private void syncDirectory() throws IOException {
+        try (FileChannel directory = FileChannel.open(mDirectory.toPath(),
+                StandardOpenOption.READ)) {
+            directory.force(true);
+        }
+    }
+}
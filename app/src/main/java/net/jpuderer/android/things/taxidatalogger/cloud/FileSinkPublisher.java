@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud;
+
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import net.jpuderer.android.things.taxidatalogger.cloud.cloudiot.CloudIotOptions;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Appends each encoded batch to a local file, for collecting data off a device by hand, or
+ * comparing against what the other sinks received.
+ * <p>
+ * Each record is: the encoding (modified UTF-8, as written by
+ * {@link DataOutputStream#writeUTF(String)}), the lane (int), the first and last entry IDs
+ * (long), and the length prefixed payload, all big-endian.  Once the file reaches
+ * MAX_FILE_BYTES, it is moved aside to a ".1" file (replacing any previous one), and a new file
+ * is started.
+ */
+public class FileSinkPublisher implements CloudPublisher {
+    private static final String TAG = FileSinkPublisher.class.getSimpleName();
+
+    private static final long MAX_FILE_BYTES = 32 * 1024 * 1024;
+
+    private final File mFile;
+    private final long mMaxFileBytes;
+    private DataOutputStream mOut;
+
+    /**
+     * @param file file to append to
+     */
+    public FileSinkPublisher(File file) {
+        this(file, MAX_FILE_BYTES);
+    }
+
+    @VisibleForTesting
+    FileSinkPublisher(File file, long maxFileBytes) {
+        mFile = file;
+        mMaxFileBytes = maxFileBytes;
+    }
+
+    @Override
+    public boolean isReady() {
+        return true;
+    }
+
+    @Override
+    public void publish(Payload payload, int lane) {
+        try {
+            if (mOut == null) {
+                if (mFile.length() >= mMaxFileBytes) {
+                    rotate();
+                }
+                mOut = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(mFile, true)));
+            }
+            mOut.writeUTF(payload.getEncoding());
+            mOut.writeInt(lane);
+            mOut.writeLong(payload.getFirstId());
+            mOut.writeLong(payload.getLastId());
+            mOut.writeInt(payload.getData().length);
+            mOut.write(payload.getData());
+            mOut.flush();
+            if (mFile.length() >= mMaxFileBytes) {
+                mOut.close();
+                mOut = null;
+            }
+        } catch (IOException e) {
+            closeQuietly();
+            throw new IllegalStateException("Could not write to " + mFile, e);
+        }
+    }
+
+    private void rotate() throws IOException {
+        File old = new File(mFile.getPath() + ".1");
+        if (old.exists() && !old.delete()) {
+            throw new IOException("Unable to delete " + old);
+        }
+        if (!mFile.renameTo(old)) {
+            throw new IOException("Unable to rotate " + mFile);
+        }
+        Log.i(TAG, "Rotated " + mFile);
+    }
+
+    @Override
+    public void reconfigure(CloudIotOptions options) {
+        // Nothing to configure
+    }
+
+    @Override
+    public void setCommandListener(CommandListener listener) {
+        // Files don't talk back
+    }
+
+    private void closeQuietly() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                // empty
+            }
+            mOut = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        closeQuietly();
+    }
+}
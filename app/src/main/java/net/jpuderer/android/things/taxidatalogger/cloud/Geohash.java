@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud;
+
+/**
+ * Geohash cells (see https://en.wikipedia.org/wiki/Geohash), kept as a long of up to 60 bits,
+ * five bits per character, so they can be used as keys without allocating.
+ */
+final class Geohash {
+    static final int MAX_PRECISION = 12;
+
+    private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+
+    private Geohash() {
+    }
+
+    /**
+     * Returns the cell containing a point, at the given precision (in characters).
+     */
+    static long encode(double latitude, double longitude, int precision) {
+        double minLat = -90, maxLat = 90;
+        double minLon = -180, maxLon = 180;
+        long bits = 0;
+        final int bitCount = precision * 5;
+        for (int i = 0; i < bitCount; i++) {
+            bits <<= 1;
+            // Even bits are longitude, odd bits latitude
+            if (i % 2 == 0) {
+                final double mid = (minLon + maxLon) / 2;
+                if (longitude >= mid) {
+                    bits |= 1;
+                    minLon = mid;
+                } else {
+                    maxLon = mid;
+                }
+            } else {
+                final double mid = (minLat + maxLat) / 2;
+                if (latitude >= mid) {
+                    bits |= 1;
+                    minLat = mid;
+                } else {
+                    maxLat = mid;
+                }
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Returns the bounds of a cell, as {minLat, minLon, maxLat, maxLon}.
+     */
+    static double[] decodeBounds(long cell, int precision) {
+        double minLat = -90, maxLat = 90;
+        double minLon = -180, maxLon = 180;
+        final int bitCount = precision * 5;
+        for (int i = 0; i < bitCount; i++) {
+            final boolean set = ((cell >>> (bitCount - 1 - i)) & 1) != 0;
+            if (i % 2 == 0) {
+                final double mid = (minLon + maxLon) / 2;
+                if (set) {
+                    minLon = mid;
+                } else {
+                    maxLon = mid;
+                }
+            } else {
+                final double mid = (minLat + maxLat) / 2;
+                if (set) {
+                    minLat = mid;
+                } else {
+                    maxLat = mid;
+                }
+            }
+        }
+        return new double[] { minLat, minLon, maxLat, maxLon };
+    }
+
+    static String toString(long cell, int precision) {
+        final char[] chars = new char[precision];
+        for (int i = precision - 1; i >= 0; i--) {
+            chars[i] = BASE32[(int) (cell & 0x1f)];
+            cell >>>= 5;
+        }
+        return new String(chars);
+    }
+}
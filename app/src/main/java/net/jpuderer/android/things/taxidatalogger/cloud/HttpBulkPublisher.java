@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import net.jpuderer.android.things.taxidatalogger.cloud.cloudiot.CloudIotOptions;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends each encoded batch to an HTTP endpoint, as the body of a POST request.
+ * <p>
+ * The body is exactly what would be published over MQTT.  Its encoding (see {@link Payload}) is
+ * given in the X-Payload-Encoding header, rather than Content-Encoding, since the preset
+ * dictionary encodings aren't something a standard HTTP server knows how to undo.
+ */
+public class HttpBulkPublisher implements CloudPublisher {
+    private static final String TAG = HttpBulkPublisher.class.getSimpleName();
+
+    private static final int CONNECT_TIMEOUT_MS = (int) TimeUnit.SECONDS.toMillis(15);
+    private static final int READ_TIMEOUT_MS = (int) TimeUnit.SECONDS.toMillis(30);
+
+    private volatile String mUrl;
+    private volatile String mDeviceId;
+
+    public HttpBulkPublisher(CloudIotOptions options) {
+        reconfigure(options);
+    }
+
+    @Override
+    public boolean isReady() {
+        return !TextUtils.isEmpty(mUrl);
+    }
+
+    @Override
+    public void publish(Payload payload, int lane) {
+        if (!isReady()) {
+            throw new IllegalStateException("No HTTP sink URL configured");
+        }
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(mUrl).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setFixedLengthStreamingMode(payload.getData().length);
+            connection.setRequestProperty("Content-Type", payload.isCompressed() ?
+                    "application/octet-stream" : "application/json");
+            connection.setRequestProperty("X-Payload-Encoding", payload.getEncoding());
+            connection.setRequestProperty("X-Device-Id", mDeviceId);
+            connection.setRequestProperty("X-Lane", Integer.toString(lane));
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(payload.getData());
+            }
+            final int status = connection.getResponseCode();
+            // Read (and discard) the response, so the connection can be reused
+            try (InputStream in = status < 400 ?
+                    connection.getInputStream() : connection.getErrorStream()) {
+                if (in != null) {
+                    byte[] buffer = new byte[1024];
+                    StringBuilder body = new StringBuilder();
+                    int count;
+                    while ((count = in.read(buffer)) > 0 && body.length() < 1024) {
+                        body.append(new String(buffer, 0, count, StandardCharsets.UTF_8));
+                    }
+                    if (status / 100 != 2) {
+                        Log.w(TAG, "HTTP " + status + ": " + body);
+                    }
+                }
+            }
+            if (status / 100 != 2) {
+                throw new IllegalStateException("HTTP sink returned " + status);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not send to HTTP sink", e);
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    @Override
+    public void reconfigure(CloudIotOptions options) {
+        mUrl = options.getHttpSinkUrl();
+        mDeviceId = options.getDeviceId();
+    }
+
+    @Override
+    public void setCommandListener(CommandListener listener) {
+        // HTTP is send only
+    }
+
+    @Override
+    public void close() {
+        // Nothing to close
+    }
+}
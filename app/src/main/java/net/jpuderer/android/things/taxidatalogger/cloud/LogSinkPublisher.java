@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud;
+
+import android.util.Log;
+
+import net.jpuderer.android.things.taxidatalogger.cloud.cloudiot.CloudIotOptions;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A sink that only logs what it is sent, and keeps the last few payloads in memory.  Useful for
+ * checking what the other sinks should have received, and as a stand-in for a real sink while
+ * testing.
+ */
+public class LogSinkPublisher implements CloudPublisher {
+    private static final String TAG = LogSinkPublisher.class.getSimpleName();
+
+    private static final int RECENT_PAYLOADS = 16;
+
+    private final ArrayDeque<Payload> mRecent = new ArrayDeque<>(RECENT_PAYLOADS);
+    private long mMessageCount;
+    private long mByteCount;
+
+    @Override
+    public boolean isReady() {
+        return true;
+    }
+
+    @Override
+    public synchronized void publish(Payload payload, int lane) {
+        mMessageCount++;
+        mByteCount += payload.getData().length;
+        if (mRecent.size() == RECENT_PAYLOADS) {
+            mRecent.removeFirst();
+        }
+        mRecent.addLast(payload);
+        Log.d(TAG, String.format(Locale.US,
+                "Lane %d: entries %d-%d, %d bytes (%s), %d messages and %d bytes in total",
+                lane, payload.getFirstId(), payload.getLastId(), payload.getData().length,
+                payload.getEncoding(), mMessageCount, mByteCount));
+    }
+
+    /**
+     * Returns the most recent payloads, oldest first.
+     */
+    public synchronized List<Payload> getRecentPayloads() {
+        return new ArrayList<>(mRecent);
+    }
+
+    @Override
+    public void reconfigure(CloudIotOptions options) {
+        // Nothing to configure
+    }
+
+    @Override
+    public void setCommandListener(CommandListener listener) {
+        // Nothing to receive
+    }
+
+    @Override
+    public void close() {
+        // Nothing to close
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud;
+
+/**
+ * An encoded message, ready to be handed to a transport.  The content encoding tells the
+ * ingest side how to turn the bytes back into JSON.
+ */
+public class Payload {
+    // Plain UTF-8 JSON
+    public static final String ENCODING_IDENTITY = "identity";
+    // zlib wrapped DEFLATE stream
+    public static final String ENCODING_DEFLATE = "deflate";
+    // zlib wrapped DEFLATE stream, using version 1 of the preset dictionary in PayloadEncoder
+    public static final String ENCODING_DEFLATE_DICT = "deflate-d1";
+    // Gzipped raw capture file, in version 1 of the RawCaptureLog format, rather than JSON
+    public static final String ENCODING_RAW_CAPTURE = "raw-v1";
+
+    private final byte[] mData;
+    private final String mEncoding;
+    private final int mDecodedLength;
+
+    // IDs of the first and last log entries in the payload, or -1 if unknown
+    private final long mFirstId;
+    private final long mLastId;
+
+    public Payload(byte[] data, String encoding, int decodedLength) {
+        this(data, encoding, decodedLength, -1, -1);
+    }
+
+    private Payload(byte[] data, String encoding, int decodedLength, long firstId,
+            long lastId) {
+        mData = data;
+        mEncoding = encoding;
+        mDecodedLength = decodedLength;
+        mFirstId = firstId;
+        mLastId = lastId;
+    }
+
+    /**
+     * Returns a copy of this payload, marked with the IDs of the log entries it holds.
+     */
+    public Payload withIdRange(long firstId, long lastId) {
+        return new Payload(mData, mEncoding, mDecodedLength, firstId, lastId);
+    }
+
+    public byte[] getData() {
+        return mData;
+    }
+
+    public String getEncoding() {
+        return mEncoding;
+    }
+
+    public boolean isCompressed() {
+        return !ENCODING_IDENTITY.equals(mEncoding);
+    }
+
+    /**
+     * Length of the message before encoding, or -1 if unknown.
+     */
+    public int getDecodedLength() {
+        return mDecodedLength;
+    }
+
+    public long getFirstId() {
+        return mFirstId;
+    }
+
+    public long getLastId() {
+        return mLastId;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud;
+
+import android.os.Debug;
+import android.util.Log;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes JSON messages into {@link Payload}s, optionally compressing them with DEFLATE (zlib
+ * format).
+ * <p>
+ * A single {@link Deflater} is reused for every message, so we don't pay for a native zlib
+ * allocation on each publish.  As a consequence, an encoder must only be used from one thread
+ * at a time, and must be {@link #close() closed} to release the native memory.
+ */
+public class PayloadEncoder implements AutoCloseable {
+    private static final String TAG = PayloadEncoder.class.getSimpleName();
+
+    // Small batches don't contain enough repetition of their own for DEFLATE to find the
+    // repeated keys, so we prime the compressor with a preset dictionary.  Bigger batches
+    // quickly build their own history, and don't need it.  Measured at the default level, on
+    // batches like those CloudPublisherService sends (see PayloadEncoderTest):
+    //
+    //   entries  JSON bytes  ratio without / with dictionary
+    //         1         256    1.33 / 2.49
+    //         5        1277    3.01 / 4.09
+    //        20        5108    4.23 / 4.75
+    //        50       12768    4.69 / 4.95
+    //
+    // Encoding took 9 us for one entry and 225 us for 50 on a desktop JVM; the board is slower,
+    // and its figures are in the statistics logged below.
+    private static final int DICTIONARY_THRESHOLD_BYTES = 8 * 1024;
+
+    // A typical batch, as produced by CloudPublisherService.  DEFLATE prefers the most common
+    // strings to be at the end of the dictionary.
+    //
+    // NOTE: The ingest side needs exactly the same bytes to inflate the payload.  Keep in sync
+    // with PRESET_DICTIONARY_D1 in scripts/pull_taxi_pubsub.py, and introduce a new encoding
+    // name (see Payload.ENCODING_DEFLATE_DICT) rather than changing it.
+    static final byte[] PRESET_DICTIONARY = ("\"pm25\":null,\"pm10\":null}," +
+            "{\"deviceId\":\"taxi\",\"time\":1.5E9,\"latitude\":-12.1,\"longitude\":-77.0," +
+            "\"accuracy\":3.0,\"altitude\":100.0,\"verticalAccuracy\":4.0," +
+            "\"temperature\":20.0,\"humidity\":50.0,\"pressure\":1000.0," +
+            "\"pm25\":\"10\",\"pm10\":\"20\"},{\"deviceId\":\"")
+            .getBytes(StandardCharsets.UTF_8);
+
+    // Log compression statistics after this many compressed payloads
+    private static final int STATS_LOG_INTERVAL = 100;
+
+    private final boolean mCompress;
+    private final Deflater mDeflater;
+    private byte[] mBuffer = new byte[4096];
+
+    // Running totals, used to measure the compression ratio versus CPU time trade-off
+    private long mCompressedCount;
+    private long mBytesIn;
+    private long mBytesOut;
+    private long mCpuTimeNanos;
+
+    /**
+     * @param compress true to DEFLATE payloads, false to send plain JSON
+     * @param level the zlib compression level (0-9), or {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    public PayloadEncoder(boolean compress, int level) {
+        mCompress = compress;
+        mDeflater = compress ? new Deflater(level) : null;
+    }
+
+    public Payload encode(String message) {
+        final byte[] input = message.getBytes(StandardCharsets.UTF_8);
+        if (!mCompress) {
+            return new Payload(input, Payload.ENCODING_IDENTITY, input.length);
+        }
+
+        final long startCpuTime = Debug.threadCpuTimeNanos();
+        final boolean useDictionary = input.length < DICTIONARY_THRESHOLD_BYTES;
+        mDeflater.reset();
+        if (useDictionary) {
+            mDeflater.setDictionary(PRESET_DICTIONARY);
+        }
+        mDeflater.setInput(input);
+        mDeflater.finish();
+        int length = 0;
+        while (!mDeflater.finished()) {
+            if (length == mBuffer.length) {
+                mBuffer = Arrays.copyOf(mBuffer, mBuffer.length * 2);
+            }
+            length += mDeflater.deflate(mBuffer, length, mBuffer.length - length);
+        }
+        recordStats(input.length, length, Debug.threadCpuTimeNanos() - startCpuTime);
+
+        // Tiny messages can grow when compressed.  Don't bother in that case.
+        if (length >= input.length) {
+            return new Payload(input, Payload.ENCODING_IDENTITY, input.length);
+        }
+        return new Payload(Arrays.copyOf(mBuffer, length),
+                useDictionary ? Payload.ENCODING_DEFLATE_DICT : Payload.ENCODING_DEFLATE,
+                input.length);
+    }
+
+    private void recordStats(int bytesIn, int bytesOut, long cpuTimeNanos) {
+        mCompressedCount++;
+        mBytesIn += bytesIn;
+        mBytesOut += bytesOut;
+        // threadCpuTimeNanos() returns -1 where per-thread CPU time isn't supported
+        if (cpuTimeNanos > 0) {
+            mCpuTimeNanos += cpuTimeNanos;
+        }
+        if (mCompressedCount % STATS_LOG_INTERVAL == 0) {
+            Log.i(TAG, String.format(Locale.US,
+                    "Compressed %d payloads: %d -> %d bytes (ratio %.2f), %.1f us CPU per KiB",
+                    mCompressedCount, mBytesIn, mBytesOut, (double) mBytesIn / mBytesOut,
+                    mCpuTimeNanos / 1000d / (mBytesIn / 1024d)));
+        }
+    }
+
+    @Override
+    public void close() {
+        if (mDeflater != null) {
+            mDeflater.end();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the publish task runs next.
+ * <p>
+ * While there is no network, the task isn't run at all.  As soon as the default network comes
+ * back, it runs right away.  Failures back off exponentially, and every delay is jittered, so a
+ * fleet of devices coming back online at once doesn't hammer the bridge in lock-step.
+ * <p>
+ * The same goes for the connection the task needs: once {@link #onConnected()} reports that it
+ * is back, the task runs right away, without waiting out the backoff.
+ * <p>
+ * Otherwise, the task runs when there is new data, shortly after {@link #onNewData()} is called,
+ * so that entries logged close together are sent together.  When there is no new data, it only
+ * runs every idle interval, as a safety net.
+ * <p>
+ * All methods must be called on the thread of the {@link Handler} given to the constructor.
+ */
+class PublishScheduler {
+    private static final String TAG = PublishScheduler.class.getSimpleName();
+
+    // Backoff after the first failure.  Doubles with each consecutive failure, up to the max.
+    private static final long MIN_BACKOFF_MS = TimeUnit.SECONDS.toMillis(5);
+    private static final long MAX_BACKOFF_MS = TimeUnit.MINUTES.toMillis(10);
+
+    // Spread regular intervals by up to this fraction in either direction
+    private static final double INTERVAL_JITTER = 0.1;
+
+    /**
+     * Told when the default network becomes available, before the task is run.
+     */
+    interface NetworkListener {
+        void onNetworkAvailable();
+    }
+
+    private final ConnectivityManager mConnectivityManager;
+    private final Handler mHandler;
+    private final Runnable mTask;
+    private final Random mRandom = new Random();
+
+    private long mPublishDelay;
+    private long mIdleInterval;
+
+    // SystemClock.uptimeMillis() at which the task is next due to run
+    private long mNextRunTime;
+
+    private int mFailures;
+    private boolean mNetworkAvailable;
+    private NetworkListener mNetworkListener;
+
+    private final ConnectivityManager.NetworkCallback mNetworkCallback =
+            new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onAvailable(Network network) {
+            if (!mNetworkAvailable) {
+                Log.i(TAG, "Network available, publishing now");
+                mNetworkAvailable = true;
+                mFailures = 0;
+                if (mNetworkListener != null) {
+                    mNetworkListener.onNetworkAvailable();
+                }
+                runNow();
+            }
+        }
+
+        @Override
+        public void onLost(Network network) {
+            Log.i(TAG, "Network lost, pausing until it returns");
+            mNetworkAvailable = false;
+            mHandler.removeCallbacks(mTask);
+        }
+    };
+
+    /**
+     * @param publishDelay delay between new data being reported and the task running
+     * @param idleInterval delay between runs, when no new data is reported
+     */
+    PublishScheduler(Context context, Handler handler, Runnable task, long publishDelay,
+            long idleInterval) {
+        mConnectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        mHandler = handler;
+        mTask = task;
+        mPublishDelay = publishDelay;
+        mIdleInterval = idleInterval;
+    }
+
+    /**
+     * Start listening for network changes.  The task runs as soon as a network is available.
+     */
+    void start() {
+        mConnectivityManager.registerDefaultNetworkCallback(mNetworkCallback, mHandler);
+    }
+
+    void stop() {
+        mConnectivityManager.unregisterNetworkCallback(mNetworkCallback);
+        mHandler.removeCallbacks(mTask);
+    }
+
+    void setNetworkListener(NetworkListener listener) {
+        mNetworkListener = listener;
+    }
+
+    void setIntervals(long publishDelay, long idleInterval) {
+        mPublishDelay = publishDelay;
+        mIdleInterval = idleInterval;
+    }
+
+    /**
+     * Run the task as soon as possible, if there is a network.
+     */
+    void runNow() {
+        schedule(0);
+    }
+
+    /**
+     * Report that the connection the task publishes over has been (re-)established.  Any
+     * backoff was waiting for this, so the task runs right away.
+     */
+    void onConnected() {
+        mFailures = 0;
+        runNow();
+    }
+
+    /**
+     * Report that there is new data to send.  The task runs within the publish delay, unless
+     * it is backing off after a failure.
+     */
+    void onNewData() {
+        runWithin(mPublishDelay);
+    }
+
+    /**
+     * Make sure the task runs within {@code delay} ms, unless it is backing off after a failure.
+     * Never pushes back a run that is already due sooner.
+     */
+    void runWithin(long delay) {
+        if (mFailures > 0) {
+            // Whatever is pending will be picked up once the backoff is over
+            return;
+        }
+        final long now = SystemClock.uptimeMillis();
+        if (mNextRunTime >= now && mNextRunTime <= now + delay) {
+            return;
+        }
+        schedule(delay);
+    }
+
+    /**
+     * Report that the task ran successfully.
+     *
+     * @param morePending true if the task left work for its next run
+     * @return the delay until the task runs again
+     */
+    long onSuccess(boolean morePending) {
+        mFailures = 0;
+        long delay = morePending ? 0 : jitter(mIdleInterval, INTERVAL_JITTER);
+        schedule(delay);
+        return delay;
+    }
+
+    /**
+     * Report that the task failed.
+     *
+     * @return the delay until the task runs again
+     */
+    long onFailure() {
+        mFailures++;
+        long backoff = Math.min(MAX_BACKOFF_MS, MIN_BACKOFF_MS << Math.min(mFailures - 1, 16));
+        // Wait at least half the backoff, and a random amount of the other half
+        long delay = backoff / 2 + (long) (mRandom.nextDouble() * backoff / 2);
+        schedule(delay);
+        return delay;
+    }
+
+    boolean isNetworkAvailable() {
+        return mNetworkAvailable;
+    }
+
+    int getFailureCount() {
+        return mFailures;
+    }
+
+    private long jitter(long interval, double fraction) {
+        return (long) (interval * (1 + fraction * (2 * mRandom.nextDouble() - 1)));
+    }
+
+    private void schedule(long delay) {
+        mHandler.removeCallbacks(mTask);
+        if (!mNetworkAvailable) {
+            // onAvailable() will run the task again
+            mNextRunTime = Long.MAX_VALUE;
+            return;
+        }
+        mNextRunTime = SystemClock.uptimeMillis() + delay;
+        mHandler.postDelayed(mTask, delay);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import net.jpuderer.android.things.taxidatalogger.cloud.cloudiot.CloudIotOptions;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link CloudPublisher} that holds another publisher to a message rate and a byte rate.
+ * <p>
+ * Cloud IoT throttles the telemetry each device may send, and disconnects devices that go over
+ * their quota.  Rather than finding that out the hard way while draining a backlog, we block in
+ * {@link #publish(Payload, int)} until the message fits within both rates.
+ */
+public class RateLimitedPublisher implements CloudPublisher {
+    private static final String TAG = RateLimitedPublisher.class.getSimpleName();
+
+    // Log throttling statistics after this many throttled messages
+    private static final int STATS_LOG_INTERVAL = 100;
+
+    private final CloudPublisher mDelegate;
+    private final TokenBucket mMessageBucket;
+    private final TokenBucket mByteBucket;
+
+    // Throttling statistics
+    private long mMessageCount;
+    private long mThrottledCount;
+    private long mThrottledNanos;
+
+    public RateLimitedPublisher(CloudPublisher delegate, CloudIotOptions options) {
+        mDelegate = delegate;
+        // Allow bursts of up to one second's worth of traffic
+        mMessageBucket = new TokenBucket(options.getRateLimitMessages(),
+                Math.max(1, options.getRateLimitMessages()));
+        mByteBucket = new TokenBucket(options.getRateLimitBytes(), options.getRateLimitBytes());
+    }
+
+    @Override
+    public boolean isReady() {
+        return mDelegate.isReady();
+    }
+
+    @Override
+    public void publish(Payload payload, int lane) {
+        throttle(payload.getData().length);
+        mDelegate.publish(payload, lane);
+    }
+
+    /**
+     * Block until a message of the given size fits within both rates.
+     */
+    private void throttle(int bytes) {
+        final long waitNanos = Math.max(mMessageBucket.take(1), mByteBucket.take(bytes));
+        mMessageCount++;
+        if (waitNanos > 0) {
+            mThrottledCount++;
+            mThrottledNanos += waitNanos;
+            if (mThrottledCount % STATS_LOG_INTERVAL == 1) {
+                logStats();
+            }
+            SystemClock.sleep(TimeUnit.NANOSECONDS.toMillis(waitNanos));
+        }
+    }
+
+    /**
+     * Returns the number of entries to put in each message, so that each message uses the byte
+     * allowance that comes with a single message token.  Below this, we'd hit the message rate
+     * before the byte rate.
+     *
+     * @param entryBytes average size of an encoded entry
+     * @param maxEntries upper limit on the batch size
+     */
+    public int getEntriesPerMessage(int entryBytes, int maxEntries) {
+        double bytesPerMessage = mByteBucket.getRate() / mMessageBucket.getRate();
+        int entries = (int) Math.ceil(bytesPerMessage / Math.max(1, entryBytes));
+        return Math.max(1, Math.min(maxEntries, entries));
+    }
+
+    public long getThrottledCount() {
+        return mThrottledCount;
+    }
+
+    public long getThrottledMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mThrottledNanos);
+    }
+
+    private void logStats() {
+        Log.i(TAG, String.format(Locale.US,
+                "Throttled %d of %d messages, for %d ms in total (limits: %.1f msg/s, %.0f B/s)",
+                mThrottledCount, mMessageCount, getThrottledMillis(),
+                mMessageBucket.getRate(), mByteBucket.getRate()));
+    }
+
+    @Override
+    public void reconfigure(CloudIotOptions options) {
+        mMessageBucket.setRate(options.getRateLimitMessages(),
+                Math.max(1, options.getRateLimitMessages()));
+        mByteBucket.setRate(options.getRateLimitBytes(), options.getRateLimitBytes());
+        mDelegate.reconfigure(options);
+    }
+
+    @Override
+    public void setCommandListener(CommandListener listener) {
+        mDelegate.setCommandListener(listener);
+    }
+
+    @Override
+    public void close() throws Exception {
+        mDelegate.close();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket, refilled continuously at a fixed rate, up to a fixed capacity.
+ * <p>
+ * Taking more tokens than are available puts the bucket into debt, and tells the caller how
+ * long to wait before going ahead.  This lets a single request be bigger than the capacity,
+ * while still holding the long term average at exactly the configured rate.
+ */
+class TokenBucket {
+    private double mRate;
+    private double mCapacity;
+    private double mTokens;
+    private long mLastRefill;
+
+    /**
+     * @param rate tokens added per second
+     * @param capacity maximum number of tokens the bucket can hold (the burst size)
+     */
+    TokenBucket(double rate, double capacity) {
+        setRate(rate, capacity);
+        mTokens = capacity;
+        mLastRefill = SystemClock.elapsedRealtimeNanos();
+    }
+
+    synchronized void setRate(double rate, double capacity) {
+        if (rate <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("Rate and capacity must be positive");
+        }
+        mRate = rate;
+        mCapacity = capacity;
+        mTokens = Math.min(mTokens, capacity);
+    }
+
+    synchronized double getRate() {
+        return mRate;
+    }
+
+    /**
+     * Take tokens from the bucket.
+     *
+     * @return how long to wait, in nanoseconds, before the tokens are actually available
+     */
+    synchronized long take(double tokens) {
+        final long now = SystemClock.elapsedRealtimeNanos();
+        mTokens = Math.min(mCapacity,
+                mTokens + (now - mLastRefill) * mRate / TimeUnit.SECONDS.toNanos(1));
+        mLastRefill = now;
+        mTokens -= tokens;
+        if (mTokens >= 0) {
+            return 0;
+        }
+        return (long) (-mTokens / mRate * TimeUnit.SECONDS.toNanos(1));
+    }
+}
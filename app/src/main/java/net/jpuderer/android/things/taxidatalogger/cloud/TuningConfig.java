@@ -0,0 +1,381 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud;
+
+import android.os.Bundle;
+import android.support.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runtime tuning parameters, which can be changed for the whole fleet through the Cloud IoT
+ * device configuration, without shipping a new APK.  A tuning document looks like:
+ * <pre>
+ * {
+ *   "version": 3,
+ *   "sampleIntervalMs": 2000,
+ *   "maxSampleIntervalMs": 60000,
+ *   "sampleDistanceM": 50,
+ *   "simplifyToleranceM": 10,
+ *   "simplifyMaxWindowMs": 10000,
+ *   "gpsFixRateHz": 1,
+ *   "deadbands": {"temperature": 0.2, "humidity": 1, "pressure": 0.2, "pm25": 2, "pm10": 2},
+ *   "outlierThreshold": 3,
+ *   "aggregation": "raw",
+ *   "aggregationBucketMs": 300000,
+ *   "geohashPrecision": 7,
+ *   "publishDelayMs": 500,
+ *   "idlePublishIntervalMs": 900000,
+ *   "maxEntriesPerMessage": 200,
+ *   "compression": true,
+ *   "compressionLevel": 6,
+ *   "rateLimitMessages": 10,
+ *   "rateLimitBytes": 65536
+ * }
+ * </pre>
+ * Only "version" is required.  Missing intervals and batch sizes take their default values.
+ * Missing compression and rate limit settings leave the values configured on the device (see
+ * {@link net.jpuderer.android.things.taxidatalogger.cloud.cloudiot.CloudIotOptions}) alone.
+ * <p>
+ * The tuning in effect is held process-wide, so the activity and the service see the same
+ * values.  See {@link TuningManager} for how documents are applied and rolled back.
+ */
+public class TuningConfig {
+    // Rows are logged every sampleDistanceM metres travelled, but no more often than every
+    // sampleIntervalMs, and no less often than every maxSampleIntervalMs.
+    static final long DEFAULT_SAMPLE_INTERVAL_MS = TimeUnit.SECONDS.toMillis(2);
+    static final long DEFAULT_MAX_SAMPLE_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+    static final double DEFAULT_SAMPLE_DISTANCE_M = 50;
+    // Samples which can be interpolated from the ones around them, within this distance, are
+    // dropped before they are logged (see TrajectorySimplifier).  Zero logs every sample, which
+    // is useful for debugging.  A sample may be held back for up to simplifyMaxWindowMs, and
+    // only reaches the live lane after that, so this is kept to a few seconds.
+    static final double DEFAULT_SIMPLIFY_TOLERANCE_M = 10;
+    static final long DEFAULT_SIMPLIFY_MAX_WINDOW_MS = TimeUnit.SECONDS.toMillis(10);
+    // Fixes per second asked of the GPS.  Rows are placed between fixes (see FixHistory), so
+    // more fixes mostly help at high speed, or with a short sampleIntervalMs.  A GPS on a 9600
+    // baud UART can only keep up with about 4 Hz, so higher rates are capped to what the link
+    // carries (see NmeaGps.getMaxFixRateHz()).
+    static final int DEFAULT_GPS_FIX_RATE_HZ = 1;
+    // Sensor readings this many deviations from the median of recent readings are rejected as
+    // outliers (see ChannelFilter).  Each channel's default deadband is set by the channel.
+    static final double DEFAULT_OUTLIER_THRESHOLD = 3;
+    // What to publish: every logged entry ("raw"), per cell statistics ("cells", see
+    // CellAggregator), or both.  Cells are geohashes of geohashPrecision characters, and
+    // statistics are collected over buckets of aggregationBucketMs.
+    static final String AGGREGATION_RAW = "raw";
+    static final String AGGREGATION_CELLS = "cells";
+    static final String AGGREGATION_BOTH = "both";
+    static final long DEFAULT_AGGREGATION_BUCKET_MS = TimeUnit.MINUTES.toMillis(5);
+    static final int DEFAULT_GEOHASH_PRECISION = 7;
+    // New entries are published this long after they are logged, so entries logged close
+    // together go out in the same message.
+    static final long DEFAULT_PUBLISH_DELAY_MS = 500;
+    // Publishing is driven by new entries being logged.  This is just a safety net, in case
+    // an entry was somehow logged without a notification.
+    static final long DEFAULT_IDLE_PUBLISH_INTERVAL_MS = TimeUnit.MINUTES.toMillis(15);
+    // Log entries are sent as a JSON array of up to this many entries per message.  Batching
+    // cuts down on per-message overhead, and makes the payload compress much better, since
+    // every entry has the same keys.  Keep well below the 256KB Cloud IoT message limit.
+    // Within this limit, batches are sized to match the publisher's rate limits.
+    static final int DEFAULT_MAX_ENTRIES_PER_MESSAGE = 200;
+
+    // Limits on what a tuning document may ask for
+    private static final long MIN_SAMPLE_INTERVAL_MS = TimeUnit.SECONDS.toMillis(1);
+    private static final long MAX_SAMPLE_INTERVAL_MS = TimeUnit.MINUTES.toMillis(10);
+    private static final double MIN_SAMPLE_DISTANCE_M = 1;
+    private static final double MAX_SAMPLE_DISTANCE_M = 10000;
+    private static final double MAX_SIMPLIFY_TOLERANCE_M = 1000;
+    private static final long MAX_SIMPLIFY_WINDOW_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final int MAX_GPS_FIX_RATE_HZ = 10;
+    private static final double MAX_DEADBAND = 1000;
+    private static final double MIN_OUTLIER_THRESHOLD = 1;
+    private static final double MAX_OUTLIER_THRESHOLD = 100;
+    private static final long MIN_AGGREGATION_BUCKET_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final long MAX_AGGREGATION_BUCKET_MS = TimeUnit.DAYS.toMillis(1);
+    private static final int MIN_GEOHASH_PRECISION = 4;
+    private static final int MAX_GEOHASH_PRECISION = 9;
+    private static final long MAX_PUBLISH_DELAY_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final long MIN_IDLE_PUBLISH_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final long MAX_IDLE_PUBLISH_INTERVAL_MS = TimeUnit.HOURS.toMillis(1);
+    private static final int MAX_ENTRIES_PER_MESSAGE = 500;
+    private static final double MAX_RATE_LIMIT_MESSAGES = 100;
+    private static final int MIN_RATE_LIMIT_BYTES = 1024;
+    private static final int MAX_RATE_LIMIT_BYTES = 1024 * 1024;
+
+    // Fields which must be numbers, if present.  JSONObject's getters would otherwise quietly
+    // coerce strings, or fall back to the default for anything they can't coerce.
+    private static final String[] NUMERIC_FIELDS = {
+            "version", "sampleIntervalMs", "maxSampleIntervalMs", "sampleDistanceM",
+            "simplifyToleranceM", "simplifyMaxWindowMs", "gpsFixRateHz", "outlierThreshold",
+            "aggregationBucketMs", "geohashPrecision", "publishDelayMs", "idlePublishIntervalMs",
+            "maxEntriesPerMessage", "compressionLevel", "rateLimitMessages", "rateLimitBytes"
+    };
+
+    // Tuning used until a document has been applied
+    static final TuningConfig DEFAULT = new TuningConfig(0, new JSONObject());
+
+    private static volatile TuningConfig sCurrent = DEFAULT;
+    private static volatile Listener sListener;
+
+    /**
+     * Told when the tuning in effect changes.
+     */
+    public interface Listener {
+        /**
+         * Called on the thread that changed the tuning.  Must not block.
+         */
+        void onTuningChanged();
+    }
+
+    private final int mVersion;
+    private final JSONObject mDocument;
+
+    private TuningConfig(int version, JSONObject document) {
+        mVersion = version;
+        mDocument = document;
+    }
+
+    /**
+     * Returns the tuning currently in effect.
+     */
+    public static TuningConfig getCurrent() {
+        return sCurrent;
+    }
+
+    static void setCurrent(TuningConfig tuning) {
+        if (tuning == sCurrent) {
+            return;
+        }
+        sCurrent = tuning;
+        final Listener listener = sListener;
+        if (listener != null) {
+            listener.onTuningChanged();
+        }
+    }
+
+    public static void setListener(@Nullable Listener listener) {
+        sListener = listener;
+    }
+
+    /**
+     * Parse and validate a tuning document.
+     *
+     * @throws IllegalArgumentException if the document is malformed, has fields of the wrong
+     *         type, or asks for values outside of the allowed ranges
+     */
+    static TuningConfig parse(String json) {
+        final JSONObject document;
+        try {
+            document = new JSONObject(json);
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("Malformed tuning document", e);
+        }
+        for (String name : NUMERIC_FIELDS) {
+            if (document.has(name) && !(document.opt(name) instanceof Number)) {
+                throw new IllegalArgumentException(name + " must be a number");
+            }
+        }
+        if (document.has("aggregation") && !(document.opt("aggregation") instanceof String)) {
+            throw new IllegalArgumentException("aggregation must be a string");
+        }
+        final int version = document.optInt("version", -1);
+        if (version <= 0) {
+            throw new IllegalArgumentException("Tuning document has no version");
+        }
+        TuningConfig tuning = new TuningConfig(version, document);
+        checkRange("sampleIntervalMs", tuning.getSampleIntervalMs(),
+                MIN_SAMPLE_INTERVAL_MS, MAX_SAMPLE_INTERVAL_MS);
+        checkRange("maxSampleIntervalMs", tuning.getMaxSampleIntervalMs(),
+                tuning.getSampleIntervalMs(), MAX_SAMPLE_INTERVAL_MS);
+        final double distance = tuning.getSampleDistanceM();
+        if (!(distance >= MIN_SAMPLE_DISTANCE_M && distance <= MAX_SAMPLE_DISTANCE_M)) {
+            throw new IllegalArgumentException("sampleDistanceM out of range: " + distance);
+        }
+        final double tolerance = tuning.getSimplifyToleranceM();
+        if (!(tolerance >= 0 && tolerance <= MAX_SIMPLIFY_TOLERANCE_M)) {
+            throw new IllegalArgumentException("simplifyToleranceM out of range: " + tolerance);
+        }
+        checkRange("simplifyMaxWindowMs", tuning.getSimplifyMaxWindowMs(),
+                0, MAX_SIMPLIFY_WINDOW_MS);
+        checkRange("gpsFixRateHz", tuning.getGpsFixRateHz(), 1, MAX_GPS_FIX_RATE_HZ);
+        if (document.has("deadbands")) {
+            final JSONObject deadbands = document.optJSONObject("deadbands");
+            if (deadbands == null) {
+                throw new IllegalArgumentException("deadbands must be an object");
+            }
+            for (Iterator<String> it = deadbands.keys(); it.hasNext(); ) {
+                final String channel = it.next();
+                if (!(deadbands.opt(channel) instanceof Number)) {
+                    throw new IllegalArgumentException("Deadband for " + channel +
+                            " must be a number");
+                }
+                final double deadband = deadbands.optDouble(channel, -1);
+                if (!(deadband >= 0 && deadband <= MAX_DEADBAND)) {
+                    throw new IllegalArgumentException("Deadband for " + channel +
+                            " out of range: " + deadband);
+                }
+            }
+        }
+        final double outlierThreshold = tuning.getOutlierThreshold();
+        if (!(outlierThreshold >= MIN_OUTLIER_THRESHOLD &&
+                outlierThreshold <= MAX_OUTLIER_THRESHOLD)) {
+            throw new IllegalArgumentException("outlierThreshold out of range: " +
+                    outlierThreshold);
+        }
+        final String aggregation = tuning.getAggregation();
+        if (!AGGREGATION_RAW.equals(aggregation) && !AGGREGATION_CELLS.equals(aggregation) &&
+                !AGGREGATION_BOTH.equals(aggregation)) {
+            throw new IllegalArgumentException("Unknown aggregation: " + aggregation);
+        }
+        checkRange("aggregationBucketMs", tuning.getAggregationBucketMs(),
+                MIN_AGGREGATION_BUCKET_MS, MAX_AGGREGATION_BUCKET_MS);
+        checkRange("geohashPrecision", tuning.getGeohashPrecision(),
+                MIN_GEOHASH_PRECISION, MAX_GEOHASH_PRECISION);
+        checkRange("publishDelayMs", tuning.getPublishDelayMs(), 0, MAX_PUBLISH_DELAY_MS);
+        checkRange("idlePublishIntervalMs", tuning.getIdlePublishIntervalMs(),
+                MIN_IDLE_PUBLISH_INTERVAL_MS, MAX_IDLE_PUBLISH_INTERVAL_MS);
+        checkRange("maxEntriesPerMessage", tuning.getMaxEntriesPerMessage(),
+                1, MAX_ENTRIES_PER_MESSAGE);
+        if (document.has("compression") &&
+                !(document.opt("compression") instanceof Boolean)) {
+            throw new IllegalArgumentException("compression must be true or false");
+        }
+        if (document.has("compressionLevel")) {
+            checkRange("compressionLevel", document.optInt("compressionLevel", -2), -1, 9);
+        }
+        if (document.has("rateLimitMessages")) {
+            double rate = document.optDouble("rateLimitMessages", 0);
+            if (!(rate > 0 && rate <= MAX_RATE_LIMIT_MESSAGES)) {
+                throw new IllegalArgumentException("rateLimitMessages out of range: " + rate);
+            }
+        }
+        if (document.has("rateLimitBytes")) {
+            checkRange("rateLimitBytes", document.optInt("rateLimitBytes", 0),
+                    MIN_RATE_LIMIT_BYTES, MAX_RATE_LIMIT_BYTES);
+        }
+        return tuning;
+    }
+
+    private static void checkRange(String name, long value, long min, long max) {
+        if (value < min || value > max) {
+            throw new IllegalArgumentException(name + " out of range: " + value);
+        }
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    public long getSampleIntervalMs() {
+        return mDocument.optLong("sampleIntervalMs", DEFAULT_SAMPLE_INTERVAL_MS);
+    }
+
+    public long getMaxSampleIntervalMs() {
+        return mDocument.optLong("maxSampleIntervalMs", DEFAULT_MAX_SAMPLE_INTERVAL_MS);
+    }
+
+    public double getSampleDistanceM() {
+        return mDocument.optDouble("sampleDistanceM", DEFAULT_SAMPLE_DISTANCE_M);
+    }
+
+    public double getSimplifyToleranceM() {
+        return mDocument.optDouble("simplifyToleranceM", DEFAULT_SIMPLIFY_TOLERANCE_M);
+    }
+
+    public long getSimplifyMaxWindowMs() {
+        return mDocument.optLong("simplifyMaxWindowMs", DEFAULT_SIMPLIFY_MAX_WINDOW_MS);
+    }
+
+    public int getGpsFixRateHz() {
+        return mDocument.optInt("gpsFixRateHz", DEFAULT_GPS_FIX_RATE_HZ);
+    }
+
+    /**
+     * Returns the deadband for a sensor channel, e.g. "temperature", in the channel's units.
+     */
+    public double getDeadband(String channel, double defaultDeadband) {
+        final JSONObject deadbands = mDocument.optJSONObject("deadbands");
+        return deadbands != null ? deadbands.optDouble(channel, defaultDeadband) :
+                defaultDeadband;
+    }
+
+    public double getOutlierThreshold() {
+        return mDocument.optDouble("outlierThreshold", DEFAULT_OUTLIER_THRESHOLD);
+    }
+
+    public String getAggregation() {
+        return mDocument.optString("aggregation", AGGREGATION_RAW);
+    }
+
+    public long getAggregationBucketMs() {
+        return mDocument.optLong("aggregationBucketMs", DEFAULT_AGGREGATION_BUCKET_MS);
+    }
+
+    public int getGeohashPrecision() {
+        return mDocument.optInt("geohashPrecision", DEFAULT_GEOHASH_PRECISION);
+    }
+
+    public long getPublishDelayMs() {
+        return mDocument.optLong("publishDelayMs", DEFAULT_PUBLISH_DELAY_MS);
+    }
+
+    public long getIdlePublishIntervalMs() {
+        return mDocument.optLong("idlePublishIntervalMs", DEFAULT_IDLE_PUBLISH_INTERVAL_MS);
+    }
+
+    public int getMaxEntriesPerMessage() {
+        return mDocument.optInt("maxEntriesPerMessage", DEFAULT_MAX_ENTRIES_PER_MESSAGE);
+    }
+
+    /**
+     * Returns the settings to override in the device's CloudIotOptions, as the intent extras
+     * understood by CloudIotOptions.reconfigure().
+     */
+    public Bundle toOptionsBundle() {
+        Bundle bundle = new Bundle();
+        if (mDocument.has("compression")) {
+            bundle.putBoolean("compression", mDocument.optBoolean("compression"));
+        }
+        if (mDocument.has("compressionLevel")) {
+            bundle.putInt("compression_level", mDocument.optInt("compressionLevel"));
+        }
+        if (mDocument.has("rateLimitMessages")) {
+            bundle.putFloat("rate_limit_messages",
+                    (float) mDocument.optDouble("rateLimitMessages"));
+        }
+        if (mDocument.has("rateLimitBytes")) {
+            bundle.putInt("rate_limit_bytes", mDocument.optInt("rateLimitBytes"));
+        }
+        return bundle;
+    }
+
+    /**
+     * Returns the document this tuning was parsed from.
+     */
+    String toJson() {
+        return mDocument.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "TuningConfig v" + mVersion + " " + mDocument;
+    }
+}
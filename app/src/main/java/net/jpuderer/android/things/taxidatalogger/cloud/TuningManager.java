@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import static android.content.Context.MODE_PRIVATE;
+
+/**
+ * Applies tuning documents received through the Cloud IoT device configuration, and rolls them
+ * back if they break publishing.
+ * <p>
+ * A newly applied document is on probation until the next successful publish, at which point
+ * it becomes the last known good tuning, and is saved.  If publishing fails repeatedly while a
+ * document is on probation, we go back to the last known good tuning, and refuse that version
+ * of the document from then on.  Only passes which actually publish something under the new
+ * tuning, and failures while we are connected, count either way; anything else says nothing
+ * about the tuning.  To retry, publish the document again with a higher version.
+ * <p>
+ * Only the last known good tuning is loaded at startup.  Cloud IoT delivers the current
+ * configuration every time we subscribe, so a document still on probation when the process
+ * died is simply applied again.
+ * <p>
+ * Not thread-safe.  All methods must be called on the service thread.
+ */
+class TuningManager {
+    private static final String TAG = TuningManager.class.getSimpleName();
+
+    private static final String TUNING_SHARED_PREFERENCES_KEY = "tuning";
+    private static final String PREF_LAST_GOOD = "last_good";
+    private static final String PREF_REJECTED_VERSION = "rejected_version";
+
+    // Consecutive publish failures, with a document on probation, before rolling it back
+    private static final int FAILURES_TO_ROLL_BACK = 3;
+
+    private final SharedPreferences mPrefs;
+    private TuningConfig mLastGood = TuningConfig.DEFAULT;
+    private TuningConfig mProbation;
+    private int mProbationFailures;
+
+    TuningManager(Context context) {
+        mPrefs = context.getSharedPreferences(TUNING_SHARED_PREFERENCES_KEY, MODE_PRIVATE);
+    }
+
+    /**
+     * Load the last known good tuning, and put it into effect.
+     */
+    TuningConfig load() {
+        String json = mPrefs.getString(PREF_LAST_GOOD, null);
+        if (json != null) {
+            try {
+                mLastGood = TuningConfig.parse(json);
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "Discarding invalid saved tuning", e);
+            }
+        }
+        Log.i(TAG, "Loaded " + mLastGood);
+        TuningConfig.setCurrent(mLastGood);
+        return mLastGood;
+    }
+
+    /**
+     * Validate a tuning document, and put it into effect (on probation).  Documents no newer
+     * than the tuning in effect are refused.
+     *
+     * @return the tuning to apply, or null if the document was refused
+     */
+    @Nullable
+    TuningConfig offer(String json) {
+        final TuningConfig tuning;
+        try {
+            tuning = TuningConfig.parse(json);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Refusing tuning document: " + json, e);
+            return null;
+        }
+        if (tuning.getVersion() <= TuningConfig.getCurrent().getVersion()) {
+            // Redelivered when we reconnect, or older than what we have.  Versions only ever go
+            // up, even to go back to older values.
+            return null;
+        }
+        if (tuning.getVersion() == mPrefs.getInt(PREF_REJECTED_VERSION, -1)) {
+            Log.w(TAG, "Refusing " + tuning + ", since it was rolled back before");
+            return null;
+        }
+        Log.i(TAG, "Applying " + tuning);
+        mProbation = tuning;
+        mProbationFailures = 0;
+        TuningConfig.setCurrent(tuning);
+        return tuning;
+    }
+
+    /**
+     * Report a successful publish pass.
+     *
+     * @param sent number of entries the pass published
+     */
+    void onPublishSucceeded(int sent) {
+        if (mProbation == null) {
+            return;
+        }
+        mProbationFailures = 0;
+        if (sent == 0) {
+            // Nothing has been published with the new tuning yet
+            return;
+        }
+        Log.i(TAG, "Keeping " + mProbation);
+        mLastGood = mProbation;
+        mProbation = null;
+        mPrefs.edit().putString(PREF_LAST_GOOD, mLastGood.toJson()).apply();
+    }
+
+    /**
+     * Report a failed publish pass.
+     *
+     * @param connected true if the network was available, and we were connected, at the time
+     * @return the tuning to go back to, or null if nothing changed
+     */
+    @Nullable
+    TuningConfig onPublishFailed(boolean connected) {
+        if (mProbation == null || !connected) {
+            return null;
+        }
+        if (++mProbationFailures < FAILURES_TO_ROLL_BACK) {
+            return null;
+        }
+        Log.w(TAG, "Rolling back " + mProbation + " to " + mLastGood);
+        mPrefs.edit().putInt(PREF_REJECTED_VERSION, mProbation.getVersion()).apply();
+        mProbation = null;
+        TuningConfig.setCurrent(mLastGood);
+        return mLastGood;
+    }
+}
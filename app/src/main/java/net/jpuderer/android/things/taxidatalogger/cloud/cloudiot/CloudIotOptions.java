@@ -24,6 +24,7 @@ import android.util.Log;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Locale;
+import java.util.zip.Deflater;
 
 /**
  * Configuration container for the MQTT example
@@ -34,6 +35,10 @@ public class CloudIotOptions {
     private static final String DEFAULT_BRIDGE_HOSTNAME = "mqtt.googleapis.com";
     private static final short DEFAULT_BRIDGE_PORT = 443;
 
+    // Conservative defaults, well within the Cloud IoT per-device telemetry quota.
+    private static final float DEFAULT_RATE_LIMIT_MESSAGES = 10;
+    private static final int DEFAULT_RATE_LIMIT_BYTES = 64 * 1024;
+
     public static final String UNUSED_ACCOUNT_NAME = "unused";
 
     /**
@@ -43,9 +48,23 @@ public class CloudIotOptions {
      * forwarded to the Pub/Sub topic specified in the registry resource.
      */
     private static final String MQTT_TOPIC_FORMAT = "/devices/%s/events";
+    /**
+     * Telemetry events can also be published to a subfolder of the events topic.  The
+     * subfolder is forwarded to Pub/Sub as the "subFolder" message attribute, which we use to
+     * mark the content encoding of the payload.
+     */
+    private static final String MQTT_SUBFOLDER_TOPIC_FORMAT = "/devices/%s/events/%s";
+    /**
+     * Commands sent to the device, with an optional subfolder.
+     */
+    private static final String MQTT_COMMANDS_TOPIC_FORMAT = "/devices/%s/commands/#";
+    /**
+     * Device configuration, delivered when the device subscribes, and whenever it changes.
+     */
+    private static final String MQTT_CONFIG_TOPIC_FORMAT = "/devices/%s/config";
     private static final String MQTT_CLIENT_ID_FORMAT =
             "projects/%s/locations/%s/registries/%s/devices/%s";
-    private static final String BROKER_URL_FORMAT = "ssl://%s:%d";
+    private static final String BROKER_URL_FORMAT = "%s://%s:%d";
 
     /**
      * GCP cloud project name.
@@ -77,10 +96,49 @@ public class CloudIotOptions {
      */
     private short bridgePort = DEFAULT_BRIDGE_PORT;
 
+    /**
+     * Connect to the MQTT bridge over TLS.  Only turned off to test against a local broker.
+     */
+    private boolean bridgeTls = true;
+
+    /**
+     * Compress telemetry payloads with DEFLATE.
+     */
+    private boolean compression = false;
+
+    /**
+     * zlib compression level (0-9), or -1 for the zlib default.
+     */
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * JWT signing algorithm, and so the type of device key (RS256 or ES256).
+     */
+    private String keyAlgorithm = MqttAuthentication.ALGORITHM_RS256;
+
+    /**
+     * Maximum telemetry messages per second.
+     */
+    private float rateLimitMessages = DEFAULT_RATE_LIMIT_MESSAGES;
 
+    /**
+     * Maximum telemetry bytes per second.
+     */
+    private int rateLimitBytes = DEFAULT_RATE_LIMIT_BYTES;
+
+    /**
+     * Comma separated list of sinks to send telemetry to, besides Cloud IoT (e.g. "http,file").
+     */
+    private String extraSinks = "";
+
+    /**
+     * Endpoint for the "http" sink.
+     */
+    private String httpSinkUrl = "";
 
     public String getBrokerUrl() {
-        return String.format(Locale.getDefault(), BROKER_URL_FORMAT, bridgeHostname, bridgePort);
+        return String.format(Locale.getDefault(), BROKER_URL_FORMAT, bridgeTls ? "ssl" : "tcp",
+                bridgeHostname, bridgePort);
     }
 
     public String getClientId() {
@@ -92,6 +150,19 @@ public class CloudIotOptions {
         return String.format(Locale.getDefault(), MQTT_TOPIC_FORMAT, deviceId);
     }
 
+    public String getTopicName(String subFolder) {
+        return String.format(Locale.getDefault(), MQTT_SUBFOLDER_TOPIC_FORMAT, deviceId,
+                subFolder);
+    }
+
+    public String getCommandsTopicFilter() {
+        return String.format(Locale.getDefault(), MQTT_COMMANDS_TOPIC_FORMAT, deviceId);
+    }
+
+    public String getConfigTopicName() {
+        return String.format(Locale.getDefault(), MQTT_CONFIG_TOPIC_FORMAT, deviceId);
+    }
+
     public String getProjectId() {
         return projectId;
     }
@@ -116,6 +187,34 @@ public class CloudIotOptions {
         return bridgePort;
     }
 
+    public boolean isCompressionEnabled() {
+        return compression;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public String getKeyAlgorithm() {
+        return keyAlgorithm;
+    }
+
+    public float getRateLimitMessages() {
+        return rateLimitMessages;
+    }
+
+    public int getRateLimitBytes() {
+        return rateLimitBytes;
+    }
+
+    public String[] getExtraSinks() {
+        return TextUtils.isEmpty(extraSinks) ? new String[0] : extraSinks.split("\\s*,\\s*");
+    }
+
+    public String getHttpSinkUrl() {
+        return httpSinkUrl;
+    }
+
     private CloudIotOptions() {
     }
 
@@ -124,7 +223,16 @@ public class CloudIotOptions {
                 !TextUtils.isEmpty(registryId) &&
                 !TextUtils.isEmpty(deviceId) &&
                 !TextUtils.isEmpty(cloudRegion) &&
-                !TextUtils.isEmpty(bridgeHostname);
+                !TextUtils.isEmpty(bridgeHostname) &&
+                (MqttAuthentication.ALGORITHM_RS256.equals(keyAlgorithm) ||
+                        MqttAuthentication.ALGORITHM_ES256.equals(keyAlgorithm)) &&
+                isValidCompressionLevel(compressionLevel) &&
+                rateLimitMessages > 0 &&
+                rateLimitBytes > 0;
+    }
+
+    private static boolean isValidCompressionLevel(int level) {
+        return level >= Deflater.DEFAULT_COMPRESSION && level <= Deflater.BEST_COMPRESSION;
     }
 
     public void saveToPreferences(SharedPreferences pref) {
@@ -135,6 +243,14 @@ public class CloudIotOptions {
         editor.putString("cloud_region", cloudRegion);
         editor.putString("mqtt_bridge_hostname", bridgeHostname);
         editor.putInt("mqtt_bridge_port", bridgePort);
+        editor.putBoolean("mqtt_bridge_tls", bridgeTls);
+        editor.putBoolean("compression", compression);
+        editor.putInt("compression_level", compressionLevel);
+        editor.putString("key_algorithm", keyAlgorithm);
+        editor.putFloat("rate_limit_messages", rateLimitMessages);
+        editor.putInt("rate_limit_bytes", rateLimitBytes);
+        editor.putString("extra_sinks", extraSinks);
+        editor.putString("http_sink_url", httpSinkUrl);
         editor.apply();
     }
 
@@ -152,6 +268,17 @@ public class CloudIotOptions {
             options.bridgeHostname = pref.getString("mqtt_bridge_hostname",
                     DEFAULT_BRIDGE_HOSTNAME);
             options.bridgePort = (short) pref.getInt("mqtt_bridge_port", DEFAULT_BRIDGE_PORT);
+            options.bridgeTls = pref.getBoolean("mqtt_bridge_tls", true);
+            options.compression = pref.getBoolean("compression", false);
+            options.compressionLevel = pref.getInt("compression_level",
+                    Deflater.DEFAULT_COMPRESSION);
+            options.keyAlgorithm = pref.getString("key_algorithm",
+                    MqttAuthentication.ALGORITHM_RS256);
+            options.rateLimitMessages = pref.getFloat("rate_limit_messages",
+                    DEFAULT_RATE_LIMIT_MESSAGES);
+            options.rateLimitBytes = pref.getInt("rate_limit_bytes", DEFAULT_RATE_LIMIT_BYTES);
+            options.extraSinks = pref.getString("extra_sinks", "");
+            options.httpSinkUrl = pref.getString("http_sink_url", "");
             return options;
         } catch (Exception e) {
             throw new IllegalArgumentException("While processing configuration options", e);
@@ -162,16 +289,18 @@ public class CloudIotOptions {
      * Apply Bundle matched properties.
      */
     public static CloudIotOptions reconfigure(CloudIotOptions original, Bundle bundle) {
+        final CloudIotOptions result = new CloudIotOptions();
         try {
             if (Log.isLoggable(TAG, Log.INFO)) {
                 HashSet<String> valid = new HashSet<>(Arrays.asList(new String[] {"project_id",
                         "registry_id", "device_id","cloud_region", "mqtt_bridge_hostname",
-                        "mqtt_bridge_port"}));
+                        "mqtt_bridge_port", "mqtt_bridge_tls", "compression", "compression_level",
+                        "key_algorithm", "rate_limit_messages", "rate_limit_bytes",
+                        "extra_sinks", "http_sink_url"}));
                 valid.retainAll(bundle.keySet());
                 Log.i(TAG, "Configuring options using the following intent extras: " + valid);
             }
 
-            CloudIotOptions result = new CloudIotOptions();
             result.projectId = bundle.getString("project_id", original.projectId);
             result.registryId = bundle.getString("registry_id", original.registryId);
             result.deviceId = bundle.getString("device_id", original.deviceId);
@@ -179,10 +308,42 @@ public class CloudIotOptions {
             result.bridgeHostname = bundle.getString("mqtt_bridge_hostname",
                     original.bridgeHostname);
             result.bridgePort = (short) bundle.getInt("mqtt_bridge_port", original.bridgePort);
-            return result;
+            result.bridgeTls = bundle.getBoolean("mqtt_bridge_tls", original.bridgeTls);
+            result.compression = bundle.getBoolean("compression", original.compression);
+            result.compressionLevel = bundle.getInt("compression_level",
+                    original.compressionLevel);
+            result.keyAlgorithm = bundle.getString("key_algorithm", original.keyAlgorithm);
+            result.rateLimitMessages = bundle.getFloat("rate_limit_messages",
+                    original.rateLimitMessages);
+            result.rateLimitBytes = bundle.getInt("rate_limit_bytes", original.rateLimitBytes);
+            result.extraSinks = bundle.getString("extra_sinks", original.extraSinks);
+            result.httpSinkUrl = bundle.getString("http_sink_url", original.httpSinkUrl);
         } catch (Exception e) {
             throw new IllegalArgumentException("While processing configuration options", e);
         }
+        // Deflater would only reject it once the options were saved and in use
+        if (!isValidCompressionLevel(result.compressionLevel)) {
+            throw new IllegalArgumentException(
+                    "compression_level out of range: " + result.compressionLevel);
+        }
+        return result;
+    }
+
+    /**
+     * Returns true if a connection made with these options would be the same as one made with
+     * the given options.  Other options (compression, rate limits) can be changed without
+     * reconnecting.
+     */
+    public boolean hasSameConnection(CloudIotOptions o) {
+        return o != null
+            && TextUtils.equals(projectId , o.projectId)
+            && TextUtils.equals(registryId, o.registryId)
+            && TextUtils.equals(deviceId, o.deviceId)
+            && TextUtils.equals(cloudRegion, o.cloudRegion)
+            && TextUtils.equals(bridgeHostname, o.bridgeHostname)
+            && o.bridgePort == bridgePort
+            && o.bridgeTls == bridgeTls
+            && TextUtils.equals(keyAlgorithm, o.keyAlgorithm);
     }
 
     @Override
@@ -196,6 +357,14 @@ public class CloudIotOptions {
             && TextUtils.equals(deviceId, o.deviceId)
             && TextUtils.equals(cloudRegion, o.cloudRegion)
             && TextUtils.equals(bridgeHostname, o.bridgeHostname)
-            && o.bridgePort == bridgePort;
+            && o.bridgePort == bridgePort
+            && o.bridgeTls == bridgeTls
+            && o.compression == compression
+            && o.compressionLevel == compressionLevel
+            && TextUtils.equals(keyAlgorithm, o.keyAlgorithm)
+            && o.rateLimitMessages == rateLimitMessages
+            && o.rateLimitBytes == rateLimitBytes
+            && TextUtils.equals(extraSinks, o.extraSinks)
+            && TextUtils.equals(httpSinkUrl, o.httpSinkUrl);
     }
 }
@@ -0,0 +1,405 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud.cloudiot;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * File backed {@link MqttClientPersistence}, so that in-flight messages survive a crash or
+ * restart.
+ * <p>
+ * Paho's own MqttDefaultFilePersistence creates (and deletes) one file per message.  Instead,
+ * we keep the live entries in memory, and append every change to a single journal file, which
+ * is replayed when the persistence is opened.  Each change is flushed to the kernel right away,
+ * so it survives the app crashing, but the fsync that makes it survive a power loss is only
+ * done once per batch of changes (or once a second).  Changes which haven't been synced by the
+ * time the stream of changes stops are synced a second later, on the given handler.  The journal
+ * is rewritten once it is mostly made up of stale records.
+ */
+class JournalFilePersistence implements MqttClientPersistence {
+    private static final String TAG = JournalFilePersistence.class.getSimpleName();
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+
+    // fsync after this many journal records, or this long after the last fsync, whichever
+    // comes first.
+    private static final int SYNC_BATCH_RECORDS = 32;
+    private static final long SYNC_INTERVAL_MS = 1000;
+
+    // Rewrite the journal once it is bigger than this, and mostly stale.
+    private static final long COMPACT_MIN_BYTES = 256 * 1024;
+    private static final int COMPACT_STALE_RATIO = 4;
+
+    private final File mDirectory;
+    private final Handler mHandler;
+    private final Map<String, MqttPersistentData> mEntries = new HashMap<>();
+
+    private File mJournalFile;
+    private FileOutputStream mFileStream;
+    private DataOutputStream mOut;
+
+    private long mJournalBytes;
+    private long mLiveBytes;
+    private int mUnsyncedRecords;
+    private long mLastSyncTime;
+    private boolean mSyncScheduled;
+
+    private final Runnable mSyncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (JournalFilePersistence.this) {
+                mSyncScheduled = false;
+                if (mOut == null || mUnsyncedRecords == 0) {
+                    return;
+                }
+                try {
+                    sync();
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to sync " + mJournalFile.getName(), e);
+                }
+            }
+        }
+    };
+
+    // Reused for encoding each record, so we can checksum it before writing
+    private final ByteArrayOutputStream mRecordBuffer = new ByteArrayOutputStream();
+    private final DataOutputStream mRecord = new DataOutputStream(mRecordBuffer);
+    private final CRC32 mCrc = new CRC32();
+
+    /**
+     * @param directory directory to keep the journal in
+     * @param handler handler to sync any stragglers on
+     */
+    JournalFilePersistence(File directory, Handler handler) {
+        mDirectory = directory;
+        mHandler = handler;
+    }
+
+    @Override
+    public synchronized void open(String clientId, String serverURI)
+            throws MqttPersistenceException {
+        String name = (clientId + "-" + serverURI).replaceAll("[^A-Za-z0-9._-]", "_");
+        mJournalFile = new File(mDirectory, "mqtt-" + name + ".journal");
+        try {
+            replay();
+            openJournal(true);
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+        Log.i(TAG, "Opened " + mJournalFile.getName() + " with " + mEntries.size() +
+                " persisted messages");
+    }
+
+    @Override
+    public synchronized void close() throws MqttPersistenceException {
+        if (mOut == null) {
+            return;
+        }
+        mHandler.removeCallbacks(mSyncRunnable);
+        mSyncScheduled = false;
+        try {
+            sync();
+            mOut.close();
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        } finally {
+            mOut = null;
+            mFileStream = null;
+            mEntries.clear();
+        }
+    }
+
+    @Override
+    public synchronized void put(String key, MqttPersistable persistable)
+            throws MqttPersistenceException {
+        checkOpen();
+        byte[] header = copyOf(persistable.getHeaderBytes(), persistable.getHeaderOffset(),
+                persistable.getHeaderLength());
+        byte[] payload = copyOf(persistable.getPayloadBytes(), persistable.getPayloadOffset(),
+                persistable.getPayloadLength());
+        try {
+            int size = appendRecord(OP_PUT, key, header, payload);
+            MqttPersistentData old = mEntries.put(key,
+                    new MqttPersistentData(key, header, 0, header.length,
+                            payload, 0, payload.length));
+            if (old != null) {
+                mLiveBytes -= recordSize(old);
+            }
+            mLiveBytes += size;
+            maybeSync();
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    @Override
+    public synchronized MqttPersistable get(String key) throws MqttPersistenceException {
+        checkOpen();
+        return mEntries.get(key);
+    }
+
+    @Override
+    public synchronized void remove(String key) throws MqttPersistenceException {
+        checkOpen();
+        MqttPersistentData old = mEntries.remove(key);
+        if (old == null) {
+            return;
+        }
+        mLiveBytes -= recordSize(old);
+        try {
+            appendRecord(OP_REMOVE, key, null, null);
+            if (mJournalBytes > COMPACT_MIN_BYTES &&
+                    mJournalBytes > mLiveBytes * COMPACT_STALE_RATIO) {
+                compact();
+            } else {
+                maybeSync();
+            }
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    @Override
+    public synchronized Enumeration keys() throws MqttPersistenceException {
+        checkOpen();
+        return Collections.enumeration(new ArrayList<>(mEntries.keySet()));
+    }
+
+    @Override
+    public synchronized void clear() throws MqttPersistenceException {
+        checkOpen();
+        mEntries.clear();
+        mLiveBytes = 0;
+        try {
+            mOut.close();
+            openJournal(false);
+            sync();
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    @Override
+    public synchronized boolean containsKey(String key) throws MqttPersistenceException {
+        checkOpen();
+        return mEntries.containsKey(key);
+    }
+
+    private void checkOpen() throws MqttPersistenceException {
+        if (mOut == null) {
+            throw new MqttPersistenceException();
+        }
+    }
+
+    private void openJournal(boolean append) throws IOException {
+        mFileStream = new FileOutputStream(mJournalFile, append);
+        mOut = new DataOutputStream(new BufferedOutputStream(mFileStream));
+        if (!append) {
+            mJournalBytes = 0;
+        }
+    }
+
+    /**
+     * Rebuild the live entries from the journal.  A torn or corrupt record at the end of the
+     * journal (from a crash mid-write) is discarded.
+     */
+    private void replay() throws IOException {
+        mEntries.clear();
+        mJournalBytes = 0;
+        mLiveBytes = 0;
+        if (!mJournalFile.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mJournalFile)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                long crc = in.readLong();
+                if (length <= 0 || length > mJournalFile.length()) {
+                    break;
+                }
+                byte[] body = new byte[length];
+                in.readFully(body);
+                mCrc.reset();
+                mCrc.update(body, 0, length);
+                if (mCrc.getValue() != crc) {
+                    break;
+                }
+                applyRecord(body);
+                mJournalBytes += 12 + length;
+            }
+        } catch (EOFException e) {
+            // Torn record, handled below
+        }
+        if (mJournalBytes != mJournalFile.length()) {
+            Log.w(TAG, "Discarding " + (mJournalFile.length() - mJournalBytes) +
+                    " bytes of incomplete journal");
+            try (RandomAccessFile file = new RandomAccessFile(mJournalFile, "rw")) {
+                file.setLength(mJournalBytes);
+            }
+        }
+    }
+
+    private void applyRecord(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        byte op = in.readByte();
+        String key = in.readUTF();
+        MqttPersistentData old;
+        if (op == OP_PUT) {
+            byte[] header = new byte[in.readInt()];
+            in.readFully(header);
+            byte[] payload = new byte[in.readInt()];
+            in.readFully(payload);
+            old = mEntries.put(key, new MqttPersistentData(key, header, 0, header.length,
+                    payload, 0, payload.length));
+            mLiveBytes += 12 + body.length;
+        } else {
+            old = mEntries.remove(key);
+        }
+        if (old != null) {
+            mLiveBytes -= recordSize(old);
+        }
+    }
+
+    /**
+     * Append a record to the journal.
+     *
+     * @return the size of the record in the journal
+     */
+    private int appendRecord(byte op, String key, byte[] header, byte[] payload)
+            throws IOException {
+        mRecordBuffer.reset();
+        mRecord.writeByte(op);
+        mRecord.writeUTF(key);
+        if (op == OP_PUT) {
+            mRecord.writeInt(header.length);
+            mRecord.write(header);
+            mRecord.writeInt(payload.length);
+            mRecord.write(payload);
+        }
+        mRecord.flush();
+        mCrc.reset();
+        mCrc.update(mRecordBuffer.toByteArray(), 0, mRecordBuffer.size());
+        mOut.writeInt(mRecordBuffer.size());
+        mOut.writeLong(mCrc.getValue());
+        mRecordBuffer.writeTo(mOut);
+        // Hand the record to the kernel right away, so it survives us crashing
+        mOut.flush();
+        int size = 12 + mRecordBuffer.size();
+        mJournalBytes += size;
+        return size;
+    }
+
+    private static int recordSize(MqttPersistentData data) {
+        // length, crc, op, UTF key (assuming ASCII), and the two length prefixed blocks
+        return 12 + 1 + 2 + data.getKey().length() + 4 + data.getHeaderLength() +
+                4 + data.getPayloadLength();
+    }
+
+    private void maybeSync() throws IOException {
+        mUnsyncedRecords++;
+        if (mUnsyncedRecords >= SYNC_BATCH_RECORDS ||
+                SystemClock.elapsedRealtime() - mLastSyncTime >= SYNC_INTERVAL_MS) {
+            sync();
+        } else if (!mSyncScheduled) {
+            // Otherwise, the last few records of a burst would wait for the next one
+            mSyncScheduled = mHandler.postDelayed(mSyncRunnable, SYNC_INTERVAL_MS);
+        }
+    }
+
+    private void sync() throws IOException {
+        mOut.flush();
+        mFileStream.getFD().sync();
+        mUnsyncedRecords = 0;
+        mLastSyncTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Rewrite the journal with just the live entries.
+     */
+    private void compact() throws IOException {
+        File compacted = new File(mDirectory, mJournalFile.getName() + ".tmp");
+        mOut.close();
+        mFileStream = new FileOutputStream(compacted, false);
+        mOut = new DataOutputStream(new BufferedOutputStream(mFileStream));
+        mJournalBytes = 0;
+        mLiveBytes = 0;
+        for (MqttPersistentData data : mEntries.values()) {
+            mLiveBytes += appendRecord(OP_PUT, data.getKey(), data.getHeaderBytes(),
+                    data.getPayloadBytes());
+        }
+        sync();
+        mOut.close();
+        if (!compacted.renameTo(mJournalFile)) {
+            throw new IOException("Unable to replace " + mJournalFile);
+        }
+        // The rename itself is only durable once the directory has been synced
+        syncDirectory();
+        openJournal(true);
+        Log.d(TAG, "Compacted journal to " + mJournalBytes + " bytes");
+    }
+
+    private void syncDirectory() {
+        try (FileChannel directory = FileChannel.open(mDirectory.toPath(),
+                StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to sync " + mDirectory, e);
+        }
+    }
+
+    private static byte[] copyOf(byte[] bytes, int offset, int length) {
+        byte[] copy = new byte[length];
+        if (bytes != null && length > 0) {
+            System.arraycopy(bytes, offset, copy, 0, length);
+        }
+        return copy;
+    }
+}
@@ -19,22 +19,20 @@ package net.jpuderer.android.things.taxidatalogger.cloud.cloudiot;
 
 import android.os.Environment;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 
 import net.jpuderer.android.things.taxidatalogger.cloud.CloudPublisher;
+import net.jpuderer.android.things.taxidatalogger.cloud.Payload;
 
-import org.eclipse.paho.client.mqttv3.MqttClient;
-import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
-import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
-import java.security.NoSuchAlgorithmException;
-import java.security.spec.InvalidKeySpecException;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Locale;
 
 /**
  * Handle publishing sensor data to a Cloud IoT MQTT endpoint.
@@ -49,13 +47,50 @@ public class MQTTPublisher implements CloudPublisher {
 
     // Use mqttQos=1 (at least once delivery), mqttQos=0 (at most once delivery) also supported.
     private static final int MQTT_QOS = 1;
+    private int mQos = MQTT_QOS;
 
-    private MqttClient mqttClient;
+    // QoS for the live lane.  Live entries advance their own sync cursor, and are not re-sent
+    // by the backfill lane, so anything less than at least once delivery could lose them.
+    private static final int MQTT_LIVE_QOS = 1;
+
+    private MqttConnectionManager mConnection;
     private CloudIotOptions cloudIotOptions;
     private MqttAuthentication mqttAuth;
-    private AtomicBoolean mReady = new AtomicBoolean(false);
+    // Keys to use instead of the ones in the keystore, for testing
+    private final MqttAuthentication mTestAuth;
+    private final MqttAuthentication mTestFallbackAuth;
+    private final File mPersistenceDir;
+    private CommandListener mCommandListener;
+    private ConnectionListener mConnectionListener;
+
+    /**
+     * Told whenever a connection to the bridge is established.
+     */
+    public interface ConnectionListener {
+        /**
+         * Called on a background thread.
+         */
+        void onConnected();
+    }
+
+    /**
+     * @param options Cloud IoT configuration options.
+     * @param persistenceDir Directory used to persist in-flight messages.
+     */
+    public MQTTPublisher(@NonNull CloudIotOptions options, @NonNull File persistenceDir) {
+        this(options, persistenceDir, null, null);
+    }
 
-    public MQTTPublisher(@NonNull CloudIotOptions options) {
+    /**
+     * @param auth key to connect with, instead of the one in the keystore
+     * @param fallbackAuth key to fall back to if {@code auth} is rejected
+     */
+    @VisibleForTesting
+    MQTTPublisher(@NonNull CloudIotOptions options, @NonNull File persistenceDir,
+            @Nullable MqttAuthentication auth, @Nullable MqttAuthentication fallbackAuth) {
+        mPersistenceDir = persistenceDir;
+        mTestAuth = auth;
+        mTestFallbackAuth = fallbackAuth;
         initialize(options);
     }
 
@@ -64,7 +99,12 @@ public class MQTTPublisher implements CloudPublisher {
         if (newOptions.equals(cloudIotOptions)) {
             return;
         }
-        mReady.set(false);
+        if (mConnection != null && newOptions.hasSameConnection(cloudIotOptions)) {
+            // Only the encoding (or something we don't use) changed, so keep the connection.
+            Log.i(TAG, "Compression: "+newOptions.isCompressionEnabled());
+            cloudIotOptions = newOptions;
+            return;
+        }
         try {
             close();
         } catch (MqttException e) {
@@ -97,14 +137,21 @@ public class MQTTPublisher implements CloudPublisher {
             Log.i(TAG, "Registry ID: "+cloudIotOptions.getRegistryId());
             Log.i(TAG, "  Device ID: "+cloudIotOptions.getDeviceId());
             Log.i(TAG, "MQTT Configuration:");
-            Log.i(TAG, "Broker: "+cloudIotOptions.getBridgeHostname()+":"+cloudIotOptions.getBridgePort());
+            Log.i(TAG, "Broker: "+cloudIotOptions.getBrokerUrl());
             Log.i(TAG, "Publishing to topic: "+cloudIotOptions.getTopicName());
-            mqttAuth = new MqttAuthentication();
+            Log.i(TAG, "Compression: "+cloudIotOptions.isCompressionEnabled());
+            if (mTestAuth != null) {
+                mqttAuth = mTestAuth;
+                startConnection(mTestFallbackAuth);
+                return;
+            }
+            Log.i(TAG, "Key algorithm: "+cloudIotOptions.getKeyAlgorithm());
+            mqttAuth = new MqttAuthentication(cloudIotOptions.getKeyAlgorithm());
             mqttAuth.initialize();
             if( Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
                 try {
                     mqttAuth.exportPublicKey(new File(Environment.getExternalStorageDirectory(),
-                        "cloud_iot_auth_certificate.pem"));
+                        getCertificateFileName(mqttAuth.getAlgorithm())));
                 } catch (GeneralSecurityException | IOException e) {
                     if( e instanceof FileNotFoundException && e.getMessage().contains("Permission denied")) {
                         Log.e(TAG, "Unable to export certificate, may need to reboot to receive WRITE permissions?", e);
@@ -113,70 +160,157 @@ public class MQTTPublisher implements CloudPublisher {
                     }
                 }
             }
-            initializeMqttClient();
-        } catch (MqttException | IOException | GeneralSecurityException e) {
+
+            // When a device is switched over to ES256, its new key won't be registered with
+            // Cloud IoT until someone uploads the exported certificate.  Until then, keep
+            // connecting with the RSA key, if the device already has one.
+            MqttAuthentication fallbackAuth = null;
+            if (!MqttAuthentication.ALGORITHM_RS256.equals(mqttAuth.getAlgorithm())) {
+                MqttAuthentication rsaAuth =
+                        new MqttAuthentication(MqttAuthentication.ALGORITHM_RS256);
+                if (rsaAuth.hasKey()) {
+                    rsaAuth.initialize();
+                    fallbackAuth = rsaAuth;
+                }
+            }
+
+            startConnection(fallbackAuth);
+        } catch (MqttException e) {
             throw new IllegalArgumentException("Could not initialize MQTT", e);
         }
     }
 
+    private void startConnection(@Nullable MqttAuthentication fallbackAuth)
+            throws MqttException {
+        // Connect in the background.  Until we're connected, isReady() returns false.
+        mConnection = new MqttConnectionManager(cloudIotOptions, mqttAuth, fallbackAuth,
+                mPersistenceDir);
+        mConnection.setCommandListener(mCommandListener);
+        mConnection.setConnectionListener(mConnectionListener);
+        mConnection.start();
+    }
+
+    private static String getCertificateFileName(String algorithm) {
+        // Keep the original file name for RSA certificates
+        return MqttAuthentication.ALGORITHM_RS256.equals(algorithm) ?
+                "cloud_iot_auth_certificate.pem" :
+                "cloud_iot_auth_certificate_" + algorithm.toLowerCase(Locale.US) + ".pem";
+    }
+
     @Override
-    public void publish(String message) {
+    public void publish(Payload payload, int lane) {
+        // Never connect on the publish path.  The connection manager reconnects in the
+        // background, and the caller can try again later.  If it is only refreshing the
+        // connection, it's worth waiting for.
+        awaitConnection();
+        // Compressed payloads go to a subfolder named after their encoding, so the
+        // ingest side can tell how to decode them.
+        String topic = payload.isCompressed() ?
+                cloudIotOptions.getTopicName(payload.getEncoding()) :
+                cloudIotOptions.getTopicName();
+        int qos = lane == LANE_LIVE ? MQTT_LIVE_QOS : mQos;
         try {
-            if (isReady()) {
-                if (mqttClient != null && !mqttClient.isConnected()) {
-                    // if for some reason the mqtt client has disconnected, we should try to connect
-                    // it again.
-                    try {
-                        initializeMqttClient();
-                    } catch (MqttException | IOException | GeneralSecurityException e) {
-                        throw new IllegalArgumentException("Could not initialize MQTT", e);
-                    }
+            try {
+                sendMessage(topic, payload.getData(), qos);
+            } catch (MqttException e) {
+                // A refresh may have started after we checked.  If so, wait for the new
+                // connection and send again.  At worst this sends a message twice, which
+                // at least once delivery allows for.
+                if (!isDisconnecting(e)) {
+                    throw e;
                 }
-                Log.d(TAG, "Publishing: " + message);
-                sendMessage(cloudIotOptions.getTopicName(), message.getBytes());
+                awaitConnection();
+                sendMessage(topic, payload.getData(), qos);
             }
         } catch (MqttException e) {
             throw new IllegalArgumentException("Could not send message", e);
         }
     }
 
+    @Override
+    public void setCommandListener(CommandListener listener) {
+        mCommandListener = listener;
+        if (mConnection != null) {
+            mConnection.setCommandListener(listener);
+        }
+    }
+
+    public void setConnectionListener(ConnectionListener listener) {
+        mConnectionListener = listener;
+        if (mConnection != null) {
+            mConnection.setConnectionListener(listener);
+        }
+    }
+
+    /**
+     * Reconnect right away, if we aren't connected, instead of waiting out the reconnect
+     * backoff.  Call this when the network comes back.
+     */
+    public void onNetworkAvailable() {
+        if (mConnection != null) {
+            mConnection.reconnectNow();
+        }
+    }
+
+    /**
+     * Set the QoS used for lanes other than the live lane.  For benchmarking only, since the
+     * sync cursors rely on at least once delivery.
+     */
+    @VisibleForTesting
+    void setQos(int qos) {
+        mQos = qos;
+    }
+
+    /**
+     * Drop the connection, as if the network had gone away.  It is re-established in the
+     * background.  For fault injection.
+     */
+    @VisibleForTesting
+    void forceDisconnect() {
+        if (mConnection != null) {
+            mConnection.forceDisconnect();
+        }
+    }
+
+    /**
+     * Returns true while connected, and while the connection is being refreshed, during which
+     * publish() waits for the new connection.
+     */
     @Override
     public boolean isReady() {
-        return mReady.get();
+        return mConnection != null && mConnection.isAvailable();
     }
 
     @Override
     public void close() throws MqttException {
         cloudIotOptions = null;
-        if (mqttClient != null) {
-            if (mqttClient.isConnected()) {
-                mqttClient.disconnect();
+        if (mConnection != null) {
+            try {
+                mConnection.close();
+            } finally {
+                mConnection = null;
             }
-            mqttClient = null;
         }
     }
 
-    private void initializeMqttClient()
-        throws MqttException, IOException, NoSuchAlgorithmException, InvalidKeySpecException {
-
-        mqttClient = new MqttClient(cloudIotOptions.getBrokerUrl(),
-            cloudIotOptions.getClientId(), new MemoryPersistence());
-
-        MqttConnectOptions options = new MqttConnectOptions();
-        // Note that the the Google Cloud IoT only supports MQTT 3.1.1, and Paho requires that we
-        // explicitly set this. If you don't set MQTT version, the server will immediately close its
-        // connection to your device.
-        options.setMqttVersion(MqttConnectOptions.MQTT_VERSION_3_1_1);
-        options.setUserName(CloudIotOptions.UNUSED_ACCOUNT_NAME);
-
-        // generate the jwt password
-        options.setPassword(mqttAuth.createJwt(cloudIotOptions.getProjectId()));
+    private void awaitConnection() {
+        try {
+            if (mConnection == null || !mConnection.awaitConnected()) {
+                throw new IllegalStateException("Not connected to MQTT bridge");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for MQTT bridge", e);
+        }
+    }
 
-        mqttClient.connect(options);
-        mReady.set(true);
+    private static boolean isDisconnecting(MqttException e) {
+        return e.getReasonCode() == MqttException.REASON_CODE_CLIENT_DISCONNECTING ||
+                e.getReasonCode() == MqttException.REASON_CODE_CLIENT_NOT_CONNECTED;
     }
 
-    private void sendMessage(String mqttTopic, byte[] mqttMessage) throws MqttException {
-        mqttClient.publish(mqttTopic, mqttMessage, MQTT_QOS, SHOULD_RETAIN);
+    private void sendMessage(String mqttTopic, byte[] mqttMessage, int qos)
+            throws MqttException {
+        mConnection.getClient().publish(mqttTopic, mqttMessage, qos, SHOULD_RETAIN);
     }
 }
@@ -36,7 +36,11 @@ import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
 import java.security.spec.InvalidKeySpecException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import javax.security.auth.x500.X500Principal;
 import org.joda.time.DateTime;
 
@@ -44,7 +48,9 @@ import org.joda.time.DateTime;
  * This class wraps the storage and access of the authentication key used for Cloud IoT.  One of
  * the driving reasons for this is to leverage the secure key storage on Android Things.
  *
- * This class currently only support RS256 Authentication.  TODO:  Add EC256 support.
+ * Both RS256 and ES256 authentication are supported.  ES256 signatures are much cheaper to
+ * compute in the keystore, and make for a much smaller token.  Each algorithm uses its own key
+ * alias, so an existing RSA key is left alone when a device is switched over to ES256.
  */
 
 public class MqttAuthentication {
@@ -52,8 +58,33 @@ public class MqttAuthentication {
   private static final String TAG = MqttAuthentication.class.getSimpleName();
   private static final String DEFAULT_KEYSTORE = "AndroidKeyStore";
   private static final String DEFAULT_ALIAS = "Cloud IoT Authentication";
+  private static final String DEFAULT_EC_ALIAS = "Cloud IoT Authentication EC";
+
+  public static final String ALGORITHM_RS256 = "RS256";
+  public static final String ALGORITHM_ES256 = "ES256";
+
+  /**
+   * Lifetime of the tokens created by {@link #createJwt(String)}.  Cloud IoT allows at most 24
+   * hours.
+   */
+  public static final long TOKEN_LIFETIME_MS = TimeUnit.MINUTES.toMillis(60);
   private final String keystoreName;
   private final String keyAlias;
+  private final String algorithm;
+
+  // Keys already loaded, by keystore and alias.  Loading the keystore is slow, and the entries
+  // don't change underneath us, so there's no need to do it every time we're initialized.
+  private static final Map<String, CachedKey> sKeyCache = new HashMap<>();
+
+  private static class CachedKey {
+    final Certificate certificate;
+    final PrivateKey privateKey;
+
+    CachedKey(Certificate certificate, PrivateKey privateKey) {
+      this.certificate = certificate;
+      this.privateKey = privateKey;
+    }
+  }
 
   private Certificate certificate;
   private PrivateKey privateKey;
@@ -65,6 +96,17 @@ public class MqttAuthentication {
     this(DEFAULT_KEYSTORE, DEFAULT_ALIAS);
   }
 
+  /**
+   * Create a new Cloud IoT Authentication wrapper using the default keystore, and the default
+   * alias for the given algorithm.
+   *
+   * @param algorithm {@link #ALGORITHM_RS256} or {@link #ALGORITHM_ES256}
+   */
+  public MqttAuthentication(String algorithm) {
+    this(DEFAULT_KEYSTORE,
+        ALGORITHM_ES256.equals(algorithm) ? DEFAULT_EC_ALIAS : DEFAULT_ALIAS, algorithm);
+  }
+
   /**
    * Create a new Cloud IoT Authentication wrapper using the specified keystore and alias (instead
    * of the defaults)
@@ -73,11 +115,62 @@ public class MqttAuthentication {
    * @param keyAlias the alias in the keystore for Cloud IoT Authentication
    */
   public MqttAuthentication(String keystoreName, String keyAlias) {
+    this(keystoreName, keyAlias, ALGORITHM_RS256);
+  }
+
+  /**
+   * Create a new Cloud IoT Authentication wrapper using the specified keystore, alias and
+   * algorithm.
+   *
+   * @param keystoreName The keystore to load
+   * @param keyAlias the alias in the keystore for Cloud IoT Authentication
+   * @param algorithm {@link #ALGORITHM_RS256} or {@link #ALGORITHM_ES256}
+   */
+  public MqttAuthentication(String keystoreName, String keyAlias, String algorithm) {
+    if (!ALGORITHM_RS256.equals(algorithm) && !ALGORITHM_ES256.equals(algorithm)) {
+      throw new IllegalArgumentException("Unsupported algorithm: " + algorithm);
+    }
     this.keystoreName = keystoreName;
     this.keyAlias = keyAlias;
+    this.algorithm = algorithm;
+  }
+
+  public String getAlgorithm() {
+    return algorithm;
+  }
+
+  /**
+   * Returns true if the keystore already contains a key for this alias.
+   */
+  public boolean hasKey() {
+    synchronized (sKeyCache) {
+      if (sKeyCache.containsKey(getCacheKey())) {
+        return true;
+      }
+    }
+    try {
+      KeyStore ks = KeyStore.getInstance(keystoreName);
+      ks.load(null);
+      return ks.containsAlias(keyAlias);
+    } catch (GeneralSecurityException | IOException e) {
+      Log.e(TAG, "Failed to open keystore", e);
+      return false;
+    }
+  }
+
+  private String getCacheKey() {
+    return keystoreName + "/" + keyAlias;
   }
 
   public void initialize() {
+    synchronized (sKeyCache) {
+      CachedKey cached = sKeyCache.get(getCacheKey());
+      if (cached != null) {
+        certificate = cached.certificate;
+        privateKey = cached.privateKey;
+        return;
+      }
+    }
     try {
       KeyStore ks = KeyStore.getInstance(keystoreName);
       ks.load(null);
@@ -111,6 +204,11 @@ public class MqttAuthentication {
       }
       Log.i(TAG, "Key is in secure hardware? " + keyIsInSecureHardware);
 
+      if (certificate != null && privateKey != null) {
+        synchronized (sKeyCache) {
+          sKeyCache.put(getCacheKey(), new CachedKey(certificate, privateKey));
+        }
+      }
 
     } catch (GeneralSecurityException | IOException e) {
       Log.e(TAG, "Failed to open keystore", e);
@@ -119,11 +217,25 @@ public class MqttAuthentication {
   }
 
   /**
-   * Generate a new RSA key pair entry in the Android Keystore by
+   * Generate a new RSA or EC key pair entry in the Android Keystore by
    * using the KeyPairGenerator API. This creates both a KeyPair
    * and a self-signed certificate, both with the same alias
    */
   private void generateAuthenticationKey() throws GeneralSecurityException {
+    if (ALGORITHM_ES256.equals(algorithm)) {
+      KeyPairGenerator kpg = KeyPairGenerator.getInstance(
+          KeyProperties.KEY_ALGORITHM_EC, keystoreName);
+      kpg.initialize(new KeyGenParameterSpec.Builder(
+          keyAlias,
+          KeyProperties.PURPOSE_SIGN)
+          .setAlgorithmParameterSpec(new ECGenParameterSpec("secp256r1"))
+          .setCertificateSubject(new X500Principal("CN=unused"))
+          .setDigests(KeyProperties.DIGEST_SHA256)
+          .build());
+
+      kpg.generateKeyPair();
+      return;
+    }
 
     KeyPairGenerator kpg = KeyPairGenerator.getInstance(
         KeyProperties.KEY_ALGORITHM_RSA, keystoreName);
@@ -180,10 +292,12 @@ public class MqttAuthentication {
     JwtBuilder jwtBuilder =
         Jwts.builder()
             .setIssuedAt(now.toDate())
-            .setExpiration(now.plusMinutes(60).toDate())
+            .setExpiration(now.plus(TOKEN_LIFETIME_MS).toDate())
             .setAudience(projectId);
 
-    return jwtBuilder.signWith(SignatureAlgorithm.RS256, privateKey).compact().toCharArray();
+    SignatureAlgorithm signatureAlgorithm = ALGORITHM_ES256.equals(algorithm) ?
+        SignatureAlgorithm.ES256 : SignatureAlgorithm.RS256;
+    return jwtBuilder.signWith(signatureAlgorithm, privateKey).compact().toCharArray();
   }
 
     private final static char[] hexArray = "0123456789ABCDEF".toCharArray();
@@ -0,0 +1,386 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud.cloudiot;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import net.jpuderer.android.things.taxidatalogger.cloud.CloudPublisher;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a single {@link MqttClient} connected to the Cloud IoT bridge, in the background.
+ * <p>
+ * Cloud IoT disconnects a device once the JWT it connected with expires.  Rather than waiting
+ * for that to happen (and reconnecting on the publish path), we sign a new token and reconnect
+ * ahead of expiry on our own thread.  Connections lost for any other reason are re-established
+ * by Paho's automatic reconnect, which picks up the most recently signed token, since it reuses
+ * our {@link MqttConnectOptions}.  While a planned refresh is in progress, {@link #isAvailable()}
+ * stays true, and {@link #awaitConnected()} lets publishers wait it out, rather than failing.
+ * <p>
+ * An optional fallback key is used if the bridge rejects the primary one.  This lets devices
+ * migrate to a new key type before the new key has been registered with Cloud IoT.  Once we have
+ * fallen back, we stay on the fallback key, and only try the primary one again at a token
+ * refresh after a backoff, since registering the new key is up to someone else.
+ */
+class MqttConnectionManager implements MqttCallbackExtended {
+    private static final String TAG = MqttConnectionManager.class.getSimpleName();
+
+    // Reconnect with a fresh token this long before the current one expires.
+    private static final long TOKEN_REFRESH_MARGIN_MS = TimeUnit.MINUTES.toMillis(10);
+
+    // Cloud IoT drops idle connections after 20 minutes, so ping well within that, but no more
+    // often than needed, to let the cellular radio idle.
+    private static final int KEEP_ALIVE_INTERVAL_S = (int) TimeUnit.MINUTES.toSeconds(4);
+
+    // Time to wait for in-flight messages to complete when replacing a connection
+    private static final long DISCONNECT_QUIESCE_MS = TimeUnit.SECONDS.toMillis(5);
+
+    // Longest a publisher waits for a planned refresh to complete.  Covers the quiesce time,
+    // and Paho's default 30 second connection timeout.
+    private static final long REFRESH_WAIT_MS = TimeUnit.MINUTES.toMillis(1);
+
+    // Retry interval for connection attempts that fail outright.  Doubles after each failure.
+    private static final long MIN_RETRY_DELAY_MS = TimeUnit.SECONDS.toMillis(1);
+    private static final long MAX_RETRY_DELAY_MS = TimeUnit.MINUTES.toMillis(2);
+
+    // Time spent on the fallback key before the primary key is tried again.  Doubles each time
+    // the primary key is rejected.
+    private static final long MIN_PRIMARY_RETRY_DELAY_MS = TimeUnit.HOURS.toMillis(1);
+    private static final long MAX_PRIMARY_RETRY_DELAY_MS = TimeUnit.DAYS.toMillis(1);
+
+    private final CloudIotOptions mOptions;
+    private final MqttAuthentication mAuth;
+    private final MqttAuthentication mFallbackAuth;
+    private boolean mUsingFallback;
+    private final MqttClient mClient;
+    private final MqttConnectOptions mConnectOptions;
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    private long mRetryDelayMs = MIN_RETRY_DELAY_MS;
+    private long mPrimaryRetryDelayMs = MIN_PRIMARY_RETRY_DELAY_MS;
+
+    // SystemClock.elapsedRealtime() after which the primary key is tried again, while using
+    // the fallback key
+    private long mPrimaryRetryTime;
+
+    // SystemClock.elapsedRealtime() at which the current token expires
+    private volatile long mTokenExpiry;
+
+    // Non-null while a planned refresh replaces the connection.  Released when it's done,
+    // whether or not it succeeded.
+    private volatile CountDownLatch mRefreshDone;
+
+    private volatile CloudPublisher.CommandListener mCommandListener;
+    private volatile MQTTPublisher.ConnectionListener mConnectionListener;
+
+    // True while a retry of a failed connection attempt is scheduled.  Otherwise, Paho's own
+    // automatic reconnect is responsible for re-establishing a lost connection.
+    private boolean mRetryPending;
+
+    private final Runnable mConnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            connect();
+        }
+    };
+
+    private final Runnable mReconnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            reconnect();
+        }
+    };
+
+    private final Runnable mSubscribeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            subscribe();
+        }
+    };
+
+    MqttConnectionManager(CloudIotOptions options, MqttAuthentication auth,
+            @Nullable MqttAuthentication fallbackAuth, File persistenceDir)
+            throws MqttException {
+        mOptions = options;
+        mAuth = auth;
+        mFallbackAuth = fallbackAuth;
+
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+
+        // In-flight messages are kept on disk, and we ask for a persistent session, so that
+        // messages which weren't acknowledged are re-sent after a reconnect or restart.
+        mClient = new MqttClient(options.getBrokerUrl(), options.getClientId(),
+                new JournalFilePersistence(persistenceDir, mHandler));
+        mClient.setCallback(this);
+
+        mConnectOptions = new MqttConnectOptions();
+        // Note that the the Google Cloud IoT only supports MQTT 3.1.1, and Paho requires that we
+        // explicitly set this. If you don't set MQTT version, the server will immediately close
+        // its connection to your device.
+        mConnectOptions.setMqttVersion(MqttConnectOptions.MQTT_VERSION_3_1_1);
+        mConnectOptions.setUserName(CloudIotOptions.UNUSED_ACCOUNT_NAME);
+        mConnectOptions.setKeepAliveInterval(KEEP_ALIVE_INTERVAL_S);
+        mConnectOptions.setAutomaticReconnect(true);
+        mConnectOptions.setCleanSession(false);
+    }
+
+    /**
+     * Begin connecting in the background.
+     */
+    void start() {
+        mHandler.post(mConnectRunnable);
+    }
+
+    void setCommandListener(CloudPublisher.CommandListener listener) {
+        mCommandListener = listener;
+    }
+
+    void setConnectionListener(MQTTPublisher.ConnectionListener listener) {
+        mConnectionListener = listener;
+    }
+
+    /**
+     * Reconnect right away, if we aren't connected, rather than waiting for the next retry.
+     * Called when the network comes back.
+     */
+    void reconnectNow() {
+        mHandler.post(mReconnectRunnable);
+    }
+
+    boolean isConnected() {
+        return mClient.isConnected();
+    }
+
+    /**
+     * Returns true if we are connected, or will be again shortly, once the connection has been
+     * refreshed.
+     */
+    boolean isAvailable() {
+        return mRefreshDone != null || mClient.isConnected();
+    }
+
+    /**
+     * Wait for any refresh in progress to complete.
+     *
+     * @return true if connected
+     */
+    boolean awaitConnected() throws InterruptedException {
+        final CountDownLatch refreshDone = mRefreshDone;
+        if (refreshDone != null) {
+            refreshDone.await(REFRESH_WAIT_MS, TimeUnit.MILLISECONDS);
+        }
+        return mClient.isConnected();
+    }
+
+    MqttClient getClient() {
+        return mClient;
+    }
+
+    /**
+     * Drop the connection without a clean MQTT disconnect, as if the network had gone away,
+     * and reconnect.  For fault injection.
+     */
+    void forceDisconnect() {
+        try {
+            mClient.disconnectForcibly(0, 0);
+        } catch (MqttException e) {
+            Log.w(TAG, "Error dropping connection", e);
+        }
+        mHandler.post(mConnectRunnable);
+    }
+
+    void close() throws MqttException {
+        mHandler.removeCallbacksAndMessages(null);
+        try {
+            if (mClient.isConnected()) {
+                mClient.disconnect();
+            }
+            mClient.close();
+        } finally {
+            // The client and its persistence post to the handler until they are closed
+            mHandler.removeCallbacksAndMessages(null);
+            mThread.quitSafely();
+        }
+    }
+
+    /**
+     * Connect, or replace the current connection, using a freshly signed token.
+     */
+    @WorkerThread
+    private void connect() {
+        mHandler.removeCallbacks(mConnectRunnable);
+        mRetryPending = false;
+        if (mUsingFallback && SystemClock.elapsedRealtime() >= mPrimaryRetryTime) {
+            Log.i(TAG, "Trying the " + mAuth.getAlgorithm() + " key again");
+            mUsingFallback = false;
+        }
+        final MqttAuthentication auth = mUsingFallback ? mFallbackAuth : mAuth;
+        CountDownLatch refreshDone = null;
+        try {
+            // Sign the token before tearing down the old connection, to keep the gap short.
+            final long expiry = SystemClock.elapsedRealtime() +
+                    MqttAuthentication.TOKEN_LIFETIME_MS;
+            mConnectOptions.setPassword(auth.createJwt(mOptions.getProjectId()));
+            if (mClient.isConnected()) {
+                Log.i(TAG, "Refreshing connection before token expires");
+                refreshDone = new CountDownLatch(1);
+                mRefreshDone = refreshDone;
+                mClient.disconnect(DISCONNECT_QUIESCE_MS);
+            }
+            mClient.connect(mConnectOptions);
+            mTokenExpiry = expiry;
+            mRetryDelayMs = MIN_RETRY_DELAY_MS;
+            if (auth == mAuth) {
+                mPrimaryRetryDelayMs = MIN_PRIMARY_RETRY_DELAY_MS;
+            }
+            mHandler.postDelayed(mConnectRunnable,
+                    MqttAuthentication.TOKEN_LIFETIME_MS - TOKEN_REFRESH_MARGIN_MS);
+        } catch (MqttException e) {
+            if (auth == mAuth && mFallbackAuth != null && isAuthenticationFailure(e)) {
+                Log.w(TAG, mAuth.getAlgorithm() + " key was rejected, falling back to " +
+                        mFallbackAuth.getAlgorithm() + " for " + mPrimaryRetryDelayMs +
+                        " ms.  Has the new certificate been registered with Cloud IoT?");
+                mUsingFallback = true;
+                mPrimaryRetryTime = SystemClock.elapsedRealtime() + mPrimaryRetryDelayMs;
+                mPrimaryRetryDelayMs = Math.min(mPrimaryRetryDelayMs * 2,
+                        MAX_PRIMARY_RETRY_DELAY_MS);
+                // Straight away, so that a refresh in progress covers this attempt too
+                connect();
+                return;
+            }
+            retryLater(e);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            // Anything left uncaught here would take down the whole process, rather than just
+            // this attempt to connect.
+            retryLater(e);
+        } finally {
+            if (refreshDone != null) {
+                mRefreshDone = null;
+                refreshDone.countDown();
+            }
+        }
+    }
+
+    @WorkerThread
+    private void reconnect() {
+        if (mClient.isConnected()) {
+            return;
+        }
+        mRetryDelayMs = MIN_RETRY_DELAY_MS;
+        if (mRetryPending ||
+                mTokenExpiry - SystemClock.elapsedRealtime() < TOKEN_REFRESH_MARGIN_MS) {
+            // Our own attempts failed, or Paho's would use a stale token
+            connect();
+            return;
+        }
+        try {
+            // Cut Paho's automatic reconnect short
+            mClient.reconnect();
+        } catch (MqttException e) {
+            // Most likely already reconnecting
+            Log.d(TAG, "Not reconnecting: " + e);
+        }
+    }
+
+    private static boolean isAuthenticationFailure(MqttException e) {
+        return e.getReasonCode() == MqttException.REASON_CODE_FAILED_AUTHENTICATION ||
+                e.getReasonCode() == MqttException.REASON_CODE_NOT_AUTHORIZED;
+    }
+
+    private void retryLater(Exception e) {
+        Log.e(TAG, "Unable to connect, will try again in " + mRetryDelayMs + " ms", e);
+        mHandler.postDelayed(mConnectRunnable, mRetryDelayMs);
+        mRetryPending = true;
+        mRetryDelayMs = Math.min(mRetryDelayMs * 2, MAX_RETRY_DELAY_MS);
+    }
+
+    /**
+     * Subscribe to configuration and commands.  The session is persistent, so the subscriptions
+     * normally survive a reconnect, but renewing them is harmless, and covers the bridge having
+     * dropped the session.
+     */
+    @WorkerThread
+    private void subscribe() {
+        try {
+            mClient.subscribe(new String[] {
+                    mOptions.getConfigTopicName(), mOptions.getCommandsTopicFilter()
+            }, new int[] { 1, 1 });
+        } catch (MqttException e) {
+            Log.e(TAG, "Unable to subscribe to configuration and commands", e);
+        }
+    }
+
+    @Override
+    public void connectComplete(boolean reconnect, String serverURI) {
+        Log.i(TAG, (reconnect ? "Reconnected to " : "Connected to ") + serverURI);
+        // Blocking calls on the client deadlock from within a callback, so subscribe from our
+        // own thread.
+        mHandler.post(mSubscribeRunnable);
+        MQTTPublisher.ConnectionListener listener = mConnectionListener;
+        if (listener != null) {
+            listener.onConnected();
+        }
+    }
+
+    @Override
+    public void connectionLost(Throwable cause) {
+        Log.w(TAG, "Connection lost", cause);
+        // Paho will reconnect on its own, but not with a token that is about to expire.
+        if (mTokenExpiry - SystemClock.elapsedRealtime() < TOKEN_REFRESH_MARGIN_MS) {
+            mHandler.post(mConnectRunnable);
+        }
+    }
+
+    @Override
+    public void messageArrived(String topic, MqttMessage message) {
+        Log.i(TAG, "Message received on " + topic);
+        CloudPublisher.CommandListener listener = mCommandListener;
+        if (listener == null) {
+            return;
+        }
+        if (topic.equals(mOptions.getConfigTopicName())) {
+            listener.onConfig(message.getPayload());
+        } else {
+            listener.onCommand(message.getPayload());
+        }
+    }
+
+    @Override
+    public void deliveryComplete(IMqttDeliveryToken token) {
+        // Delivery is synchronous, via MqttClient.publish()
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.driver.nmea;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+public class NmeaGpsTest {
+    @Test
+    public void replaysLogWithInjectedClock() throws Exception {
+        final byte[] log = NmeaParserTest.readLog();
+        final ReplayNmeaTransport transport =
+                new ReplayNmeaTransport(new ByteArrayInputStream(log));
+        // Advances a millisecond with each read
+        final NmeaGps.Clock clock = new NmeaGps.Clock() {
+            private long mNow;
+
+            @Override
+            public long elapsedRealtimeNanos() {
+                return mNow += 1000000;
+            }
+        };
+        final List<NmeaParserTest.Fix> fixes = new ArrayList<>();
+        try (NmeaGps gps = new NmeaGps(transport, clock)) {
+            gps.start(new NmeaParser.Listener() {
+                @Override
+                public void onFix(NmeaFix fix) {
+                    fixes.add(new NmeaParserTest.Fix(fix));
+                }
+            });
+            assertEquals(log.length, transport.replay());
+            assertEquals(4, gps.getParser().getFixCount());
+        }
+        // The log fits in one read
+        assertEquals(4, fixes.size());
+        for (NmeaParserTest.Fix fix : fixes) {
+            assertEquals(1000000, fix.timestampNanos);
+        }
+    }
+
+    @Test
+    public void setsFixRate() throws Exception {
+        final ReplayNmeaTransport transport =
+                new ReplayNmeaTransport(new ByteArrayInputStream(new byte[0]));
+        try (NmeaGps gps = new NmeaGps(transport)) {
+            gps.setFixRate(5);
+        }
+        // The sentence set, then the interval
+        assertEquals(2, transport.getCommandCount());
+    }
+
+    @Test
+    public void capsFixRateToBaudRate() {
+        assertEquals(4, NmeaGps.getMaxFixRateHz(9600));
+        assertEquals(2, NmeaGps.getMaxFixRateHz(4800));
+        assertEquals(NmeaGps.MAX_FIX_RATE_HZ, NmeaGps.getMaxFixRateHz(115200));
+        // Always at least one fix a second, which is what the receiver starts with
+        assertEquals(1, NmeaGps.getMaxFixRateHz(1200));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsFixRateOutOfRange() throws Exception {
+        try (NmeaGps gps = new NmeaGps(
+                new ReplayNmeaTransport(new ByteArrayInputStream(new byte[0])))) {
+            gps.setFixRate(NmeaGps.MAX_FIX_RATE_HZ + 1);
+        }
+    }
+
+    @Test
+    public void framesCommands() {
+        assertEquals("$PMTK220,200*2C\r\n",
+                new String(NmeaGps.command("PMTK220,200"), StandardCharsets.US_ASCII));
+        assertEquals("$PMTK220,1000*1F\r\n",
+                new String(NmeaGps.command("PMTK220,1000"), StandardCharsets.US_ASCII));
+    }
+}
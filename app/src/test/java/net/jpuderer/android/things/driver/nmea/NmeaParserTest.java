@@ -0,0 +1,210 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.driver.nmea;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds drive.nmea through the parser.  The log has seven epochs, of which four make fixes:
+ * <ol>
+ *   <li>A complete fix, before any GSA.
+ *   <li>A complete DGPS fix.
+ *   <li>Dropped: its RMC has a bad checksum.
+ *   <li>Dropped: no fix, with an RMC marked void and a GGA with fix quality 0.
+ *   <li>A complete fix from a multi-GNSS receiver, after a sentence cut short by this one.
+ *   <li>A fix with no GGA, delivered when the next epoch starts.
+ *   <li>Never complete: its GGA is cut off at the end of the log.
+ * </ol>
+ * The log also starts part way through a sentence, and has a command acknowledgement.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class NmeaParserTest {
+    // 2017-09-01 12:00:00 UTC
+    private static final long START_TIME = 1504267200000L;
+    private static final double DELTA = 1e-7;
+
+    private final List<Fix> mFixes = new ArrayList<>();
+    private final NmeaParser mParser = new NmeaParser(new NmeaParser.Listener() {
+        @Override
+        public void onFix(NmeaFix fix) {
+            mFixes.add(new Fix(fix));
+        }
+    });
+
+    @Test
+    public void parsesLog() throws IOException {
+        final byte[] log = readLog();
+        mParser.feed(log, log.length, 1000);
+        assertLogParsed();
+    }
+
+    @Test
+    public void parsesSentencesSplitAcrossReads() throws IOException {
+        final byte[] log = readLog();
+        final byte[] chunk = new byte[7];
+        for (int offset = 0; offset < log.length; offset += chunk.length) {
+            final int count = Math.min(chunk.length, log.length - offset);
+            System.arraycopy(log, offset, chunk, 0, count);
+            mParser.feed(chunk, count, 1000);
+        }
+        assertLogParsed();
+    }
+
+    @Test
+    public void fillsInFixFields() throws IOException {
+        final byte[] log = readLog();
+        mParser.feed(log, log.length, 1000);
+
+        final Fix first = mFixes.get(0);
+        assertEquals(START_TIME, first.time);
+        assertEquals(45.4215, first.latitude, DELTA);
+        assertEquals(-75.6972, first.longitude, DELTA);
+        assertEquals(70.0, first.altitude, DELTA);
+        assertEquals(10 * 0.514444, first.speed, 1e-4);
+        assertEquals(90, first.bearing, 1e-4);
+        assertEquals(1, first.quality);
+        assertEquals(8, first.satellites);
+        assertEquals(0.9, first.hdop, 1e-6);
+        // No GSA yet
+        assertTrue(Float.isNaN(first.vdop));
+        assertTrue(Float.isNaN(first.pdop));
+
+        // The GSA after the first epoch's fix sentences applies to the next
+        final Fix second = mFixes.get(1);
+        assertEquals(START_TIME + 1000, second.time);
+        assertEquals(2, second.quality);
+        assertEquals(9, second.satellites);
+        assertEquals(0.8, second.hdop, 1e-6);
+        assertEquals(1.2, second.vdop, 1e-6);
+        assertEquals(1.5, second.pdop, 1e-6);
+    }
+
+    @Test
+    public void takesMissingFieldsFromGsa() throws IOException {
+        final byte[] log = readLog();
+        mParser.feed(log, log.length, 1000);
+
+        // Epoch 6 had no GGA, so no altitude, fix quality or satellites
+        final Fix rmcOnly = mFixes.get(3);
+        assertEquals(START_TIME + 5000, rmcOnly.time);
+        assertTrue(Double.isNaN(rmcOnly.altitude));
+        assertEquals(-1, rmcOnly.quality);
+        assertEquals(-1, rmcOnly.satellites);
+        assertEquals(0.7, rmcOnly.hdop, 1e-6);
+        assertEquals(1.0, rmcOnly.vdop, 1e-6);
+    }
+
+    @Test
+    public void stampsFixesWithFirstSentenceOfEpoch() {
+        feed("$GPRMC,120000.000,A,4525.2900,N,07541.8320,W,10.0,90.0,010917,,,A*7A\r\n", 100);
+        feed("$GPGGA,120000.000,4525.2900,N,07541.8320,W,1,08,0.9,70.0,M,-34.0,M,,*52\r\n",
+                200);
+        assertEquals(1, mFixes.size());
+        assertEquals(100, mFixes.get(0).timestampNanos);
+    }
+
+    @Test
+    public void rejectsBadChecksums() {
+        // Same as a good sentence, with the checksum one off, and lower case hex digits
+        feed("$GPRMC,120000.000,A,4525.2900,N,07541.8320,W,10.0,90.0,010917,,,A*7B\r\n", 0);
+        feed("$GPRMC,120000.000,A,4525.2900,N,07541.8320,W,10.0,90.0,010917,,,A*7a\r\n", 0);
+        feed("$GPGSA,A,3,01,02,03,04,05,06,07,08,,,,,1.5,0.9,1.2*34\r\n", 0);
+        assertEquals(1, mParser.getErrorCount());
+        assertEquals(2, mParser.getSentenceCount());
+    }
+
+    @Test
+    public void rejectsOverlongSentences() {
+        final StringBuilder sentence = new StringBuilder("$GPTXT,");
+        for (int i = 0; i < 200; i++) {
+            sentence.append('x');
+        }
+        feed(sentence.append("*00\r\n").toString(), 0);
+        assertEquals(1, mParser.getErrorCount());
+        assertEquals(0, mParser.getSentenceCount());
+    }
+
+    private void assertLogParsed() {
+        assertEquals(4, mFixes.size());
+        assertEquals(START_TIME, mFixes.get(0).time);
+        assertEquals(START_TIME + 1000, mFixes.get(1).time);
+        assertEquals(START_TIME + 4000, mFixes.get(2).time);
+        assertEquals(START_TIME + 5000, mFixes.get(3).time);
+        assertEquals(4, mParser.getFixCount());
+        assertEquals(16, mParser.getSentenceCount());
+        assertEquals(1, mParser.getErrorCount());
+    }
+
+    private void feed(String data, long timestampNanos) {
+        final byte[] bytes = data.getBytes(StandardCharsets.US_ASCII);
+        mParser.feed(bytes, bytes.length, timestampNanos);
+    }
+
+    static byte[] readLog() throws IOException {
+        try (InputStream in = NmeaParserTest.class.getResourceAsStream("drive.nmea")) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[1024];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    // Copy of an NmeaFix, which the parser reuses
+    static final class Fix {
+        final long time;
+        final long timestampNanos;
+        final double latitude;
+        final double longitude;
+        final double altitude;
+        final float speed;
+        final float bearing;
+        final int quality;
+        final int satellites;
+        final float hdop;
+        final float vdop;
+        final float pdop;
+
+        Fix(NmeaFix fix) {
+            time = fix.time;
+            timestampNanos = fix.timestampNanos;
+            latitude = fix.latitude;
+            longitude = fix.longitude;
+            altitude = fix.altitude;
+            speed = fix.speed;
+            bearing = fix.bearing;
+            quality = fix.quality;
+            satellites = fix.satellites;
+            hdop = fix.hdop;
+            vdop = fix.vdop;
+            pdop = fix.pdop;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class ChannelFilterTest {
+    private static final float DEADBAND = 0.5f;
+    private static final float MIN_SPREAD = 0.2f;
+    private static final float DELTA = 1e-4f;
+
+    // Named so the default tuning has no deadband for it, and its outlier threshold of 3 applies
+    private static final SensorChannel CHANNEL =
+            new SensorChannel(0, "test", SensorChannel.TYPE_FLOAT, DEADBAND, MIN_SPREAD, 1f);
+
+    private final ChannelFilter mFilter = new ChannelFilter(CHANNEL);
+
+    @Test
+    public void reportsFirstReading() {
+        assertFalse(mFilter.hasValue());
+        assertTrue(mFilter.update(20));
+        assertTrue(mFilter.hasValue());
+        assertEquals(20, mFilter.getValue(), DELTA);
+    }
+
+    @Test
+    public void holdsValueWithinDeadband() {
+        mFilter.update(20);
+        assertFalse(mFilter.update(20.3f));
+        assertEquals(20, mFilter.getValue(), DELTA);
+        assertTrue(mFilter.update(20.6f));
+        assertEquals(20.6f, mFilter.getValue(), DELTA);
+    }
+
+    @Test
+    public void doesNotFilterFirstFewReadings() {
+        // Not enough readings for a median yet
+        mFilter.update(20);
+        assertTrue(mFilter.update(80));
+        assertEquals(80, mFilter.getValue(), DELTA);
+        assertEquals(0, mFilter.getOutlierCount());
+    }
+
+    @Test
+    public void rejectsSpikes() {
+        feed(20, 20.1f, 19.9f, 20, 20.1f);
+        assertFalse(mFilter.update(80));
+        assertEquals(20, mFilter.getValue(), DELTA);
+        assertEquals(1, mFilter.getOutlierCount());
+        assertFalse(mFilter.update(-40));
+        assertEquals(2, mFilter.getOutlierCount());
+    }
+
+    @Test
+    public void passesStepChangesOnceTheyAreTheMedian() {
+        feed(20, 20, 20, 20, 20);
+        assertFalse(mFilter.update(30));
+        assertFalse(mFilter.update(30));
+        assertTrue(mFilter.update(30));
+        assertEquals(30, mFilter.getValue(), DELTA);
+        assertEquals(2, mFilter.getOutlierCount());
+    }
+
+    @Test
+    public void minSpreadKeepsSmallChangesOnFlatSignal() {
+        // The deviation of identical readings is zero, so without the floor, any change at all
+        // would be an outlier.
+        feed(20, 20, 20, 20, 20);
+        assertTrue(mFilter.update(20 + 2.5f * MIN_SPREAD + 0.05f));
+        assertEquals(0, mFilter.getOutlierCount());
+        // Beyond the threshold times the floor, though, it is one
+        feed(20, 20, 20, 20, 20);
+        mFilter.update(20 + 3 * MIN_SPREAD + 0.1f);
+        assertEquals(1, mFilter.getOutlierCount());
+    }
+
+    @Test
+    public void scalesThresholdWithNoise() {
+        // With this much noise, a reading 2 away from the median isn't an outlier
+        feed(20, 21, 19, 21, 19);
+        mFilter.update(22);
+        assertEquals(0, mFilter.getOutlierCount());
+    }
+
+    private void feed(float... readings) {
+        for (float reading : readings) {
+            mFilter.update(reading);
+        }
+    }
+}
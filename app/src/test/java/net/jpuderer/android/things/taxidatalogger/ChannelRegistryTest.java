@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class ChannelRegistryTest {
+    private static final int TEMPERATURE = ChannelRegistry.TEMPERATURE.getIndex();
+    private static final int PRESSURE = ChannelRegistry.PRESSURE.getIndex();
+    private static final int PM25 = ChannelRegistry.PM25.getIndex();
+    private static final int PM10 = ChannelRegistry.PM10.getIndex();
+
+    @Test
+    public void indexIsPosition() {
+        final Set<String> names = new HashSet<>();
+        for (int i = 0; i < ChannelRegistry.size(); i++) {
+            assertEquals(i, ChannelRegistry.get(i).getIndex());
+            assertTrue(names.add(ChannelRegistry.get(i).getName()));
+        }
+        // Each channel is a bit in a long
+        assertTrue(ChannelRegistry.size() <= 64);
+    }
+
+    @Test
+    public void packsPresentChannelsInIndexOrder() {
+        final double[] values = new double[ChannelRegistry.size()];
+        values[TEMPERATURE] = 21.5;
+        values[PRESSURE] = 1013.25;
+        values[PM25] = 12;
+        final long mask = bit(TEMPERATURE) | bit(PRESSURE) | bit(PM25);
+
+        final byte[] packed = ChannelRegistry.pack(mask, values);
+        assertEquals(12, packed.length);
+        final ByteBuffer buffer = ByteBuffer.wrap(packed).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(21.5f, buffer.getFloat(), 0);
+        assertEquals(1013.25f, buffer.getFloat(), 0);
+        assertEquals(12, buffer.getInt());
+    }
+
+    @Test
+    public void unpacksWhatWasPacked() {
+        final double[] values = new double[ChannelRegistry.size()];
+        long mask = 0;
+        for (int i = 0; i < values.length; i++) {
+            values[i] = ChannelRegistry.get(i).isInteger() ? i * 10 : i + 0.25;
+            mask |= bit(i);
+        }
+        final double[] unpacked = new double[values.length];
+        assertEquals(mask,
+                ChannelRegistry.unpack(mask, ChannelRegistry.pack(mask, values), unpacked));
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i], unpacked[i], 0);
+        }
+    }
+
+    @Test
+    public void leavesMissingChannelsAlone() {
+        final double[] values = new double[ChannelRegistry.size()];
+        values[PM10] = 7;
+        final double[] unpacked = new double[values.length];
+        unpacked[TEMPERATURE] = -1;
+        ChannelRegistry.unpack(bit(PM10), ChannelRegistry.pack(bit(PM10), values), unpacked);
+        assertEquals(-1, unpacked[TEMPERATURE], 0);
+        assertEquals(7, unpacked[PM10], 0);
+    }
+
+    @Test
+    public void emptyMaskPacksNothing() {
+        assertEquals(0, ChannelRegistry.pack(0, new double[ChannelRegistry.size()]).length);
+    }
+
+    @Test
+    public void roundsIntegersAndNarrowsFloats() {
+        final double[] values = new double[ChannelRegistry.size()];
+        values[TEMPERATURE] = 21.123456789;
+        values[PM25] = 11.6;
+        final long mask = bit(TEMPERATURE) | bit(PM25);
+        final double[] unpacked = new double[values.length];
+        ChannelRegistry.unpack(mask, ChannelRegistry.pack(mask, values), unpacked);
+        assertEquals((float) 21.123456789, unpacked[TEMPERATURE], 0);
+        assertEquals(12, unpacked[PM25], 0);
+    }
+
+    @Test
+    public void ignoresChannelsFromNewerVersions() {
+        // A newer version's channels come after ours, so ours unpack the same
+        final int unknown = ChannelRegistry.size();
+        final double[] values = new double[ChannelRegistry.size()];
+        values[PM10] = 7;
+        final ByteBuffer buffer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(ChannelRegistry.pack(bit(PM10), values));
+        buffer.putFloat(3.5f);
+
+        final double[] unpacked = new double[ChannelRegistry.size()];
+        assertEquals(bit(PM10),
+                ChannelRegistry.unpack(bit(PM10) | bit(unknown), buffer.array(), unpacked));
+        assertEquals(7, unpacked[PM10], 0);
+    }
+
+    private static long bit(int channel) {
+        return 1L << channel;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger;
+
+import android.location.Location;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class FixHistoryTest {
+    private static final long SECOND_NS = 1000000000L;
+    private static final long EPOCH_MS = 1500000000000L;
+    private static final double DELTA = 1e-9;
+
+    private final FixHistory mFixes = new FixHistory();
+    private final Location mLocation = new Location("gps");
+
+    @Test
+    public void locatesNothingWithoutFixes() {
+        assertEquals(-1, mFixes.getNewestTimestamp());
+        assertFalse(mFixes.locate(SECOND_NS, mLocation));
+    }
+
+    @Test
+    public void interpolatesBetweenFixes() {
+        mFixes.add(fix(10, 45.0, -75.0, 4, 10));
+        mFixes.add(fix(11, 45.001, -75.002, 8, 20));
+        assertTrue(mFixes.locate(10 * SECOND_NS + SECOND_NS / 4, mLocation));
+        assertEquals(45.00025, mLocation.getLatitude(), DELTA);
+        assertEquals(-75.0005, mLocation.getLongitude(), DELTA);
+        assertEquals(5, mLocation.getAccuracy(), 1e-6);
+        assertEquals(12.5, mLocation.getSpeed(), 1e-6);
+        assertEquals(10 * SECOND_NS + SECOND_NS / 4, mLocation.getElapsedRealtimeNanos());
+        assertEquals(EPOCH_MS + 10250, mLocation.getTime());
+    }
+
+    @Test
+    public void usesFixAtExactTime() {
+        mFixes.add(fix(10, 45.0, -75.0, 4, 10));
+        mFixes.add(fix(11, 45.001, -75.002, 8, 20));
+        mFixes.locate(11 * SECOND_NS, mLocation);
+        assertEquals(45.001, mLocation.getLatitude(), DELTA);
+        assertEquals(EPOCH_MS + 11000, mLocation.getTime());
+    }
+
+    @Test
+    public void usesOldestFixBeforeHistory() {
+        mFixes.add(fix(10, 45.0, -75.0, 4, 10));
+        mFixes.add(fix(11, 45.001, -75.002, 8, 20));
+        mFixes.locate(5 * SECOND_NS, mLocation);
+        assertEquals(45.0, mLocation.getLatitude(), DELTA);
+        assertEquals(10 * SECOND_NS, mLocation.getElapsedRealtimeNanos());
+    }
+
+    @Test
+    public void extrapolatesPastNewestFix() {
+        mFixes.add(fix(10, 45.0, -75.0, 4, 10));
+        mFixes.add(fix(11, 45.001, -75.0, 4, 10));
+        mFixes.locate(11 * SECOND_NS + SECOND_NS / 2, mLocation);
+        assertEquals(45.0015, mLocation.getLatitude(), DELTA);
+        assertEquals(11 * SECOND_NS + SECOND_NS / 2, mLocation.getElapsedRealtimeNanos());
+        // The accuracy allows for the 0.0005 degrees (about 56 m) extrapolated
+        assertEquals(4 + 55.6, mLocation.getAccuracy(), 0.1);
+    }
+
+    @Test
+    public void extrapolatesOnlySoFar() {
+        mFixes.add(fix(10, 45.0, -75.0, 4, 10));
+        mFixes.add(fix(11, 45.001, -75.0, 4, 10));
+        mFixes.locate(30 * SECOND_NS, mLocation);
+        final long limit = 11 * SECOND_NS + FixHistory.MAX_EXTRAPOLATION_NANOS;
+        assertEquals(limit, mLocation.getElapsedRealtimeNanos());
+        assertEquals(45.001 + 0.001 * FixHistory.MAX_EXTRAPOLATION_NANOS / SECOND_NS,
+                mLocation.getLatitude(), DELTA);
+    }
+
+    @Test
+    public void doesNotExtrapolateFromOneFix() {
+        mFixes.add(fix(10, 45.0, -75.0, 4, 10));
+        mFixes.locate(11 * SECOND_NS, mLocation);
+        assertEquals(45.0, mLocation.getLatitude(), DELTA);
+        assertEquals(4, mLocation.getAccuracy(), 1e-6);
+    }
+
+    @Test
+    public void doesNotInterpolateAcrossGaps() {
+        final long gapSeconds = FixHistory.MAX_GAP_NANOS / SECOND_NS + 5;
+        mFixes.add(fix(10, 45.0, -75.0, 4, 10));
+        mFixes.add(fix(10 + gapSeconds, 45.1, -75.0, 4, 10));
+        // Whichever fix is closer
+        mFixes.locate(12 * SECOND_NS, mLocation);
+        assertEquals(45.0, mLocation.getLatitude(), DELTA);
+        mFixes.locate((8 + gapSeconds) * SECOND_NS, mLocation);
+        assertEquals(45.1, mLocation.getLatitude(), DELTA);
+        // Nor extrapolate from across one
+        mFixes.locate((11 + gapSeconds) * SECOND_NS, mLocation);
+        assertEquals(45.1, mLocation.getLatitude(), DELTA);
+    }
+
+    @Test
+    public void ignoresOutOfOrderFixes() {
+        mFixes.add(fix(10, 45.0, -75.0, 4, 10));
+        mFixes.add(fix(11, 45.001, -75.0, 4, 10));
+        mFixes.add(fix(11, 46.0, -75.0, 4, 10));
+        mFixes.add(fix(9, 46.0, -75.0, 4, 10));
+        assertEquals(11 * SECOND_NS, mFixes.getNewestTimestamp());
+        mFixes.locate(11 * SECOND_NS, mLocation);
+        assertEquals(45.001, mLocation.getLatitude(), DELTA);
+    }
+
+    @Test
+    public void keepsOnlyRecentFixes() {
+        final int count = FixHistory.HISTORY_SIZE + 10;
+        for (int s = 0; s < count; s++) {
+            mFixes.add(fix(s, 45 + s * 0.001, -75.0, 4, 10));
+        }
+        assertEquals((count - 1) * SECOND_NS, mFixes.getNewestTimestamp());
+        // The oldest fixes are gone, so the oldest one left is used
+        mFixes.locate(0, mLocation);
+        assertEquals(10 * SECOND_NS, mLocation.getElapsedRealtimeNanos());
+        // And interpolation still works across the wrap
+        mFixes.locate((count - 2) * SECOND_NS + SECOND_NS / 2, mLocation);
+        assertEquals(45 + (count - 1.5) * 0.001, mLocation.getLatitude(), DELTA);
+    }
+
+    @Test
+    public void leavesOutUnknownSpeed() {
+        final Location noSpeed = fix(10, 45.0, -75.0, 4, 10);
+        noSpeed.removeSpeed();
+        mFixes.add(noSpeed);
+        mLocation.setSpeed(5);
+        mFixes.locate(10 * SECOND_NS, mLocation);
+        assertFalse(mLocation.hasSpeed());
+    }
+
+    private static Location fix(long seconds, double latitude, double longitude, float accuracy,
+            float speed) {
+        final Location location = new Location("gps");
+        location.setElapsedRealtimeNanos(seconds * SECOND_NS);
+        location.setTime(EPOCH_MS + seconds * 1000);
+        location.setLatitude(latitude);
+        location.setLongitude(longitude);
+        location.setAccuracy(accuracy);
+        location.setAltitude(100);
+        location.setVerticalAccuracyMeters(accuracy * 2);
+        location.setSpeed(speed);
+        return location;
+    }
+}
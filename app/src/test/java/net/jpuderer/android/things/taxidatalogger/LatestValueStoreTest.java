@@ -0,0 +1,179 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class LatestValueStoreTest {
+    // Written together, like the readings of a particle sensor
+    private static final int PM25 = 0;
+    private static final int PM10 = 1;
+    // Written on its own, by another writer
+    private static final int TEMPERATURE = 2;
+    // Never written
+    private static final int HUMIDITY = 3;
+    private static final int CHANNELS = 4;
+
+    private static final int WRITES = 200000;
+
+    private final LatestValueStore mStore = new LatestValueStore(CHANNELS);
+    private final LatestValueStore.Snapshot mSnapshot = new LatestValueStore.Snapshot(CHANNELS);
+
+    @Test
+    public void startsEmpty() {
+        mStore.snapshot(mSnapshot);
+        for (int i = 0; i < CHANNELS; i++) {
+            assertFalse(mSnapshot.has(i));
+        }
+    }
+
+    @Test
+    public void readsWhatWasWritten() {
+        write(PM25, 12.5, PM10, 20, 1000);
+        mStore.snapshot(mSnapshot);
+        assertTrue(mSnapshot.has(PM25));
+        assertTrue(mSnapshot.has(PM10));
+        assertFalse(mSnapshot.has(TEMPERATURE));
+        assertEquals(12.5, mSnapshot.values[PM25], 0);
+        assertEquals(20, mSnapshot.values[PM10], 0);
+        assertEquals(1000, mSnapshot.timestamps[PM25]);
+        // Written in the same group
+        assertEquals(mSnapshot.sequences[PM25], mSnapshot.sequences[PM10]);
+    }
+
+    @Test
+    public void sequencesOrderWrites() {
+        write(PM25, 1, PM10, 1, 1000);
+        mStore.beginWrite();
+        mStore.put(TEMPERATURE, 20, 2000);
+        mStore.endWrite();
+        mStore.snapshot(mSnapshot);
+        final long pm = mSnapshot.sequences[PM25];
+        final long temperature = mSnapshot.sequences[TEMPERATURE];
+        assertTrue(temperature > pm);
+        // Even, as the sequence is between writes
+        assertEquals(0, pm % 2);
+        assertEquals(0, temperature % 2);
+
+        write(PM25, 2, PM10, 2, 3000);
+        mStore.snapshot(mSnapshot);
+        assertTrue(mSnapshot.sequences[PM25] > temperature);
+        assertEquals(temperature, mSnapshot.sequences[TEMPERATURE]);
+    }
+
+    @Test
+    public void readersNeverSeeTornGroups() throws Exception {
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread particles = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 1; i <= WRITES; i++) {
+                    // PM10 always includes PM2.5, so a torn read would show up as pm10 < pm25
+                    write(PM25, i, PM10, i + 0.5, i);
+                }
+            }
+        });
+        final Thread temperature = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 1; i <= WRITES; i++) {
+                    mStore.beginWrite();
+                    mStore.put(TEMPERATURE, i, i);
+                    mStore.endWrite();
+                }
+            }
+        });
+        final Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    read(done);
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        });
+        reader.start();
+        particles.start();
+        temperature.start();
+        particles.join();
+        temperature.join();
+        done.set(true);
+        reader.join();
+        assertNull(failure.get());
+
+        mStore.snapshot(mSnapshot);
+        assertEquals(WRITES, mSnapshot.values[PM25], 0);
+        assertEquals(WRITES, mSnapshot.values[TEMPERATURE], 0);
+        assertFalse(mSnapshot.has(HUMIDITY));
+    }
+
+    /**
+     * Take snapshots until told to stop, checking each one against the last.
+     */
+    private void read(AtomicBoolean done) {
+        final LatestValueStore.Snapshot snapshot = new LatestValueStore.Snapshot(CHANNELS);
+        long lastPm = 0;
+        long lastTemperature = 0;
+        double lastPmValue = 0;
+        double lastTemperatureValue = 0;
+        while (!done.get()) {
+            mStore.snapshot(snapshot);
+            assertFalse(snapshot.has(HUMIDITY));
+            assertEquals(snapshot.has(PM25), snapshot.has(PM10));
+            if (snapshot.has(PM25)) {
+                final double pm25 = snapshot.values[PM25];
+                assertEquals(pm25 + 0.5, snapshot.values[PM10], 0);
+                assertEquals(snapshot.timestamps[PM25], snapshot.timestamps[PM10]);
+                assertEquals((long) pm25, snapshot.timestamps[PM25]);
+                assertEquals(snapshot.sequences[PM25], snapshot.sequences[PM10]);
+                // Never goes back
+                assertTrue(snapshot.sequences[PM25] >= lastPm);
+                assertTrue(pm25 >= lastPmValue);
+                lastPm = snapshot.sequences[PM25];
+                lastPmValue = pm25;
+            }
+            if (snapshot.has(TEMPERATURE)) {
+                final double value = snapshot.values[TEMPERATURE];
+                assertEquals((long) value, snapshot.timestamps[TEMPERATURE]);
+                assertTrue(snapshot.sequences[TEMPERATURE] >= lastTemperature);
+                assertTrue(value >= lastTemperatureValue);
+                lastTemperature = snapshot.sequences[TEMPERATURE];
+                lastTemperatureValue = value;
+            }
+        }
+    }
+
+    private void write(int first, double firstValue, int second, double secondValue,
+            long timestampNanos) {
+        mStore.beginWrite();
+        mStore.put(first, firstValue, timestampNanos);
+        mStore.put(second, secondValue, timestampNanos);
+        mStore.endWrite();
+    }
+}
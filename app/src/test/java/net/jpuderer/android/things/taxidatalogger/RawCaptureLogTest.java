@@ -0,0 +1,257 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes events through RawCaptureLog, and reads back the files it leaves for the publisher.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class RawCaptureLogTest {
+    // Record size of an event with one value, and how many of them fit in a buffer
+    private static final int RECORD_BYTES = 2 + 8 + 8;
+    private static final int BUFFER_RECORDS = 64 * 1024 / RECORD_BYTES;
+
+    private final Context mContext = RuntimeEnvironment.application;
+    private File mDirectory;
+
+    @Before
+    public void setUp() {
+        mDirectory = RawCaptureLog.getDirectory(mContext);
+        RawCaptureLog.setEnabled(mContext, true);
+    }
+
+    @After
+    public void tearDown() {
+        RawCaptureLog.setEnabled(mContext, false);
+    }
+
+    @Test
+    public void writesEvents() throws Exception {
+        final RawCaptureLog log = new RawCaptureLog(mContext);
+        log.append(3, 1000, 21.5);
+        final double[] fix = { 1500000000, 45, -75, 5 };
+        log.append(RawCaptureLog.SOURCE_FIX, 2000, fix, fix.length);
+        close(log);
+
+        final List<File> files = listFiles();
+        assertEquals(1, files.size());
+        assertFalse(RawCaptureLog.isRecovered(files.get(0)));
+        final List<Record> records = readRecords(files.get(0));
+        assertEquals(2, records.size());
+        assertEquals(3, records.get(0).source);
+        assertEquals(1000, records.get(0).time);
+        assertArrayEquals(new double[] { 21.5 }, records.get(0).values, 0);
+        assertEquals(RawCaptureLog.SOURCE_FIX, records.get(1).source);
+        assertEquals(2000, records.get(1).time);
+        assertArrayEquals(fix, records.get(1).values, 0);
+    }
+
+    @Test
+    public void keepsEveryEventAcrossBufferSwapsAndFiles() throws Exception {
+        final RawCaptureLog log = new RawCaptureLog(mContext);
+        // Several buffers' worth, and more than one file's.  Pausing between batches lets the
+        // writer keep up, as it does with real sensor rates.
+        final int count = 10 * BUFFER_RECORDS;
+        for (int i = 0; i < count; i++) {
+            log.append(1, i, i);
+            if (i % 1000 == 999) {
+                Thread.sleep(5);
+            }
+        }
+        close(log);
+        assertEquals(0, log.getDroppedCount());
+
+        final List<File> files = listFiles();
+        assertTrue(files.size() > 1);
+        // The files sort in the order they were written, and nothing is lost between them
+        int next = 0;
+        for (File file : files) {
+            for (Record record : readRecords(file)) {
+                assertEquals(next, record.time);
+                assertEquals(next, record.values[0], 0);
+                next++;
+            }
+        }
+        assertEquals(count, next);
+    }
+
+    @Test
+    public void countsDroppedEvents() throws Exception {
+        final RawCaptureLog log = new RawCaptureLog(mContext);
+        // Holding the lock keeps the writer from swapping buffers, as if it had fallen behind
+        final int count = 2 * BUFFER_RECORDS;
+        synchronized (log) {
+            for (int i = 0; i < count; i++) {
+                log.append(1, i, i);
+            }
+        }
+        assertEquals(count - BUFFER_RECORDS, log.getDroppedCount());
+        close(log);
+        int written = 0;
+        for (File file : listFiles()) {
+            written += readRecords(file).size();
+        }
+        assertEquals(BUFFER_RECORDS, written);
+    }
+
+    @Test
+    public void namesFilesInSequence() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            final RawCaptureLog log = new RawCaptureLog(mContext);
+            log.append(1, i, i);
+            close(log);
+        }
+        final List<File> files = listFiles();
+        assertEquals(3, files.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, readRecords(files.get(i)).get(0).time);
+        }
+
+        // Still in sequence once the files are published, and deleted
+        for (File file : files) {
+            assertTrue(file.delete());
+        }
+        final RawCaptureLog log = new RawCaptureLog(mContext);
+        log.append(1, 3, 3);
+        close(log);
+        assertTrue(listFiles().get(0).getName().compareTo(files.get(2).getName()) > 0);
+    }
+
+    @Test
+    public void recoversIncompleteFiles() throws Exception {
+        // Left behind by an earlier run, cut short before the gzip trailer
+        assertTrue(mDirectory.mkdirs());
+        final File part = new File(mDirectory, "raw-0000000000000000041.part");
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(new byte[1000]);
+        }
+        try (FileOutputStream out = new FileOutputStream(part)) {
+            out.write(bytes.toByteArray(), 0, bytes.size() - 8);
+        }
+
+        final RawCaptureLog log = new RawCaptureLog(mContext);
+        log.append(1, 0, 0);
+        close(log);
+        final List<File> files = listFiles();
+        assertEquals(2, files.size());
+        assertFalse(part.exists());
+        assertTrue(RawCaptureLog.isRecovered(files.get(0)));
+        // New files carry on after it
+        assertFalse(RawCaptureLog.isRecovered(files.get(1)));
+        assertTrue(files.get(1).getName().startsWith("raw-0000000000000000042"));
+    }
+
+    private static void close(RawCaptureLog log) throws InterruptedException {
+        log.close();
+        log.join();
+    }
+
+    /**
+     * Returns the completed files, in the order the publisher sends them.
+     */
+    private List<File> listFiles() {
+        final List<File> files = new ArrayList<>();
+        for (File file : mDirectory.listFiles()) {
+            if (file.getName().endsWith(RawCaptureLog.FILE_SUFFIX)) {
+                files.add(file);
+            }
+        }
+        final File[] sorted = files.toArray(new File[files.size()]);
+        Arrays.sort(sorted);
+        return Arrays.asList(sorted);
+    }
+
+    private static class Record {
+        final int source;
+        final long time;
+        final double[] values;
+
+        Record(int source, long time, double[] values) {
+            this.source = source;
+            this.time = time;
+            this.values = values;
+        }
+    }
+
+    private static List<Record> readRecords(File file) throws IOException {
+        final ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new FileInputStream(file))) {
+            final byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                contents.write(buffer, 0, n);
+            }
+        }
+        final ByteBuffer data = ByteBuffer.wrap(contents.toByteArray())
+                .order(ByteOrder.LITTLE_ENDIAN);
+        final byte[] magic = new byte[4];
+        data.get(magic);
+        assertArrayEquals("TDRC".getBytes("US-ASCII"), magic);
+        assertEquals(1, data.get());
+        final int channels = data.get() & 0xff;
+        assertEquals(ChannelRegistry.size(), channels);
+        for (int i = 0; i < channels; i++) {
+            // Type, and name
+            data.get();
+            final int nameLength = data.get() & 0xff;
+            data.position(data.position() + nameLength);
+        }
+        // Start times
+        data.getLong();
+        data.getLong();
+
+        final List<Record> records = new ArrayList<>();
+        while (data.hasRemaining()) {
+            final int source = data.get() & 0xff;
+            final double[] values = new double[data.get() & 0xff];
+            final long time = data.getLong();
+            for (int i = 0; i < values.length; i++) {
+                values[i] = data.getDouble();
+            }
+            records.add(new Record(source, time, values));
+        }
+        return records;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger;
+
+import android.location.Location;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class SamplingPolicyTest {
+    private static final long MIN_INTERVAL_MS = 2000;
+    private static final long MAX_INTERVAL_MS = 60000;
+    private static final float DISTANCE_M = 50;
+
+    private static final double LATITUDE = 45;
+    private static final double LONGITUDE = -75;
+    private static final double METRES_PER_DEG_LAT = 111195;
+
+    private final SamplingPolicy mPolicy =
+            new SamplingPolicy(MIN_INTERVAL_MS, MAX_INTERVAL_MS, DISTANCE_M);
+
+    @Test
+    public void logsFirstFix() {
+        assertTrue(mPolicy.shouldLog(location(0, 5), 0, false));
+        assertEquals(MIN_INTERVAL_MS, mPolicy.getNextCheckDelayMs(location(0, 5), 0, false));
+    }
+
+    @Test
+    public void logsOnceDistanceTravelled() {
+        mPolicy.onSampled(location(0, 5), 0);
+        assertFalse(mPolicy.shouldLog(location(40, 5), 5000, false));
+        assertTrue(mPolicy.shouldLog(location(55, 5), 5000, false));
+    }
+
+    @Test
+    public void neverLogsBeforeMinInterval() {
+        mPolicy.onSampled(location(0, 5), 0);
+        assertFalse(mPolicy.shouldLog(location(500, 5), MIN_INTERVAL_MS - 1, true));
+        assertTrue(mPolicy.shouldLog(location(500, 5), MIN_INTERVAL_MS, false));
+    }
+
+    @Test
+    public void logsAtMaxIntervalWhileParked() {
+        mPolicy.onSampled(location(0, 5), 0);
+        assertFalse(mPolicy.shouldLog(location(0, 5), MAX_INTERVAL_MS - 1, false));
+        assertTrue(mPolicy.shouldLog(location(0, 5), MAX_INTERVAL_MS, false));
+    }
+
+    @Test
+    public void logsSensorChangesWithoutMoving() {
+        mPolicy.onSampled(location(0, 5), 0);
+        assertFalse(mPolicy.shouldLog(location(0, 5), MIN_INTERVAL_MS, false));
+        assertTrue(mPolicy.shouldLog(location(0, 5), MIN_INTERVAL_MS, true));
+    }
+
+    @Test
+    public void ignoresMovementWithinAccuracy() {
+        mPolicy.onSampled(location(0, 100), 0);
+        // Further than the target distance, but not further than the fix could be off
+        assertFalse(mPolicy.shouldLog(location(80, 100), 5000, false));
+        assertTrue(mPolicy.shouldLog(location(120, 100), 5000, false));
+    }
+
+    @Test
+    public void checksWhenDistanceShouldBeReached() {
+        mPolicy.onSampled(location(0, 5), 0);
+        // 40 m to go at 10 m/s
+        assertEquals(4000, mPolicy.getNextCheckDelayMs(moving(10, 10), 0, false));
+        // But no sooner than the minimum interval
+        assertEquals(MIN_INTERVAL_MS, mPolicy.getNextCheckDelayMs(moving(10, 100), 0, false));
+        // And no later than the maximum
+        assertEquals(MAX_INTERVAL_MS - 30000,
+                mPolicy.getNextCheckDelayMs(moving(10, 1), 30000, false));
+    }
+
+    @Test
+    public void checksRegularlyWhileStopped() {
+        mPolicy.onSampled(location(0, 5), 0);
+        final long delay = mPolicy.getNextCheckDelayMs(location(0, 5), 0, false);
+        assertTrue(delay >= MIN_INTERVAL_MS && delay < MAX_INTERVAL_MS);
+    }
+
+    @Test
+    public void checksAtMinIntervalAfterSensorChange() {
+        mPolicy.onSampled(location(0, 5), 0);
+        assertEquals(MIN_INTERVAL_MS - 500, mPolicy.getNextCheckDelayMs(location(0, 5), 500, true));
+        assertEquals(0, mPolicy.getNextCheckDelayMs(location(0, 5), MIN_INTERVAL_MS + 1, true));
+    }
+
+    @Test
+    public void maxIntervalIsNeverBelowMin() {
+        mPolicy.setLimits(10000, 5000, DISTANCE_M);
+        mPolicy.onSampled(location(0, 5), 0);
+        assertFalse(mPolicy.shouldLog(location(0, 5), 9999, false));
+        assertTrue(mPolicy.shouldLog(location(0, 5), 10000, false));
+    }
+
+    /**
+     * A fix {@code northM} metres north of the starting point.
+     */
+    private static Location location(double northM, float accuracy) {
+        final Location location = new Location("gps");
+        location.setLatitude(LATITUDE + northM / METRES_PER_DEG_LAT);
+        location.setLongitude(LONGITUDE);
+        location.setAccuracy(accuracy);
+        return location;
+    }
+
+    private static Location moving(double northM, float speed) {
+        final Location location = location(northM, 5);
+        location.setSpeed(speed);
+        return location;
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+public class TrajectorySimplifierTest {
+    private static final double TOLERANCE_M = 10;
+    private static final long MAX_WINDOW_MS = 1000000;
+
+    // Starting point, and metres per degree around it
+    private static final double LATITUDE = 45;
+    private static final double LONGITUDE = -75;
+    private static final double METRES_PER_DEG_LAT = 111195;
+    private static final double METRES_PER_DEG_LON =
+            METRES_PER_DEG_LAT * Math.cos(Math.toRadians(LATITUDE));
+
+    private final List<Double> mKept = new ArrayList<>();
+    private final TrajectorySimplifier.Sink mSink = new TrajectorySimplifier.Sink() {
+        @Override
+        public void onRecord(DatalogRecord record) {
+            mKept.add(record.time);
+        }
+    };
+
+    @Test
+    public void keepsEverythingWithoutTolerance() {
+        final TrajectorySimplifier simplifier = new TrajectorySimplifier(mSink, 0, MAX_WINDOW_MS);
+        for (int t = 0; t < 5; t++) {
+            simplifier.add(record(t, 10 * t, 0));
+        }
+        assertKept(0, 1, 2, 3, 4);
+        assertEquals(5, simplifier.getKeptCount());
+        assertEquals(5, simplifier.getReceivedCount());
+    }
+
+    @Test
+    public void dropsRecordsAlongStraightLine() {
+        final TrajectorySimplifier simplifier = simplifier();
+        for (int t = 0; t < 10; t++) {
+            simplifier.add(record(t, 10 * t, 10 * t));
+        }
+        // Only the first record is logged until the window is closed
+        assertKept(0);
+        simplifier.flush();
+        assertKept(0, 9);
+        assertEquals(10, simplifier.getReceivedCount());
+    }
+
+    @Test
+    public void keepsCorners() {
+        final TrajectorySimplifier simplifier = simplifier();
+        for (int t = 0; t <= 10; t++) {
+            simplifier.add(record(t, 10 * t, 0));
+        }
+        for (int t = 11; t <= 20; t++) {
+            simplifier.add(record(t, 100, 10 * (t - 10)));
+        }
+        simplifier.flush();
+        assertKept(0, 10, 20);
+    }
+
+    @Test
+    public void dropsDeviationWithinTolerance() {
+        final TrajectorySimplifier simplifier = simplifier();
+        simplifier.add(record(0, 0, 0));
+        simplifier.add(record(1, 10, TOLERANCE_M - 1));
+        simplifier.add(record(2, 20, 0));
+        simplifier.flush();
+        assertKept(0, 2);
+    }
+
+    @Test
+    public void keepsDeviationBeyondTolerance() {
+        final TrajectorySimplifier simplifier = simplifier();
+        simplifier.add(record(0, 0, 0));
+        simplifier.add(record(1, 10, TOLERANCE_M + 1));
+        simplifier.add(record(2, 20, 0));
+        simplifier.flush();
+        assertKept(0, 1, 2);
+    }
+
+    @Test
+    public void keepsChangesInSpeed() {
+        // Every record is on the same straight line, but the stop can't be reconstructed by
+        // interpolating in time from the ends.
+        final TrajectorySimplifier simplifier = simplifier();
+        for (int t = 0; t <= 5; t++) {
+            simplifier.add(record(t, 20 * t, 0));
+        }
+        for (int t = 6; t <= 10; t++) {
+            simplifier.add(record(t, 100, 0));
+        }
+        simplifier.flush();
+        assertKept(0, 5, 10);
+    }
+
+    @Test
+    public void keepsChangesInSensorValues() {
+        final TrajectorySimplifier simplifier = simplifier();
+        final float tolerance = ChannelRegistry.TEMPERATURE.getTolerance();
+        // A steady rise is dropped, but a step is kept
+        for (int t = 0; t <= 4; t++) {
+            simplifier.add(record(t, 10 * t, 0, 20 + tolerance * t));
+        }
+        for (int t = 5; t <= 8; t++) {
+            simplifier.add(record(t, 10 * t, 0, 20 + tolerance * 10));
+        }
+        simplifier.flush();
+        assertKept(0, 4, 5, 8);
+    }
+
+    @Test
+    public void keepsRecordsWhenChannelsComeAndGo() {
+        final TrajectorySimplifier simplifier = simplifier();
+        simplifier.add(record(0, 0, 0, 20));
+        simplifier.add(record(1, 10, 0));
+        simplifier.add(record(2, 20, 0, 20));
+        simplifier.flush();
+        assertKept(0, 1, 2);
+    }
+
+    @Test
+    public void closesWindowAtMaxRecords() {
+        final TrajectorySimplifier simplifier = simplifier();
+        for (int t = 0; t < 100; t++) {
+            simplifier.add(record(t, 10 * t, 0));
+        }
+        simplifier.flush();
+        final int max = TrajectorySimplifier.MAX_WINDOW_RECORDS;
+        assertKept(0, max, 2 * max, 3 * max, 99);
+    }
+
+    @Test
+    public void closesWindowAtMaxTime() {
+        final TrajectorySimplifier simplifier = new TrajectorySimplifier(mSink, TOLERANCE_M, 10000);
+        for (int t = 0; t <= 25; t++) {
+            simplifier.add(record(t, 10 * t, 0));
+        }
+        assertKept(0, 10, 20);
+    }
+
+    @Test
+    public void expiresHeldRecordWithoutNewRecords() {
+        final TrajectorySimplifier simplifier = new TrajectorySimplifier(mSink, TOLERANCE_M, 10000);
+        for (int t = 0; t <= 3; t++) {
+            simplifier.add(record(t, 10 * t, 0));
+        }
+        simplifier.expire(10);
+        assertKept(0);
+        simplifier.expire(10.5);
+        assertKept(0, 3);
+        // Nothing more is held back
+        simplifier.expire(30);
+        assertKept(0, 3);
+    }
+
+    @Test
+    public void resetStartsNewTrajectory() {
+        final TrajectorySimplifier simplifier = simplifier();
+        for (int t = 0; t <= 3; t++) {
+            simplifier.add(record(t, 10 * t, 0));
+        }
+        simplifier.reset();
+        // Would have been dropped, if the line had carried on
+        simplifier.add(record(4, 40, 0));
+        simplifier.add(record(5, 50, 0));
+        simplifier.flush();
+        assertKept(0, 3, 4, 5);
+    }
+
+    @Test
+    public void flushesWhenToleranceIsTurnedOff() {
+        final TrajectorySimplifier simplifier = simplifier();
+        for (int t = 0; t <= 3; t++) {
+            simplifier.add(record(t, 10 * t, 0));
+        }
+        simplifier.setLimits(0, MAX_WINDOW_MS);
+        assertKept(0, 3);
+        simplifier.add(record(4, 40, 0));
+        assertKept(0, 3, 4);
+    }
+
+    private TrajectorySimplifier simplifier() {
+        return new TrajectorySimplifier(mSink, TOLERANCE_M, MAX_WINDOW_MS);
+    }
+
+    private void assertKept(double... times) {
+        final List<Double> expected = new ArrayList<>();
+        for (double time : times) {
+            expected.add(time);
+        }
+        assertEquals(expected, mKept);
+    }
+
+    /**
+     * A record at {@code time} seconds, the given number of metres north and east of the
+     * starting point.
+     */
+    private static DatalogRecord record(double time, double northM, double eastM) {
+        return new DatalogRecord(time, LATITUDE + northM / METRES_PER_DEG_LAT,
+                LONGITUDE + eastM / METRES_PER_DEG_LON, 5, 100, 10, 0,
+                new double[ChannelRegistry.size()]);
+    }
+
+    /**
+     * As above, with a temperature reading.
+     */
+    private static DatalogRecord record(double time, double northM, double eastM,
+            double temperature) {
+        final double[] values = new double[ChannelRegistry.size()];
+        final int channel = ChannelRegistry.TEMPERATURE.getIndex();
+        values[channel] = temperature;
+        return new DatalogRecord(time, LATITUDE + northM / METRES_PER_DEG_LAT,
+                LONGITUDE + eastM / METRES_PER_DEG_LON, 5, 100, 10, 1L << channel, values);
+    }
+}
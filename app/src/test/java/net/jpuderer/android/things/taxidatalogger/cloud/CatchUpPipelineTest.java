@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+
+import net.jpuderer.android.things.taxidatalogger.DatalogDbHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class CatchUpPipelineTest {
+    private static final long MAX_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final Context mContext = RuntimeEnvironment.application;
+    private final RecordingPublisher mPublisher = new RecordingPublisher();
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mDatabase = new DatalogDbHelper(mContext).getWritableDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.close();
+    }
+
+    @Test
+    public void drainsRangeInOrder() throws Exception {
+        log(250);
+        try (CatchUpPipeline pipeline = pipeline(new PayloadEncoder(true, 6))) {
+            assertEquals(199, pipeline.drain(0, 200, 30, MAX_MILLIS, mPublisher));
+        }
+        assertEquals(range(1, 199), mPublisher.getIds(CloudPublisher.LANE_BACKFILL));
+        assertEquals(199, DatalogDbHelper.getLastSyncId(mContext));
+        // Batched, with the last message short
+        assertEquals(7, mPublisher.getMessages().size());
+    }
+
+    @Test
+    public void leavesCursorAtLastPublishedMessage() throws Exception {
+        log(100);
+        mPublisher.failNext(1);
+        try (CatchUpPipeline pipeline = pipeline(new PayloadEncoder(false, 0))) {
+            pipeline.drain(0, 101, 10, MAX_MILLIS, mPublisher);
+            fail("Publish failure was swallowed");
+        } catch (IllegalStateException e) {
+            // Injected
+        }
+        assertEquals(-1, DatalogDbHelper.getLastSyncId(mContext));
+    }
+
+    @Test(timeout = 30000)
+    public void reportsErrorsOnWorker() throws Exception {
+        log(100);
+        // Errors, not just exceptions, must reach the service thread, rather than leave it
+        // waiting for a message that never comes
+        final PayloadEncoder encoder = new PayloadEncoder(false, 0) {
+            @Override
+            public Payload encode(String message) {
+                throw new OutOfMemoryError("Injected");
+            }
+        };
+        try (CatchUpPipeline pipeline = pipeline(encoder)) {
+            pipeline.drain(0, 101, 10, MAX_MILLIS, mPublisher);
+            fail("Worker error was swallowed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof OutOfMemoryError);
+        }
+        assertEquals(0, mPublisher.getMessages().size());
+    }
+
+    private CatchUpPipeline pipeline(PayloadEncoder encoder) {
+        return new CatchUpPipeline(mContext, mDatabase, "test-device", encoder);
+    }
+
+    private void log(int count) {
+        mDatabase.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                DatalogDbHelper.log(mDatabase, 1500000000 + i, 45, -75, 5, 100, 10, 0,
+                        new byte[0]);
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    private static List<Long> range(long first, long last) {
+        final List<Long> ids = new ArrayList<>();
+        for (long id = first; id <= last; id++) {
+            ids.add(id);
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud;
+
+import net.jpuderer.android.things.taxidatalogger.ChannelRegistry;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class CellAggregatorTest {
+    private static final int PRECISION = 7;
+    private static final double LATITUDE = 45.4215;
+    private static final double LONGITUDE = -75.6972;
+
+    private static final int TEMPERATURE = ChannelRegistry.TEMPERATURE.getIndex();
+    private static final int PM25 = ChannelRegistry.PM25.getIndex();
+
+    private final CellAggregator mAggregator = new CellAggregator(PRECISION);
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBadPrecision() {
+        new CellAggregator(Geohash.MAX_PRECISION + 1);
+    }
+
+    @Test
+    public void aggregatesSamplesInCell() throws Exception {
+        mAggregator.add(LATITUDE, LONGITUDE, mask(TEMPERATURE, PM25), values(20, 10));
+        mAggregator.add(LATITUDE, LONGITUDE, mask(TEMPERATURE, PM25), values(22, 13));
+        mAggregator.add(LATITUDE, LONGITUDE, mask(TEMPERATURE), values(24, 0));
+        assertEquals(1, mAggregator.size());
+
+        final JSONObject cell = append().getJSONObject(0);
+        assertEquals("device", cell.getString("deviceId"));
+        assertEquals(1000, cell.getDouble("time"), 0);
+        assertEquals(300, cell.getInt("bucketSeconds"));
+        assertEquals(Geohash.toString(Geohash.encode(LATITUDE, LONGITUDE, PRECISION),
+                PRECISION), cell.getString("cell"));
+        assertEquals(3, cell.getInt("sampleCount"));
+        assertEquals(22, cell.getDouble("temperature"), 1e-6);
+        assertEquals(20, cell.getDouble("temperatureMin"), 1e-6);
+        assertEquals(24, cell.getDouble("temperatureMax"), 1e-6);
+        // Only the samples that had the channel count towards it, and integers stay integers
+        assertEquals(12, cell.getLong("pm25"));
+        assertEquals(10, cell.getInt("pm25Min"));
+        assertEquals(13, cell.getInt("pm25Max"));
+        assertFalse(cell.has("humidity"));
+    }
+
+    @Test
+    public void placesRecordAtCellCentre() throws Exception {
+        mAggregator.add(LATITUDE, LONGITUDE, 0, values(0, 0));
+        final JSONObject cell = append().getJSONObject(0);
+        final double[] bounds = Geohash.decodeBounds(
+                Geohash.encode(LATITUDE, LONGITUDE, PRECISION), PRECISION);
+        assertEquals((bounds[0] + bounds[2]) / 2, cell.getDouble("latitude"), 1e-9);
+        assertEquals((bounds[1] + bounds[3]) / 2, cell.getDouble("longitude"), 1e-9);
+        // Half the diagonal of a cell of about 153 m by 107 m, at this latitude
+        assertEquals(93, cell.getDouble("accuracy"), 1);
+    }
+
+    @Test
+    public void keepsCellsApart() throws Exception {
+        mAggregator.add(LATITUDE, LONGITUDE, mask(TEMPERATURE), values(20, 0));
+        mAggregator.add(LATITUDE + 0.01, LONGITUDE, mask(TEMPERATURE), values(30, 0));
+        assertEquals(2, mAggregator.size());
+        final JSONArray out = append();
+        assertEquals(2, out.length());
+        final Set<Double> means = new HashSet<>();
+        for (int i = 0; i < out.length(); i++) {
+            assertEquals(1, out.getJSONObject(i).getInt("sampleCount"));
+            means.add(out.getJSONObject(i).getDouble("temperature"));
+        }
+        assertTrue(means.contains(20.0) && means.contains(30.0));
+    }
+
+    @Test
+    public void growsPastInitialCapacity() throws Exception {
+        // Cells along a line, with 1 to 3 samples each, and the cell's number as temperature
+        for (int i = 0; i < 500; i++) {
+            for (int j = 0; j <= i % 3; j++) {
+                mAggregator.add(LATITUDE + i * 0.002, LONGITUDE, mask(TEMPERATURE),
+                        values(i, 0));
+            }
+        }
+        assertEquals(500, mAggregator.size());
+        final JSONArray out = append();
+        assertEquals(500, out.length());
+        for (int k = 0; k < out.length(); k++) {
+            final JSONObject cell = out.getJSONObject(k);
+            final int i = (int) cell.getDouble("temperature");
+            assertEquals(i % 3 + 1, cell.getInt("sampleCount"));
+            assertEquals(i, cell.getDouble("temperatureMin"), 0);
+            assertEquals(i, cell.getDouble("temperatureMax"), 0);
+        }
+    }
+
+    @Test
+    public void clearStartsNewBucket() throws Exception {
+        mAggregator.add(LATITUDE, LONGITUDE, mask(TEMPERATURE), values(20, 0));
+        mAggregator.clear();
+        assertEquals(0, mAggregator.size());
+        assertEquals(0, append().length());
+
+        // Nothing from the last bucket carries over, not even the minimum
+        mAggregator.add(LATITUDE, LONGITUDE, mask(TEMPERATURE), values(30, 0));
+        final JSONObject cell = append().getJSONObject(0);
+        assertEquals(1, cell.getInt("sampleCount"));
+        assertEquals(30, cell.getDouble("temperatureMin"), 0);
+    }
+
+    private JSONArray append() throws Exception {
+        final JSONArray out = new JSONArray();
+        mAggregator.appendTo(out, "device", 1000, 300);
+        return out;
+    }
+
+    private static long mask(int... channels) {
+        long mask = 0;
+        for (int channel : channels) {
+            mask |= 1L << channel;
+        }
+        return mask;
+    }
+
+    private static double[] values(double temperature, double pm25) {
+        final double[] values = new double[ChannelRegistry.size()];
+        values[TEMPERATURE] = temperature;
+        values[PM25] = pm25;
+        return values;
+    }
+}
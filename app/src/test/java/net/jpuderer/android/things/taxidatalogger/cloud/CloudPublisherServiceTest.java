@@ -0,0 +1,467 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud;
+
+import android.content.Context;
+import android.content.Intent;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import net.jpuderer.android.things.taxidatalogger.DatalogDbHelper;
+import net.jpuderer.android.things.taxidatalogger.RawCaptureLog;
+import net.jpuderer.android.things.taxidatalogger.cloud.cloudiot.CloudIotOptions;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the service's publishing passes against a {@link RecordingPublisher}, on the main
+ * looper, to check how the sync cursors move between passes.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CloudPublisherServiceTest {
+    // Start of a five minute aggregation bucket
+    private static final double START_TIME = 1500000000;
+    private static final double ENTRY_INTERVAL_S = 60;
+
+    // See CloudPublisherService
+    private static final int LIVE_LANE_BACKLOG_THRESHOLD = 500;
+    private static final int BACKFILL_ENTRIES_PER_PASS = 1000;
+    private static final int CATCH_UP_BACKLOG_THRESHOLD = 10000;
+    private static final int REPLAY_ENTRIES_PER_PASS = 500;
+
+    private CloudPublisherService mService;
+    private SQLiteDatabase mDatabase;
+    private RecordingPublisher mPrimary;
+    private int mTuningVersion;
+
+    @Before
+    public void setUp() {
+        mService = Robolectric.buildService(CloudPublisherService.class).get();
+        mDatabase = new DatalogDbHelper(mService).getWritableDatabase();
+        mPrimary = new RecordingPublisher();
+        mService.initializeForTesting(mDatabase, mPrimary, createOptions(mService),
+                new Handler(Looper.getMainLooper()));
+    }
+
+    @After
+    public void tearDown() {
+        TuningConfig.setCurrent(TuningConfig.DEFAULT);
+        mDatabase.close();
+    }
+
+    @Test
+    public void sendsSmallBacklogOnBackfillLane() throws Exception {
+        // Nothing has been sent, so the backlog is counted from ID -1
+        log(LIVE_LANE_BACKLOG_THRESHOLD - 1);
+        mService.processCollectedSensorData();
+        assertEquals(range(1, LIVE_LANE_BACKLOG_THRESHOLD - 1),
+                mPrimary.getIds(CloudPublisher.LANE_BACKFILL));
+        assertEquals(0, mPrimary.getIds(CloudPublisher.LANE_LIVE).size());
+        assertEquals(-1, DatalogDbHelper.getLiveStartId(mService));
+    }
+
+    @Test
+    public void liveLaneMergesBackIntoOneCursor() throws Exception {
+        // Too far behind: the newest entry goes first, on the live lane, and the backfill lane
+        // starts on the backlog behind it.
+        final int backlog = 1200;
+        log(backlog);
+        mService.processCollectedSensorData();
+        assertEquals(backlog, DatalogDbHelper.getLiveStartId(mService));
+        assertEquals(range(backlog, backlog), mPrimary.getIds(CloudPublisher.LANE_LIVE));
+        assertEquals(range(1, BACKFILL_ENTRIES_PER_PASS),
+                mPrimary.getIds(CloudPublisher.LANE_BACKFILL));
+        assertEquals(BACKFILL_ENTRIES_PER_PASS, DatalogDbHelper.getLastSyncId(mService));
+
+        // New entries keep going on the live lane, while the backfill catches up, and the lanes
+        // then merge.
+        log(5);
+        mPrimary.clear();
+        mService.processCollectedSensorData();
+        assertEquals(range(backlog + 1, backlog + 5), mPrimary.getIds(CloudPublisher.LANE_LIVE));
+        assertEquals(range(BACKFILL_ENTRIES_PER_PASS + 1, backlog - 1),
+                mPrimary.getIds(CloudPublisher.LANE_BACKFILL));
+        assertEquals(-1, DatalogDbHelper.getLiveStartId(mService));
+        assertEquals(-1, DatalogDbHelper.getLiveSyncedId(mService));
+        assertEquals(backlog + 5, DatalogDbHelper.getLastSyncId(mService));
+
+        // Back to a single cursor, with nothing sent twice
+        log(3);
+        mPrimary.clear();
+        mService.processCollectedSensorData();
+        assertEquals(0, mPrimary.getIds(CloudPublisher.LANE_LIVE).size());
+        assertEquals(range(backlog + 6, backlog + 8),
+                mPrimary.getIds(CloudPublisher.LANE_BACKFILL));
+    }
+
+    @Test
+    public void catchUpHandsBackToBackfill() throws Exception {
+        // Far enough behind to drain the backlog in catch-up mode
+        final int backlog = CATCH_UP_BACKLOG_THRESHOLD + 100;
+        log(backlog);
+        mService.processCollectedSensorData();
+        assertEquals(range(backlog, backlog), mPrimary.getIds(CloudPublisher.LANE_LIVE));
+        assertEquals(range(1, backlog - 1), mPrimary.getIds(CloudPublisher.LANE_BACKFILL));
+        assertEquals(backlog - 1, DatalogDbHelper.getLastSyncId(mService));
+
+        // Once drained, the normal backfill path takes over the cursor, and merges the lanes
+        log(3);
+        mPrimary.clear();
+        mService.processCollectedSensorData();
+        assertEquals(range(backlog + 1, backlog + 3), mPrimary.getIds(CloudPublisher.LANE_LIVE));
+        assertEquals(0, mPrimary.getIds(CloudPublisher.LANE_BACKFILL).size());
+        assertEquals(-1, DatalogDbHelper.getLiveStartId(mService));
+        assertEquals(backlog + 3, DatalogDbHelper.getLastSyncId(mService));
+
+        log(2);
+        mPrimary.clear();
+        mService.processCollectedSensorData();
+        assertEquals(range(backlog + 4, backlog + 5),
+                mPrimary.getIds(CloudPublisher.LANE_BACKFILL));
+    }
+
+    @Test
+    public void resendResetsLiveLane() throws Exception {
+        log(1200);
+        mService.processCollectedSensorData();
+        log(5);
+        mService.processCollectedSensorData();
+        assertEquals(1205, DatalogDbHelper.getLastSyncId(mService));
+
+        // Everything is sent again, from the start.  The backlog is large again, so the live
+        // lane starts over at the newest entry.
+        mPrimary.clear();
+        mService.onStartCommand(
+                new Intent("net.jpuderer.android.things.taxidatalogger.RESEND_DATA"), 0, 1);
+        ShadowLooper.idleMainLooper();
+        assertEquals(-1, DatalogDbHelper.getLiveStartId(mService));
+        assertEquals(-1, DatalogDbHelper.getLastSyncId(mService));
+        mService.processCollectedSensorData();
+        assertEquals(1205, DatalogDbHelper.getLiveStartId(mService));
+        assertEquals(range(1205, 1205), mPrimary.getIds(CloudPublisher.LANE_LIVE));
+        assertEquals(range(1, BACKFILL_ENTRIES_PER_PASS),
+                mPrimary.getIds(CloudPublisher.LANE_BACKFILL));
+    }
+
+    @Test
+    public void clearResetsLiveLane() throws Exception {
+        log(1200);
+        mService.processCollectedSensorData();
+        assertEquals(1200, DatalogDbHelper.getLiveStartId(mService));
+
+        mService.onStartCommand(
+                new Intent("net.jpuderer.android.things.taxidatalogger.CLEAR_DATA"), 0, 1);
+        ShadowLooper.idleMainLooper();
+        assertEquals(-1, DatalogDbHelper.getLiveStartId(mService));
+        assertEquals(-1, DatalogDbHelper.getLiveSyncedId(mService));
+        assertEquals(-1, DatalogDbHelper.getLastSyncId(mService));
+
+        // New entries start from the beginning, on the backfill lane
+        log(3);
+        mPrimary.clear();
+        mService.processCollectedSensorData();
+        assertEquals(range(1, 3), mPrimary.getIds(CloudPublisher.LANE_BACKFILL));
+        assertEquals(0, mPrimary.getIds(CloudPublisher.LANE_LIVE).size());
+    }
+
+    @Test
+    public void aggregateCursorHandsOffBetweenRawAndCells() throws Exception {
+        // Five entries per bucket: 1-5, 6-10, 11-15, ...
+        log(10);
+        mService.processCollectedSensorData();
+        assertEquals(range(1, 10), mPrimary.getIds(CloudPublisher.LANE_BACKFILL));
+        assertEquals(10, DatalogDbHelper.getLastSyncId(mService));
+
+        // Aggregation starts where the entries left off.  The bucket which is still open (16-20)
+        // is left for the next pass.
+        setAggregation(TuningConfig.AGGREGATION_CELLS);
+        log(10);
+        mPrimary.clear();
+        mService.processCollectedSensorData();
+        assertEquals(5, getAggregatedSamples());
+        assertEquals(15, DatalogDbHelper.getAggregateSyncedId(mService));
+        assertEquals(15, DatalogDbHelper.getLastSyncId(mService));
+
+        // Back to raw, the entries pick up where the aggregates left off
+        setAggregation(TuningConfig.AGGREGATION_RAW);
+        mPrimary.clear();
+        mService.processCollectedSensorData();
+        assertEquals(range(16, 20), mPrimary.getIds(CloudPublisher.LANE_BACKFILL));
+        assertEquals(0, getAggregatedSamples());
+        assertEquals(-1, DatalogDbHelper.getAggregateSyncedId(mService));
+
+        // And cells again, without aggregating anything that was already sent
+        setAggregation(TuningConfig.AGGREGATION_CELLS);
+        log(10);
+        mPrimary.clear();
+        mService.processCollectedSensorData();
+        assertEquals(5, getAggregatedSamples());
+        assertEquals(25, DatalogDbHelper.getAggregateSyncedId(mService));
+        assertEquals(25, DatalogDbHelper.getLastSyncId(mService));
+    }
+
+    @Test
+    public void cellsStartAfterEntriesAlreadySent() throws Exception {
+        log(25);
+        // Entries were sent (or exported) past a stale aggregate cursor
+        DatalogDbHelper.setLastSyncId(mService, 15);
+        DatalogDbHelper.setAggregateSyncedId(mService, 5);
+        setAggregation(TuningConfig.AGGREGATION_CELLS);
+        mService.processCollectedSensorData();
+        // Only the bucket of 16-20 is aggregated, and the entries' cursor never goes back
+        assertEquals(5, getAggregatedSamples());
+        assertEquals(20, DatalogDbHelper.getLastSyncId(mService));
+    }
+
+    @Test
+    public void publishesRawCaptureFiles() throws Exception {
+        final File directory = RawCaptureLog.getDirectory(mService);
+        assertTrue(directory.mkdirs());
+        final byte[] complete = gzip(1000);
+        final byte[] recovered = Arrays.copyOf(gzip(2000), 100);
+        write(new File(directory, "raw-0000000000000000002.bin.gz"), complete);
+        write(new File(directory, "raw-0000000000000000001-recovered.bin.gz"), recovered);
+        mService.processCollectedSensorData();
+
+        final List<RecordingPublisher.Message> messages = mPrimary.getMessages();
+        assertEquals(2, messages.size());
+        // In order, and the recovered file's length isn't read from where its trailer would be
+        assertArrayEquals(recovered, messages.get(0).payload.getData());
+        assertEquals(-1, messages.get(0).payload.getDecodedLength());
+        assertArrayEquals(complete, messages.get(1).payload.getData());
+        assertEquals(1000, messages.get(1).payload.getDecodedLength());
+        assertEquals(0, directory.list().length);
+    }
+
+    @Test
+    public void exportsOnlyToExternalStorage() throws Exception {
+        log(5);
+        final File internal = new File(mService.getFilesDir(), "export");
+        mService.onStartCommand(exportIntent(internal), 0, 1);
+        ShadowLooper.idleMainLooper();
+        assertFalse(internal.exists());
+        assertEquals(-1, DatalogDbHelper.getLastSyncId(mService));
+
+        final File external = new File(Environment.getExternalStorageDirectory(), "export");
+        mService.onStartCommand(exportIntent(external), 0, 2);
+        ShadowLooper.idleMainLooper();
+        assertEquals(1, external.list().length);
+        assertEquals(5, DatalogDbHelper.getLastSyncId(mService));
+    }
+
+    @Test
+    public void replaysTimeRangeAcrossUpgrade() throws Exception {
+        // Entries logged by version 6, before the time index and packed channel data
+        mDatabase.close();
+        mService.deleteDatabase(DatalogDbHelper.DATABASE_NAME);
+        final SQLiteDatabase old = mService.openOrCreateDatabase(DatalogDbHelper.DATABASE_NAME,
+                Context.MODE_PRIVATE, null);
+        old.execSQL("CREATE TABLE datalog (_id INTEGER PRIMARY KEY, time REAL, latitude REAL, " +
+                "longitude REAL, accuracy REAL, altitude REAL, verticalAccuracy REAL, " +
+                "temperature REAL, humidity REAL, pressure REAL, pm25 INTEGER, pm10 INTEGER)");
+        for (int id = 1; id <= 10; id++) {
+            old.execSQL("INSERT INTO datalog VALUES (" + id + ", " +
+                    (START_TIME + (id - 1) * ENTRY_INTERVAL_S) + ", 45, -75, 5, 100, 10, " +
+                    "20, 50, 1000, 5, 10)");
+        }
+        old.setVersion(6);
+        old.close();
+
+        mDatabase = new DatalogDbHelper(mService).getWritableDatabase();
+        mService.initializeForTesting(mDatabase, mPrimary, createOptions(mService),
+                new Handler(Looper.getMainLooper()));
+        log(10);
+        DatalogDbHelper.setLastSyncId(mService, 20);
+        // The upgrade added the index the time range is looked up with
+        assertEquals(1, DatabaseUtils.longForQuery(mDatabase, "SELECT COUNT(*) FROM " +
+                "sqlite_master WHERE type = 'index' AND name = 'datalog_time_idx'", null));
+
+        // From the fifth entry up to, but not including, the fifteenth
+        mService.onStartCommand(replayIntent(START_TIME + 4 * ENTRY_INTERVAL_S,
+                START_TIME + 14 * ENTRY_INTERVAL_S), 0, 1);
+        ShadowLooper.idleMainLooper();
+        mService.processCollectedSensorData();
+        assertEquals(range(5, 14), mPrimary.getIds(CloudPublisher.LANE_REPLAY));
+        assertEquals(-1, DatalogDbHelper.getReplayEndId(mService));
+    }
+
+    @Test
+    public void replayReplacesReplayInProgress() throws Exception {
+        final int count = 3 * REPLAY_ENTRIES_PER_PASS;
+        log(count);
+        DatalogDbHelper.setLastSyncId(mService, count);
+        mPrimary.deliverCommand("{\"command\": \"replay\", \"startId\": 1, \"endId\": " +
+                count + "}");
+        ShadowLooper.idleMainLooper();
+        mService.processCollectedSensorData();
+        assertEquals(range(1, REPLAY_ENTRIES_PER_PASS),
+                mPrimary.getIds(CloudPublisher.LANE_REPLAY));
+        assertEquals(count, DatalogDbHelper.getReplayEndId(mService));
+
+        // The rest of the first replay is dropped
+        mPrimary.clear();
+        mPrimary.deliverCommand("{\"command\": \"replay\", \"startId\": 1100, " +
+                "\"endId\": 1150}");
+        ShadowLooper.idleMainLooper();
+        mService.processCollectedSensorData();
+        assertEquals(range(1100, 1150), mPrimary.getIds(CloudPublisher.LANE_REPLAY));
+        assertEquals(-1, DatalogDbHelper.getReplayEndId(mService));
+        mPrimary.clear();
+        mService.processCollectedSensorData();
+        assertEquals(0, mPrimary.getIds(CloudPublisher.LANE_REPLAY).size());
+    }
+
+    @Test
+    public void appliesConfigurationFromPublisher() throws Exception {
+        deliverConfig("{\"version\": 2, \"aggregation\": \"cells\"}");
+        assertEquals(TuningConfig.AGGREGATION_CELLS, TuningConfig.getCurrent().getAggregation());
+        // Redelivered, or out of date
+        deliverConfig("{\"version\": 2, \"aggregation\": \"raw\"}");
+        deliverConfig("{\"version\": 1, \"aggregation\": \"raw\"}");
+        assertEquals(2, TuningConfig.getCurrent().getVersion());
+        assertEquals(TuningConfig.AGGREGATION_CELLS, TuningConfig.getCurrent().getAggregation());
+        // Wrongly typed
+        deliverConfig("{\"version\": 3, \"publishDelayMs\": \"abc\"}");
+        assertEquals(2, TuningConfig.getCurrent().getVersion());
+    }
+
+    @Test
+    public void destroyClosesPublisher() throws Exception {
+        final CloudPublisherService service =
+                Robolectric.buildService(CloudPublisherService.class).get();
+        final HandlerThread thread = new HandlerThread("CloudPublisherServiceTest");
+        thread.start();
+        final RecordingPublisher primary = new RecordingPublisher();
+        service.initializeForTesting(mDatabase, primary, createOptions(service),
+                new Handler(thread.getLooper()));
+        service.onDestroy();
+        thread.join(5000);
+        assertTrue(primary.isClosed());
+    }
+
+    /**
+     * Deliver a configuration, and run what the service posts to handle it.
+     */
+    private void deliverConfig(String json) {
+        mPrimary.deliverConfig(json);
+        ShadowLooper.idleMainLooper();
+    }
+
+    private static Intent exportIntent(File directory) {
+        return new Intent("net.jpuderer.android.things.taxidatalogger.EXPORT_DATA")
+                .putExtra("path", directory.getPath());
+    }
+
+    private static Intent replayIntent(double startTime, double endTime) {
+        return new Intent("net.jpuderer.android.things.taxidatalogger.REPLAY_DATA")
+                .putExtra("start_time", (long) startTime)
+                .putExtra("end_time", (long) endTime);
+    }
+
+    private static byte[] gzip(int length) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(new byte[length]);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+    }
+
+    private static CloudIotOptions createOptions(Context context) {
+        final Bundle bundle = new Bundle();
+        bundle.putString("device_id", "test-device");
+        return CloudIotOptions.reconfigure(CloudIotOptions.from(
+                context.getSharedPreferences("test", Context.MODE_PRIVATE)), bundle);
+    }
+
+    private void setAggregation(String aggregation) {
+        TuningConfig.setCurrent(TuningConfig.parse("{\"version\": " + (++mTuningVersion) +
+                ", \"aggregation\": \"" + aggregation + "\"}"));
+    }
+
+    private void log(int count) {
+        mDatabase.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                final long id = DatalogDbHelper.getNewestId(mDatabase);
+                DatalogDbHelper.log(mDatabase, START_TIME + Math.max(0, id) * ENTRY_INTERVAL_S,
+                        45, -75, 5, 100, 10, 0, new byte[0]);
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    /**
+     * Returns the number of entries summarized by the cell aggregates published so far.
+     */
+    private int getAggregatedSamples() throws JSONException {
+        int samples = 0;
+        for (RecordingPublisher.Message message : mPrimary.getMessages()) {
+            if (message.payload.getFirstId() >= 0) {
+                continue;
+            }
+            final JSONArray records = new JSONArray(
+                    new String(message.payload.getData(), StandardCharsets.UTF_8));
+            for (int i = 0; i < records.length(); i++) {
+                samples += records.getJSONObject(i).getInt("sampleCount");
+            }
+        }
+        return samples;
+    }
+
+    private static List<Long> range(long first, long last) {
+        final List<Long> ids = new ArrayList<>();
+        for (long id = first; id <= last; id++) {
+            ids.add(id);
+        }
+        return ids;
+    }
+}
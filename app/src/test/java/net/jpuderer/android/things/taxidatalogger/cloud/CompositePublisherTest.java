@@ -0,0 +1,193 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+
+import net.jpuderer.android.things.taxidatalogger.DatalogDbHelper;
+import net.jpuderer.android.things.taxidatalogger.cloud.cloudiot.CloudIotOptions;
+
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class CompositePublisherTest {
+    private static final long TIMEOUT_MS = 10000;
+
+    private Context mContext;
+    private SQLiteDatabase mDatabase;
+    private CloudIotOptions mOptions;
+    private RecordingPublisher mPrimary;
+    private RecordingPublisher mSink;
+    private CompositePublisher mPublisher;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mDatabase = new DatalogDbHelper(mContext).getWritableDatabase();
+        final Bundle bundle = new Bundle();
+        bundle.putString("device_id", "test-device");
+        mOptions = CloudIotOptions.reconfigure(CloudIotOptions.from(
+                mContext.getSharedPreferences("test", Context.MODE_PRIVATE)), bundle);
+        mPrimary = new RecordingPublisher();
+        mSink = new RecordingPublisher();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mPublisher != null) {
+            mPublisher.close();
+        }
+        mDatabase.close();
+    }
+
+    @Test
+    public void sinkReadsEntriesWithoutThePrimary() throws Exception {
+        // The primary is offline, and nothing is published through it
+        mPrimary.setReady(false);
+        log(5);
+        start();
+        assertTrue(mSink.awaitId(CloudPublisher.LANE_BACKFILL, 5, TIMEOUT_MS));
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L), mSink.getIds(CloudPublisher.LANE_BACKFILL));
+        assertTrue(mPrimary.getMessages().isEmpty());
+        assertEquals(5, DatalogDbHelper.getSinkSyncedId(mContext, "test"));
+    }
+
+    @Test
+    public void sinkSendsEntriesAsJson() throws Exception {
+        log(3);
+        start();
+        assertTrue(mSink.awaitId(CloudPublisher.LANE_BACKFILL, 3, TIMEOUT_MS));
+        final Payload payload = mSink.getMessages().get(0).payload;
+        assertEquals(Payload.ENCODING_IDENTITY, payload.getEncoding());
+        final JSONArray entries =
+                new JSONArray(new String(payload.getData(), StandardCharsets.UTF_8));
+        assertEquals(3, entries.length());
+        assertEquals("test-device", entries.getJSONObject(0).getString("deviceId"));
+    }
+
+    @Test
+    public void sinkIsWokenByNewEntries() throws Exception {
+        start();
+        log(2);
+        // Well before the poll interval
+        mPublisher.onNewEntries();
+        assertTrue(mSink.awaitId(CloudPublisher.LANE_BACKFILL, 2, TIMEOUT_MS));
+    }
+
+    @Test
+    public void newSinkStartsWhereThePrimaryIs() throws Exception {
+        log(5);
+        DatalogDbHelper.setLastSyncId(mContext, 3);
+        start();
+        assertTrue(mSink.awaitId(CloudPublisher.LANE_BACKFILL, 5, TIMEOUT_MS));
+        assertEquals(Arrays.asList(4L, 5L), mSink.getIds(CloudPublisher.LANE_BACKFILL));
+    }
+
+    @Test
+    public void sinkResumesFromItsCursorAfterRestart() throws Exception {
+        log(3);
+        start();
+        assertTrue(mSink.awaitId(CloudPublisher.LANE_BACKFILL, 3, TIMEOUT_MS));
+        mPublisher.close();
+        assertTrue(mSink.isClosed());
+
+        // Logged while the sink wasn't running
+        log(2);
+        mSink = new RecordingPublisher();
+        start();
+        assertTrue(mSink.awaitId(CloudPublisher.LANE_BACKFILL, 5, TIMEOUT_MS));
+        assertEquals(Arrays.asList(4L, 5L), mSink.getIds(CloudPublisher.LANE_BACKFILL));
+    }
+
+    @Test
+    public void sinkRetriesFailedSendsInOrder() throws Exception {
+        mSink.failNext(2);
+        log(3);
+        start();
+        assertTrue(mSink.awaitId(CloudPublisher.LANE_BACKFILL, 3, TIMEOUT_MS));
+        log(2);
+        mPublisher.onNewEntries();
+        assertTrue(mSink.awaitId(CloudPublisher.LANE_BACKFILL, 5, TIMEOUT_MS));
+        // Nothing dropped, nothing sent twice
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L), mSink.getIds(CloudPublisher.LANE_BACKFILL));
+    }
+
+    @Test
+    public void sinkResendsAfterSyncStateReset() throws Exception {
+        log(3);
+        start();
+        assertTrue(mSink.awaitId(CloudPublisher.LANE_BACKFILL, 3, TIMEOUT_MS));
+        mSink.clear();
+        DatalogDbHelper.resetSyncState(mContext);
+        mPublisher.onNewEntries();
+        assertTrue(mSink.awaitId(CloudPublisher.LANE_BACKFILL, 3, TIMEOUT_MS));
+        assertEquals(Arrays.asList(1L, 2L, 3L), mSink.getIds(CloudPublisher.LANE_BACKFILL));
+    }
+
+    @Test
+    public void publishGoesToThePrimaryOnly() throws Exception {
+        start();
+        final byte[] data = "[]".getBytes(StandardCharsets.UTF_8);
+        mPublisher.publish(new Payload(data, Payload.ENCODING_IDENTITY, data.length)
+                .withIdRange(7, 8), CloudPublisher.LANE_LIVE);
+        final List<RecordingPublisher.Message> messages = mPrimary.getMessages();
+        assertEquals(1, messages.size());
+        assertEquals(CloudPublisher.LANE_LIVE, messages.get(0).lane);
+        // The sinks only ever get what is in the database
+        Thread.sleep(100);
+        assertEquals(Collections.<Long>emptyList(), mSink.getIds(CloudPublisher.LANE_LIVE));
+        assertTrue(mSink.getMessages().isEmpty());
+    }
+
+    @Test
+    public void closeClosesEverySink() throws Exception {
+        start();
+        mPublisher.close();
+        mPublisher = null;
+        assertTrue(mSink.isClosed());
+    }
+
+    private void start() {
+        final Map<String, CloudPublisher> sinks = new LinkedHashMap<>();
+        sinks.put("test", mSink);
+        mPublisher = new CompositePublisher(mContext, mDatabase, mPrimary, mOptions, sinks);
+    }
+
+    private void log(int count) {
+        for (int i = 0; i < count; i++) {
+            DatalogDbHelper.log(mDatabase, 1500000000 + DatalogDbHelper.getNewestId(mDatabase),
+                    45, -75, 5, 100, 10, 0, new byte[0]);
+        }
+    }
+}
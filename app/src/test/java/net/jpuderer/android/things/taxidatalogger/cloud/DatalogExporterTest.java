@@ -0,0 +1,175 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+
+import net.jpuderer.android.things.taxidatalogger.DatalogDbHelper;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class DatalogExporterTest {
+    private static final int CHUNK_ENTRIES = 10;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final Context mContext = RuntimeEnvironment.application;
+    private SQLiteDatabase mDatabase;
+    private File mDirectory;
+
+    @Before
+    public void setUp() {
+        mDatabase = new DatalogDbHelper(mContext).getWritableDatabase();
+        mDirectory = new File(mFolder.getRoot(), "export");
+    }
+
+    @After
+    public void tearDown() {
+        mDatabase.close();
+    }
+
+    @Test
+    public void exportsEntriesInChunks() throws Exception {
+        log(25);
+        assertEquals(25, exporter().export(-1, Long.MAX_VALUE));
+        assertEquals(Arrays.asList(
+                "datalog-test-device-0000000001-0000000010.jsonl.gz",
+                "datalog-test-device-0000000011-0000000020.jsonl.gz",
+                "datalog-test-device-0000000021-0000000025.jsonl.gz"), listFiles());
+        assertEquals(25, DatalogDbHelper.getLastSyncId(mContext));
+
+        // Each line is an entry, as it would have been published, in order
+        final List<JSONObject> entries = new ArrayList<>();
+        for (String name : listFiles()) {
+            entries.addAll(readEntries(new File(mDirectory, name)));
+        }
+        assertEquals(25, entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            assertEquals("test-device", entries.get(i).getString("deviceId"));
+            assertEquals(1500000000 + i, entries.get(i).getDouble("time"), 0);
+        }
+    }
+
+    @Test
+    public void exportsOnlyTheGivenRange() throws Exception {
+        log(25);
+        assertEquals(9, exporter().export(5, 15));
+        assertEquals(Collections.singletonList(
+                "datalog-test-device-0000000006-0000000014.jsonl.gz"), listFiles());
+        assertEquals(14, DatalogDbHelper.getLastSyncId(mContext));
+    }
+
+    @Test
+    public void leavesNothingBehindWithNothingToExport() throws Exception {
+        log(5);
+        assertEquals(0, exporter().export(5, Long.MAX_VALUE));
+        assertEquals(Collections.<String>emptyList(), listFiles());
+        assertEquals(0, mDirectory.list().length);
+        assertEquals(-1, DatalogDbHelper.getLastSyncId(mContext));
+    }
+
+    @Test
+    public void leavesCursorAloneOnFailure() throws Exception {
+        log(5);
+        // In the way of the directory
+        assertTrue(mDirectory.createNewFile());
+        try {
+            exporter().export(-1, Long.MAX_VALUE);
+            fail("Exported into a file");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertEquals(-1, DatalogDbHelper.getLastSyncId(mContext));
+    }
+
+    @Test
+    public void checksDirectoryIsInsideRoots() throws Exception {
+        final File root = mFolder.newFolder("storage");
+        final List<File> roots = Collections.singletonList(root);
+        assertTrue(DatalogExporter.isInside(root, roots));
+        assertTrue(DatalogExporter.isInside(new File(root, "export"), roots));
+        assertTrue(DatalogExporter.isInside(new File(root, "a/../export"), roots));
+        assertFalse(DatalogExporter.isInside(new File(root, "../elsewhere"), roots));
+        // Sharing a prefix isn't enough
+        assertFalse(DatalogExporter.isInside(new File(root.getPath() + "2"), roots));
+        assertFalse(DatalogExporter.isInside(mContext.getFilesDir(), roots));
+    }
+
+    private DatalogExporter exporter() {
+        return new DatalogExporter(mContext, mDatabase, "test-device", mDirectory,
+                CHUNK_ENTRIES);
+    }
+
+    private void log(int count) {
+        for (int i = 0; i < count; i++) {
+            DatalogDbHelper.log(mDatabase, 1500000000 + i, 45, -75, 5, 100, 10, 0, new byte[0]);
+        }
+    }
+
+    private List<String> listFiles() {
+        final List<String> names = new ArrayList<>();
+        final String[] list = mDirectory.list();
+        if (list != null) {
+            for (String name : list) {
+                if (name.endsWith(".jsonl.gz")) {
+                    names.add(name);
+                }
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    private static List<JSONObject> readEntries(File file) throws Exception {
+        final List<JSONObject> entries = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(file)), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                entries.add(new JSONObject(line));
+            }
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class FileSinkPublisherTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private FileSinkPublisher mPublisher;
+
+    @After
+    public void tearDown() {
+        if (mPublisher != null) {
+            mPublisher.close();
+        }
+    }
+
+    @Test
+    public void appendsRecords() throws IOException {
+        final File file = new File(mFolder.getRoot(), "sink.bin");
+        mPublisher = new FileSinkPublisher(file);
+        mPublisher.publish(payload(1, 3, "first"), CloudPublisher.LANE_BACKFILL);
+        mPublisher.publish(new Payload(new byte[] {1, 2, 3}, Payload.ENCODING_DEFLATE, 10)
+                .withIdRange(4, 9), CloudPublisher.LANE_LIVE);
+
+        final List<Record> records = read(file);
+        assertEquals(2, records.size());
+        assertEquals(Payload.ENCODING_IDENTITY, records.get(0).encoding);
+        assertEquals(CloudPublisher.LANE_BACKFILL, records.get(0).lane);
+        assertEquals(1, records.get(0).firstId);
+        assertEquals(3, records.get(0).lastId);
+        assertArrayEquals("first".getBytes(StandardCharsets.UTF_8), records.get(0).data);
+        assertEquals(Payload.ENCODING_DEFLATE, records.get(1).encoding);
+        assertEquals(CloudPublisher.LANE_LIVE, records.get(1).lane);
+        assertEquals(4, records.get(1).firstId);
+        assertEquals(9, records.get(1).lastId);
+        assertArrayEquals(new byte[] {1, 2, 3}, records.get(1).data);
+    }
+
+    @Test
+    public void appendsAfterReopening() throws IOException {
+        final File file = new File(mFolder.getRoot(), "sink.bin");
+        mPublisher = new FileSinkPublisher(file);
+        mPublisher.publish(payload(1, 1, "first"), CloudPublisher.LANE_BACKFILL);
+        mPublisher.close();
+        mPublisher = new FileSinkPublisher(file);
+        mPublisher.publish(payload(2, 2, "second"), CloudPublisher.LANE_BACKFILL);
+
+        final List<Record> records = read(file);
+        assertEquals(2, records.size());
+        assertEquals(1, records.get(0).firstId);
+        assertEquals(2, records.get(1).firstId);
+    }
+
+    @Test
+    public void rotatesFullFile() throws IOException {
+        final File file = new File(mFolder.getRoot(), "sink.bin");
+        final File rotated = new File(mFolder.getRoot(), "sink.bin.1");
+        mPublisher = new FileSinkPublisher(file, 100);
+        mPublisher.publish(payload(1, 1, repeat('a', 120)), CloudPublisher.LANE_BACKFILL);
+        assertFalse(rotated.exists());
+        // Moved aside before the next record
+        mPublisher.publish(payload(2, 2, "second"), CloudPublisher.LANE_BACKFILL);
+        assertTrue(rotated.exists());
+        assertEquals(1, read(rotated).get(0).firstId);
+        assertEquals(2, read(file).get(0).firstId);
+
+        // And only the last full file is kept
+        mPublisher.publish(payload(3, 3, repeat('b', 120)), CloudPublisher.LANE_BACKFILL);
+        mPublisher.publish(payload(4, 4, "fourth"), CloudPublisher.LANE_BACKFILL);
+        final List<Record> old = read(rotated);
+        assertEquals(2, old.size());
+        assertEquals(2, old.get(0).firstId);
+        assertEquals(3, old.get(1).firstId);
+        assertEquals(4, read(file).get(0).firstId);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void throwsWhenUnableToWrite() {
+        mPublisher = new FileSinkPublisher(new File(mFolder.getRoot(), "missing/sink.bin"));
+        mPublisher.publish(payload(1, 1, "first"), CloudPublisher.LANE_BACKFILL);
+    }
+
+    private static Payload payload(long firstId, long lastId, String message) {
+        final byte[] data = message.getBytes(StandardCharsets.UTF_8);
+        return new Payload(data, Payload.ENCODING_IDENTITY, data.length)
+                .withIdRange(firstId, lastId);
+    }
+
+    private static String repeat(char c, int count) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+
+    private static class Record {
+        String encoding;
+        int lane;
+        long firstId;
+        long lastId;
+        byte[] data;
+    }
+
+    private static List<Record> read(File file) throws IOException {
+        final List<Record> records = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                final Record record = new Record();
+                try {
+                    record.encoding = in.readUTF();
+                } catch (EOFException e) {
+                    return records;
+                }
+                record.lane = in.readInt();
+                record.firstId = in.readLong();
+                record.lastId = in.readLong();
+                record.data = new byte[in.readInt()];
+                in.readFully(record.data);
+                records.add(record);
+            }
+        }
+    }
+}
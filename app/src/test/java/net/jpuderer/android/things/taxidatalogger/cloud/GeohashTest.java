@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class GeohashTest {
+    @Test
+    public void encodesKnownCells() {
+        assertEquals("ezs42", Geohash.toString(Geohash.encode(42.6, -5.6, 5), 5));
+        assertEquals("u4pruydqqvj",
+                Geohash.toString(Geohash.encode(57.64911, 10.40744, 11), 11));
+        assertEquals("s0000", Geohash.toString(Geohash.encode(0, 0, 5), 5));
+    }
+
+    @Test
+    public void shorterPrecisionIsPrefix() {
+        final String full = Geohash.toString(Geohash.encode(45.4215, -75.6972, 12), 12);
+        for (int precision = 1; precision < 12; precision++) {
+            assertEquals(full.substring(0, precision), Geohash.toString(
+                    Geohash.encode(45.4215, -75.6972, precision), precision));
+        }
+    }
+
+    @Test
+    public void boundsContainPoint() {
+        final double latitude = 45.4215;
+        final double longitude = -75.6972;
+        for (int precision = 1; precision <= Geohash.MAX_PRECISION; precision++) {
+            final double[] bounds = Geohash.decodeBounds(
+                    Geohash.encode(latitude, longitude, precision), precision);
+            assertTrue(bounds[0] <= latitude && latitude < bounds[2]);
+            assertTrue(bounds[1] <= longitude && longitude < bounds[3]);
+        }
+    }
+
+    @Test
+    public void cellSizeAtPrecision7() {
+        // About 153 m by 153 m at the equator
+        final double[] bounds = Geohash.decodeBounds(Geohash.encode(0.0001, 0.0001, 7), 7);
+        assertEquals(180 / Math.pow(2, 17), bounds[2] - bounds[0], 1e-12);
+        assertEquals(360 / Math.pow(2, 18), bounds[3] - bounds[1], 1e-12);
+    }
+
+    @Test
+    public void onlyNearbyPointsShareCell() {
+        final long cell = Geohash.encode(45.4215, -75.6972, 7);
+        assertEquals(cell, Geohash.encode(45.42151, -75.69721, 7));
+        assertNotEquals(cell, Geohash.encode(45.4235, -75.6972, 7));
+    }
+}
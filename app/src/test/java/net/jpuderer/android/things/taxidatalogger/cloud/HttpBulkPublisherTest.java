@@ -0,0 +1,196 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud;
+
+import android.content.Context;
+import android.os.Bundle;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import net.jpuderer.android.things.taxidatalogger.cloud.cloudiot.CloudIotOptions;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class HttpBulkPublisherTest {
+    private HttpServer mServer;
+    private final List<Request> mRequests = new ArrayList<>();
+    private volatile int mStatus = 204;
+
+    private static class Request {
+        String method;
+        String contentType;
+        String encoding;
+        String deviceId;
+        String lane;
+        byte[] body;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/ingest", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                final Request request = new Request();
+                request.method = exchange.getRequestMethod();
+                request.contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+                request.encoding = exchange.getRequestHeaders().getFirst("X-Payload-Encoding");
+                request.deviceId = exchange.getRequestHeaders().getFirst("X-Device-Id");
+                request.lane = exchange.getRequestHeaders().getFirst("X-Lane");
+                request.body = readFully(exchange.getRequestBody());
+                synchronized (mRequests) {
+                    mRequests.add(request);
+                }
+                final byte[] response = "error".getBytes(StandardCharsets.UTF_8);
+                if (mStatus == 204) {
+                    exchange.sendResponseHeaders(mStatus, -1);
+                } else {
+                    exchange.sendResponseHeaders(mStatus, response.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(response);
+                    }
+                }
+                exchange.close();
+            }
+        });
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    @Test
+    public void postsPayloadWithHeaders() {
+        final HttpBulkPublisher publisher = new HttpBulkPublisher(options(url()));
+        assertTrue(publisher.isReady());
+        final byte[] data = "[{\"time\":1}]".getBytes(StandardCharsets.UTF_8);
+        publisher.publish(new Payload(data, Payload.ENCODING_IDENTITY, data.length),
+                CloudPublisher.LANE_LIVE);
+        final byte[] compressed = {1, 2, 3, 4};
+        publisher.publish(new Payload(compressed, Payload.ENCODING_DEFLATE_DICT, 100),
+                CloudPublisher.LANE_BACKFILL);
+
+        assertEquals(2, mRequests.size());
+        final Request json = mRequests.get(0);
+        assertEquals("POST", json.method);
+        assertEquals("application/json", json.contentType);
+        assertEquals(Payload.ENCODING_IDENTITY, json.encoding);
+        assertEquals("test-device", json.deviceId);
+        assertEquals(Integer.toString(CloudPublisher.LANE_LIVE), json.lane);
+        assertArrayEquals(data, json.body);
+        final Request binary = mRequests.get(1);
+        assertEquals("application/octet-stream", binary.contentType);
+        assertEquals(Payload.ENCODING_DEFLATE_DICT, binary.encoding);
+        assertEquals(Integer.toString(CloudPublisher.LANE_BACKFILL), binary.lane);
+        assertArrayEquals(compressed, binary.body);
+    }
+
+    @Test
+    public void throwsOnErrorStatus() {
+        mStatus = 503;
+        final HttpBulkPublisher publisher = new HttpBulkPublisher(options(url()));
+        try {
+            publisher.publish(payload(), CloudPublisher.LANE_BACKFILL);
+            fail("Accepted HTTP " + mStatus);
+        } catch (IllegalStateException e) {
+            // expected, so the batch is retried
+        }
+        // And works again once the server does
+        mStatus = 200;
+        publisher.publish(payload(), CloudPublisher.LANE_BACKFILL);
+        assertEquals(2, mRequests.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void throwsWhenUnreachable() {
+        final String url = url();
+        mServer.stop(0);
+        new HttpBulkPublisher(options(url)).publish(payload(), CloudPublisher.LANE_BACKFILL);
+    }
+
+    @Test
+    public void isNotReadyWithoutUrl() {
+        final HttpBulkPublisher publisher = new HttpBulkPublisher(options(""));
+        assertFalse(publisher.isReady());
+        try {
+            publisher.publish(payload(), CloudPublisher.LANE_BACKFILL);
+            fail("Published without a URL");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        // Until one is configured
+        publisher.reconfigure(options(url()));
+        assertTrue(publisher.isReady());
+        publisher.publish(payload(), CloudPublisher.LANE_BACKFILL);
+        assertEquals(1, mRequests.size());
+    }
+
+    private String url() {
+        return "http://" + mServer.getAddress().getHostString() + ":" +
+                mServer.getAddress().getPort() + "/ingest";
+    }
+
+    private static CloudIotOptions options(String url) {
+        final Context context = RuntimeEnvironment.application;
+        final Bundle bundle = new Bundle();
+        bundle.putString("device_id", "test-device");
+        bundle.putString("http_sink_url", url);
+        return CloudIotOptions.reconfigure(CloudIotOptions.from(
+                context.getSharedPreferences("test", Context.MODE_PRIVATE)), bundle);
+    }
+
+    private static Payload payload() {
+        final byte[] data = "[]".getBytes(StandardCharsets.UTF_8);
+        return new Payload(data, Payload.ENCODING_IDENTITY, data.length);
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class LogSinkPublisherTest {
+    private final LogSinkPublisher mPublisher = new LogSinkPublisher();
+
+    @Test
+    public void keepsPayloadsInOrder() {
+        assertTrue(mPublisher.isReady());
+        mPublisher.publish(payload(1), CloudPublisher.LANE_BACKFILL);
+        mPublisher.publish(payload(2), CloudPublisher.LANE_LIVE);
+        final List<Payload> recent = mPublisher.getRecentPayloads();
+        assertEquals(2, recent.size());
+        assertEquals(1, recent.get(0).getFirstId());
+        assertEquals(2, recent.get(1).getFirstId());
+    }
+
+    @Test
+    public void keepsOnlyTheMostRecentPayloads() {
+        for (int i = 1; i <= 20; i++) {
+            mPublisher.publish(payload(i), CloudPublisher.LANE_BACKFILL);
+        }
+        final List<Payload> recent = mPublisher.getRecentPayloads();
+        assertEquals(16, recent.size());
+        assertEquals(5, recent.get(0).getFirstId());
+        assertEquals(20, recent.get(15).getFirstId());
+    }
+
+    private static Payload payload(long id) {
+        final byte[] data = ("[" + id + "]").getBytes(StandardCharsets.UTF_8);
+        return new Payload(data, Payload.ENCODING_IDENTITY, data.length).withIdRange(id, id);
+    }
+}
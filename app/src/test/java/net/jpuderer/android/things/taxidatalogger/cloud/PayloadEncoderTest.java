@@ -0,0 +1,170 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class PayloadEncoderTest {
+    private PayloadEncoder mEncoder;
+
+    @Before
+    public void setUp() {
+        mEncoder = new PayloadEncoder(true, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    @After
+    public void tearDown() {
+        mEncoder.close();
+    }
+
+    @Test
+    public void uncompressedPayloadIsTheMessage() throws JSONException {
+        final String message = createBatch(5, 1);
+        try (PayloadEncoder encoder = new PayloadEncoder(false, 0)) {
+            final Payload payload = encoder.encode(message);
+            assertEquals(Payload.ENCODING_IDENTITY, payload.getEncoding());
+            assertArrayEquals(message.getBytes(StandardCharsets.UTF_8), payload.getData());
+        }
+    }
+
+    @Test
+    public void smallBatchesUseTheDictionary() throws Exception {
+        final String message = createBatch(1, 1);
+        final Payload payload = mEncoder.encode(message);
+        assertEquals(Payload.ENCODING_DEFLATE_DICT, payload.getEncoding());
+        assertEquals(message.length(), payload.getDecodedLength());
+        assertEquals(message, inflate(payload.getData(), PayloadEncoder.PRESET_DICTIONARY));
+    }
+
+    @Test
+    public void largeBatchesDoNotUseTheDictionary() throws Exception {
+        final String message = createBatch(50, 1);
+        final Payload payload = mEncoder.encode(message);
+        assertEquals(Payload.ENCODING_DEFLATE, payload.getEncoding());
+        assertEquals(message, inflate(payload.getData(), null));
+    }
+
+    @Test
+    public void dictionaryImprovesCompressionOfSmallBatches() throws JSONException {
+        // About 2.5x versus 1.3x for a single entry, and 4.1x versus 3.0x for five
+        assertSmaller(1, 0.6);
+        assertSmaller(5, 0.8);
+    }
+
+    // Check that batches of the given size compress to at most the given fraction of what
+    // they would without the dictionary.
+    private void assertSmaller(int entries, double fraction) throws JSONException {
+        long withDictionary = 0;
+        long without = 0;
+        for (int seed = 0; seed < 50; seed++) {
+            final byte[] message = createBatch(entries, seed).getBytes(StandardCharsets.UTF_8);
+            withDictionary += mEncoder.encode(new String(message, StandardCharsets.UTF_8))
+                    .getData().length;
+            without += deflate(message);
+        }
+        assertTrue(entries + " entries: " + withDictionary + " vs " + without + " bytes",
+                withDictionary <= without * fraction);
+    }
+
+    /**
+     * Returns a batch of entries like the ones CloudPublisherService sends, with a drifting
+     * position and noisy readings.
+     */
+    static String createBatch(int size, int seed) throws JSONException {
+        final Random random = new Random(seed);
+        final JSONArray batch = new JSONArray();
+        double time = 1.5e9 + seed * 1000;
+        double latitude = -12.0464;
+        double longitude = -77.0428;
+        for (int i = 0; i < size; i++) {
+            time += 5 + random.nextInt(30);
+            latitude += (random.nextDouble() - 0.5) * 0.002;
+            longitude += (random.nextDouble() - 0.5) * 0.002;
+            final JSONObject entry = new JSONObject();
+            entry.put("deviceId", "taxi-0042");
+            entry.put("time", time + random.nextInt(1000) / 1000d);
+            entry.put("latitude", latitude);
+            entry.put("longitude", longitude);
+            entry.put("accuracy", 3 + random.nextInt(80) / 10d);
+            entry.put("altitude", 140 + random.nextDouble() * 20);
+            entry.put("verticalAccuracy", 4 + random.nextInt(60) / 10d);
+            entry.put("temperature", 21 + random.nextInt(30) / 10d);
+            entry.put("humidity", 70 + random.nextInt(50) / 10d);
+            entry.put("pressure", 1010 + random.nextInt(50) / 10d);
+            entry.put("pm25", Integer.toString(10 + random.nextInt(20)));
+            entry.put("pm10", Integer.toString(20 + random.nextInt(30)));
+            batch.put(entry);
+        }
+        return batch.toString();
+    }
+
+    private static int deflate(byte[] input) {
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            final byte[] buffer = new byte[input.length * 2 + 64];
+            int length = 0;
+            while (!deflater.finished()) {
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            return length;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static String inflate(byte[] data, byte[] dictionary) throws DataFormatException {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            byte[] buffer = new byte[4096];
+            int length = 0;
+            while (!inflater.finished()) {
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                final int n = inflater.inflate(buffer, length, buffer.length - length);
+                if (n == 0 && inflater.needsDictionary()) {
+                    inflater.setDictionary(dictionary);
+                }
+                length += n;
+            }
+            return new String(buffer, 0, length, StandardCharsets.UTF_8);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import net.jpuderer.android.things.taxidatalogger.cloud.cloudiot.CloudIotOptions;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+public class RateLimitedPublisherTest {
+    private static final float MESSAGES_PER_SECOND = 10;
+    private static final int BYTES_PER_SECOND = 1000;
+
+    private final RecordingPublisher mDelegate = new RecordingPublisher();
+    private final RateLimitedPublisher mPublisher =
+            new RateLimitedPublisher(mDelegate, createOptions());
+
+    @Test
+    public void sendsBurstWithoutThrottling() {
+        for (int i = 0; i < MESSAGES_PER_SECOND; i++) {
+            mPublisher.publish(payload(10), CloudPublisher.LANE_BACKFILL);
+        }
+        assertEquals(10, mDelegate.getMessages().size());
+        assertEquals(0, mPublisher.getThrottledCount());
+        assertEquals(0, mPublisher.getThrottledMillis());
+    }
+
+    @Test
+    public void countsThrottledMessages() {
+        for (int i = 0; i < MESSAGES_PER_SECOND + 5; i++) {
+            mPublisher.publish(payload(10), CloudPublisher.LANE_BACKFILL);
+        }
+        // Each message past the burst waits a tenth of a second for its token
+        assertEquals(15, mDelegate.getMessages().size());
+        assertEquals(5, mPublisher.getThrottledCount());
+        assertEquals(500, mPublisher.getThrottledMillis());
+    }
+
+    @Test
+    public void throttlesOnBytes() {
+        mPublisher.publish(payload(BYTES_PER_SECOND), CloudPublisher.LANE_BACKFILL);
+        final long start = SystemClock.elapsedRealtime();
+        mPublisher.publish(payload(BYTES_PER_SECOND / 2), CloudPublisher.LANE_BACKFILL);
+        assertEquals(500, SystemClock.elapsedRealtime() - start);
+        assertEquals(1, mPublisher.getThrottledCount());
+        assertEquals(500, mPublisher.getThrottledMillis());
+    }
+
+    private static Payload payload(int length) {
+        return new Payload(new byte[length], Payload.ENCODING_IDENTITY, length);
+    }
+
+    private static CloudIotOptions createOptions() {
+        final Context context = RuntimeEnvironment.application;
+        final Bundle bundle = new Bundle();
+        bundle.putFloat("rate_limit_messages", MESSAGES_PER_SECOND);
+        bundle.putInt("rate_limit_bytes", BYTES_PER_SECOND);
+        return CloudIotOptions.reconfigure(CloudIotOptions.from(
+                context.getSharedPreferences("test", Context.MODE_PRIVATE)), bundle);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud;
+
+import net.jpuderer.android.things.taxidatalogger.cloud.cloudiot.CloudIotOptions;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link CloudPublisher} that keeps everything it is sent, and can be made to fail.
+ */
+class RecordingPublisher implements CloudPublisher {
+    static class Message {
+        final Payload payload;
+        final int lane;
+
+        Message(Payload payload, int lane) {
+            this.payload = payload;
+            this.lane = lane;
+        }
+    }
+
+    private final List<Message> mMessages = new ArrayList<>();
+    private volatile boolean mReady = true;
+    private int mFailures;
+    private boolean mClosed;
+    private volatile CommandListener mCommandListener;
+
+    void setReady(boolean ready) {
+        mReady = ready;
+    }
+
+    /**
+     * Make the next few publishes throw, as a transport would.
+     */
+    synchronized void failNext(int count) {
+        mFailures = count;
+    }
+
+    synchronized List<Message> getMessages() {
+        return new ArrayList<>(mMessages);
+    }
+
+    /**
+     * Returns the ID of every entry sent on the given lane, in the order sent, from the ID
+     * ranges of the payloads.
+     */
+    synchronized List<Long> getIds(int lane) {
+        final List<Long> ids = new ArrayList<>();
+        for (Message message : mMessages) {
+            // Cell aggregates have no entry IDs
+            if (message.lane != lane || message.payload.getFirstId() < 0) {
+                continue;
+            }
+            for (long id = message.payload.getFirstId(); id <= message.payload.getLastId();
+                    id++) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    synchronized void clear() {
+        mMessages.clear();
+    }
+
+    synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Wait until an entry with the given ID has been sent on the given lane.
+     *
+     * @return false on timeout
+     */
+    boolean awaitId(int lane, long id, long timeoutMs) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (!getIds(lane).contains(id)) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * Deliver a configuration to the listener, as the transport would when it arrives.
+     */
+    void deliverConfig(String json) {
+        mCommandListener.onConfig(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Deliver a command to the listener, as the transport would when it arrives.
+     */
+    void deliverCommand(String json) {
+        mCommandListener.onCommand(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public boolean isReady() {
+        return mReady;
+    }
+
+    @Override
+    public synchronized void publish(Payload payload, int lane) {
+        if (!mReady) {
+            throw new IllegalStateException("Not ready");
+        }
+        if (mFailures > 0) {
+            mFailures--;
+            throw new IllegalStateException("Injected failure");
+        }
+        mMessages.add(new Message(payload, lane));
+    }
+
+    @Override
+    public void reconfigure(CloudIotOptions options) {
+        // Nothing to configure
+    }
+
+    @Override
+    public void setCommandListener(CommandListener listener) {
+        mCommandListener = listener;
+    }
+
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+    }
+}
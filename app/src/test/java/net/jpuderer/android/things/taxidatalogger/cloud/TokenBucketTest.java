@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud;
+
+import android.os.SystemClock;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+public class TokenBucketTest {
+    private static final long SECOND_NS = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void startsFull() {
+        final TokenBucket bucket = new TokenBucket(10, 50);
+        assertEquals(0, bucket.take(30));
+        assertEquals(0, bucket.take(20));
+        // Empty now, so one more token takes a tenth of a second
+        assertEquals(SECOND_NS / 10, bucket.take(1));
+    }
+
+    @Test
+    public void refillsAtRate() {
+        final TokenBucket bucket = new TokenBucket(10, 50);
+        bucket.take(50);
+        SystemClock.sleep(2000);
+        assertEquals(0, bucket.take(20));
+        assertEquals(SECOND_NS / 2, bucket.take(5));
+    }
+
+    @Test
+    public void refillsUpToCapacity() {
+        final TokenBucket bucket = new TokenBucket(10, 50);
+        bucket.take(50);
+        SystemClock.sleep(60000);
+        assertEquals(0, bucket.take(50));
+        assertEquals(SECOND_NS, bucket.take(10));
+    }
+
+    @Test
+    public void requestsBiggerThanCapacityGoIntoDebt() {
+        final TokenBucket bucket = new TokenBucket(10, 50);
+        // 50 tokens available, so the other 100 take 10 s
+        assertEquals(10 * SECOND_NS, bucket.take(150));
+        // The debt is paid off before anything else goes
+        SystemClock.sleep(5000);
+        assertEquals(6 * SECOND_NS, bucket.take(10));
+    }
+
+    @Test
+    public void holdsLongTermRate() {
+        final TokenBucket bucket = new TokenBucket(100, 10);
+        long waitedNs = 0;
+        for (int i = 0; i < 1000; i++) {
+            final long waitNs = bucket.take(7);
+            SystemClock.sleep(TimeUnit.NANOSECONDS.toMillis(waitNs));
+            waitedNs += waitNs;
+        }
+        // 7000 tokens at 100/s, less the 10 we started with
+        assertEquals(69.9, waitedNs / (double) SECOND_NS, 0.1);
+    }
+
+    @Test
+    public void loweringCapacityDropsExcessTokens() {
+        final TokenBucket bucket = new TokenBucket(10, 50);
+        bucket.setRate(5, 20);
+        assertEquals(0, bucket.take(20));
+        assertEquals(SECOND_NS, bucket.take(5));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroRate() {
+        new TokenBucket(0, 50);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud;
+
+import android.os.Bundle;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class TuningConfigTest {
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void parsesDocument() {
+        final TuningConfig tuning = TuningConfig.parse("{\"version\": 3, " +
+                "\"sampleIntervalMs\": 5000, \"sampleDistanceM\": 25.5, " +
+                "\"deadbands\": {\"temperature\": 0.5}, \"aggregation\": \"cells\", " +
+                "\"compression\": false, \"rateLimitBytes\": 4096}");
+        assertEquals(3, tuning.getVersion());
+        assertEquals(5000, tuning.getSampleIntervalMs());
+        assertEquals(25.5, tuning.getSampleDistanceM(), DELTA);
+        assertEquals(0.5, tuning.getDeadband("temperature", 1), DELTA);
+        assertEquals(TuningConfig.AGGREGATION_CELLS, tuning.getAggregation());
+
+        final Bundle options = tuning.toOptionsBundle();
+        assertFalse(options.getBoolean("compression", true));
+        assertEquals(4096, options.getInt("rate_limit_bytes"));
+        assertFalse(options.containsKey("compression_level"));
+    }
+
+    @Test
+    public void missingFieldsTakeDefaults() {
+        final TuningConfig tuning = TuningConfig.parse("{\"version\": 1}");
+        assertEquals(TuningConfig.DEFAULT_SAMPLE_INTERVAL_MS, tuning.getSampleIntervalMs());
+        assertEquals(TuningConfig.DEFAULT_MAX_ENTRIES_PER_MESSAGE,
+                tuning.getMaxEntriesPerMessage());
+        assertEquals(2, tuning.getDeadband("humidity", 2), DELTA);
+        assertEquals(TuningConfig.AGGREGATION_RAW, tuning.getAggregation());
+        assertEquals(0, tuning.toOptionsBundle().size());
+    }
+
+    @Test
+    public void roundTripsThroughJson() {
+        final TuningConfig tuning = TuningConfig.parse(
+                "{\"version\": 2, \"geohashPrecision\": 6}");
+        final TuningConfig parsed = TuningConfig.parse(tuning.toJson());
+        assertEquals(2, parsed.getVersion());
+        assertEquals(6, parsed.getGeohashPrecision());
+    }
+
+    @Test
+    public void rejectsMalformedDocuments() {
+        assertRejected("not json");
+        assertRejected("{}");
+        assertRejected("{\"version\": 0}");
+        assertRejected("{\"version\": -2}");
+    }
+
+    @Test
+    public void rejectsValuesOutOfRange() {
+        assertRejected("{\"version\": 1, \"sampleIntervalMs\": 10}");
+        // No shorter than the minimum interval
+        assertRejected("{\"version\": 1, \"sampleIntervalMs\": 5000, " +
+                "\"maxSampleIntervalMs\": 4000}");
+        assertRejected("{\"version\": 1, \"sampleDistanceM\": 0}");
+        assertRejected("{\"version\": 1, \"gpsFixRateHz\": 0}");
+        assertRejected("{\"version\": 1, \"deadbands\": {\"pm25\": -1}}");
+        assertRejected("{\"version\": 1, \"aggregation\": \"hexes\"}");
+        assertRejected("{\"version\": 1, \"geohashPrecision\": 12}");
+        assertRejected("{\"version\": 1, \"maxEntriesPerMessage\": 0}");
+        assertRejected("{\"version\": 1, \"compressionLevel\": 10}");
+        assertRejected("{\"version\": 1, \"rateLimitMessages\": 0}");
+        assertRejected("{\"version\": 1, \"rateLimitBytes\": 100}");
+    }
+
+    @Test
+    public void rejectsFieldsOfWrongType() {
+        // These would otherwise quietly take their defaults, or be coerced
+        assertRejected("{\"version\": \"2\"}");
+        assertRejected("{\"version\": 1, \"sampleIntervalMs\": \"abc\"}");
+        assertRejected("{\"version\": 1, \"sampleIntervalMs\": \"5000\"}");
+        assertRejected("{\"version\": 1, \"sampleDistanceM\": null}");
+        assertRejected("{\"version\": 1, \"rateLimitBytes\": [4096]}");
+        assertRejected("{\"version\": 1, \"deadbands\": 2}");
+        assertRejected("{\"version\": 1, \"deadbands\": {\"pm25\": \"2\"}}");
+        assertRejected("{\"version\": 1, \"aggregation\": 1}");
+        assertRejected("{\"version\": 1, \"compression\": \"true\"}");
+    }
+
+    private static void assertRejected(String json) {
+        try {
+            TuningConfig.parse(json);
+            fail("Accepted " + json);
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
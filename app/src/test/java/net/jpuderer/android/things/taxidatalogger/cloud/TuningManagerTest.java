@@ -0,0 +1,158 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+@RunWith(RobolectricTestRunner.class)
+public class TuningManagerTest {
+    private final Context mContext = RuntimeEnvironment.application;
+    private final TuningManager mManager = new TuningManager(mContext);
+
+    @After
+    public void tearDown() {
+        TuningConfig.setCurrent(TuningConfig.DEFAULT);
+    }
+
+    @Test
+    public void startsWithDefaults() {
+        assertSame(TuningConfig.DEFAULT, mManager.load());
+        assertSame(TuningConfig.DEFAULT, TuningConfig.getCurrent());
+    }
+
+    @Test
+    public void appliesDocumentOnProbation() {
+        mManager.load();
+        assertNotNull(mManager.offer(document(2)));
+        assertEquals(2, TuningConfig.getCurrent().getVersion());
+        // Not saved until something is published with it
+        assertEquals(0, new TuningManager(mContext).load().getVersion());
+        mManager.onPublishSucceeded(0);
+        assertEquals(0, new TuningManager(mContext).load().getVersion());
+    }
+
+    @Test
+    public void keepsDocumentOncePublished() {
+        mManager.load();
+        mManager.offer(document(2));
+        mManager.onPublishSucceeded(10);
+        // No longer on probation
+        for (int i = 0; i < 5; i++) {
+            assertNull(mManager.onPublishFailed(true));
+        }
+        assertEquals(2, TuningConfig.getCurrent().getVersion());
+        assertEquals(2, new TuningManager(mContext).load().getVersion());
+    }
+
+    @Test
+    public void rollsBackAfterRepeatedFailures() {
+        mManager.load();
+        mManager.offer(document(2));
+        mManager.onPublishSucceeded(10);
+        mManager.offer(document(3));
+        assertNull(mManager.onPublishFailed(true));
+        assertNull(mManager.onPublishFailed(true));
+        final TuningConfig rollback = mManager.onPublishFailed(true);
+        assertNotNull(rollback);
+        assertEquals(2, rollback.getVersion());
+        assertEquals(2, TuningConfig.getCurrent().getVersion());
+    }
+
+    @Test
+    public void onlyConsecutiveFailuresCount() {
+        mManager.load();
+        mManager.offer(document(2));
+        mManager.onPublishFailed(true);
+        mManager.onPublishFailed(true);
+        // A pass with nothing to send resets the count, without ending probation
+        mManager.onPublishSucceeded(0);
+        assertNull(mManager.onPublishFailed(true));
+        assertNull(mManager.onPublishFailed(true));
+        assertNotNull(mManager.onPublishFailed(true));
+    }
+
+    @Test
+    public void ignoresFailuresWhileDisconnected() {
+        mManager.load();
+        mManager.offer(document(2));
+        for (int i = 0; i < 5; i++) {
+            assertNull(mManager.onPublishFailed(false));
+        }
+        assertEquals(2, TuningConfig.getCurrent().getVersion());
+    }
+
+    @Test
+    public void refusesRolledBackVersion() {
+        mManager.load();
+        mManager.offer(document(2));
+        rollBack();
+        assertNull(mManager.offer(document(2)));
+        // Even after a restart
+        final TuningManager restarted = new TuningManager(mContext);
+        restarted.load();
+        assertNull(restarted.offer(document(2)));
+        // But a newer version is tried
+        assertNotNull(restarted.offer(document(3)));
+    }
+
+    @Test
+    public void refusesVersionsNoNewerThanCurrent() {
+        mManager.load();
+        mManager.offer(document(5));
+        mManager.onPublishSucceeded(10);
+        // Redelivered on reconnect
+        assertNull(mManager.offer(document(5)));
+        // Or delivered out of order
+        assertNull(mManager.offer(document(4)));
+        assertEquals(5, TuningConfig.getCurrent().getVersion());
+    }
+
+    @Test
+    public void refusesInvalidDocuments() {
+        mManager.load();
+        assertNull(mManager.offer("{\"version\": 2, \"sampleIntervalMs\": \"abc\"}"));
+        assertNull(mManager.offer("{\"version\": 2, \"geohashPrecision\": 20}"));
+        assertSame(TuningConfig.DEFAULT, TuningConfig.getCurrent());
+    }
+
+    @Test
+    public void discardsInvalidSavedTuning() {
+        mContext.getSharedPreferences("tuning", Context.MODE_PRIVATE).edit()
+                .putString("last_good", "{\"version\": \"x\"}").apply();
+        assertSame(TuningConfig.DEFAULT, mManager.load());
+    }
+
+    private void rollBack() {
+        for (int i = 0; i < 3; i++) {
+            mManager.onPublishFailed(true);
+        }
+    }
+
+    private static String document(int version) {
+        return "{\"version\": " + version + ", \"publishDelayMs\": " + (100 * version) + "}";
+    }
+}
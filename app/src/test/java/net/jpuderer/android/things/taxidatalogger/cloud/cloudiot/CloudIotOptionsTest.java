@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud.cloudiot;
+
+import android.content.Context;
+import android.os.Bundle;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class CloudIotOptionsTest {
+    @Test
+    public void acceptsCompressionLevels() {
+        for (int level = Deflater.DEFAULT_COMPRESSION; level <= Deflater.BEST_COMPRESSION;
+                level++) {
+            final CloudIotOptions options = withCompressionLevel(level);
+            assertEquals(level, options.getCompressionLevel());
+            assertTrue(options.isValid());
+        }
+    }
+
+    @Test
+    public void rejectsOutOfRangeCompressionLevels() {
+        for (int level : new int[] {-2, 10, Integer.MAX_VALUE}) {
+            try {
+                withCompressionLevel(level);
+                fail("Accepted compression level " + level);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void savedOutOfRangeCompressionLevelIsInvalid() {
+        // As saved before levels were checked
+        final Context context = RuntimeEnvironment.application;
+        withCompressionLevel(6).saveToPreferences(
+                context.getSharedPreferences("test", Context.MODE_PRIVATE));
+        context.getSharedPreferences("test", Context.MODE_PRIVATE).edit()
+                .putInt("compression_level", 42).commit();
+        assertFalse(CloudIotOptions.from(
+                context.getSharedPreferences("test", Context.MODE_PRIVATE)).isValid());
+    }
+
+    private static CloudIotOptions withCompressionLevel(int level) {
+        final Context context = RuntimeEnvironment.application;
+        final Bundle bundle = new Bundle();
+        bundle.putString("project_id", "test-project");
+        bundle.putString("registry_id", "test-registry");
+        bundle.putString("device_id", "test-device");
+        bundle.putString("cloud_region", "test-region");
+        bundle.putBoolean("compression", true);
+        bundle.putInt("compression_level", level);
+        return CloudIotOptions.reconfigure(
+                CloudIotOptions.from(context.getSharedPreferences("test", Context.MODE_PRIVATE)),
+                bundle);
+    }
+}
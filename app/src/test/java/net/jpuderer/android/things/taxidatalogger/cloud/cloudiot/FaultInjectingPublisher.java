@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud.cloudiot;
+
+import net.jpuderer.android.things.taxidatalogger.cloud.CloudPublisher;
+import net.jpuderer.android.things.taxidatalogger.cloud.Payload;
+
+import java.util.Random;
+
+/**
+ * A {@link CloudPublisher} that makes another publisher worse, to see how the rest of the
+ * pipeline copes.  It can add latency to every publish, fail a fraction of publishes (as if
+ * the message were lost), and drop the connection every so many messages.
+ */
+class FaultInjectingPublisher implements CloudPublisher {
+    private final CloudPublisher mDelegate;
+    private final Random mRandom = new Random();
+
+    private long mLatencyMs;
+    private long mLatencyJitterMs;
+    private double mLossRate;
+    private int mDisconnectEvery;
+    private Runnable mDisconnector;
+
+    private long mMessageCount;
+
+    FaultInjectingPublisher(CloudPublisher delegate) {
+        mDelegate = delegate;
+    }
+
+    /**
+     * Add latency to every publish.
+     *
+     * @param latencyMs fixed delay
+     * @param jitterMs maximum random delay on top of latencyMs
+     */
+    FaultInjectingPublisher setLatency(long latencyMs, long jitterMs) {
+        mLatencyMs = latencyMs;
+        mLatencyJitterMs = jitterMs;
+        return this;
+    }
+
+    /**
+     * Fail the given fraction (0-1) of publishes.
+     */
+    FaultInjectingPublisher setLossRate(double lossRate) {
+        mLossRate = lossRate;
+        return this;
+    }
+
+    /**
+     * Run disconnector before every n-th publish.
+     */
+    FaultInjectingPublisher setDisconnectEvery(int n, Runnable disconnector) {
+        mDisconnectEvery = n;
+        mDisconnector = disconnector;
+        return this;
+    }
+
+    @Override
+    public boolean isReady() {
+        return mDelegate.isReady();
+    }
+
+    @Override
+    public void publish(Payload payload, int lane) {
+        injectFaults();
+        mDelegate.publish(payload, lane);
+    }
+
+    private void injectFaults() {
+        mMessageCount++;
+        if (mDisconnectEvery > 0 && mMessageCount % mDisconnectEvery == 0) {
+            mDisconnector.run();
+        }
+        if (mLatencyMs > 0 || mLatencyJitterMs > 0) {
+            // Real time, since Robolectric's SystemClock doesn't actually wait
+            try {
+                Thread.sleep(mLatencyMs + (long) (mRandom.nextDouble() * mLatencyJitterMs));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted", e);
+            }
+        }
+        if (mLossRate > 0 && mRandom.nextDouble() < mLossRate) {
+            throw new IllegalStateException("Injected message loss");
+        }
+    }
+
+    @Override
+    public void reconfigure(CloudIotOptions options) {
+        mDelegate.reconfigure(options);
+    }
+
+    @Override
+    public void setCommandListener(CommandListener listener) {
+        mDelegate.setCommandListener(listener);
+    }
+
+    @Override
+    public void close() throws Exception {
+        mDelegate.close();
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud.cloudiot;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class JournalFilePersistenceTest {
+    private static final String CLIENT_ID = "projects/p/locations/l/registries/r/devices/d";
+    private static final String SERVER_URI = "ssl://mqtt.googleapis.com:8883";
+
+    private static final byte OP_PUT = 1;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private Handler mHandler;
+    private JournalFilePersistence mPersistence;
+
+    @Before
+    public void setUp() throws MqttPersistenceException {
+        mHandler = new Handler(Looper.getMainLooper());
+        mPersistence = open();
+    }
+
+    @After
+    public void tearDown() throws MqttPersistenceException {
+        mPersistence.close();
+    }
+
+    @Test
+    public void replaysPutsAndRemoves() throws MqttPersistenceException {
+        mPersistence.put("s-1", data("header-1", "payload-1"));
+        mPersistence.put("s-2", data("header-2", "payload-2"));
+        mPersistence.put("s-3", data("header-3", "payload-3"));
+        mPersistence.remove("s-2");
+        mPersistence.put("s-1", data("header-1b", "payload-1b"));
+
+        mPersistence = reopen();
+
+        assertEquals(new HashSet<>(Arrays.asList("s-1", "s-3")),
+                new HashSet<>(Collections.list(mPersistence.keys())));
+        assertData("header-1b", "payload-1b", mPersistence.get("s-1"));
+        assertData("header-3", "payload-3", mPersistence.get("s-3"));
+        assertNull(mPersistence.get("s-2"));
+    }
+
+    @Test
+    public void discardsTornRecord() throws Exception {
+        mPersistence.put("s-1", data("header-1", "payload-1"));
+        mPersistence.put("s-2", data("header-2", "payload-2"));
+        mPersistence.close();
+        final File journal = getJournal();
+        final long intact = journal.length();
+
+        // A record cut short by a crash, half way through its body
+        try (FileOutputStream out = new FileOutputStream(journal, true)) {
+            out.write(new byte[] { 0, 0, 0, 64, 1, 2, 3, 4, 5, 6, 7, 8, OP_PUT });
+        }
+        mPersistence = open();
+
+        assertEquals(2, Collections.list(mPersistence.keys()).size());
+        assertEquals(intact, journal.length());
+
+        // Records appended after the discarded one are read back
+        mPersistence.put("s-3", data("header-3", "payload-3"));
+        mPersistence = reopen();
+        assertData("header-3", "payload-3", mPersistence.get("s-3"));
+    }
+
+    @Test
+    public void discardsRecordWithBadChecksum() throws Exception {
+        mPersistence.put("s-1", data("header-1", "payload-1"));
+        mPersistence.close();
+        final File journal = getJournal();
+        final long intact = journal.length();
+        mPersistence = open();
+        mPersistence.put("s-2", data("header-2", "payload-2"));
+        mPersistence.close();
+
+        // Flip the last byte of the second record's payload
+        try (RandomAccessFile file = new RandomAccessFile(journal, "rw")) {
+            file.seek(file.length() - 1);
+            final int last = file.read();
+            file.seek(file.length() - 1);
+            file.write(last ^ 0xff);
+        }
+        mPersistence = open();
+
+        assertEquals(Collections.singletonList("s-1"), Collections.list(mPersistence.keys()));
+        assertEquals(intact, journal.length());
+    }
+
+    @Test
+    public void compactsStaleJournal() throws Exception {
+        final char[] filler = new char[4096];
+        Arrays.fill(filler, 'x');
+        final String payload = new String(filler);
+        for (int i = 0; i < 200; i++) {
+            mPersistence.put("s-" + i, data("header-" + i, payload));
+        }
+        final long full = getJournal().length();
+        for (int i = 0; i < 190; i++) {
+            mPersistence.remove("s-" + i);
+        }
+
+        assertTrue(getJournal().length() < full / 2);
+        assertFalse(new File(mFolder.getRoot(), getJournal().getName() + ".tmp").exists());
+
+        mPersistence = reopen();
+        assertEquals(10, Collections.list(mPersistence.keys()).size());
+        for (int i = 190; i < 200; i++) {
+            assertData("header-" + i, payload, mPersistence.get("s-" + i));
+        }
+    }
+
+    @Test
+    public void clearEmptiesJournal() throws MqttPersistenceException {
+        mPersistence.put("s-1", data("header-1", "payload-1"));
+        mPersistence.clear();
+        mPersistence = reopen();
+        assertFalse(mPersistence.keys().hasMoreElements());
+        assertEquals(0, getJournal().length());
+    }
+
+    @Test
+    public void syncsStragglersLater() throws MqttPersistenceException {
+        final ShadowLooper looper = ShadowLooper.shadowMainLooper();
+        // A sync was just done by open(), so this record isn't synced right away
+        mPersistence.put("s-1", data("header-1", "payload-1"));
+        assertEquals(Duration.ofSeconds(1), looper.getNextScheduledTaskTime()
+                .minus(Duration.ofMillis(SystemClock.uptimeMillis())));
+
+        looper.idleFor(1, TimeUnit.SECONDS);
+        assertEquals(Duration.ZERO, looper.getNextScheduledTaskTime());
+    }
+
+    private JournalFilePersistence open() throws MqttPersistenceException {
+        final JournalFilePersistence persistence =
+                new JournalFilePersistence(mFolder.getRoot(), mHandler);
+        persistence.open(CLIENT_ID, SERVER_URI);
+        return persistence;
+    }
+
+    private JournalFilePersistence reopen() throws MqttPersistenceException {
+        mPersistence.close();
+        return open();
+    }
+
+    private File getJournal() {
+        final File[] files = mFolder.getRoot().listFiles();
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+    private static MqttPersistable data(String header, String payload) {
+        final byte[] headerBytes = header.getBytes(StandardCharsets.UTF_8);
+        final byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+        return new MqttPersistentData("unused", headerBytes, 0, headerBytes.length,
+                payloadBytes, 0, payloadBytes.length);
+    }
+
+    private static void assertData(String header, String payload, MqttPersistable data)
+            throws MqttPersistenceException {
+        assertArrayEquals(header.getBytes(StandardCharsets.UTF_8), Arrays.copyOfRange(
+                data.getHeaderBytes(), data.getHeaderOffset(),
+                data.getHeaderOffset() + data.getHeaderLength()));
+        assertArrayEquals(payload.getBytes(StandardCharsets.UTF_8), Arrays.copyOfRange(
+                data.getPayloadBytes(), data.getPayloadOffset(),
+                data.getPayloadOffset() + data.getPayloadLength()));
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud.cloudiot;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import net.jpuderer.android.things.taxidatalogger.cloud.CloudPublisher;
+import net.jpuderer.android.things.taxidatalogger.cloud.Payload;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs MQTTPublisher and MqttConnectionManager against an in-process broker, with dropped
+ * connections, rejected keys and slow acks.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MQTTPublisherTest {
+    private static final String PRIMARY_TOKEN = "ES256-token";
+    private static final String FALLBACK_TOKEN = "RS256-token";
+
+    private static final long TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private MqttTestBroker mBroker;
+    private MQTTPublisher mPublisher;
+
+    @Before
+    public void setUp() throws Exception {
+        mBroker = new MqttTestBroker();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mPublisher != null) {
+            mPublisher.close();
+        }
+        mBroker.close();
+    }
+
+    @Test
+    public void deliversInOrder() throws Exception {
+        startPublisher();
+        publishAll(0, 100);
+        assertEquals(sequence(0, 100),
+                mBroker.awaitMessages(100, TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void deliversEverythingAcrossDroppedConnections() throws Exception {
+        startPublisher();
+        // Acks take long enough that most drops land while a message is in flight
+        mBroker.setAckDelay(20);
+        final Thread dropper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 4; i++) {
+                        Thread.sleep(500);
+                        mBroker.dropConnections();
+                    }
+                } catch (InterruptedException e) {
+                    // Done
+                }
+            }
+        });
+        dropper.start();
+        publishAll(0, 100);
+        dropper.join();
+        publishAll(100, 110);
+        assertDelivered(110);
+    }
+
+    @Test
+    public void waitsForSlowAcks() throws Exception {
+        startPublisher();
+        mBroker.setAckDelay(200);
+        final long start = System.nanoTime();
+        publishAll(0, 10);
+        // Each publish waits for its ack before the next one goes
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(10 * 200));
+        assertEquals(sequence(0, 10), mBroker.getMessages());
+    }
+
+    @Test
+    public void fallsBackToRsaKeyAndStaysThere() throws Exception {
+        mBroker.rejectPassword(PRIMARY_TOKEN);
+        startPublisher();
+        publishAll(0, 10);
+        assertEquals(PRIMARY_TOKEN, mBroker.getPasswords().get(0));
+        assertEquals(FALLBACK_TOKEN, mBroker.getPasswords().get(1));
+
+        // Reconnecting, whether or not Paho does it, keeps using the fallback key
+        mBroker.dropConnections();
+        awaitPasswords(3);
+        publishAll(10, 20);
+        mPublisher.forceDisconnect();
+        publishAll(20, 30);
+        final List<String> passwords = mBroker.getPasswords();
+        assertEquals(1, Collections.frequency(passwords, PRIMARY_TOKEN));
+        assertTrue(passwords.size() >= 4);
+        assertDelivered(30);
+    }
+
+    @Test
+    public void reconnectsWhenNetworkReturns() throws Exception {
+        mBroker.rejectPassword(PRIMARY_TOKEN);
+        mBroker.rejectPassword(FALLBACK_TOKEN);
+        startPublisher(false);
+        awaitPasswords(2);
+        Thread.sleep(200);
+        assertFalse(mPublisher.isReady());
+
+        // The next attempt is a while off, but the network coming back skips the wait
+        mBroker.acceptPassword(FALLBACK_TOKEN);
+        mPublisher.onNetworkAvailable();
+        publishAll(0, 10);
+        assertDelivered(10);
+    }
+
+    @Test
+    public void notifiesWhenConnected() throws Exception {
+        final AtomicInteger connections = new AtomicInteger();
+        mPublisher = createPublisher();
+        mPublisher.setConnectionListener(new MQTTPublisher.ConnectionListener() {
+            @Override
+            public void onConnected() {
+                connections.incrementAndGet();
+            }
+        });
+        awaitReady();
+        mBroker.dropConnections();
+        publishAll(0, 1);
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (connections.get() < 2 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, connections.get());
+    }
+
+    @Test
+    public void receivesConfiguration() throws Exception {
+        final String topic = "/devices/test-device/config";
+        final List<String> configs = Collections.synchronizedList(new ArrayList<String>());
+        // Already set when we subscribe, and updated while we are connected
+        mBroker.publishRetained(topic, "{\"version\": 2}");
+        mPublisher = createPublisher();
+        mPublisher.setCommandListener(new CloudPublisher.CommandListener() {
+            @Override
+            public void onCommand(byte[] payload) {
+                fail("Unexpected command");
+            }
+
+            @Override
+            public void onConfig(byte[] payload) {
+                configs.add(new String(payload, StandardCharsets.UTF_8));
+            }
+        });
+        awaitReady();
+        awaitSize(configs, 1);
+        mBroker.publishRetained(topic, "{\"version\": 3}");
+        awaitSize(configs, 2);
+        assertEquals(Arrays.asList("{\"version\": 2}", "{\"version\": 3}"), configs);
+    }
+
+    @Test
+    public void publishesThroughTokenRefresh() throws Exception {
+        startPublisher();
+        publishAll(0, 10);
+        mBroker.setAckDelay(20);
+
+        // Run into several planned refreshes, while publishing without retries.  Each one
+        // races the publishes that were already under way when it started.
+        int next = 10;
+        for (int refresh = 0; refresh < 5; refresh++) {
+            final int attempts = mBroker.getPasswords().size();
+            advanceClock(MqttAuthentication.TOKEN_LIFETIME_MS);
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+            final int last = next + 20;
+            while (mBroker.getPasswords().size() == attempts || next < last) {
+                assertTrue(System.nanoTime() < deadline);
+                mPublisher.publish(payload(next++), CloudPublisher.LANE_BACKFILL);
+            }
+        }
+        assertDelivered(next);
+    }
+
+    /**
+     * Advance the clock, and run whatever the connection manager had scheduled by then.
+     * Robolectric doesn't wake a background looper when its clock moves, but a message at the
+     * front of its queue does.
+     */
+    private static void advanceClock(long ms) {
+        SystemClock.sleep(ms);
+        for (Looper looper : ShadowLooper.getAllLoopers()) {
+            if (looper.getThread().getName().equals(MqttConnectionManager.class.getSimpleName())) {
+                new Handler(looper).postAtFrontOfQueue(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Nothing to do
+                    }
+                });
+            }
+        }
+    }
+
+    private void startPublisher() throws Exception {
+        startPublisher(true);
+    }
+
+    private void startPublisher(boolean await) throws Exception {
+        mPublisher = createPublisher();
+        if (await) {
+            awaitReady();
+        }
+    }
+
+    private MQTTPublisher createPublisher() {
+        final Context context = RuntimeEnvironment.application;
+        final Bundle bundle = new Bundle();
+        bundle.putString("project_id", "test-project");
+        bundle.putString("registry_id", "test-registry");
+        bundle.putString("device_id", "test-device");
+        bundle.putString("cloud_region", "test-region");
+        bundle.putString("mqtt_bridge_hostname", mBroker.getHost());
+        bundle.putInt("mqtt_bridge_port", mBroker.getPort());
+        bundle.putBoolean("mqtt_bridge_tls", false);
+        final CloudIotOptions options = CloudIotOptions.reconfigure(
+                CloudIotOptions.from(context.getSharedPreferences("test", Context.MODE_PRIVATE)),
+                bundle);
+        return new MQTTPublisher(options, mFolder.getRoot(),
+                new TestAuthentication(MqttAuthentication.ALGORITHM_ES256),
+                new TestAuthentication(MqttAuthentication.ALGORITHM_RS256));
+    }
+
+    private void awaitReady() throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (!mPublisher.isReady()) {
+            if (System.nanoTime() > deadline) {
+                fail("Not connected after " + TIMEOUT_MS + " ms");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static void awaitSize(List<?> list, int size) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (list.size() < size) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private void awaitPasswords(int count) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (mBroker.getPasswords().size() < count) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Publish messages with the given numbers, in order, retrying each until it goes through,
+     * as CloudPublisherService does.
+     */
+    private void publishAll(int from, int to) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        for (int i = from; i < to; i++) {
+            while (true) {
+                if (System.nanoTime() > deadline) {
+                    fail("Unable to publish " + message(i));
+                }
+                try {
+                    mPublisher.publish(payload(i), CloudPublisher.LANE_BACKFILL);
+                    break;
+                } catch (RuntimeException e) {
+                    Thread.sleep(20);
+                }
+            }
+        }
+    }
+
+    /**
+     * Check that the messages numbered 0 to count - 1 all arrived, in order.  Messages that
+     * were in flight when a connection dropped may arrive twice, at any point after the first
+     * time.
+     */
+    private void assertDelivered(int count) throws InterruptedException {
+        final List<String> received = mBroker.awaitMessages(count, TIMEOUT_MS,
+                TimeUnit.MILLISECONDS);
+        final Set<String> seen = new HashSet<>();
+        final List<String> firsts = new ArrayList<>();
+        for (String message : received) {
+            if (seen.add(message)) {
+                firsts.add(message);
+            }
+        }
+        assertEquals(sequence(0, count), firsts);
+    }
+
+    private static List<String> sequence(int from, int to) {
+        final List<String> messages = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            messages.add(message(i));
+        }
+        return messages;
+    }
+
+    private static String message(int i) {
+        return "message-" + i;
+    }
+
+    private static Payload payload(int i) {
+        final byte[] data = message(i).getBytes(StandardCharsets.UTF_8);
+        return new Payload(data, Payload.ENCODING_IDENTITY, data.length);
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud.cloudiot;
+
+import io.moquette.broker.Server;
+import io.moquette.broker.config.MemoryConfig;
+import io.moquette.broker.security.IAuthenticator;
+import io.moquette.broker.security.IAuthorizatorPolicy;
+import io.moquette.broker.subscriptions.Topic;
+import io.moquette.interception.AbstractInterceptHandler;
+import io.moquette.interception.InterceptHandler;
+import io.moquette.interception.messages.InterceptPublishMessage;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-process MQTT broker (Moquette), for testing MQTTPublisher against, fronted by a proxy
+ * which can drop connections and delay acks.  Clients should connect to {@link #getPort()}.
+ * <p>
+ * Every message published to the broker is recorded, in the order the broker received it.
+ */
+class MqttTestBroker implements AutoCloseable {
+    private static final String HOST = "127.0.0.1";
+
+    // CloudIotOptions keeps the port in a short, so stay clear of the ephemeral range.
+    private static final int FIRST_PORT = 20000;
+    private static final int PORT_ATTEMPTS = 1000;
+
+    private final Server mServer = new Server();
+    private final int mBrokerPort;
+    private final ServerSocket mProxySocket;
+    private final Thread mAcceptThread;
+    private final Set<Socket> mSockets = new CopyOnWriteArraySet<>();
+
+    private final List<String> mPasswords = Collections.synchronizedList(new ArrayList<String>());
+    private final Set<String> mRejectedPasswords = new CopyOnWriteArraySet<>();
+    private final List<String> mMessages = new ArrayList<>();
+    private volatile long mAckDelayMs;
+
+    MqttTestBroker() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 0, InetAddress.getByName(HOST))) {
+            mBrokerPort = socket.getLocalPort();
+        }
+        final Properties properties = new Properties();
+        properties.setProperty("host", HOST);
+        properties.setProperty("port", Integer.toString(mBrokerPort));
+        properties.setProperty("websocket_port", "disabled");
+        properties.setProperty("persistent_store", "");
+        properties.setProperty("allow_anonymous", "false");
+        // Otherwise, acks are only flushed every so often
+        properties.setProperty("immediate_buffer_flush", "true");
+        final List<InterceptHandler> handlers = new ArrayList<>();
+        handlers.add(new AbstractInterceptHandler() {
+            @Override
+            public String getID() {
+                return "recorder";
+            }
+
+            @Override
+            public void onPublish(InterceptPublishMessage message) {
+                final byte[] payload = new byte[message.getPayload().readableBytes()];
+                message.getPayload().getBytes(message.getPayload().readerIndex(), payload);
+                synchronized (mMessages) {
+                    mMessages.add(new String(payload, StandardCharsets.UTF_8));
+                    mMessages.notifyAll();
+                }
+            }
+        });
+        mServer.startServer(new MemoryConfig(properties), handlers, null,
+                new IAuthenticator() {
+                    @Override
+                    public boolean checkValid(String clientId, String username,
+                            byte[] password) {
+                        final String token = new String(password, StandardCharsets.UTF_8);
+                        mPasswords.add(token);
+                        return !mRejectedPasswords.contains(token);
+                    }
+                }, new IAuthorizatorPolicy() {
+                    @Override
+                    public boolean canWrite(Topic topic, String user, String client) {
+                        return true;
+                    }
+
+                    @Override
+                    public boolean canRead(Topic topic, String user, String client) {
+                        return true;
+                    }
+                });
+
+        mProxySocket = bindProxy();
+        mAcceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        }, "MqttTestBroker");
+        mAcceptThread.start();
+    }
+
+    int getPort() {
+        return mProxySocket.getLocalPort();
+    }
+
+    String getHost() {
+        return HOST;
+    }
+
+    /**
+     * Refuse connections which use the given password (token).
+     */
+    void rejectPassword(String password) {
+        mRejectedPasswords.add(password);
+    }
+
+    void acceptPassword(String password) {
+        mRejectedPasswords.remove(password);
+    }
+
+    /**
+     * Returns the passwords of all connection attempts so far, in order.
+     */
+    List<String> getPasswords() {
+        synchronized (mPasswords) {
+            return new ArrayList<>(mPasswords);
+        }
+    }
+
+    /**
+     * Delay everything the broker sends to its clients, CONNACKs and PUBACKs included.
+     */
+    void setAckDelay(long delayMs) {
+        mAckDelayMs = delayMs;
+    }
+
+    /**
+     * Drop every connection, without a clean MQTT disconnect.
+     */
+    void dropConnections() {
+        for (Socket socket : mSockets) {
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Publish a retained message from the broker itself, as Cloud IoT does with a device's
+     * configuration.  It is also delivered to clients which subscribe later.
+     */
+    void publishRetained(String topic, String payload) {
+        mServer.internalPublish(MqttMessageBuilders.publish()
+                .topicName(topic)
+                .retained(true)
+                .qos(MqttQoS.AT_LEAST_ONCE)
+                .payload(Unpooled.copiedBuffer(payload, StandardCharsets.UTF_8))
+                .build(), "MqttTestBroker");
+    }
+
+    /**
+     * Returns the payloads of all messages received so far, in order.
+     */
+    List<String> getMessages() {
+        synchronized (mMessages) {
+            return new ArrayList<>(mMessages);
+        }
+    }
+
+    /**
+     * Wait until at least the given number of messages have been received.
+     *
+     * @return the messages received
+     */
+    List<String> awaitMessages(int count, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (mMessages) {
+            long remaining;
+            while (mMessages.size() < count &&
+                    (remaining = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(mMessages, remaining);
+            }
+            return new ArrayList<>(mMessages);
+        }
+    }
+
+    @Override
+    public void close() throws IOException, InterruptedException {
+        mProxySocket.close();
+        mAcceptThread.join();
+        dropConnections();
+        mServer.stopServer();
+    }
+
+    private static ServerSocket bindProxy() throws IOException {
+        IOException lastException = null;
+        for (int port = FIRST_PORT; port < FIRST_PORT + PORT_ATTEMPTS; port++) {
+            try {
+                return new ServerSocket(port, 0, InetAddress.getByName(HOST));
+            } catch (IOException e) {
+                lastException = e;
+            }
+        }
+        throw lastException;
+    }
+
+    private void acceptConnections() {
+        try {
+            while (true) {
+                final Socket client = mProxySocket.accept();
+                final Socket broker = new Socket(HOST, mBrokerPort);
+                client.setTcpNoDelay(true);
+                broker.setTcpNoDelay(true);
+                mSockets.add(client);
+                mSockets.add(broker);
+                startPump(client, broker, false);
+                startPump(broker, client, true);
+            }
+        } catch (IOException e) {
+            // Closed
+        }
+    }
+
+    private void startPump(final Socket from, final Socket to, final boolean delayed) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final byte[] buffer = new byte[8192];
+                try {
+                    final InputStream in = from.getInputStream();
+                    final OutputStream out = to.getOutputStream();
+                    int count;
+                    while ((count = in.read(buffer)) > 0) {
+                        final long delayMs = mAckDelayMs;
+                        if (delayed && delayMs > 0) {
+                            Thread.sleep(delayMs);
+                        }
+                        out.write(buffer, 0, count);
+                        out.flush();
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // Dropped
+                } finally {
+                    closeQuietly(from);
+                    closeQuietly(to);
+                }
+            }
+        }, "MqttTestBroker pump").start();
+    }
+
+    private void closeQuietly(Socket socket) {
+        mSockets.remove(socket);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+}
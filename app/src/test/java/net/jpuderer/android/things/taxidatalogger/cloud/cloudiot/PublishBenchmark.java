@@ -0,0 +1,168 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud.cloudiot;
+
+import net.jpuderer.android.things.taxidatalogger.cloud.CloudPublisher;
+import net.jpuderer.android.things.taxidatalogger.cloud.Payload;
+import net.jpuderer.android.things.taxidatalogger.cloud.PayloadEncoder;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast the MQTT publisher can go, with synthetic batches, for a given batch size
+ * and QoS level.  Faults (latency, message loss, dropped connections) can be injected with a
+ * {@link FaultInjectingPublisher}, to see how the publisher holds up on a bad link.
+ * <p>
+ * Times are real time, rather than Robolectric's clock, which only moves when told to.
+ */
+class PublishBenchmark {
+    // Give up on a run if the publisher can't make progress for this long
+    private static final long STALL_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(2);
+
+    private final MQTTPublisher mPublisher;
+    private final CloudPublisher mTarget;
+    private final PayloadEncoder mEncoder;
+    private final String mDeviceId;
+
+    static class Result {
+        int qos;
+        int batchSize;
+        int messages;
+        int failures;
+        int payloadBytes;
+        double messagesPerSecond;
+        double bytesPerSecond;
+        double p50LatencyMs;
+        double p99LatencyMs;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "QoS %d, %3d entries/msg (%6d B): %7.1f msg/s, %9.0f B/s, " +
+                            "p50 %6.1f ms, p99 %6.1f ms, %d failures",
+                    qos, batchSize, payloadBytes, messagesPerSecond, bytesPerSecond,
+                    p50LatencyMs, p99LatencyMs, failures);
+        }
+    }
+
+    /**
+     * @param publisher the publisher to measure, for setting the QoS level
+     * @param target what to publish to: the publisher itself, or a FaultInjectingPublisher
+     *         wrapped around it
+     */
+    PublishBenchmark(MQTTPublisher publisher, CloudPublisher target, PayloadEncoder encoder,
+            String deviceId) {
+        mPublisher = publisher;
+        mTarget = target;
+        mEncoder = encoder;
+        mDeviceId = deviceId;
+    }
+
+    /**
+     * Publish the given number of messages, of batchSize entries each.  Failed publishes are
+     * retried, as the service would.
+     */
+    Result run(int qos, int batchSize, int messages) throws JSONException,
+            InterruptedException {
+        final Payload payload = mEncoder.encode(createBatch(batchSize).toString());
+        final long[] latencies = new long[messages];
+        int failures = 0;
+        int sent = 0;
+        mPublisher.setQos(qos);
+        final long start = System.nanoTime();
+        long lastProgress = start;
+        try {
+            while (sent < messages) {
+                if (System.nanoTime() - lastProgress >
+                        TimeUnit.MILLISECONDS.toNanos(STALL_TIMEOUT_MS)) {
+                    throw new IllegalStateException("Publisher stalled after " + sent +
+                            " messages");
+                }
+                if (!mTarget.isReady()) {
+                    Thread.sleep(10);
+                    continue;
+                }
+                final long publishStart = System.nanoTime();
+                try {
+                    mTarget.publish(payload, CloudPublisher.LANE_BACKFILL);
+                } catch (RuntimeException e) {
+                    // e.g. Paho's in-flight window is still full of QoS 0 messages
+                    failures++;
+                    continue;
+                }
+                // Synchronous, so at QoS 1 this is the time until the broker acknowledged it
+                lastProgress = System.nanoTime();
+                latencies[sent++] = lastProgress - publishStart;
+            }
+        } finally {
+            mPublisher.setQos(1);
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+
+        Arrays.sort(latencies, 0, sent);
+        final Result result = new Result();
+        result.qos = qos;
+        result.batchSize = batchSize;
+        result.messages = sent;
+        result.failures = failures;
+        result.payloadBytes = payload.getData().length;
+        result.messagesPerSecond = sent / seconds;
+        result.bytesPerSecond = (double) sent * payload.getData().length / seconds;
+        result.p50LatencyMs = percentileMillis(latencies, sent, 0.5);
+        result.p99LatencyMs = percentileMillis(latencies, sent, 0.99);
+        return result;
+    }
+
+    private static double percentileMillis(long[] sorted, int count, double percentile) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        int index = Math.min(count - 1, (int) Math.ceil(percentile * count) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    /**
+     * Returns a batch of realistic looking entries, so compression behaves as it would on
+     * real data.
+     */
+    private JSONArray createBatch(int size) throws JSONException {
+        JSONArray batch = new JSONArray();
+        final double time = 1500000000;
+        for (int i = 0; i < size; i++) {
+            JSONObject entry = new JSONObject();
+            entry.put("deviceId", mDeviceId);
+            entry.put("time", time + i * 10);
+            entry.put("latitude", -12.0464 + i * 0.0001);
+            entry.put("longitude", -77.0428 - i * 0.0001);
+            entry.put("accuracy", 3.0 + (i % 5));
+            entry.put("altitude", 150.0 + (i % 7));
+            entry.put("verticalAccuracy", 4.0);
+            entry.put("temperature", 21.5 + (i % 3) * 0.1);
+            entry.put("humidity", 70.2 - (i % 4) * 0.1);
+            entry.put("pressure", 1012.3);
+            entry.put("pm25", Integer.toString(10 + i % 20));
+            entry.put("pm10", Integer.toString(20 + i % 30));
+            batch.put(entry);
+        }
+        return batch;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud.cloudiot;
+
+import android.content.Context;
+import android.os.Bundle;
+
+import net.jpuderer.android.things.taxidatalogger.cloud.PayloadEncoder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Measures the publisher's throughput and ack latency against an in-process broker, across
+ * batch sizes and QoS levels, on a clean link and on a faulty one.  The results are printed,
+ * so a publisher change can be compared against the numbers from before it.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PublishBenchmarkTest {
+    private static final int[] BATCH_SIZES = {1, 10, 50, 200};
+    private static final int[] QOS_LEVELS = {0, 1};
+    private static final int MESSAGES = 100;
+
+    private static final long TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private MqttTestBroker mBroker;
+    private MQTTPublisher mPublisher;
+    private PayloadEncoder mEncoder;
+
+    @Before
+    public void setUp() throws Exception {
+        mBroker = new MqttTestBroker();
+        mPublisher = createPublisher();
+        mEncoder = new PayloadEncoder(true, Deflater.DEFAULT_COMPRESSION);
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (!mPublisher.isReady()) {
+            if (System.nanoTime() > deadline) {
+                fail("Not connected after " + TIMEOUT_MS + " ms");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mEncoder.close();
+        mPublisher.close();
+        mBroker.close();
+    }
+
+    @Test
+    public void measuresCleanLink() throws Exception {
+        final PublishBenchmark benchmark =
+                new PublishBenchmark(mPublisher, mPublisher, mEncoder, "test-device");
+        int total = 0;
+        System.out.println("Publish benchmark, clean link:");
+        for (int qos : QOS_LEVELS) {
+            for (int batchSize : BATCH_SIZES) {
+                final PublishBenchmark.Result result = benchmark.run(qos, batchSize, MESSAGES);
+                System.out.println("  " + result);
+                // Failed publishes are retried, and reported
+                assertEquals(MESSAGES, result.messages);
+                assertTrue(result.p50LatencyMs <= result.p99LatencyMs);
+                total += result.messages;
+            }
+        }
+        // QoS 0 makes no promises, but nothing should go missing on loopback
+        assertEquals(total, mBroker.awaitMessages(total, TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .size());
+    }
+
+    @Test
+    public void measuresFaultyLink() throws Exception {
+        mBroker.setAckDelay(5);
+        final FaultInjectingPublisher target = new FaultInjectingPublisher(mPublisher)
+                .setLatency(2, 3)
+                .setLossRate(0.05)
+                .setDisconnectEvery(50, new Runnable() {
+                    @Override
+                    public void run() {
+                        mPublisher.forceDisconnect();
+                    }
+                });
+        final PublishBenchmark benchmark =
+                new PublishBenchmark(mPublisher, target, mEncoder, "test-device");
+        System.out.println("Publish benchmark, 5 ms acks, 2-5 ms latency, 5% loss, " +
+                "disconnect every 50 messages:");
+        int total = 0;
+        for (int batchSize : BATCH_SIZES) {
+            final PublishBenchmark.Result result = benchmark.run(1, batchSize, MESSAGES);
+            System.out.println("  " + result);
+            assertEquals(MESSAGES, result.messages);
+            total += result.messages;
+        }
+        // At least once, through every loss and disconnect
+        assertTrue(mBroker.awaitMessages(total, TIMEOUT_MS, TimeUnit.MILLISECONDS).size() >=
+                total);
+    }
+
+    private MQTTPublisher createPublisher() {
+        final Context context = RuntimeEnvironment.application;
+        final Bundle bundle = new Bundle();
+        bundle.putString("project_id", "test-project");
+        bundle.putString("registry_id", "test-registry");
+        bundle.putString("device_id", "test-device");
+        bundle.putString("cloud_region", "test-region");
+        bundle.putString("mqtt_bridge_hostname", mBroker.getHost());
+        bundle.putInt("mqtt_bridge_port", mBroker.getPort());
+        bundle.putBoolean("mqtt_bridge_tls", false);
+        final CloudIotOptions options = CloudIotOptions.reconfigure(
+                CloudIotOptions.from(context.getSharedPreferences("test", Context.MODE_PRIVATE)),
+                bundle);
+        return new MQTTPublisher(options, mFolder.getRoot(),
+                new TestAuthentication(MqttAuthentication.ALGORITHM_ES256),
+                new TestAuthentication(MqttAuthentication.ALGORITHM_RS256));
+    }
+}
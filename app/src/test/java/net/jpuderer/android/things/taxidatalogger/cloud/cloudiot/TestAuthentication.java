@@ -0,0 +1,31 @@
+/*
+ * Copyright 2017 James Puderer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.jpuderer.android.things.taxidatalogger.cloud.cloudiot;
+
+/**
+ * Signs nothing, so that the broker can tell the keys apart by their tokens alone.  The token
+ * for a key is its algorithm, followed by "-token".
+ */
+class TestAuthentication extends MqttAuthentication {
+    TestAuthentication(String algorithm) {
+        super("test", "test", algorithm);
+    }
+
+    @Override
+    public char[] createJwt(String projectId) {
+        return (getAlgorithm() + "-token").toCharArray();
+    }
+}
@@ -0,0 +1,107 @@
+#!/usr/bin/env python
+
+# Copyright 2017 James Puderer. All Rights Reserved.
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+"""
+This script decodes raw capture files (see RawCaptureLog.java) into newline
+delimited JSON, one event per line, on standard output.
+
+Each event has the source ("fix", or a channel name such as "pm25"), its
+timestamp in elapsed realtime nanoseconds ("elapsedNanos"), and its values.
+Sensor events have a single "value".  GPS fixes have the fields of a log entry,
+with "time" in UTC seconds since epoch.  Once a fix has been seen, later events
+also get an estimated "time", from the fix's clock.
+
+Files that were cut short (e.g. by a power failure) are decoded as far as they
+go.
+
+Usage: decode_raw_capture.py <file> [...]
+"""
+from __future__ import print_function
+import json
+import struct
+import sys
+import zlib
+
+MAGIC = b'TDRC'
+SOURCE_FIX = 255
+# Older captures have fewer values
+FIX_VALUES = ['time', 'latitude', 'longitude', 'accuracy', 'altitude',
+              'verticalAccuracy', 'speed', 'satellites', 'hdop', 'fixQuality']
+TYPE_INT = 1
+
+def read_gzip(path):
+    """Returns the contents of a gzip file, or as much of it as is intact."""
+    with open(path, 'rb') as f:
+        data = f.read()
+    inflater = zlib.decompressobj(16 + zlib.MAX_WBITS)
+    contents = inflater.decompress(data) + inflater.flush()
+    if not inflater.eof:
+        print('%s is truncated' % path, file=sys.stderr)
+    return contents
+
+def decode(data):
+    """Yields the events in a raw capture file, as dicts."""
+    if data[:4] != MAGIC:
+        raise ValueError('Not a raw capture file')
+    version, channel_count = struct.unpack_from('<BB', data, 4)
+    if version != 1:
+        raise ValueError('Unknown raw capture version: %d' % version)
+    offset = 6
+    channels = []
+    for _ in range(channel_count):
+        channel_type, length = struct.unpack_from('<BB', data, offset)
+        offset += 2
+        channels.append((data[offset:offset + length].decode('utf-8'), channel_type))
+        offset += length
+    offset += 16  # Start time, which the fixes give more reliably
+
+    # UTC ms at elapsed realtime 0, from the most recent fix
+    clock_offset = None
+    while offset + 10 <= len(data):
+        source, count, elapsed = struct.unpack_from('<BBq', data, offset)
+        offset += 10
+        if offset + count * 8 > len(data):
+            break
+        values = struct.unpack_from('<%dd' % count, data, offset)
+        offset += count * 8
+
+        event = {'elapsedNanos': elapsed}
+        if source == SOURCE_FIX:
+            event['source'] = 'fix'
+            for name, value in zip(FIX_VALUES, values):
+                if value == value:  # Not NaN
+                    event[name] = value
+            clock_offset = values[0] - elapsed / 1e6
+            event['time'] = values[0] / 1000
+        else:
+            name, channel_type = channels[source]
+            event['source'] = name
+            event['value'] = int(values[0]) if channel_type == TYPE_INT else values[0]
+            if clock_offset is not None:
+                event['time'] = (clock_offset + elapsed / 1e6) / 1000
+        yield event
+
+def main(argv):
+    if len(argv) < 2:
+        print(__doc__, file=sys.stderr)
+        return 1
+    for path in argv[1:]:
+        for event in decode(read_gzip(path)):
+            print(json.dumps(event, sort_keys=True))
+    return 0
+
+if __name__ == '__main__':
+    sys.exit(main(sys.argv))
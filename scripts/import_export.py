@@ -0,0 +1,93 @@
+#!/usr/bin/env python
+
+# Copyright 2017 James Puderer. All Rights Reserved.
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+"""
+This script loads files written by the device's EXPORT_DATA action into the
+BigQuery table used by pull_taxi_pubsub.py.
+
+Exported files are gzipped, newline delimited JSON, one row per line, named
+datalog-<device>-<first id>-<last id>.jsonl.gz.  Each file is loaded with a
+BigQuery load job, which is much faster than streaming inserts, and free.
+Files that were loaded successfully are moved to an "imported" directory next
+to them, so running the script again doesn't load them twice.
+
+Usage: import_export.py <file or directory> [...]
+
+The destination table is configured in the setup.yaml file contained in the
+same directory as the script.
+"""
+from __future__ import print_function
+import glob
+import os
+import sys
+import time
+from apiclient.http import MediaFileUpload
+
+from pull_taxi_pubsub import cfg, create_bigquery_client
+
+def find_exports(paths):
+    for path in paths:
+        if os.path.isdir(path):
+            for name in sorted(glob.glob(os.path.join(path, 'datalog-*.jsonl.gz'))):
+                yield name
+        else:
+            yield path
+
+def load_file(bigquery, path):
+    job = {
+        'configuration': {
+            'load': {
+                'sourceFormat': 'NEWLINE_DELIMITED_JSON',
+                'writeDisposition': 'WRITE_APPEND',
+                'destinationTable': {
+                    'projectId': cfg["env"]["PROJECT_ID"],
+                    'datasetId': cfg["env"]["DATASET_ID"],
+                    'tableId': cfg["env"]["TABLE_ID"],
+                },
+            }
+        }
+    }
+    media = MediaFileUpload(path, mimetype='application/octet-stream',
+                            resumable=True)
+    job = bigquery.jobs().insert(projectId=cfg["env"]["PROJECT_ID"],
+                                 body=job, media_body=media).execute()
+    job_id = job['jobReference']['jobId']
+    while True:
+        job = bigquery.jobs().get(projectId=cfg["env"]["PROJECT_ID"],
+                                  jobId=job_id).execute()
+        if job['status']['state'] == 'DONE':
+            break
+        time.sleep(1)
+    if 'errorResult' in job['status']:
+        raise RuntimeError('%s: %s' % (path, job['status']['errorResult']))
+    return int(job['statistics']['load']['outputRows'])
+
+def main(argv):
+    if len(argv) < 2:
+        print(__doc__)
+        return 1
+    bigquery = create_bigquery_client()
+    for path in find_exports(argv[1:]):
+        rows = load_file(bigquery, path)
+        print("Loaded %d rows from %s" % (rows, path))
+        imported = os.path.join(os.path.dirname(path), 'imported')
+        if not os.path.isdir(imported):
+            os.makedirs(imported)
+        os.rename(path, os.path.join(imported, os.path.basename(path)))
+    return 0
+
+if __name__ == '__main__':
+    sys.exit(main(sys.argv))
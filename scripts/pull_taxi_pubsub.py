@@ -24,10 +24,20 @@ a BigQuery table with the appropriate schema.  The messages should contain
 row data formated as JSON with key/value pairs representing columns and
 values.
 
+Devices may batch several rows into a single message (as a JSON array), and may
+compress the message.  The encoding is given by the Cloud IoT "subFolder"
+attribute (see PayloadEncoder.java).  Decoding "deflate-d1" payloads requires
+Python 3.3 or newer.
+
+Raw capture files ("raw-v1" payloads) aren't table rows.  They are saved to
+RAW_CAPTURE_DIR as they are, for decode_raw_capture.py.
+
 The source subscription and destination table are configured in the setup.yaml
 file containted in the same directory as the script.
 """
+from __future__ import print_function
 import sys
+import zlib
 import base64
 from apiclient import discovery
 from dateutil.parser import parse
@@ -37,6 +47,7 @@ import time
 import datetime
 import uuid
 import json
+import os
 import signal
 import sys
 from oauth2client import client as oauth2client
@@ -45,11 +56,24 @@ with open("setup.yaml", 'r') as  varfile:
     cfg = yaml.load(varfile)
 
 PUBSUB_SCOPES = ['https://www.googleapis.com/auth/pubsub']
+
+# Preset DEFLATE dictionary used by devices for small batches.  This must match
+# PayloadEncoder.PRESET_DICTIONARY byte for byte.
+PRESET_DICTIONARY_D1 = (
+    b'"pm25":null,"pm10":null},'
+    b'{"deviceId":"taxi","time":1.5E9,"latitude":-12.1,"longitude":-77.0,'
+    b'"accuracy":3.0,"altitude":100.0,"verticalAccuracy":4.0,'
+    b'"temperature":20.0,"humidity":50.0,"pressure":1000.0,'
+    b'"pm25":"10","pm10":"20"},{"deviceId":"')
+
+# Where raw capture files are saved
+RAW_CAPTURE_DIR = 'raw-capture'
+
 running_proc = True
 
 def signal_term_handler(signal, frame):
     global running_proc
-    print "Exiting application"
+    print("Exiting application")
     running_proc = False
     sys.exit(0)
 
@@ -67,13 +91,41 @@ def create_bigquery_client():
     # Construct the service object for interacting with the BigQuery API.
     return discovery.build('bigquery', 'v2', credentials=credentials)
 
-def stream_row_to_bigquery(bigquery, row,
-                           num_retries=5):
+def decode_payload(data, attributes):
+    """Returns the list of rows contained in a device message."""
+    encoding = (attributes or {}).get('subFolder')
+    if encoding == 'deflate':
+        data = zlib.decompress(data)
+    elif encoding == 'deflate-d1':
+        inflater = zlib.decompressobj(zdict=PRESET_DICTIONARY_D1)
+        data = inflater.decompress(data) + inflater.flush()
+    elif encoding == 'raw-v1':
+        save_raw_capture(data, attributes)
+        return []
+    elif encoding:
+        raise ValueError('Unknown payload encoding: ' + encoding)
+    rows = json.loads(data.decode('utf-8'))
+    # Older devices send a single row per message
+    if isinstance(rows, dict):
+        rows = [rows]
+    return rows
+
+def save_raw_capture(data, attributes):
+    """Saves a gzipped raw capture file, named after the device."""
+    if not os.path.isdir(RAW_CAPTURE_DIR):
+        os.makedirs(RAW_CAPTURE_DIR)
+    name = 'raw-%s-%d.bin.gz' % (attributes.get('deviceId', 'unknown'),
+                                 int(time.time() * 1000))
+    with open(os.path.join(RAW_CAPTURE_DIR, name), 'wb') as f:
+        f.write(data)
+    print("Saved raw capture %s (%d bytes)" % (name, len(data)))
+
+def stream_rows_to_bigquery(bigquery, rows,
+                            num_retries=5):
     # Generate a unique row ID so retries
     # don't accidentally insert duplicates.
     insert_all_data = {
-        'insertId': str(uuid.uuid4()),
-        'rows': [{'json': row}]
+        'rows': [{'insertId': str(uuid.uuid4()), 'json': row} for row in rows]
     }
     return bigquery.tabledata().insertAll(
         projectId=cfg["env"]["PROJECT_ID"],
@@ -117,13 +169,14 @@ def main(argv):
                 if pubsub_message:
                     # get messages
                     msg = base64.b64decode(str(pubsub_message.get('data')))
-                    print "Pulled: " + msg
 
                     # parse the message
-                    row = json.loads(msg)
+                    rows = decode_payload(msg, pubsub_message.get('attributes'))
+                    print("Pulled %d rows: %s" % (len(rows), rows))
 
-                    # save row to BigQuery
-                    result = stream_row_to_bigquery(bq, row)
+                    # save rows to BigQuery
+                    if rows:
+                        result = stream_rows_to_bigquery(bq, rows)
 
                     # Get the message's ack ID.
                     ack_ids.append(received_message.get('ackId'))